@@ -0,0 +1,75 @@
+package enterprises.orbital.esi.proxy;
+
+import java.lang.reflect.Field;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Proxy key hashing. {@link ProxyAccessKey#checkHash(long, String)} loads the key from the database before hashing, so the check is measured here as the
+ * hash and comparison it performs once the key is loaded. The cached check compares against a key snapshot, as on a key cache hit.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(
+    iterations = 5,
+    time = 1)
+@Measurement(
+    iterations = 5,
+    time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AccessKeyHashBenchmark {
+  private ProxyAccessKey           key;
+  private String                   hash;
+  private AccessKeyCache.CachedKey cached;
+
+  @Setup
+  public void setup() throws Exception {
+    ProxyUserAccount user = new ProxyUserAccount();
+    user.uid = 100123;
+    key = new ProxyAccessKey();
+    set(key, "kid", 1234567L);
+    set(key, "user", user);
+    key.setRandomSeed(8234905723409572L);
+    key.setCharacterName("Some Character Name");
+    hash = ProxyAccessKey.generateHash(key);
+    cached = new AccessKeyCache.CachedKey(key.getKid(), user.getID(), hash, 0, "token", 0, 0);
+  }
+
+  // Key and user IDs are assigned by the database, so we set them directly
+  private static void set(
+                          Object target,
+                          String name,
+                          Object value)
+    throws Exception {
+    Field field = target.getClass().getDeclaredField(name);
+    field.setAccessible(true);
+    field.set(target, value);
+  }
+
+  @Benchmark
+  public String generateHash() {
+    return ProxyAccessKey.generateHash(key);
+  }
+
+  @Benchmark
+  public boolean checkHash() {
+    return ProxyAccessKey.generateHash(key).equals(hash);
+  }
+
+  @Benchmark
+  public boolean checkCachedHash() {
+    return cached.getCredential().equals(hash);
+  }
+
+}
@@ -0,0 +1,22 @@
+package enterprises.orbital.esi.proxy;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Run the proxy benchmarks. Accepts the usual JMH command line options, and always adds the GC profiler so that every benchmark reports its allocation rate
+ * (gc.alloc.rate.norm is bytes allocated per operation) alongside throughput.
+ */
+public class BenchmarkRunner {
+
+  public static void main(
+                          String[] args)
+    throws Exception {
+    Options options = new OptionsBuilder().parent(new CommandLineOptions(args)).addProfiler(GCProfiler.class).build();
+    new Runner(options).run();
+  }
+
+}
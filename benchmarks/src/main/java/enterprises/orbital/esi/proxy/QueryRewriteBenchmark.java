@@ -0,0 +1,51 @@
+package enterprises.orbital.esi.proxy;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Query string handling in {@link ESIProxyServlet}: removing the proxy parameters, dropping "page" for all pages requests and building the canonical
+ * query used in cache keys.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(
+    iterations = 5,
+    time = 1)
+@Measurement(
+    iterations = 5,
+    time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class QueryRewriteBenchmark {
+  private static final String KEY_NAME       = "esiProxyKey";
+  private static final String HASH_NAME      = "esiProxyHash";
+  private static final String ALL_PAGES_NAME = "allPages";
+
+  @Param({
+      "datasource=tranquility",
+      "datasource=tranquility&esiProxyKey=1234567&esiProxyHash=0123456789abcdef0123456789abcdef01234567",
+      "page=2&esiProxyKey=1234567&datasource=tranquility&esiProxyHash=0123456789abcdef0123456789abcdef01234567&language=en-us",
+      "datasource=tranquility&esiProxyKey=1234567&esiProxyHash=0123456789abcdef0123456789abcdef01234567&allPages=true&page=1"
+  })
+  public String               query;
+
+  @Benchmark
+  public String rewrite() {
+    ProxyQuery scanned = ProxyQuery.scan(query, KEY_NAME, HASH_NAME, ALL_PAGES_NAME);
+    String remaining = scanned.getRemaining();
+    if (scanned.isAllPages()) remaining = ProxyQuery.remove(remaining, "page");
+    return ProxyQuery.canonical(remaining);
+  }
+
+}
@@ -0,0 +1,126 @@
+package enterprises.orbital.esi.proxy;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The regular expression swagger.json translation which {@link SwaggerRewriter} replaced, kept as the baseline for {@link SwaggerTransformBenchmark}. The
+ * whole document is read into memory, then each pattern is applied in turn, each pass producing a new copy of the document.
+ */
+public class RegexSwaggerTransform {
+  // "basePath":"/latest"
+  protected static final Pattern BASEPATH_PATTERN = Pattern.compile("\"basePath\"[ ]*:[ ]*\"([a-zA-Z/]+)\"");
+  // "host":"esi.tech.ccp.is"
+  protected static final Pattern HOSTNAME_PATTERN = Pattern.compile("\"host\"[ ]*:[ ]*\"([a-zA-Z0-9.]+)\"");
+  // "schemes":["https"]
+  protected static final Pattern SCHEMES_PATTERN  = Pattern.compile("\"schemes\"[ ]*:[ ]*\\[\"https\"\\]");
+  // "securityDefinitions":{ "evesso":{ ... "type":"oauth2" }}
+  protected static final Pattern SECDEF_PATTERN   = Pattern.compile("\"securityDefinitions\"[ ]*:.*\"type\"[ ]*:[ ]*\"oauth2\"[ ]*\\}\\}");
+  // "security":[{"evesso":["esi-assets.read_assets.v1"]}]
+  protected static final Pattern SECURITY_PATTERN = Pattern.compile("\"security\"[ ]*:[ ]*\\[\\{\"evesso\".*?\\]\\}\\]");
+
+  private final String           proxyHost;
+  private final int              proxyPort;
+  private final String           servletPath;
+  private final String           proxySecurityDefinition;
+  private final String           proxySecurity;
+
+  public RegexSwaggerTransform(String proxyHost, int proxyPort, String servletPath, String proxyKeyName, String proxyHashName) {
+    this.proxyHost = proxyHost;
+    this.proxyPort = proxyPort;
+    this.servletPath = servletPath;
+    proxySecurityDefinition = "\"securityDefinitions\":{ \"" + proxyKeyName + "\" : { \"type\" : \"apiKey\", \"name\" : \"" + proxyKeyName
+        + "\", \"in\" : \"query\"}, \"" + proxyHashName + "\" : { \"type\" : \"apiKey\", \"name\" : \"" + proxyHashName + "\", \"in\" : \"query\"}}";
+    proxySecurity = "\"security\":[{\"" + proxyKeyName + "\":\\[\\], \"" + proxyHashName + "\":\\[\\]\\}\\]";
+  }
+
+  /**
+   * Translate an ESI swagger.json document into the proxy version.
+   *
+   * @param src
+   *          decoded ESI document
+   * @param dest
+   *          destination for the translated document
+   * @throws IOException
+   *           if an error occurs reading or writing the document
+   */
+  public void transform(
+                        InputStream src,
+                        OutputStream dest)
+    throws IOException {
+    StringBuilder assembly = new StringBuilder();
+    BufferedReader extractor = new BufferedReader(new InputStreamReader(src, StandardCharsets.UTF_8));
+    for (String next = extractor.readLine(); next != null; next = extractor.readLine())
+      assembly.append(next);
+    // Fix hostname
+    StringBuffer transformed = new StringBuffer();
+    String srcText = assembly.toString();
+    Matcher matcher = HOSTNAME_PATTERN.matcher(srcText);
+    if (matcher.find()) {
+      String replacement = "\"host\": \"" + proxyHost;
+      if (proxyPort != 80 && proxyPort != 443) {
+        replacement += ":" + proxyPort;
+      }
+      replacement += "\"";
+      matcher.appendReplacement(transformed, replacement);
+    }
+    matcher.appendTail(transformed);
+    // Fix basepath
+    if (servletPath != null && servletPath.length() > 0) {
+      srcText = transformed.toString();
+      transformed = new StringBuffer();
+      matcher = BASEPATH_PATTERN.matcher(srcText);
+      if (matcher.find()) {
+        String replacement = "\"basePath\":\"/" + servletPath + matcher.group(1) + "\"";
+        matcher.appendReplacement(transformed, replacement);
+      }
+      matcher.appendTail(transformed);
+    }
+    // Fix scheme
+    srcText = transformed.toString();
+    transformed = new StringBuffer();
+    matcher = SCHEMES_PATTERN.matcher(srcText);
+    if (matcher.find()) {
+      String replacement = "\"schemes\": [";
+      switch (proxyPort) {
+      case 443:
+        replacement += "\"https\"";
+        break;
+      case 80:
+      default:
+        replacement += "\"http\"";
+        break;
+      }
+      replacement += "]";
+      matcher.appendReplacement(transformed, replacement);
+    }
+    matcher.appendTail(transformed);
+    // Fix securityDefinitions
+    srcText = transformed.toString();
+    transformed = new StringBuffer();
+    matcher = SECDEF_PATTERN.matcher(srcText);
+    if (matcher.find()) matcher.appendReplacement(transformed, proxySecurityDefinition);
+    matcher.appendTail(transformed);
+    // Fix security instances
+    srcText = transformed.toString();
+    transformed = new StringBuffer();
+    matcher = SECURITY_PATTERN.matcher(srcText);
+    while (matcher.find()) {
+      matcher.appendReplacement(transformed, proxySecurity);
+    }
+    matcher.appendTail(transformed);
+    // Write new output
+    Writer generator = new OutputStreamWriter(dest, StandardCharsets.UTF_8);
+    generator.write(transformed.toString());
+    generator.flush();
+  }
+
+}
@@ -0,0 +1,68 @@
+package enterprises.orbital.esi.proxy;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Scope extraction for {@link ServicesWS#getScopes}, which reads the whole ESI swagger.json document and then extracts the scope map. Both steps are
+ * measured together, and the extraction alone from an already parsed document.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(
+    iterations = 5,
+    time = 2)
+@Measurement(
+    iterations = 5,
+    time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ScopeExtractionBenchmark {
+  private byte[]     spec;
+  private JsonObject parsed;
+
+  @Setup
+  public void setup() throws IOException {
+    spec = SwaggerTransformBenchmark.readFixture("/esi-swagger.json");
+    parsed = parse();
+  }
+
+  protected JsonObject parse() {
+    JsonReader reader = Json.createReader(new InputStreamReader(new ByteArrayInputStream(spec), StandardCharsets.UTF_8));
+    try {
+      return reader.readObject();
+    } finally {
+      reader.close();
+    }
+  }
+
+  @Benchmark
+  public Map<String, String> parseAndExtract() {
+    return ServicesWS.extractScopes(parse());
+  }
+
+  @Benchmark
+  public Map<String, String> extract() {
+    return ServicesWS.extractScopes(parsed);
+  }
+
+}
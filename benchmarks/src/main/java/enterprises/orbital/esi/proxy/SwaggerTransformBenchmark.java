@@ -0,0 +1,127 @@
+package enterprises.orbital.esi.proxy;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Translation of an ESI swagger.json document, as performed by {@link ESIProxyServlet#copyResponseEntity}, using the spec fixture in esi-swagger.json. The
+ * gzip variant includes decoding the ESI response and encoding the result, as for clients which accept gzip. The regex variants run the regular expression
+ * translation {@link SwaggerRewriter} replaced (see {@link RegexSwaggerTransform}) as a baseline.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(
+    iterations = 5,
+    time = 2)
+@Measurement(
+    iterations = 5,
+    time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SwaggerTransformBenchmark {
+  private SwaggerRewriter       rewriter;
+  private RegexSwaggerTransform regex;
+  private byte[]                spec;
+  private byte[]                gzipSpec;
+
+  /**
+   * Discards output, counting the bytes written so the work can't be optimized away.
+   */
+  protected static class CountingOutputStream extends OutputStream {
+    long count;
+
+    @Override
+    public void write(
+                      int b) {
+      count++;
+    }
+
+    @Override
+    public void write(
+                      byte[] b,
+                      int off,
+                      int len) {
+      count += len;
+    }
+  }
+
+  @Setup
+  public void setup() throws IOException {
+    rewriter = new SwaggerRewriter("proxy.example.com", "esi-proxy/latest", "https", "esiProxyKey", "esiProxyHash");
+    regex = new RegexSwaggerTransform("proxy.example.com", 443, "esi-proxy", "esiProxyKey", "esiProxyHash");
+    spec = readFixture("/esi-swagger.json");
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream(spec.length / 4);
+    GZIPOutputStream gzip = new GZIPOutputStream(compressed);
+    gzip.write(spec);
+    gzip.close();
+    gzipSpec = compressed.toByteArray();
+  }
+
+  protected static byte[] readFixture(
+                                      String name)
+    throws IOException {
+    InputStream src = SwaggerTransformBenchmark.class.getResourceAsStream(name);
+    if (src == null) throw new IOException("Missing fixture " + name);
+    try {
+      ByteArrayOutputStream data = new ByteArrayOutputStream(512 * 1024);
+      byte[] buffer = new byte[8192];
+      for (int count = src.read(buffer); count >= 0; count = src.read(buffer))
+        data.write(buffer, 0, count);
+      return data.toByteArray();
+    } finally {
+      src.close();
+    }
+  }
+
+  @Benchmark
+  public long transform() throws IOException {
+    CountingOutputStream dest = new CountingOutputStream();
+    rewriter.rewrite(new ByteArrayInputStream(spec), dest);
+    return dest.count;
+  }
+
+  @Benchmark
+  public long transformGzip() throws IOException {
+    CountingOutputStream dest = new CountingOutputStream();
+    InputStream src = new GZIPInputStream(new ByteArrayInputStream(gzipSpec));
+    GZIPOutputStream generator = new GZIPOutputStream(dest);
+    rewriter.rewrite(src, generator);
+    generator.finish();
+    return dest.count;
+  }
+
+  @Benchmark
+  public long regexTransform() throws IOException {
+    CountingOutputStream dest = new CountingOutputStream();
+    regex.transform(new ByteArrayInputStream(spec), dest);
+    return dest.count;
+  }
+
+  @Benchmark
+  public long regexTransformGzip() throws IOException {
+    CountingOutputStream dest = new CountingOutputStream();
+    InputStream src = new GZIPInputStream(new ByteArrayInputStream(gzipSpec));
+    GZIPOutputStream generator = new GZIPOutputStream(dest);
+    regex.transform(src, generator);
+    generator.finish();
+    return dest.count;
+  }
+
+}
@@ -0,0 +1,164 @@
+package enterprises.orbital.esi.proxy.loadtest;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.h2.tools.Server;
+
+import enterprises.orbital.esi.proxy.ProxyAccessKey;
+import enterprises.orbital.esi.proxy.ProxyUserAccount;
+
+/**
+ * An in-memory H2 database served over TCP, so the proxy (which has its own copy of the H2 driver) and the harness see the same data. The schema mirrors
+ * sample_schema.sql, and is seeded with one user per access key.
+ */
+public class EmbeddedDatabase {
+  private static final String SCOPES = "esi-wallet.read_character_wallet.v1 esi-assets.read_assets.v1";
+
+  private final Server        server;
+  // Held open for the life of the test, the in-memory database is dropped when the last connection closes
+  private final Connection    connection;
+
+  /**
+   * A seeded access key.
+   */
+  public static class SeededKey {
+    public final long   kid;
+    public final long   characterID;
+    public final String hash;
+
+    SeededKey(long kid, long characterID, String hash) {
+      this.kid = kid;
+      this.characterID = characterID;
+      this.hash = hash;
+    }
+  }
+
+  /**
+   * Start the database server and create the schema.
+   *
+   * @param port
+   *          TCP port for the database server.
+   * @throws SQLException
+   *           if the server can't be started or the schema can't be created.
+   * @throws IOException
+   *           if the schema can't be read.
+   */
+  public EmbeddedDatabase(int port) throws SQLException, IOException {
+    server = Server.createTcpServer("-tcpPort", String.valueOf(port), "-tcpDaemon").start();
+    connection = DriverManager.getConnection("jdbc:h2:tcp://localhost:" + port + "/mem:esiproxy", "sa", "");
+    Statement statement = connection.createStatement();
+    try {
+      for (String next : new String(StubESI.readResource("/schema.sql"), StandardCharsets.UTF_8).split(";")) {
+        StringBuilder sql = new StringBuilder();
+        for (String line : next.split("\n"))
+          if (!line.trim().startsWith("--")) sql.append(line).append('\n');
+        if (sql.toString().trim().length() > 0) statement.execute(sql.toString());
+      }
+    } finally {
+      statement.close();
+    }
+  }
+
+  public void stop() throws SQLException {
+    connection.close();
+    server.stop();
+  }
+
+  /**
+   * Create access keys, each owned by its own user so per-user rate limits don't skew the results.
+   *
+   * @param count
+   *          number of keys to create.
+   * @param expiredPercent
+   *          percentage of keys whose access token has already expired, these are refreshed on first use.
+   * @param tokenLifetime
+   *          remaining lifetime (seconds) of the access tokens which have not expired.
+   * @return the created keys.
+   * @throws Exception
+   *           if the keys can't be created.
+   */
+  public List<SeededKey> seedKeys(
+                                  int count,
+                                  int expiredPercent,
+                                  int tokenLifetime)
+    throws Exception {
+    Random random = new Random(count);
+    long now = System.currentTimeMillis();
+    List<SeededKey> keys = new ArrayList<SeededKey>(count);
+    PreparedStatement user = connection.prepareStatement("INSERT INTO proxy_users (uid, active, admin, created, last) VALUES (?, TRUE, FALSE, ?, ?)");
+    PreparedStatement key = connection.prepareStatement(
+        "INSERT INTO proxy_access_keys (kid, accessToken, accessTokenExpiry, characterName, characterID, expiry, randomSeed, refreshToken, scopes, uid, "
+            + "serverType, refreshLeaseOwner, refreshLeaseExpiry) VALUES (?, ?, ?, ?, ?, -1, ?, ?, ?, ?, 'latest', NULL, 0)");
+    try {
+      for (int i = 0; i < count; i++) {
+        long uid = 1000 + i;
+        long kid = 5000 + i;
+        long characterID = 90000000L + i;
+        String characterName = "Load Test " + i;
+        long seed = random.nextLong();
+        boolean expired = i * 100 < count * expiredPercent;
+        user.setLong(1, uid);
+        user.setLong(2, now);
+        user.setLong(3, now);
+        user.executeUpdate();
+        key.setLong(1, kid);
+        key.setString(2, "stub-initial-" + i);
+        key.setLong(3, expired ? now - 1 : now + TimeUnit.SECONDS.toMillis(tokenLifetime));
+        key.setString(4, characterName);
+        key.setLong(5, characterID);
+        key.setLong(6, seed);
+        key.setString(7, "stub-refresh-" + i);
+        key.setString(8, SCOPES);
+        key.setLong(9, uid);
+        key.executeUpdate();
+        keys.add(new SeededKey(kid, characterID, hash(kid, uid, seed, characterName)));
+      }
+    } finally {
+      user.close();
+      key.close();
+    }
+    return keys;
+  }
+
+  /**
+   * Compute the proxy hash for a key. IDs are normally assigned by the database, so they are set directly.
+   */
+  protected static String hash(
+                               long kid,
+                               long uid,
+                               long seed,
+                               String characterName)
+    throws Exception {
+    ProxyUserAccount user = new ProxyUserAccount();
+    set(ProxyUserAccount.class, user, "uid", uid);
+    ProxyAccessKey key = new ProxyAccessKey();
+    set(ProxyAccessKey.class, key, "kid", kid);
+    set(ProxyAccessKey.class, key, "user", user);
+    key.setRandomSeed(seed);
+    key.setCharacterName(characterName);
+    return ProxyAccessKey.generateHash(key);
+  }
+
+  private static void set(
+                          Class<?> type,
+                          Object target,
+                          String name,
+                          Object value)
+    throws Exception {
+    Field field = type.getDeclaredField(name);
+    field.setAccessible(true);
+    field.set(target, value);
+  }
+
+}
@@ -0,0 +1,63 @@
+package enterprises.orbital.esi.proxy.loadtest;
+
+import java.util.Arrays;
+
+/**
+ * Records every latency sample (in microseconds). Each worker owns its own recorder so recording needs no synchronization, recorders are merged once the run
+ * is over.
+ */
+public class LatencyRecorder {
+  private long[] samples = new long[4096];
+  private int    count;
+  private long   errors;
+
+  public void record(
+                     long micros) {
+    if (count == samples.length) samples = Arrays.copyOf(samples, count * 2);
+    samples[count++] = micros;
+  }
+
+  public void error() {
+    errors++;
+  }
+
+  public int getCount() {
+    return count;
+  }
+
+  public long getErrors() {
+    return errors;
+  }
+
+  public void merge(
+                    LatencyRecorder other) {
+    if (count + other.count > samples.length) samples = Arrays.copyOf(samples, Math.max(samples.length * 2, count + other.count));
+    System.arraycopy(other.samples, 0, samples, count, other.count);
+    count += other.count;
+    errors += other.errors;
+  }
+
+  /**
+   * Sort recorded samples. Must be called after the last sample is recorded and before {@link #percentile(double)}.
+   */
+  public void seal() {
+    Arrays.sort(samples, 0, count);
+  }
+
+  /**
+   * @param fraction
+   *          percentile to retrieve, between 0 and 1.
+   * @return the sample at the given percentile, or 0 if no samples were recorded.
+   */
+  public long percentile(
+                         double fraction) {
+    if (count == 0) return 0;
+    int index = (int) Math.ceil(fraction * count) - 1;
+    return samples[Math.min(Math.max(index, 0), count - 1)];
+  }
+
+  public long max() {
+    return count == 0 ? 0 : samples[count - 1];
+  }
+
+}
@@ -0,0 +1,197 @@
+package enterprises.orbital.esi.proxy.loadtest;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+
+import enterprises.orbital.esi.proxy.loadtest.EmbeddedDatabase.SeededKey;
+
+/**
+ * Drives load against the proxy. Each worker thread issues requests back to back (a closed loop), choosing the kind of each request at random according to
+ * the configured mix. Latencies are only recorded once the warmup period is over.
+ */
+public class LoadDriver {
+  public static enum Kind {
+    // Unauthenticated request for one of a fixed set of public routes
+    PUBLIC,
+    // Authenticated request using a proxy access key
+    KEYED,
+    // Authenticated request for all pages of a paged route
+    PAGED,
+    // Request for the translated swagger.json
+    SWAGGER
+  }
+
+  private final CloseableHttpClient client;
+  private final String              base;
+  private final List<SeededKey>     keys;
+  private final int                 publicIds;
+  private final Kind[]              kinds;
+  private final int[]               weights;
+  private final int                 totalWeight;
+  private volatile boolean          recording;
+  private volatile boolean          stopped;
+
+  /**
+   * Create a driver.
+   *
+   * @param base
+   *          proxy base URL, including the context path.
+   * @param keys
+   *          access keys for authenticated requests.
+   * @param publicIds
+   *          number of distinct public routes to request.
+   * @param mix
+   *          relative weight of each kind of request.
+   * @param threads
+   *          number of worker threads.
+   */
+  public LoadDriver(String base, List<SeededKey> keys, int publicIds, Map<Kind, Integer> mix, int threads) {
+    this.base = base;
+    this.keys = keys;
+    this.publicIds = publicIds;
+    List<Kind> selected = new ArrayList<Kind>();
+    List<Integer> selectedWeights = new ArrayList<Integer>();
+    int sum = 0;
+    for (Map.Entry<Kind, Integer> next : mix.entrySet()) {
+      if (next.getValue() <= 0) continue;
+      if (next.getKey() != Kind.PUBLIC && next.getKey() != Kind.SWAGGER && keys.isEmpty())
+        throw new IllegalArgumentException("Mix includes " + next.getKey() + " requests but no keys were created");
+      sum += next.getValue();
+      selected.add(next.getKey());
+      selectedWeights.add(sum);
+    }
+    if (sum == 0) throw new IllegalArgumentException("Mix does not include any requests");
+    kinds = selected.toArray(new Kind[selected.size()]);
+    weights = new int[kinds.length];
+    for (int i = 0; i < weights.length; i++)
+      weights[i] = selectedWeights.get(i);
+    totalWeight = sum;
+    RequestConfig config = RequestConfig.custom().setConnectTimeout(10000).setSocketTimeout(60000).build();
+    client = HttpClients.custom().setMaxConnPerRoute(threads).setMaxConnTotal(threads).setDefaultRequestConfig(config).disableCookieManagement().build();
+  }
+
+  /**
+   * Run the workers, blocking until the warmup and measurement periods have passed.
+   *
+   * @param threads
+   *          number of worker threads.
+   * @param warmup
+   *          seconds to run before recording.
+   * @param duration
+   *          seconds to record.
+   * @param onRecord
+   *          invoked when recording starts, e.g. to snapshot upstream counts.
+   * @return merged latencies for each kind of request.
+   * @throws InterruptedException
+   *           if interrupted while waiting for the workers.
+   */
+  public Map<Kind, LatencyRecorder> run(
+                                        int threads,
+                                        int warmup,
+                                        int duration,
+                                        Runnable onRecord)
+    throws InterruptedException {
+    List<Worker> workers = new ArrayList<Worker>(threads);
+    for (int i = 0; i < threads; i++) {
+      Worker next = new Worker();
+      next.setName("loadtest-" + i);
+      next.setDaemon(true);
+      workers.add(next);
+      next.start();
+    }
+    Thread.sleep(TimeUnit.SECONDS.toMillis(warmup));
+    onRecord.run();
+    recording = true;
+    Thread.sleep(TimeUnit.SECONDS.toMillis(duration));
+    recording = false;
+    stopped = true;
+    Map<Kind, LatencyRecorder> result = new EnumMap<Kind, LatencyRecorder>(Kind.class);
+    for (Kind next : kinds)
+      result.put(next, new LatencyRecorder());
+    for (Worker next : workers) {
+      next.join();
+      for (Map.Entry<Kind, LatencyRecorder> recorded : next.recorders.entrySet())
+        result.get(recorded.getKey()).merge(recorded.getValue());
+    }
+    for (LatencyRecorder next : result.values())
+      next.seal();
+    return result;
+  }
+
+  public void close() throws IOException {
+    client.close();
+  }
+
+  protected Kind choose() {
+    int pick = ThreadLocalRandom.current().nextInt(totalWeight);
+    for (int i = 0; i < kinds.length; i++)
+      if (pick < weights[i]) return kinds[i];
+    return kinds[kinds.length - 1];
+  }
+
+  protected String url(
+                       Kind kind) {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    switch (kind) {
+    case PUBLIC:
+      return base + "/latest/universe/types/" + (1 + random.nextInt(publicIds)) + "/";
+    case SWAGGER:
+      return base + "/latest/swagger.json";
+    default:
+      SeededKey key = keys.get(random.nextInt(keys.size()));
+      String credentials = "esiProxyKey=" + key.kid + "&esiProxyHash=" + key.hash;
+      if (kind == Kind.PAGED) return base + "/latest/characters/" + key.characterID + "/assets/?esiProxyAllPages=true&" + credentials;
+      return base + "/latest/characters/" + key.characterID + "/wallet/?" + credentials;
+    }
+  }
+
+  protected class Worker extends Thread {
+    private final Map<Kind, LatencyRecorder> recorders = new EnumMap<Kind, LatencyRecorder>(Kind.class);
+
+    @Override
+    public void run() {
+      for (Kind next : kinds)
+        recorders.put(next, new LatencyRecorder());
+      while (!stopped) {
+        Kind kind = choose();
+        HttpGet request = new HttpGet(url(kind));
+        boolean measured = recording;
+        long start = System.nanoTime();
+        boolean failed;
+        try {
+          CloseableHttpResponse response = client.execute(request);
+          try {
+            HttpEntity entity = response.getEntity();
+            if (entity != null) EntityUtils.consume(entity);
+            failed = response.getStatusLine().getStatusCode() >= 400;
+          } finally {
+            response.close();
+          }
+        } catch (IOException e) {
+          failed = true;
+        }
+        long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+        // Only count requests which started and finished while recording
+        if (measured && recording) {
+          LatencyRecorder recorder = recorders.get(kind);
+          recorder.record(micros);
+          if (failed) recorder.error();
+        }
+      }
+    }
+  }
+
+}
@@ -0,0 +1,137 @@
+package enterprises.orbital.esi.proxy.loadtest;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.catalina.Context;
+import org.apache.catalina.LifecycleState;
+import org.apache.catalina.startup.Tomcat;
+
+import enterprises.orbital.esi.proxy.loadtest.EmbeddedDatabase.SeededKey;
+
+/**
+ * End to end load test. Starts an H2 database, a stub ESI, a stub SSO and the proxy war in an embedded Tomcat, then drives a configurable mix of requests
+ * against the proxy and reports throughput, latency percentiles and the number of calls which reached the stub ESI and SSO.
+ *
+ * The war must be built with the loadtest profile, which points the proxy at the database and stubs started here.
+ */
+public class LoadTest {
+
+  public static void main(
+                          String[] args)
+    throws Exception {
+    LoadTestConfig config;
+    try {
+      config = new LoadTestConfig(args);
+    } catch (IllegalArgumentException e) {
+      System.err.println(e.getMessage());
+      System.err.println("Settings (with defaults):");
+      System.err.print(new LoadTestConfig(new String[0]).describe());
+      System.exit(1);
+      return;
+    }
+    File war = new File(config.getString("war"));
+    if (!war.isFile()) {
+      System.err.println("Proxy war not found at " + war + ", build it with: mvn -Ploadtest package");
+      System.exit(1);
+    }
+    EmbeddedDatabase database = new EmbeddedDatabase(config.getInt("dbPort"));
+    List<SeededKey> keys = database.seedKeys(config.getInt("keys"), config.getInt("expiredPercent"), config.getInt("tokenLifetime"));
+    final StubESI esi = new StubESI(
+        config.getInt("esiPort"), config.getInt("latency"), config.getDouble("latencySigma"), config.getInt("cacheSeconds"), config.getInt("pages"),
+        config.getInt("errorPercent"));
+    final StubSSO sso = new StubSSO(config.getInt("ssoPort"), config.getInt("ssoLatency"), config.getInt("tokenLifetime"));
+    Tomcat tomcat = startProxy(config, war);
+    LoadDriver driver = new LoadDriver(
+        "http://localhost:" + config.getInt("proxyPort") + config.getString("contextPath"), keys, config.getInt("publicIds"), config.getMix(),
+        config.getInt("threads"));
+    try {
+      final AtomicReference<Map<String, Long>> startCounts = new AtomicReference<Map<String, Long>>();
+      final long[] startRefreshes = new long[1];
+      System.out.println("Warming up for " + config.getInt("warmup") + " seconds");
+      Map<LoadDriver.Kind, LatencyRecorder> results = driver.run(config.getInt("threads"), config.getInt("warmup"), config.getInt("duration"), new Runnable() {
+        @Override
+        public void run() {
+          System.out.println("Measuring");
+          startCounts.set(esi.getCounts());
+          startRefreshes[0] = sso.getRefreshes();
+        }
+      });
+      Map<String, Long> upstream = new LinkedHashMap<String, Long>();
+      for (Map.Entry<String, Long> next : esi.getCounts().entrySet())
+        upstream.put(next.getKey(), next.getValue() - startCounts.get().get(next.getKey()));
+      report(config, results, upstream, sso.getRefreshes() - startRefreshes[0]);
+    } finally {
+      driver.close();
+      tomcat.stop();
+      tomcat.destroy();
+      sso.stop();
+      esi.stop();
+      database.stop();
+    }
+  }
+
+  protected static Tomcat startProxy(
+                                     LoadTestConfig config,
+                                     File war)
+    throws Exception {
+    File baseDir = Files.createTempDirectory("esi-proxy-loadtest").toFile();
+    baseDir.deleteOnExit();
+    Tomcat tomcat = new Tomcat();
+    tomcat.setBaseDir(baseDir.getAbsolutePath());
+    tomcat.setPort(config.getInt("proxyPort"));
+    tomcat.getHost().setAppBase(baseDir.getAbsolutePath());
+    // Creates the default connector
+    tomcat.getConnector();
+    Context context = tomcat.addWebapp(config.getString("contextPath"), war.getAbsolutePath());
+    tomcat.start();
+    if (context.getState() != LifecycleState.STARTED) {
+      tomcat.stop();
+      throw new IllegalStateException("Proxy failed to start, check the log for details");
+    }
+    return tomcat;
+  }
+
+  protected static void report(
+                               LoadTestConfig config,
+                               Map<LoadDriver.Kind, LatencyRecorder> results,
+                               Map<String, Long> upstream,
+                               long refreshes) {
+    double seconds = config.getInt("duration");
+    System.out.println();
+    System.out.println("Settings:");
+    System.out.print(config.describe());
+    System.out.println();
+    System.out.println("Latency (milliseconds):");
+    System.out.println(String.format("%-8s %10s %10s %8s %9s %9s %9s %9s %9s", "kind", "requests", "rate/s", "errors", "p50", "p90", "p99", "p99.9", "max"));
+    long total = 0;
+    long errors = 0;
+    for (Map.Entry<LoadDriver.Kind, LatencyRecorder> next : results.entrySet()) {
+      LatencyRecorder recorder = next.getValue();
+      total += recorder.getCount();
+      errors += recorder.getErrors();
+      System.out.println(
+          String.format(
+              "%-8s %10d %10.1f %8d %9.2f %9.2f %9.2f %9.2f %9.2f", next.getKey().name().toLowerCase(), recorder.getCount(), recorder.getCount() / seconds,
+              recorder.getErrors(), millis(recorder.percentile(0.5)), millis(recorder.percentile(0.9)), millis(recorder.percentile(0.99)),
+              millis(recorder.percentile(0.999)), millis(recorder.max())));
+    }
+    System.out.println(String.format("%-8s %10d %10.1f %8d", "total", total, total / seconds, errors));
+    System.out.println();
+    System.out.println("Upstream calls:");
+    for (Map.Entry<String, Long> next : upstream.entrySet())
+      System.out.println(String.format("  esi %-14s %10d", next.getKey(), next.getValue()));
+    System.out.println(String.format("  sso %-14s %10d", "refreshes", refreshes));
+    if (total > 0) System.out.println(String.format("  esi calls per proxied request: %.3f", upstream.get("requests") / (double) total));
+  }
+
+  private static double millis(
+                               long micros) {
+    return micros / 1000.0;
+  }
+
+}
@@ -0,0 +1,106 @@
+package enterprises.orbital.esi.proxy.loadtest;
+
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Load test settings. Every setting has a default, and may be overridden on the command line with "--name=value". The ports must match those the war was
+ * built with (see the loadtest profile in the proxy pom.xml).
+ */
+public class LoadTestConfig {
+  private static final Map<String, String> DEFAULTS = new LinkedHashMap<String, String>();
+  static {
+    // Location of the war, and the ports it was built to use
+    DEFAULTS.put("war", "../target/esi-proxy-esi-proxy-1.0.0.war");
+    DEFAULTS.put("contextPath", "/esi-proxy");
+    DEFAULTS.put("proxyPort", "8090");
+    DEFAULTS.put("esiPort", "8091");
+    DEFAULTS.put("ssoPort", "8092");
+    DEFAULTS.put("dbPort", "9092");
+    // Number of concurrent clients, seconds to run before measuring and seconds to measure
+    DEFAULTS.put("threads", "32");
+    DEFAULTS.put("warmup", "10");
+    DEFAULTS.put("duration", "60");
+    // Relative weight of each kind of request
+    DEFAULTS.put("mix", "public:50,keyed:30,paged:15,swagger:5");
+    // Number of access keys (each with its own user), and the percentage whose access token has expired at the start
+    DEFAULTS.put("keys", "100");
+    DEFAULTS.put("expiredPercent", "20");
+    // Number of distinct public routes requested
+    DEFAULTS.put("publicIds", "1000");
+    // Median stub ESI latency (milliseconds), and the spread of the log-normal latency distribution
+    DEFAULTS.put("latency", "50");
+    DEFAULTS.put("latencySigma", "0.5");
+    // Median stub SSO latency (milliseconds)
+    DEFAULTS.put("ssoLatency", "100");
+    // Lifetime (seconds) of stub ESI responses, and number of pages returned for paged routes
+    DEFAULTS.put("cacheSeconds", "30");
+    DEFAULTS.put("pages", "5");
+    // Percentage of stub ESI requests which fail with a 502
+    DEFAULTS.put("errorPercent", "0");
+    // Lifetime (seconds) of access tokens issued by the stub SSO
+    DEFAULTS.put("tokenLifetime", "1200");
+  }
+
+  private final Properties values = new Properties();
+
+  /**
+   * Parse settings from the command line.
+   *
+   * @param args
+   *          command line arguments of the form "--name=value".
+   * @throws IllegalArgumentException
+   *           if an argument is malformed or names an unknown setting.
+   */
+  public LoadTestConfig(String[] args) {
+    values.putAll(DEFAULTS);
+    for (String arg : args) {
+      int eq = arg.indexOf('=');
+      if (!arg.startsWith("--") || eq < 0) throw new IllegalArgumentException("Expected --name=value but found: " + arg);
+      String name = arg.substring(2, eq);
+      if (!values.containsKey(name)) throw new IllegalArgumentException("Unknown setting: " + name);
+      values.setProperty(name, arg.substring(eq + 1));
+    }
+  }
+
+  public String getString(
+                          String name) {
+    return values.getProperty(name);
+  }
+
+  public int getInt(
+                    String name) {
+    return Integer.parseInt(values.getProperty(name));
+  }
+
+  public double getDouble(
+                          String name) {
+    return Double.parseDouble(values.getProperty(name));
+  }
+
+  /**
+   * @return the weight of each kind of request, kinds not listed have weight zero.
+   */
+  public Map<LoadDriver.Kind, Integer> getMix() {
+    Map<LoadDriver.Kind, Integer> mix = new EnumMap<LoadDriver.Kind, Integer>(LoadDriver.Kind.class);
+    for (String part : values.getProperty("mix").split(",")) {
+      String[] pair = part.trim().split(":");
+      if (pair.length != 2) throw new IllegalArgumentException("Expected kind:weight but found: " + part);
+      mix.put(LoadDriver.Kind.valueOf(pair[0].trim().toUpperCase()), Integer.parseInt(pair[1].trim()));
+    }
+    return mix;
+  }
+
+  /**
+   * @return all settings, for the report.
+   */
+  public String describe() {
+    StringBuilder result = new StringBuilder();
+    for (String name : DEFAULTS.keySet())
+      result.append(name).append('=').append(values.getProperty(name)).append('\n');
+    return result.toString();
+  }
+
+}
@@ -0,0 +1,287 @@
+package enterprises.orbital.esi.proxy.loadtest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A stand-in for the ESI. Responses arrive after a log-normally distributed delay and carry the headers the proxy relies on: Expires, Last-Modified, ETag
+ * (conditional requests are answered with 304), X-Pages on paged routes and the error limit headers. Routes are:
+ *
+ * <ul>
+ * <li>/{server}/swagger.json - the ESI spec fixture
+ * <li>/{server}/characters/{id}/assets/ - an authenticated, paged route
+ * <li>/{server}/characters/{id}/... - any other authenticated route
+ * <li>anything else - a public route
+ * </ul>
+ *
+ * Authenticated routes without a bearer token, and a configurable percentage of all requests, fail and count against the error limit.
+ */
+public class StubESI implements HttpHandler {
+  private static final DateTimeFormatter HTTP_DATE    = DateTimeFormatter.RFC_1123_DATE_TIME.withZone(ZoneOffset.UTC);
+  private static final int               ERROR_LIMIT  = 100;
+  private static final long              ERROR_WINDOW = TimeUnit.SECONDS.toMillis(60);
+
+  private final HttpServer               server;
+  private final ExecutorService          executor;
+  private final byte[]                   swagger;
+  private final long                     latency;
+  private final double                   latencySigma;
+  private final int                      cacheSeconds;
+  private final int                      pages;
+  private final int                      errorPercent;
+  // Error limit window, guarded by this
+  private long                           windowStart  = System.currentTimeMillis();
+  private int                            windowErrors;
+  // Upstream call counts
+  private final AtomicLong               requests     = new AtomicLong(0);
+  private final AtomicLong               publicCalls  = new AtomicLong(0);
+  private final AtomicLong               authedCalls  = new AtomicLong(0);
+  private final AtomicLong               pageCalls    = new AtomicLong(0);
+  private final AtomicLong               swaggerCalls = new AtomicLong(0);
+  private final AtomicLong               notModified  = new AtomicLong(0);
+  private final AtomicLong               errors       = new AtomicLong(0);
+
+  /**
+   * Create and start a stub ESI.
+   *
+   * @param port
+   *          port to listen on.
+   * @param latency
+   *          median response delay (milliseconds).
+   * @param latencySigma
+   *          spread of the log-normal delay distribution.
+   * @param cacheSeconds
+   *          lifetime (seconds) of responses.
+   * @param pages
+   *          number of pages of paged routes.
+   * @param errorPercent
+   *          percentage of requests which fail with a 502.
+   * @throws IOException
+   *           if the server can't be started or the spec fixture can't be read.
+   */
+  public StubESI(int port, long latency, double latencySigma, int cacheSeconds, int pages, int errorPercent) throws IOException {
+    this.latency = latency;
+    this.latencySigma = latencySigma;
+    this.cacheSeconds = cacheSeconds;
+    this.pages = pages;
+    this.errorPercent = errorPercent;
+    swagger = readResource("/esi-swagger.json");
+    // Requests spend most of their time sleeping, so every request gets its own thread
+    executor = Executors.newCachedThreadPool();
+    server = HttpServer.create(new InetSocketAddress("localhost", port), 1024);
+    server.createContext("/", this);
+    server.setExecutor(executor);
+    server.start();
+  }
+
+  protected static byte[] readResource(
+                                       String name)
+    throws IOException {
+    InputStream src = StubESI.class.getResourceAsStream(name);
+    if (src == null) throw new IOException("Missing resource " + name);
+    try {
+      ByteArrayOutputStream data = new ByteArrayOutputStream(512 * 1024);
+      byte[] buffer = new byte[8192];
+      for (int count = src.read(buffer); count >= 0; count = src.read(buffer))
+        data.write(buffer, 0, count);
+      return data.toByteArray();
+    } finally {
+      src.close();
+    }
+  }
+
+  public void stop() {
+    server.stop(0);
+    executor.shutdownNow();
+  }
+
+  /**
+   * Sleep for a log-normally distributed time with the configured median.
+   */
+  protected static void delay(
+                              long median,
+                              double sigma) {
+    if (median <= 0) return;
+    double factor = Math.exp(sigma * ThreadLocalRandom.current().nextGaussian());
+    try {
+      Thread.sleep((long) Math.min(median * factor, median * 20));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  @Override
+  public void handle(
+                     HttpExchange exchange)
+    throws IOException {
+    try {
+      requests.incrementAndGet();
+      delay(latency, latencySigma);
+      String path = exchange.getRequestURI().getPath();
+      String query = exchange.getRequestURI().getRawQuery();
+      Headers headers = exchange.getResponseHeaders();
+      long now = System.currentTimeMillis();
+      headers.set("Content-Type", "application/json; charset=UTF-8");
+      if (path.endsWith("/swagger.json")) {
+        swaggerCalls.incrementAndGet();
+        respond(exchange, "\"swagger-1\"", now, swagger);
+        return;
+      }
+      boolean authed = path.matches("/[^/]+/characters/\\d+/.*");
+      boolean paged = authed && path.endsWith("/assets/");
+      if (paged) pageCalls.incrementAndGet();
+      else if (authed) authedCalls.incrementAndGet();
+      else publicCalls.incrementAndGet();
+      if (authed) {
+        String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+        if (authorization == null || !authorization.startsWith("Bearer ")) {
+          fail(exchange, 401, "authorization not provided");
+          return;
+        }
+      }
+      if (errorPercent > 0 && ThreadLocalRandom.current().nextInt(100) < errorPercent) {
+        fail(exchange, 502, "Bad gateway");
+        return;
+      }
+      int page = paged ? pageOf(query) : 1;
+      if (page > pages) {
+        fail(exchange, 404, "Requested page does not exist");
+        return;
+      }
+      if (paged) headers.set("X-Pages", String.valueOf(pages));
+      // Content changes once per cache period, so the ETag changes with it
+      long version = now / TimeUnit.SECONDS.toMillis(Math.max(cacheSeconds, 1));
+      respond(exchange, "\"" + Integer.toHexString((path + page + version).hashCode()) + "\"", now, body(path, page, paged));
+    } finally {
+      exchange.close();
+    }
+  }
+
+  protected static int pageOf(
+                              String query) {
+    if (query == null) return 1;
+    for (String param : query.split("&")) {
+      if (param.startsWith("page=")) {
+        try {
+          return Integer.parseInt(param.substring(5));
+        } catch (NumberFormatException e) {
+          return 1;
+        }
+      }
+    }
+    return 1;
+  }
+
+  /**
+   * Generate a response body of realistic size. Paged routes return arrays of up to 1000 items, as the ESI does.
+   */
+  protected static byte[] body(
+                               String path,
+                               int page,
+                               boolean paged) {
+    StringBuilder body = new StringBuilder(paged ? 96 * 1000 : 512);
+    if (paged) {
+      body.append('[');
+      for (int i = 0; i < 1000; i++) {
+        if (i > 0) body.append(',');
+        long itemID = 1000000000000L + page * 1000L + i;
+        body.append("{\"is_singleton\":false,\"item_id\":").append(itemID).append(",\"location_flag\":\"Hangar\",\"location_id\":60003760");
+        body.append(",\"location_type\":\"station\",\"quantity\":").append(i + 1).append(",\"type_id\":").append(34 + i % 200).append('}');
+      }
+      body.append(']');
+    } else {
+      body.append("{\"path\":\"").append(path).append("\",\"name\":\"Stub response\",\"description\":\"");
+      for (int i = 0; i < 8; i++)
+        body.append("Lorem ipsum dolor sit amet, consectetur adipiscing elit. ");
+      body.append("\",\"value\":").append(path.hashCode()).append('}');
+    }
+    return body.toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  protected void respond(
+                         HttpExchange exchange,
+                         String etag,
+                         long now,
+                         byte[] body)
+    throws IOException {
+    Headers headers = exchange.getResponseHeaders();
+    headers.set("ETag", etag);
+    headers.set("Expires", HTTP_DATE.format(Instant.ofEpochMilli(now + TimeUnit.SECONDS.toMillis(cacheSeconds))));
+    headers.set("Last-Modified", HTTP_DATE.format(Instant.ofEpochMilli(now - now % TimeUnit.SECONDS.toMillis(Math.max(cacheSeconds, 1)))));
+    errorLimitHeaders(headers, false);
+    if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+      notModified.incrementAndGet();
+      exchange.sendResponseHeaders(304, -1);
+      return;
+    }
+    exchange.sendResponseHeaders(200, body.length);
+    OutputStream out = exchange.getResponseBody();
+    out.write(body);
+    out.close();
+  }
+
+  protected void fail(
+                      HttpExchange exchange,
+                      int status,
+                      String message)
+    throws IOException {
+    errors.incrementAndGet();
+    errorLimitHeaders(exchange.getResponseHeaders(), true);
+    byte[] body = ("{\"error\":\"" + message + "\"}").getBytes(StandardCharsets.UTF_8);
+    exchange.sendResponseHeaders(status, body.length);
+    OutputStream out = exchange.getResponseBody();
+    out.write(body);
+    out.close();
+  }
+
+  /**
+   * Count an error if required and set the error limit headers for the current window.
+   */
+  protected synchronized void errorLimitHeaders(
+                                                Headers headers,
+                                                boolean error) {
+    long now = System.currentTimeMillis();
+    if (now - windowStart >= ERROR_WINDOW) {
+      windowStart = now - (now - windowStart) % ERROR_WINDOW;
+      windowErrors = 0;
+    }
+    if (error) windowErrors++;
+    headers.set("X-Esi-Error-Limit-Remain", String.valueOf(Math.max(ERROR_LIMIT - windowErrors, 0)));
+    headers.set("X-Esi-Error-Limit-Reset", String.valueOf(Math.max((windowStart + ERROR_WINDOW - now + 999) / 1000, 1)));
+  }
+
+  /**
+   * @return a snapshot of the upstream call counts.
+   */
+  public Map<String, Long> getCounts() {
+    Map<String, Long> result = new LinkedHashMap<String, Long>();
+    result.put("requests", requests.get());
+    result.put("public", publicCalls.get());
+    result.put("authenticated", authedCalls.get());
+    result.put("pages", pageCalls.get());
+    result.put("swagger", swaggerCalls.get());
+    result.put("notModified", notModified.get());
+    result.put("errors", errors.get());
+    return result;
+  }
+
+}
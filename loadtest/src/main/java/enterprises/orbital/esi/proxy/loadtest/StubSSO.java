@@ -0,0 +1,122 @@
+package enterprises.orbital.esi.proxy.loadtest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A stand-in for the EVE SSO token endpoint (/v2/oauth/token). Refresh token grants are answered with a new access token after a log-normally distributed
+ * delay. The refresh token is returned unchanged, so a key can be refreshed any number of times.
+ */
+public class StubSSO implements HttpHandler {
+  public static final String    TOKEN_PATH = "/v2/oauth/token";
+
+  private final HttpServer      server;
+  private final ExecutorService executor;
+  private final long            latency;
+  private final int             tokenLifetime;
+  private final AtomicLong      refreshes  = new AtomicLong(0);
+  private final AtomicLong      rejected   = new AtomicLong(0);
+
+  /**
+   * Create and start a stub SSO.
+   *
+   * @param port
+   *          port to listen on.
+   * @param latency
+   *          median response delay (milliseconds).
+   * @param tokenLifetime
+   *          lifetime (seconds) of issued access tokens.
+   * @throws IOException
+   *           if the server can't be started.
+   */
+  public StubSSO(int port, long latency, int tokenLifetime) throws IOException {
+    this.latency = latency;
+    this.tokenLifetime = tokenLifetime;
+    executor = Executors.newCachedThreadPool();
+    server = HttpServer.create(new InetSocketAddress("localhost", port), 256);
+    server.createContext(TOKEN_PATH, this);
+    server.setExecutor(executor);
+    server.start();
+  }
+
+  public void stop() {
+    server.stop(0);
+    executor.shutdownNow();
+  }
+
+  @Override
+  public void handle(
+                     HttpExchange exchange)
+    throws IOException {
+    try {
+      StubESI.delay(latency, 0.5);
+      Map<String, String> form = parseForm(exchange.getRequestBody());
+      String refreshToken = form.get("refresh_token");
+      String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+      if (!"POST".equals(exchange.getRequestMethod()) || !"refresh_token".equals(form.get("grant_type")) || refreshToken == null || authorization == null
+          || !authorization.startsWith("Basic ")) {
+        rejected.incrementAndGet();
+        send(exchange, 400, "{\"error\":\"invalid_request\"}");
+        return;
+      }
+      refreshes.incrementAndGet();
+      send(
+          exchange, 200, "{\"access_token\":\"stub-" + UUID.randomUUID() + "\",\"token_type\":\"Bearer\",\"expires_in\":" + tokenLifetime
+              + ",\"refresh_token\":\"" + refreshToken + "\"}");
+    } finally {
+      exchange.close();
+    }
+  }
+
+  protected static Map<String, String> parseForm(
+                                                 InputStream src)
+    throws IOException {
+    ByteArrayOutputStream data = new ByteArrayOutputStream(256);
+    byte[] buffer = new byte[1024];
+    for (int count = src.read(buffer); count >= 0; count = src.read(buffer))
+      data.write(buffer, 0, count);
+    Map<String, String> form = new HashMap<String, String>();
+    for (String param : new String(data.toByteArray(), StandardCharsets.UTF_8).split("&")) {
+      int eq = param.indexOf('=');
+      if (eq > 0) form.put(URLDecoder.decode(param.substring(0, eq), "UTF-8"), URLDecoder.decode(param.substring(eq + 1), "UTF-8"));
+    }
+    return form;
+  }
+
+  protected static void send(
+                             HttpExchange exchange,
+                             int status,
+                             String json)
+    throws IOException {
+    byte[] body = json.getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+    exchange.sendResponseHeaders(status, body.length);
+    OutputStream out = exchange.getResponseBody();
+    out.write(body);
+    out.close();
+  }
+
+  public long getRefreshes() {
+    return refreshes.get();
+  }
+
+  public long getRejected() {
+    return rejected.get();
+  }
+
+}
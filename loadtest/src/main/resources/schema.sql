@@ -0,0 +1,48 @@
+-- H2 version of sample_schema.sql, used by the load test database
+CREATE SEQUENCE account_sequence START WITH 100000 INCREMENT BY 10;
+
+CREATE TABLE orbital_properties (
+  propertyName varchar(191) NOT NULL,
+  propertyValue varchar(255) DEFAULT NULL,
+  PRIMARY KEY (propertyName)
+);
+
+CREATE TABLE proxy_users (
+  uid bigint NOT NULL,
+  active boolean NOT NULL,
+  admin boolean NOT NULL,
+  created bigint NOT NULL,
+  last bigint NOT NULL,
+  PRIMARY KEY (uid)
+);
+
+CREATE TABLE proxy_auth_source (
+  sid bigint NOT NULL,
+  details clob NOT NULL,
+  last bigint NOT NULL,
+  screenName varchar(191) DEFAULT NULL,
+  source varchar(191) DEFAULT NULL,
+  uid bigint DEFAULT NULL,
+  PRIMARY KEY (sid),
+  FOREIGN KEY (uid) REFERENCES proxy_users (uid)
+);
+
+CREATE TABLE proxy_access_keys (
+  kid bigint NOT NULL,
+  accessToken varchar(255) DEFAULT NULL,
+  accessTokenExpiry bigint NOT NULL,
+  characterName varchar(255) DEFAULT NULL,
+  characterID bigint NOT NULL DEFAULT 0,
+  expiry bigint NOT NULL,
+  randomSeed bigint NOT NULL,
+  refreshToken varchar(255) DEFAULT NULL,
+  scopes clob,
+  uid bigint DEFAULT NULL,
+  serverType varchar(255) DEFAULT NULL,
+  refreshLeaseOwner varchar(255) DEFAULT NULL,
+  refreshLeaseExpiry bigint NOT NULL DEFAULT 0,
+  PRIMARY KEY (kid),
+  FOREIGN KEY (uid) REFERENCES proxy_users (uid)
+);
+
+CREATE INDEX userIndex ON proxy_access_keys (uid);
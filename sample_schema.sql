@@ -47,12 +47,15 @@ CREATE TABLE `proxy_access_keys` (
   `accessToken` varchar(255) COLLATE utf8mb4_unicode_ci DEFAULT NULL,
   `accessTokenExpiry` bigint(20) NOT NULL,
   `characterName` varchar(255) COLLATE utf8mb4_unicode_ci DEFAULT NULL,
+  `characterID` bigint(20) NOT NULL DEFAULT 0,
   `expiry` bigint(20) NOT NULL,
   `randomSeed` bigint(20) NOT NULL,
   `refreshToken` varchar(255) COLLATE utf8mb4_unicode_ci DEFAULT NULL,
   `scopes` longtext CHARACTER SET utf8mb4,
   `uid` bigint(20) DEFAULT NULL,
   `serverType` varchar(255) COLLATE utf8mb4_unicode_ci DEFAULT NULL,
+  `refreshLeaseOwner` varchar(255) COLLATE utf8mb4_unicode_ci DEFAULT NULL,
+  `refreshLeaseExpiry` bigint(20) NOT NULL DEFAULT 0,
   PRIMARY KEY (`kid`),
   KEY `userIndex` (`uid`),
   CONSTRAINT `FKjoer9soplvf4uda7qcnbgjal8` FOREIGN KEY (`uid`) REFERENCES `proxy_users` (`uid`)
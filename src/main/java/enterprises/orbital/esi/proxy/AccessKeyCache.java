@@ -0,0 +1,278 @@
+package enterprises.orbital.esi.proxy;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import enterprises.orbital.base.OrbitalProperties;
+
+/**
+ * Bounded, concurrent in-memory cache of resolved proxy access keys. The proxy consults this cache before going to the database to resolve a key/hash pair.
+ * Each entry holds just enough information to authorize a request without a database round trip:
+ *
+ * <ul>
+ * <li>The key ID and the ID of the user which owns the key.
+ * <li>The precomputed credential hash for the key.
+ * <li>The expiry date of the key.
+ * <li>The latest access token for the key.
+ * <li>The expiry date of the access token.
+ * </ul>
+ *
+ * Entries expire after a configurable time to live. When the cache grows beyond its configured size, expired entries are purged first, followed by the
+ * least recently used entries. Any change to a key in the database must invalidate the corresponding entry (see the static update methods on
+ * {@link ProxyAccessKey}).
+ *
+ * <p>
+ * Invalidation only reaches the cache of the instance which made the change. Other instances sharing the database see the change once their entry
+ * expires, so the time to live bounds how long a deleted or modified key keeps working elsewhere, and is kept short by default.
+ */
+public class AccessKeyCache {
+  public static final String         PROP_KEY_CACHE_SIZE = "enterprises.orbital.esi.proxy.keyCacheSize";
+  public static final long           DEF_KEY_CACHE_SIZE  = 10000;
+  public static final String         PROP_KEY_CACHE_TTL  = "enterprises.orbital.esi.proxy.keyCacheTTL";
+  public static final long           DEF_KEY_CACHE_TTL   = TimeUnit.MILLISECONDS.convert(15, TimeUnit.SECONDS);
+
+  // Singleton instance, created on first use
+  private static AccessKeyCache      instance;
+
+  /**
+   * An immutable snapshot of an access key.
+   */
+  public static class CachedKey {
+    private final long    kid;
+    private final long    uid;
+    private final String  credential;
+    private final long    expiry;
+    private final String  accessToken;
+    private final long    accessTokenExpiry;
+    private final long    loadTime;
+    private volatile long lastAccess;
+
+    public CachedKey(long kid, long uid, String credential, long expiry, String accessToken, long accessTokenExpiry, long loadTime) {
+      super();
+      this.kid = kid;
+      this.uid = uid;
+      this.credential = credential;
+      this.expiry = expiry;
+      this.accessToken = accessToken;
+      this.accessTokenExpiry = accessTokenExpiry;
+      this.loadTime = loadTime;
+      this.lastAccess = loadTime;
+    }
+
+    public long getKid() {
+      return kid;
+    }
+
+    public long getUid() {
+      return uid;
+    }
+
+    public String getCredential() {
+      return credential;
+    }
+
+    public long getExpiry() {
+      return expiry;
+    }
+
+    public String getAccessToken() {
+      return accessToken;
+    }
+
+    public long getAccessTokenExpiry() {
+      return accessTokenExpiry;
+    }
+
+    public long getLoadTime() {
+      return loadTime;
+    }
+
+    public long getLastAccess() {
+      return lastAccess;
+    }
+  }
+
+  private final int                                maxSize;
+  private final long                               ttl;
+  private final ConcurrentHashMap<Long, CachedKey> entries     = new ConcurrentHashMap<Long, CachedKey>();
+  // Incremented on every invalidation. Loaders capture the generation before reading the database and only populate the cache if no invalidation
+  // occurred in the meantime. This prevents a slow reader from re-inserting a stale copy of a key which was just changed.
+  private final AtomicLong                         generation  = new AtomicLong(0);
+  private final AtomicBoolean                      evicting    = new AtomicBoolean(false);
+  private final AtomicLong                         hits        = new AtomicLong(0);
+  private final AtomicLong                         misses      = new AtomicLong(0);
+  private final AtomicLong                         evictions   = new AtomicLong(0);
+
+  public AccessKeyCache(int maxSize, long ttl) {
+    this.maxSize = Math.max(1, maxSize);
+    this.ttl = ttl;
+  }
+
+  /**
+   * Retrieve the global key cache, creating it if necessary.
+   *
+   * @return the global key cache.
+   */
+  public static synchronized AccessKeyCache getCache() {
+    if (instance == null) {
+      instance = new AccessKeyCache((int) OrbitalProperties.getLongGlobalProperty(PROP_KEY_CACHE_SIZE, DEF_KEY_CACHE_SIZE),
+                                    OrbitalProperties.getLongGlobalProperty(PROP_KEY_CACHE_TTL, DEF_KEY_CACHE_TTL));
+      final AccessKeyCache stats = instance;
+      ProxyStats.register("keyCache", new ProxyStats.StatsSource() {
+        @Override
+        public Map<String, Number> getStats() {
+          return stats.getStats();
+        }
+      });
+    }
+    return instance;
+  }
+
+  /**
+   * Retrieve a live entry from the cache.
+   *
+   * @param kid
+   *          the ID of the key to retrieve.
+   * @return the cached key, or null if the key is not cached or the cached entry has expired.
+   */
+  public CachedKey get(
+                       long kid) {
+    CachedKey entry = entries.get(kid);
+    if (entry == null) {
+      misses.incrementAndGet();
+      return null;
+    }
+    long now = OrbitalProperties.getCurrentTime();
+    if (now - entry.loadTime > ttl) {
+      if (entries.remove(kid, entry)) evictions.incrementAndGet();
+      misses.incrementAndGet();
+      return null;
+    }
+    entry.lastAccess = now;
+    hits.incrementAndGet();
+    return entry;
+  }
+
+  /**
+   * Return the current invalidation generation. Callers which load a key from the database should capture the generation before the load and pass it to
+   * {@link #put(ProxyAccessKey, long)}.
+   *
+   * @return the current invalidation generation.
+   */
+  public long getGeneration() {
+    return generation.get();
+  }
+
+  /**
+   * Cache the given key if no invalidation has occurred since the given generation.
+   *
+   * @param key
+   *          the key to cache.
+   * @param loadGeneration
+   *          the generation captured before the key was loaded.
+   * @return a snapshot of the key. The snapshot is always returned, even if it was not added to the cache.
+   */
+  public CachedKey put(
+                       ProxyAccessKey key,
+                       long loadGeneration) {
+    CachedKey entry = new CachedKey(
+        key.getKid(), key.getUser().getID(), ProxyAccessKey.generateHash(key), key.getExpiry(), key.getAccessToken(), key.getAccessTokenExpiry(),
+        OrbitalProperties.getCurrentTime());
+    if (generation.get() == loadGeneration) {
+      entries.put(entry.kid, entry);
+      // A racing invalidation may have slipped in after our check. If so, drop what we just added.
+      if (generation.get() != loadGeneration) entries.remove(entry.kid, entry);
+      if (entries.size() > maxSize) evict();
+    }
+    return entry;
+  }
+
+  /**
+   * Remove a key from the cache.
+   *
+   * @param kid
+   *          the ID of the key to remove.
+   */
+  public void invalidate(
+                         long kid) {
+    generation.incrementAndGet();
+    entries.remove(kid);
+  }
+
+  /**
+   * Remove all entries from the cache.
+   */
+  public void clear() {
+    generation.incrementAndGet();
+    entries.clear();
+  }
+
+  /**
+   * Shrink the cache back below its maximum size. Expired entries are removed first. If the cache is still too large, the least recently used entries are
+   * removed until the cache is at 90% of its maximum size. Only one thread evicts at a time, other threads simply skip eviction.
+   */
+  protected void evict() {
+    if (!evicting.compareAndSet(false, true)) return;
+    try {
+      long now = OrbitalProperties.getCurrentTime();
+      List<CachedKey> live = new ArrayList<CachedKey>(entries.size());
+      for (CachedKey next : entries.values()) {
+        if (now - next.loadTime > ttl) {
+          if (entries.remove(next.kid, next)) evictions.incrementAndGet();
+        } else {
+          live.add(next);
+        }
+      }
+      int target = (int) (maxSize * 0.9);
+      if (live.size() <= target) return;
+      Collections.sort(live, new Comparator<CachedKey>() {
+        @Override
+        public int compare(
+                           CachedKey o1,
+                           CachedKey o2) {
+          return Long.compare(o1.lastAccess, o2.lastAccess);
+        }
+      });
+      for (int i = 0; i < live.size() - target; i++) {
+        CachedKey next = live.get(i);
+        if (entries.remove(next.kid, next)) evictions.incrementAndGet();
+      }
+    } finally {
+      evicting.set(false);
+    }
+  }
+
+  public int size() {
+    return entries.size();
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  public long getEvictions() {
+    return evictions.get();
+  }
+
+  public Map<String, Number> getStats() {
+    Map<String, Number> result = new HashMap<String, Number>();
+    result.put("size", size());
+    result.put("hits", getHits());
+    result.put("misses", getMisses());
+    result.put("evictions", getEvictions());
+    return result;
+  }
+
+}
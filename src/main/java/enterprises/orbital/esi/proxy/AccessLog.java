@@ -0,0 +1,331 @@
+package enterprises.orbital.esi.proxy;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import enterprises.orbital.base.OrbitalProperties;
+
+/**
+ * Structured access log. Request threads append a fixed-size record for each completed request to a ring buffer, and a background thread writes the
+ * records to a rolling file as JSON lines. Appending never blocks: a request thread claims a slot with a compare-and-set, fills it in and publishes it. If
+ * the writer falls behind and the buffer is full, records are dropped (and counted) rather than slowing the proxy down. Successful requests may also be
+ * sampled; error responses are always logged.
+ *
+ * <p>
+ * Each record holds the time the request completed, method, key ID (-1 if the request carried no key), server type, route, status sent to the client,
+ * status returned by the ESI (0 if the ESI wasn't called), body bytes relayed from the ESI and the time spent in each stage (see {@link ProxyMetrics}).
+ */
+public class AccessLog {
+  protected static final Logger log            = Logger.getLogger(AccessLog.class.getName());
+
+  public static final String    PROP_FILE      = "enterprises.orbital.esi.proxy.accessLog.file";
+  public static final String    PROP_CAPACITY  = "enterprises.orbital.esi.proxy.accessLog.capacity";
+  public static final long      DEF_CAPACITY   = 8192;
+  public static final String    PROP_SAMPLE    = "enterprises.orbital.esi.proxy.accessLog.samplePercent";
+  public static final long      DEF_SAMPLE     = 100;
+  public static final String    PROP_MAX_BYTES = "enterprises.orbital.esi.proxy.accessLog.maxBytes";
+  public static final long      DEF_MAX_BYTES  = 100L * 1024L * 1024L;
+  public static final String    PROP_MAX_FILES = "enterprises.orbital.esi.proxy.accessLog.maxFiles";
+  public static final long      DEF_MAX_FILES  = 5;
+  public static final String    PROP_FLUSH     = "enterprises.orbital.esi.proxy.accessLog.flushInterval";
+  public static final long      DEF_FLUSH      = 200;
+
+  // Singleton instance, created on first use if a log file is configured
+  private static AccessLog      instance;
+  private static boolean        configured;
+
+  private final int             capacity;
+  private final int             mask;
+  private final int             samplePercent;
+  private final File            file;
+  private final long            maxBytes;
+  private final int             maxFiles;
+  private final long            flushInterval;
+  // Next sequence to claim, and next sequence to write
+  private final AtomicLong      head           = new AtomicLong(0);
+  private final AtomicLong      tail           = new AtomicLong(0);
+  // Sequence stored in each slot once its record is complete
+  private final AtomicLongArray published;
+  // Record fields, one element per slot
+  private final long[]          times;
+  private final String[]        methods;
+  private final long[]          kids;
+  private final String[]        servers;
+  private final String[]        routes;
+  private final int[]           statuses;
+  private final int[]           upstreamStatuses;
+  private final long[]          bytes;
+  private final long[]          totals;
+  private final long[][]        stages;
+  private final Thread          writerThread;
+  private volatile boolean      running        = true;
+  private Writer                out;
+  private long                  outBytes;
+  private final AtomicLong      appended       = new AtomicLong(0);
+  private final AtomicLong      dropped        = new AtomicLong(0);
+  private final AtomicLong      sampledOut     = new AtomicLong(0);
+  private final AtomicLong      written        = new AtomicLong(0);
+  private final AtomicLong      writeErrors    = new AtomicLong(0);
+
+  /**
+   * Create an access log and start its writer.
+   *
+   * @param file
+   *          log file. Older files are renamed with a numeric suffix as the log rolls.
+   * @param capacity
+   *          number of records the ring buffer holds, rounded up to a power of two.
+   * @param samplePercent
+   *          percentage of successful requests which are logged.
+   * @param maxBytes
+   *          size at which the log file is rolled.
+   * @param maxFiles
+   *          number of rolled files kept.
+   * @param flushInterval
+   *          time (milliseconds) the writer waits when there are no records to write.
+   */
+  public AccessLog(File file, int capacity, int samplePercent, long maxBytes, int maxFiles, long flushInterval) {
+    int size = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+    this.capacity = size;
+    this.mask = size - 1;
+    this.samplePercent = samplePercent;
+    this.file = file;
+    this.maxBytes = maxBytes;
+    this.maxFiles = maxFiles;
+    this.flushInterval = flushInterval;
+    published = new AtomicLongArray(size);
+    for (int i = 0; i < size; i++)
+      published.set(i, -1);
+    times = new long[size];
+    methods = new String[size];
+    kids = new long[size];
+    servers = new String[size];
+    routes = new String[size];
+    statuses = new int[size];
+    upstreamStatuses = new int[size];
+    bytes = new long[size];
+    totals = new long[size];
+    stages = new long[size][ProxyMetrics.stageCount()];
+    writerThread = new NamedThreadFactory("esi-access-log").newThread(new Runnable() {
+      @Override
+      public void run() {
+        writeLoop();
+      }
+    });
+    writerThread.start();
+  }
+
+  /**
+   * Retrieve the global access log, creating it if necessary.
+   *
+   * @return the global access log, or null if no log file is configured.
+   */
+  public static synchronized AccessLog getLog() {
+    if (!configured) {
+      configured = true;
+      String path = OrbitalProperties.getGlobalProperty(PROP_FILE, "");
+      if (path.isEmpty()) return null;
+      instance = new AccessLog(
+          new File(path), (int) OrbitalProperties.getLongGlobalProperty(PROP_CAPACITY, DEF_CAPACITY),
+          (int) OrbitalProperties.getLongGlobalProperty(PROP_SAMPLE, DEF_SAMPLE), OrbitalProperties.getLongGlobalProperty(PROP_MAX_BYTES, DEF_MAX_BYTES),
+          (int) OrbitalProperties.getLongGlobalProperty(PROP_MAX_FILES, DEF_MAX_FILES), OrbitalProperties.getLongGlobalProperty(PROP_FLUSH, DEF_FLUSH));
+      final AccessLog stats = instance;
+      ProxyStats.register("accessLog", new ProxyStats.StatsSource() {
+        @Override
+        public Map<String, Number> getStats() {
+          return stats.getStats();
+        }
+      });
+    }
+    return instance;
+  }
+
+  /**
+   * Stop the writer after writing any remaining records.
+   */
+  public static synchronized void shutdown() {
+    if (instance != null) {
+      instance.running = false;
+      LockSupport.unpark(instance.writerThread);
+      try {
+        instance.writerThread.join(TimeUnit.SECONDS.toMillis(5));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      instance = null;
+    }
+    configured = false;
+  }
+
+  /**
+   * Append a record for a completed request. Never blocks.
+   *
+   * @param timing
+   *          stage times and details of the request.
+   * @param status
+   *          status sent to the client.
+   * @param total
+   *          total time (nanoseconds) taken by the request.
+   */
+  public void append(
+                    ProxyMetrics.Timing timing,
+                    int status,
+                    long total) {
+    if (status < 400 && samplePercent < 100 && ThreadLocalRandom.current().nextInt(100) >= samplePercent) {
+      sampledOut.incrementAndGet();
+      return;
+    }
+    long sequence;
+    do {
+      sequence = head.get();
+      if (sequence - tail.get() >= capacity) {
+        dropped.incrementAndGet();
+        return;
+      }
+    } while (!head.compareAndSet(sequence, sequence + 1));
+    int slot = (int) (sequence & mask);
+    times[slot] = OrbitalProperties.getCurrentTime();
+    methods[slot] = timing.method;
+    kids[slot] = timing.kid;
+    servers[slot] = timing.server;
+    routes[slot] = timing.route;
+    statuses[slot] = status;
+    upstreamStatuses[slot] = timing.upstreamStatus;
+    bytes[slot] = timing.bytes.get();
+    totals[slot] = total;
+    for (int i = 0; i < stages[slot].length; i++)
+      stages[slot][i] = timing.stages.get(i);
+    // Publishing the sequence makes the slot visible to the writer
+    published.set(slot, sequence);
+    appended.incrementAndGet();
+  }
+
+  protected void writeLoop() {
+    while (true) {
+      boolean stopping = !running;
+      int count = drain();
+      if (count == 0) {
+        if (stopping) break;
+        LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(flushInterval));
+      }
+    }
+    try {
+      if (out != null) out.close();
+    } catch (IOException e) {
+      writeErrors.incrementAndGet();
+    }
+  }
+
+  /**
+   * Write every published record, in order.
+   *
+   * @return the number of records written.
+   */
+  protected int drain() {
+    int count = 0;
+    long next = tail.get();
+    StringBuilder line = new StringBuilder(256);
+    try {
+      while (published.get((int) (next & mask)) == next) {
+        int slot = (int) (next & mask);
+        line.setLength(0);
+        format(slot, line);
+        // The slot may be reused as soon as tail moves past it
+        tail.set(++next);
+        write(line);
+        count++;
+      }
+      if (count > 0 && out != null) out.flush();
+    } catch (IOException e) {
+      writeErrors.incrementAndGet();
+      log.log(Level.WARNING, "Failed writing access log " + file, e);
+      closeQuietly();
+    }
+    written.addAndGet(count);
+    return count;
+  }
+
+  protected void format(
+                        int slot,
+                        StringBuilder line) {
+    line.append("{\"time\":").append(times[slot]);
+    line.append(",\"method\":\"").append(methods[slot]).append('"');
+    line.append(",\"kid\":").append(kids[slot]);
+    line.append(",\"server\":\"").append(servers[slot]).append('"');
+    line.append(",\"route\":\"");
+    String route = routes[slot];
+    for (int i = 0; i < route.length(); i++) {
+      char c = route.charAt(i);
+      if (c == '"' || c == '\\') line.append('\\');
+      if (c >= ' ') line.append(c);
+    }
+    line.append('"');
+    line.append(",\"status\":").append(statuses[slot]);
+    line.append(",\"upstreamStatus\":").append(upstreamStatuses[slot]);
+    line.append(",\"bytes\":").append(bytes[slot]);
+    line.append(",\"total\":").append(totals[slot] / 1000);
+    // Stage times are reported in microseconds
+    for (int i = 0; i < stages[slot].length; i++) {
+      if (stages[slot][i] > 0) line.append(",\"").append(ProxyMetrics.stageName(i)).append("\":").append(stages[slot][i] / 1000);
+    }
+    line.append("}\n");
+  }
+
+  protected void write(
+                       CharSequence line)
+    throws IOException {
+    if (out == null || outBytes >= maxBytes) roll();
+    out.append(line);
+    outBytes += line.length();
+  }
+
+  /**
+   * Open the log file, first rolling the current file if it is full.
+   */
+  protected void roll() throws IOException {
+    closeQuietly();
+    if (file.length() >= maxBytes) {
+      new File(file.getPath() + "." + maxFiles).delete();
+      for (int i = maxFiles - 1; i >= 1; i--)
+        new File(file.getPath() + "." + i).renameTo(new File(file.getPath() + "." + (i + 1)));
+      file.renameTo(new File(file.getPath() + ".1"));
+    }
+    out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8), 64 * 1024);
+    outBytes = file.length();
+  }
+
+  protected void closeQuietly() {
+    if (out == null) return;
+    try {
+      out.close();
+    } catch (IOException e) {
+      // Nothing more we can do
+    }
+    out = null;
+  }
+
+  public Map<String, Number> getStats() {
+    Map<String, Number> result = new HashMap<String, Number>();
+    result.put("appended", appended.get());
+    result.put("dropped", dropped.get());
+    result.put("sampledOut", sampledOut.get());
+    result.put("written", written.get());
+    result.put("writeErrors", writeErrors.get());
+    result.put("pending", head.get() - tail.get());
+    return result;
+  }
+
+}
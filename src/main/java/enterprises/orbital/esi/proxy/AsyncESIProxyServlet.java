@@ -0,0 +1,499 @@
+package enterprises.orbital.esi.proxy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.message.BasicHttpEntityEnclosingRequest;
+import org.apache.http.message.BasicHttpRequest;
+import org.apache.http.nio.client.methods.HttpAsyncMethods;
+import org.apache.http.nio.protocol.BasicAsyncResponseConsumer;
+import org.apache.http.util.EntityUtils;
+
+import enterprises.orbital.base.OrbitalProperties;
+
+/**
+ * Non-blocking variant of {@link ESIProxyServlet}. Requests are handled with the same semantics (swagger.json translation, key/hash to access token
+ * substitution, query rewriting, caching and coalescing), but the exchange with the ESI never ties up a container thread:
+ *
+ * <ul>
+ * <li>The request is detached from the container thread with an {@link AsyncContext}.
+ * <li>Any request body is read with a {@link ReadListener}.
+ * <li>The request is sent to the ESI with a non-blocking HTTP client.
+ * <li>The response is written back to the client with a {@link WriteListener}.
+ * </ul>
+ *
+ * Requests which are served from a cache, and requests for which the container does not support async processing, are handled exactly as in the blocking
+ * servlet. To use this servlet, replace the proxy servlet class in web.xml and mark the servlet with async-supported (see README.md).
+ */
+public class AsyncESIProxyServlet extends ESIProxyServlet {
+  private static final long          serialVersionUID     = -2817544394123561307L;
+
+  public static final String         PROP_TIMEOUT         = "enterprises.orbital.esi.proxy.async.timeout";
+  public static final long           DEF_TIMEOUT          = TimeUnit.MILLISECONDS.convert(60, TimeUnit.SECONDS);
+  public static final String         PROP_MAX_CONNECTIONS = "enterprises.orbital.esi.proxy.async.maxConnections";
+  public static final long           DEF_MAX_CONNECTIONS  = 200;
+  public static final String         PROP_IO_THREADS      = "enterprises.orbital.esi.proxy.async.ioThreads";
+  public static final long           DEF_IO_THREADS       = Runtime.getRuntime().availableProcessors();
+
+  // Size of the chunks in which request and response bodies are read and written
+  private static final int           CHUNK_SIZE           = 8192;
+
+  protected long                     asyncTimeout;
+  protected CloseableHttpAsyncClient asyncClient;
+  private final AtomicLong           started              = new AtomicLong(0);
+  private final AtomicLong           completed            = new AtomicLong(0);
+  private final AtomicLong           failed               = new AtomicLong(0);
+  private final AtomicLong           timeouts             = new AtomicLong(0);
+  private final AtomicLong           active               = new AtomicLong(0);
+
+  /**
+   * Setup. The async client shares the request configuration of the blocking client created by the base class.
+   */
+  @Override
+  public void init() throws ServletException {
+    super.init();
+    asyncTimeout = OrbitalProperties.getLongGlobalProperty(PROP_TIMEOUT, DEF_TIMEOUT);
+    int maxConnections = (int) OrbitalProperties.getLongGlobalProperty(PROP_MAX_CONNECTIONS, DEF_MAX_CONNECTIONS);
+    IOReactorConfig reactorConfig = IOReactorConfig.custom()
+        .setIoThreadCount((int) OrbitalProperties.getLongGlobalProperty(PROP_IO_THREADS, DEF_IO_THREADS)).setSoKeepAlive(true).build();
+    asyncClient = HttpAsyncClients.custom().setDefaultRequestConfig(esiRequestConfig).setDefaultIOReactorConfig(reactorConfig)
+        .setMaxConnTotal(maxConnections).setMaxConnPerRoute(maxConnections).setSSLContext(esiSSLContext)
+        .setThreadFactory(new NamedThreadFactory("esi-async-io")).disableCookieManagement().build();
+    asyncClient.start();
+    ProxyStats.register("asyncProxy", new ProxyStats.StatsSource() {
+      @Override
+      public Map<String, Number> getStats() {
+        return getAsyncStats();
+      }
+    });
+  }
+
+  /**
+   * Cleanup.
+   */
+  @Override
+  public void destroy() {
+    if (asyncClient != null) {
+      try {
+        asyncClient.close();
+      } catch (IOException e) {
+        log("Failed to close async client", e);
+      }
+    }
+    super.destroy();
+  }
+
+  /**
+   * Send a prepared request to the ESI without blocking the calling thread.
+   *
+   * @param servletRequest
+   *          request from client
+   * @param servletResponse
+   *          response we'll send back to the client
+   */
+  @Override
+  protected void forward(
+                         HttpServletRequest servletRequest,
+                         HttpServletResponse servletResponse)
+    throws ServletException, IOException {
+    if (!servletRequest.isAsyncSupported()) {
+      super.forward(servletRequest, servletResponse);
+      return;
+    }
+    new Exchange(servletRequest, servletResponse).start();
+  }
+
+  /**
+   * Wait for the leader of an identical request to share its response without blocking the calling thread.
+   *
+   * @param flight
+   *          this request's view of the identical request in progress
+   * @param servletRequest
+   *          request from client
+   * @param servletResponse
+   *          response we'll send back to the client
+   */
+  @Override
+  protected void follow(
+                        RequestCoalescer.Flight flight,
+                        HttpServletRequest servletRequest,
+                        HttpServletResponse servletResponse)
+    throws ServletException, IOException {
+    if (!servletRequest.isAsyncSupported()) {
+      super.follow(flight, servletRequest, servletResponse);
+      return;
+    }
+    final Exchange exchange = new Exchange(servletRequest, servletResponse);
+    exchange.following = coalescer.follow(flight, new RequestCoalescer.Follower() {
+      @Override
+      public void shared(
+                         ResponseCache.Entry response) {
+        // The exchange may have timed out or failed while we waited, in which case the response is no longer ours to write
+        if (exchange.done.get()) return;
+        exchange.send(ResponseCache.prepare(response, exchange.servletRequest, exchange.servletResponse));
+      }
+
+      @Override
+      public void notShared() {
+        if (exchange.done.get()) return;
+        // Leader couldn't share its response, perform our own exchange on a container thread rather than the leader's
+        try {
+          exchange.context.start(new Runnable() {
+            @Override
+            public void run() {
+              if (!exchange.done.get()) exchange.start();
+            }
+          });
+        } catch (RuntimeException e) {
+          // Completed concurrently
+          exchange.fail(e);
+        }
+      }
+    });
+  }
+
+  public Map<String, Number> getAsyncStats() {
+    Map<String, Number> result = new HashMap<String, Number>();
+    result.put("started", started.get());
+    result.put("completed", completed.get());
+    result.put("failed", failed.get());
+    result.put("timeouts", timeouts.get());
+    result.put("active", active.get());
+    return result;
+  }
+
+  /**
+   * A single asynchronous exchange: read the client request body, forward the request to the ESI, then write the response to the client.
+   */
+  protected class Exchange implements ReadListener, WriteListener, AsyncListener, FutureCallback<HttpResponse> {
+    protected final HttpServletRequest    servletRequest;
+    protected final HttpServletResponse   servletResponse;
+    protected final AsyncContext          context;
+    private final AtomicBoolean           done = new AtomicBoolean(false);
+    private ServletInputStream            input;
+    private ByteArrayOutputStream         requestBody;
+    private ServletOutputStream           output;
+    private byte[]                        responseBody;
+    private int                           written;
+    private long                          sendStart;
+    private volatile Future<HttpResponse> upstream;
+    // Registration with the leader of an identical request, if this exchange is a follower
+    private volatile RequestCoalescer.Following following;
+
+    protected Exchange(HttpServletRequest servletRequest, HttpServletResponse servletResponse) {
+      this.servletRequest = servletRequest;
+      this.servletResponse = servletResponse;
+      context = servletRequest.isAsyncStarted() ? servletRequest.getAsyncContext() : servletRequest.startAsync(servletRequest, servletResponse);
+      context.setTimeout(asyncTimeout);
+      context.addListener(this);
+      started.incrementAndGet();
+      active.incrementAndGet();
+    }
+
+    /**
+     * Read the request body if there is one, then send the request to the ESI.
+     */
+    protected void start() {
+      if (servletRequest.getContentLength() <= 0 && servletRequest.getHeader("Transfer-Encoding") == null) {
+        execute();
+        return;
+      }
+      try {
+        requestBody = new ByteArrayOutputStream();
+        input = servletRequest.getInputStream();
+        input.setReadListener(this);
+      } catch (IOException | RuntimeException e) {
+        fail(e);
+      }
+    }
+
+    @Override
+    public void onDataAvailable() throws IOException {
+      byte[] buffer = new byte[CHUNK_SIZE];
+      while (input.isReady() && !input.isFinished()) {
+        int count = input.read(buffer);
+        if (count > 0) requestBody.write(buffer, 0, count);
+      }
+    }
+
+    @Override
+    public void onAllDataRead() throws IOException {
+      execute();
+    }
+
+    /**
+     * Send the request to the ESI.
+     */
+    protected void execute() {
+      try {
+        String method = servletRequest.getMethod();
+        String proxyRequestUri = rewriteUrlFromRequest(servletRequest);
+        HttpRequest proxyRequest;
+        if (requestBody != null) {
+          BasicHttpEntityEnclosingRequest withBody = new BasicHttpEntityEnclosingRequest(method, proxyRequestUri);
+          withBody.setEntity(new ByteArrayEntity(requestBody.toByteArray()));
+          proxyRequest = withBody;
+        } else {
+          proxyRequest = new BasicHttpRequest(method, proxyRequestUri);
+        }
+        copyRequestHeaders(servletRequest, proxyRequest);
+        servletRequest.setAttribute(ATTR_UPSTREAM_START, System.nanoTime());
+        if (doForwardIP) {
+          String forwardedFor = servletRequest.getRemoteAddr();
+          String existing = servletRequest.getHeader("X-Forwarded-For");
+          if (existing != null) forwardedFor = existing + ", " + forwardedFor;
+          proxyRequest.setHeader("X-Forwarded-For", forwardedFor);
+          proxyRequest.setHeader("X-Forwarded-Proto", servletRequest.getScheme());
+        }
+        upstream = asyncClient.execute(HttpAsyncMethods.create(getTargetHost(servletRequest), proxyRequest), new BasicAsyncResponseConsumer(), this);
+      } catch (RuntimeException e) {
+        fail(e);
+      }
+    }
+
+    @Override
+    public void completed(
+                          final HttpResponse proxyResponse) {
+      // Timed out or failed already, the client has been answered
+      if (done.get()) return;
+      // Leave the I/O reactor thread free, response processing may transform swagger.json
+      try {
+        context.start(new Runnable() {
+          @Override
+          public void run() {
+            if (done.get()) return;
+            try {
+              respond(proxyResponse);
+            } catch (IOException | RuntimeException e) {
+              fail(e);
+            }
+          }
+        });
+      } catch (RuntimeException e) {
+        // Completed concurrently
+        fail(e);
+      }
+    }
+
+    /**
+     * Relay an ESI response to the client, with the same handling as the blocking servlet.
+     */
+    protected void respond(
+                           HttpResponse proxyResponse)
+      throws IOException {
+      upstreamResponded(servletRequest, proxyResponse);
+      ResponseCache.Entry renewed = inspectResponse(servletRequest, proxyResponse);
+      if (renewed != null) {
+        ResponseCache cache = (ResponseCache) servletRequest.getAttribute(ATTR_CACHE);
+        send(cache.prepareServe(renewed, servletRequest, servletResponse));
+        return;
+      }
+      int statusCode = proxyResponse.getStatusLine().getStatusCode();
+      servletResponse.setStatus(statusCode);
+      copyResponseHeaders(proxyResponse, servletRequest, servletResponse);
+      HttpEntity entity = proxyResponse.getEntity();
+      if (statusCode == HttpServletResponse.SC_NOT_MODIFIED || entity == null) {
+        servletResponse.setContentLength(0);
+        send(null);
+        return;
+      }
+      byte[] body;
+      if (isSwaggerRequest(servletRequest)) {
+        body = translateSwagger(proxyResponse, entity);
+      } else {
+        body = EntityUtils.toByteArray(entity);
+        long limit = keepLimit(servletRequest, proxyResponse);
+        if (limit > 0 && body.length <= limit) keepResponse(servletRequest, proxyResponse, body);
+      }
+      servletResponse.setContentLength(body.length);
+      send(body);
+    }
+
+    /**
+     * Translate a swagger.json document into memory, preserving the upstream encoding.
+     */
+    protected byte[] translateSwagger(
+                                      HttpResponse proxyResponse,
+                                      HttpEntity entity)
+      throws IOException {
+      long start = System.nanoTime();
+      Header checkGzip = proxyResponse.getFirstHeader("Content-Encoding");
+      boolean useGzip = checkGzip != null && checkGzip.getValue().equals("gzip");
+      ByteArrayOutputStream translated = new ByteArrayOutputStream();
+      InputStream src = useGzip ? new GZIPInputStream(entity.getContent()) : entity.getContent();
+      try {
+        if (useGzip) {
+          GZIPOutputStream generator = new GZIPOutputStream(translated);
+          transformSwagger(src, generator);
+          generator.finish();
+        } else {
+          transformSwagger(src, translated);
+        }
+      } finally {
+        src.close();
+        ProxyMetrics.time(servletRequest, ProxyMetrics.STAGE_SWAGGER, start);
+      }
+      return translated.toByteArray();
+    }
+
+    /**
+     * Write a response body to the client as the client is ready to receive it, then complete the exchange. The status and headers must already be set.
+     *
+     * @param body
+     *          body to send, or null if there is no body.
+     */
+    protected void send(
+                        byte[] body) {
+      if (body == null || body.length == 0) {
+        finish();
+        return;
+      }
+      try {
+        sendStart = System.nanoTime();
+        responseBody = body;
+        output = servletResponse.getOutputStream();
+        output.setWriteListener(this);
+      } catch (IOException | RuntimeException e) {
+        fail(e);
+      }
+    }
+
+    @Override
+    public void onWritePossible() throws IOException {
+      while (written < responseBody.length && output.isReady()) {
+        int count = Math.min(CHUNK_SIZE, responseBody.length - written);
+        output.write(responseBody, written, count);
+        written += count;
+      }
+      if (written == responseBody.length) finish();
+    }
+
+    /**
+     * Complete a successful exchange.
+     */
+    protected void finish() {
+      if (!done.compareAndSet(false, true)) return;
+      releaseFlight(servletRequest);
+      completed.incrementAndGet();
+      active.decrementAndGet();
+      if (responseBody != null) {
+        ProxyMetrics.time(servletRequest, ProxyMetrics.STAGE_BODY_COPY, sendStart);
+        ProxyMetrics.bytes(servletRequest, written);
+      }
+      ProxyMetrics.complete(servletRequest, servletResponse.getStatus());
+      context.complete();
+    }
+
+    /**
+     * Abandon an exchange which failed within the proxy.
+     */
+    protected void fail(
+                        Throwable cause) {
+      fail(cause, HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+    }
+
+    /**
+     * Abandon a failed exchange, sending an error to the client if we haven't started sending the response. A follower stops waiting for its leader.
+     *
+     * @param cause
+     *          the reason the exchange failed.
+     * @param status
+     *          status to send to the client.
+     */
+    protected void fail(
+                        Throwable cause,
+                        int status) {
+      if (!done.compareAndSet(false, true)) return;
+      RequestCoalescer.Following waiting = following;
+      if (waiting != null) waiting.cancel();
+      releaseFlight(servletRequest);
+      failed.incrementAndGet();
+      active.decrementAndGet();
+      Future<HttpResponse> pending = upstream;
+      if (pending != null) pending.cancel(true);
+      log("Async proxy request failed: " + servletRequest.getRequestURI(), cause);
+      boolean committed = servletResponse.isCommitted();
+      try {
+        if (!committed) servletResponse.sendError(status);
+      } catch (IOException | RuntimeException e) {
+        // Client went away, nothing more we can do
+      }
+      ProxyMetrics.complete(servletRequest, committed ? servletResponse.getStatus() : status);
+      context.complete();
+    }
+
+    @Override
+    public void failed(
+                       Exception ex) {
+      // Couldn't reach the ESI
+      fail(ex, HttpServletResponse.SC_BAD_GATEWAY);
+    }
+
+    @Override
+    public void cancelled() {
+      fail(new IOException("ESI request cancelled"), HttpServletResponse.SC_BAD_GATEWAY);
+    }
+
+    @Override
+    public void onError(
+                        Throwable t) {
+      fail(t);
+    }
+
+    @Override
+    public void onTimeout(
+                          AsyncEvent event)
+      throws IOException {
+      if (!done.get()) timeouts.incrementAndGet();
+      fail(new TimeoutException("ESI request timed out after " + asyncTimeout + "ms"), HttpServletResponse.SC_GATEWAY_TIMEOUT);
+    }
+
+    @Override
+    public void onError(
+                        AsyncEvent event)
+      throws IOException {
+      fail(event.getThrowable());
+    }
+
+    @Override
+    public void onComplete(
+                           AsyncEvent event)
+      throws IOException {}
+
+    @Override
+    public void onStartAsync(
+                             AsyncEvent event)
+      throws IOException {}
+  }
+
+}
@@ -0,0 +1,1053 @@
+package enterprises.orbital.esi.proxy;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonException;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+import javax.json.JsonString;
+import javax.json.JsonStructure;
+import javax.json.JsonValue;
+import javax.json.stream.JsonGenerator;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.http.client.utils.DateUtils;
+
+import enterprises.orbital.base.OrbitalProperties;
+
+/**
+ * Executes a batch of ESI requests sent in a single client request. The batch is a JSON array of items, each of which describes one proxy request:
+ *
+ * <pre>
+ * [ { "id": "assets", "method": "GET", "path": "/latest/characters/12345/assets/?datasource=tranquility",
+ *     "key": 1234, "hash": "...", "headers": { "Accept-Language": "en-us" }, "body": "..." }, ... ]
+ * </pre>
+ *
+ * Only "path" is required. Items are executed concurrently, each passing through exactly the same handling (authorization, rate limiting, caching and
+ * coalescing) as an individual request to the proxy. The response is a JSON array with one element per item, written as each item completes (so not
+ * necessarily in request order):
+ *
+ * <pre>
+ * [ { "id": "assets", "status": 200, "headers": { "Expires": [ "..." ] }, "body": [ ... ] }, ... ]
+ * </pre>
+ *
+ * JSON bodies are included as JSON, any other body is included as a string.
+ */
+public class BatchHandler {
+  protected static final Logger   log               = Logger.getLogger(BatchHandler.class.getName());
+
+  public static final String      PROP_THREADS      = "enterprises.orbital.esi.proxy.batch.threads";
+  public static final long        DEF_THREADS       = 16;
+  public static final String      PROP_CONCURRENCY  = "enterprises.orbital.esi.proxy.batch.concurrency";
+  public static final long        DEF_CONCURRENCY   = 8;
+  public static final String      PROP_MAX_ITEMS    = "enterprises.orbital.esi.proxy.batch.maxItems";
+  public static final long        DEF_MAX_ITEMS     = 100;
+  public static final String      PROP_MAX_BYTES    = "enterprises.orbital.esi.proxy.batch.maxBytes";
+  public static final long        DEF_MAX_BYTES     = 1024L * 1024L;
+  public static final String      PROP_TIMEOUT      = "enterprises.orbital.esi.proxy.batch.timeout";
+  public static final long        DEF_TIMEOUT       = TimeUnit.MILLISECONDS.convert(60, TimeUnit.SECONDS);
+
+  // ESI servers which items may address
+  public static final Set<String> ITEM_SERVERS      = Collections.unmodifiableSet(new LinkedHashSet<String>(Arrays.asList("latest", "legacy", "dev")));
+
+  // Headers which describe the encoding of an item response rather than the response itself
+  private static final String[]   TRANSPORT_HEADERS = {
+      "Content-Length", "Content-Encoding", "Transfer-Encoding", "Connection"
+  };
+
+  // Singleton instance, created on first use
+  private static BatchHandler     instance;
+
+  /**
+   * A single item from a batch.
+   */
+  protected static class Item {
+    final String                    id;
+    final String                    method;
+    final String                    path;
+    final String                    query;
+    final Map<String, List<String>> headers;
+    final byte[]                    body;
+    // Additional values (String or Number) included with the result
+    final Map<String, Object>       annotations;
+
+    Item(String id, String method, String path, String query, Map<String, List<String>> headers, byte[] body, Map<String, Object> annotations) {
+      this.id = id;
+      this.method = method;
+      this.path = path;
+      this.query = query;
+      this.headers = headers;
+      this.body = body;
+      this.annotations = annotations;
+    }
+  }
+
+  /**
+   * The request for a single item. Everything describing the request comes from the item. Connection level details (e.g. remote address) come from the batch
+   * request. Each item has its own attributes, and async processing is not supported.
+   */
+  protected static class ItemRequest extends HttpServletRequestWrapper {
+    private final Item                      item;
+    private final String                    servletPath;
+    private final String                    pathInfo;
+    private final Map<String, Object>       attributes = new HashMap<String, Object>();
+
+    ItemRequest(HttpServletRequest batch, Item item) {
+      super(batch);
+      this.item = item;
+      // The first path segment selects the ESI server, as it does for individual requests
+      int split = item.path.indexOf('/', 1);
+      this.servletPath = split < 0 ? item.path : item.path.substring(0, split);
+      this.pathInfo = split < 0 ? null : item.path.substring(split);
+    }
+
+    @Override
+    public String getMethod() {
+      return item.method;
+    }
+
+    @Override
+    public String getServletPath() {
+      return servletPath;
+    }
+
+    @Override
+    public String getPathInfo() {
+      return pathInfo;
+    }
+
+    @Override
+    public String getQueryString() {
+      return item.query;
+    }
+
+    @Override
+    public String getRequestURI() {
+      return getContextPath() + item.path;
+    }
+
+    @Override
+    public StringBuffer getRequestURL() {
+      StringBuffer url = new StringBuffer();
+      url.append(getScheme()).append("://").append(getServerName()).append(':').append(getServerPort()).append(getRequestURI());
+      return url;
+    }
+
+    @Override
+    public String getHeader(
+                            String name) {
+      List<String> values = item.headers.get(name);
+      return values == null || values.isEmpty() ? null : values.get(0);
+    }
+
+    @Override
+    public Enumeration<String> getHeaders(
+                                          String name) {
+      List<String> values = item.headers.get(name);
+      return Collections.enumeration(values == null ? Collections.<String> emptyList() : values);
+    }
+
+    @Override
+    public Enumeration<String> getHeaderNames() {
+      return Collections.enumeration(item.headers.keySet());
+    }
+
+    @Override
+    public int getIntHeader(
+                            String name) {
+      String value = getHeader(name);
+      return value == null ? -1 : Integer.parseInt(value);
+    }
+
+    @Override
+    public long getDateHeader(
+                              String name) {
+      String value = getHeader(name);
+      if (value == null) return -1;
+      Date when = DateUtils.parseDate(value);
+      if (when == null) throw new IllegalArgumentException("Invalid date header " + name + ": " + value);
+      return when.getTime();
+    }
+
+    @Override
+    public String getContentType() {
+      return getHeader("Content-Type");
+    }
+
+    @Override
+    public int getContentLength() {
+      return item.body == null ? -1 : item.body.length;
+    }
+
+    @Override
+    public long getContentLengthLong() {
+      return getContentLength();
+    }
+
+    @Override
+    public ServletInputStream getInputStream() {
+      final ByteArrayInputStream src = new ByteArrayInputStream(item.body == null ? new byte[0] : item.body);
+      return new ServletInputStream() {
+        @Override
+        public int read() {
+          return src.read();
+        }
+
+        @Override
+        public int read(
+                        byte[] b,
+                        int off,
+                        int len) {
+          return src.read(b, off, len);
+        }
+
+        @Override
+        public boolean isFinished() {
+          return src.available() == 0;
+        }
+
+        @Override
+        public boolean isReady() {
+          return true;
+        }
+
+        @Override
+        public void setReadListener(
+                                    ReadListener readListener) {
+          throw new IllegalStateException("Non-blocking I/O is not supported for batch items");
+        }
+      };
+    }
+
+    @Override
+    public BufferedReader getReader() {
+      return new BufferedReader(new InputStreamReader(getInputStream(), StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public Object getAttribute(
+                               String name) {
+      return attributes.get(name);
+    }
+
+    @Override
+    public Enumeration<String> getAttributeNames() {
+      return Collections.enumeration(attributes.keySet());
+    }
+
+    @Override
+    public void setAttribute(
+                             String name,
+                             Object o) {
+      if (o == null) attributes.remove(name);
+      else attributes.put(name, o);
+    }
+
+    @Override
+    public void removeAttribute(
+                                String name) {
+      attributes.remove(name);
+    }
+
+    @Override
+    public boolean isAsyncSupported() {
+      return false;
+    }
+
+    @Override
+    public boolean isAsyncStarted() {
+      return false;
+    }
+  }
+
+  /**
+   * Captures the response to a single item in memory. Nothing is passed on to the batch response, which is written only by the batch itself. Once an item
+   * is cancelled, its body can no longer be written, so an abandoned item stops as soon as it tries to relay a response.
+   */
+  protected static class ItemResponse implements HttpServletResponse {
+    private int                             status     = HttpServletResponse.SC_OK;
+    private String                          message;
+    private final Map<String, List<String>> headers    = new TreeMap<String, List<String>>(String.CASE_INSENSITIVE_ORDER);
+    private final ByteArrayOutputStream     body       = new ByteArrayOutputStream();
+    private PrintWriter                     writer;
+    private boolean                         committed;
+    private volatile boolean                cancelled;
+    private int                             bufferSize = 8192;
+    private Locale                          locale     = Locale.getDefault();
+
+    /**
+     * Discard the rest of the response. Any further attempt to write the body fails.
+     */
+    void cancel() {
+      cancelled = true;
+    }
+
+    @Override
+    public void setStatus(
+                          int sc) {
+      status = sc;
+    }
+
+    @Override
+    @Deprecated
+    public void setStatus(
+                          int sc,
+                          String sm) {
+      status = sc;
+      message = sm;
+    }
+
+    @Override
+    public int getStatus() {
+      return status;
+    }
+
+    @Override
+    public void sendError(
+                          int sc) {
+      sendError(sc, null);
+    }
+
+    @Override
+    public void sendError(
+                          int sc,
+                          String msg) {
+      status = sc;
+      message = msg;
+      committed = true;
+    }
+
+    @Override
+    public void sendRedirect(
+                             String location) {
+      status = HttpServletResponse.SC_FOUND;
+      setHeader("Location", location);
+      committed = true;
+    }
+
+    @Override
+    public void addCookie(
+                          Cookie cookie) {
+      // Cookies would belong to the batch client's session rather than the item, so they are dropped
+    }
+
+    @Override
+    public String encodeURL(
+                            String url) {
+      return url;
+    }
+
+    @Override
+    public String encodeRedirectURL(
+                                    String url) {
+      return url;
+    }
+
+    @Override
+    @Deprecated
+    public String encodeUrl(
+                            String url) {
+      return url;
+    }
+
+    @Override
+    @Deprecated
+    public String encodeRedirectUrl(
+                                    String url) {
+      return url;
+    }
+
+    @Override
+    public void setHeader(
+                          String name,
+                          String value) {
+      List<String> values = new ArrayList<String>(1);
+      values.add(value);
+      headers.put(name, values);
+    }
+
+    @Override
+    public void addHeader(
+                          String name,
+                          String value) {
+      List<String> values = headers.get(name);
+      if (values == null) {
+        values = new ArrayList<String>(1);
+        headers.put(name, values);
+      }
+      values.add(value);
+    }
+
+    @Override
+    public void setIntHeader(
+                             String name,
+                             int value) {
+      setHeader(name, String.valueOf(value));
+    }
+
+    @Override
+    public void addIntHeader(
+                             String name,
+                             int value) {
+      addHeader(name, String.valueOf(value));
+    }
+
+    @Override
+    public void setDateHeader(
+                              String name,
+                              long date) {
+      setHeader(name, DateUtils.formatDate(new Date(date)));
+    }
+
+    @Override
+    public void addDateHeader(
+                              String name,
+                              long date) {
+      addHeader(name, DateUtils.formatDate(new Date(date)));
+    }
+
+    @Override
+    public boolean containsHeader(
+                                  String name) {
+      return headers.containsKey(name);
+    }
+
+    @Override
+    public String getHeader(
+                            String name) {
+      List<String> values = headers.get(name);
+      return values == null || values.isEmpty() ? null : values.get(0);
+    }
+
+    @Override
+    public Collection<String> getHeaders(
+                                         String name) {
+      List<String> values = headers.get(name);
+      return values == null ? Collections.<String> emptyList() : new ArrayList<String>(values);
+    }
+
+    @Override
+    public Collection<String> getHeaderNames() {
+      return new ArrayList<String>(headers.keySet());
+    }
+
+    @Override
+    public void setContentType(
+                               String type) {
+      if (type != null) setHeader("Content-Type", type);
+    }
+
+    @Override
+    public String getContentType() {
+      return getHeader("Content-Type");
+    }
+
+    @Override
+    public void setContentLength(
+                                 int len) {
+      // Length is determined by the captured body
+    }
+
+    @Override
+    public void setContentLengthLong(
+                                     long len) {
+      // Length is determined by the captured body
+    }
+
+    @Override
+    public void setCharacterEncoding(
+                                     String charset) {
+      // Item bodies are always reported as UTF-8
+    }
+
+    @Override
+    public String getCharacterEncoding() {
+      return StandardCharsets.UTF_8.name();
+    }
+
+    @Override
+    public void setLocale(
+                          Locale loc) {
+      if (loc != null) locale = loc;
+    }
+
+    @Override
+    public Locale getLocale() {
+      return locale;
+    }
+
+    @Override
+    public void setBufferSize(
+                              int size) {
+      // The whole body is captured regardless, the size is only recorded
+      bufferSize = size;
+    }
+
+    @Override
+    public int getBufferSize() {
+      return bufferSize;
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() {
+      return new ServletOutputStream() {
+        @Override
+        public void write(
+                          int b)
+          throws IOException {
+          if (cancelled) throw new IOException("Batch item cancelled");
+          body.write(b);
+        }
+
+        @Override
+        public void write(
+                          byte[] b,
+                          int off,
+                          int len)
+          throws IOException {
+          if (cancelled) throw new IOException("Batch item cancelled");
+          body.write(b, off, len);
+        }
+
+        @Override
+        public boolean isReady() {
+          return true;
+        }
+
+        @Override
+        public void setWriteListener(
+                                     WriteListener writeListener) {
+          throw new IllegalStateException("Non-blocking I/O is not supported for batch items");
+        }
+      };
+    }
+
+    @Override
+    public PrintWriter getWriter() {
+      if (writer == null) writer = new PrintWriter(new OutputStreamWriter(getOutputStream(), StandardCharsets.UTF_8));
+      return writer;
+    }
+
+    @Override
+    public void flushBuffer() {
+      if (writer != null) writer.flush();
+      committed = true;
+    }
+
+    @Override
+    public boolean isCommitted() {
+      return committed;
+    }
+
+    @Override
+    public void reset() {
+      if (committed) throw new IllegalStateException("Response already committed");
+      status = HttpServletResponse.SC_OK;
+      message = null;
+      headers.clear();
+      body.reset();
+    }
+
+    @Override
+    public void resetBuffer() {
+      if (committed) throw new IllegalStateException("Response already committed");
+      body.reset();
+    }
+
+    /**
+     * @return the decoded body of the response.
+     */
+    byte[] getBody() throws IOException {
+      if (writer != null) writer.flush();
+      byte[] raw = body.toByteArray();
+      String encoding = getHeader("Content-Encoding");
+      if (raw.length == 0 || encoding == null || !encoding.trim().equalsIgnoreCase("gzip")) return raw;
+      ByteArrayOutputStream decoded = new ByteArrayOutputStream(raw.length * 4);
+      InputStream src = new GZIPInputStream(new ByteArrayInputStream(raw));
+      try {
+        byte[] buffer = new byte[8192];
+        for (int count = src.read(buffer); count >= 0; count = src.read(buffer))
+          decoded.write(buffer, 0, count);
+      } finally {
+        src.close();
+      }
+      return decoded.toByteArray();
+    }
+  }
+
+  private final ExecutorService   workers;
+  private final int               concurrency;
+  private final int               maxItems;
+  private final long              maxBytes;
+  private final long              timeout;
+  private final AtomicLong        batches           = new AtomicLong(0);
+  private final AtomicLong        items             = new AtomicLong(0);
+  private final AtomicLong        failures          = new AtomicLong(0);
+  private final AtomicLong        timeouts          = new AtomicLong(0);
+
+  /**
+   * Create a handler.
+   *
+   * @param threads
+   *          number of threads shared by all batches for executing items.
+   * @param concurrency
+   *          maximum number of items from a single batch executing at once.
+   * @param maxItems
+   *          maximum number of items in a batch.
+   * @param maxBytes
+   *          maximum size (bytes) of a batch request.
+   * @param timeout
+   *          maximum time (milliseconds) to wait for the next item in a batch to complete.
+   */
+  public BatchHandler(int threads, int concurrency, int maxItems, long maxBytes, long timeout) {
+    this.workers = Executors.newFixedThreadPool(Math.max(threads, 1), new NamedThreadFactory("esi-batch"));
+    this.concurrency = Math.max(concurrency, 1);
+    this.maxItems = maxItems;
+    this.maxBytes = maxBytes;
+    this.timeout = timeout;
+  }
+
+  public int getMaxItems() {
+    return maxItems;
+  }
+
+  /**
+   * Retrieve the global batch handler, creating it if necessary.
+   *
+   * @return the global batch handler.
+   */
+  public static synchronized BatchHandler getHandler() {
+    if (instance == null) {
+      instance = new BatchHandler(
+          (int) OrbitalProperties.getLongGlobalProperty(PROP_THREADS, DEF_THREADS),
+          (int) OrbitalProperties.getLongGlobalProperty(PROP_CONCURRENCY, DEF_CONCURRENCY),
+          (int) OrbitalProperties.getLongGlobalProperty(PROP_MAX_ITEMS, DEF_MAX_ITEMS), OrbitalProperties.getLongGlobalProperty(PROP_MAX_BYTES, DEF_MAX_BYTES),
+          OrbitalProperties.getLongGlobalProperty(PROP_TIMEOUT, DEF_TIMEOUT));
+      final BatchHandler stats = instance;
+      ProxyStats.register("batch", new ProxyStats.StatsSource() {
+        @Override
+        public Map<String, Number> getStats() {
+          return stats.getStats();
+        }
+      });
+    }
+    return instance;
+  }
+
+  /**
+   * Stop the worker threads. Subsequent batches will fail.
+   */
+  public static synchronized void shutdown() {
+    if (instance != null) {
+      instance.workers.shutdownNow();
+      instance = null;
+    }
+  }
+
+  /**
+   * Execute a batch and stream the results to the client.
+   *
+   * @param servlet
+   *          the proxy servlet which handles each item.
+   * @param servletRequest
+   *          the batch request.
+   * @param servletResponse
+   *          response to the client.
+   * @throws IOException
+   *           if an error occurs reading the batch or writing the results.
+   */
+  public void serve(
+                    final ESIProxyServlet servlet,
+                    final HttpServletRequest servletRequest,
+                    final HttpServletResponse servletResponse)
+    throws IOException {
+    if (!"POST".equals(servletRequest.getMethod())) {
+      servletResponse.setHeader("Allow", "POST");
+      servletResponse.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED, "Batches must be sent with POST");
+      return;
+    }
+    // Reject a declared length up front, but enforce the limit on what is actually read since chunked requests declare no length
+    byte[] body = servletRequest.getContentLengthLong() > maxBytes ? null : readBody(servletRequest.getInputStream(), maxBytes);
+    if (body == null) {
+      servletResponse.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, "Batch exceeds " + maxBytes + " bytes");
+      return;
+    }
+    List<Item> batch;
+    try {
+      batch = parse(servletRequest, body, servlet.proxyKeyName, servlet.proxyHashName);
+    } catch (JsonException | IllegalArgumentException | ClassCastException e) {
+      servletResponse.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid batch: " + e.getMessage());
+      return;
+    }
+    if (batch.size() > maxItems) {
+      servletResponse.sendError(HttpServletResponse.SC_BAD_REQUEST, "Batch has " + batch.size() + " items, maximum is " + maxItems);
+      return;
+    }
+    run(servlet, servletRequest, servletResponse, batch);
+  }
+
+  /**
+   * Execute a list of items and stream the results to the client as a JSON array.
+   *
+   * @param servlet
+   *          the proxy servlet which handles each item.
+   * @param servletRequest
+   *          the request which produced the items.
+   * @param servletResponse
+   *          response to the client.
+   * @param batch
+   *          the items to execute.
+   * @throws IOException
+   *           if an error occurs writing the results.
+   */
+  public void run(
+                  final ESIProxyServlet servlet,
+                  final HttpServletRequest servletRequest,
+                  final HttpServletResponse servletResponse,
+                  List<Item> batch)
+    throws IOException {
+    batches.incrementAndGet();
+    items.addAndGet(batch.size());
+
+    servletResponse.setStatus(HttpServletResponse.SC_OK);
+    servletResponse.setContentType("application/json; charset=UTF-8");
+    JsonGenerator generator = Json.createGenerator(servletResponse.getOutputStream());
+    generator.writeStartArray();
+
+    // Keep at most "concurrency" items in flight, writing each result as it completes
+    ExecutorCompletionService<ItemResult> completion = new ExecutorCompletionService<ItemResult>(workers);
+    Map<Future<ItemResult>, ItemResult> pending = new HashMap<Future<ItemResult>, ItemResult>();
+    List<Item> remaining = new ArrayList<Item>(batch);
+    int next = 0;
+    int done = 0;
+    try {
+      while (next < batch.size() && next < concurrency)
+        submit(completion, pending, servlet, servletRequest, batch.get(next++));
+      while (done < batch.size()) {
+        Future<ItemResult> finished = completion.poll(timeout, TimeUnit.MILLISECONDS);
+        if (finished == null) break;
+        ItemResult result = pending.remove(finished);
+        remaining.remove(result.item);
+        try {
+          finished.get();
+          write(generator, result);
+        } catch (ExecutionException e) {
+          // task() captures exceptions, so this is an error thrown by the item. Report it in place of the item's response.
+          failures.incrementAndGet();
+          log.log(Level.WARNING, "batch item failed: " + result.item.path, e.getCause());
+          writeError(generator, result.item, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Request failed: " + e.getCause());
+        }
+        generator.flush();
+        done++;
+        if (next < batch.size()) submit(completion, pending, servlet, servletRequest, batch.get(next++));
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      // Interrupt abandoned items, and stop them relaying whatever response they get, so they release their worker promptly
+      for (Map.Entry<Future<ItemResult>, ItemResult> abandoned : pending.entrySet()) {
+        abandoned.getValue().response.cancel();
+        abandoned.getKey().cancel(true);
+      }
+    }
+
+    // Anything left over timed out, or was never started
+    for (Item item : remaining) {
+      timeouts.incrementAndGet();
+      writeError(generator, item, HttpServletResponse.SC_GATEWAY_TIMEOUT, "Batch item did not complete in time");
+    }
+    generator.writeEnd();
+    generator.flush();
+  }
+
+  /**
+   * The outcome of a single item.
+   */
+  protected static class ItemResult {
+    final Item         item;
+    final ItemResponse response;
+
+    ItemResult(Item item, ItemResponse response) {
+      this.item = item;
+      this.response = response;
+    }
+  }
+
+  protected void submit(
+                        ExecutorCompletionService<ItemResult> completion,
+                        Map<Future<ItemResult>, ItemResult> pending,
+                        ESIProxyServlet servlet,
+                        HttpServletRequest servletRequest,
+                        Item item) {
+    ItemResult result = new ItemResult(item, new ItemResponse());
+    pending.put(completion.submit(task(servlet, servletRequest, result)), result);
+  }
+
+  protected Callable<ItemResult> task(
+                                      final ESIProxyServlet servlet,
+                                      final HttpServletRequest servletRequest,
+                                      final ItemResult result) {
+    return new Callable<ItemResult>() {
+      @Override
+      public ItemResult call() throws Exception {
+        ItemResponse response = result.response;
+        try {
+          servlet.service(new ItemRequest(servletRequest, result.item), response);
+        } catch (Exception e) {
+          failures.incrementAndGet();
+          log.log(Level.WARNING, "batch item failed: " + result.item.path, e);
+          if (!response.isCommitted()) {
+            response.reset();
+            response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Request failed: " + e.getMessage());
+          }
+        }
+        return result;
+      }
+    };
+  }
+
+  /**
+   * Read a request body, stopping as soon as it exceeds the limit.
+   *
+   * @param src
+   *          the request body.
+   * @param limit
+   *          largest body (bytes) which will be read.
+   * @return the body, or null if it is longer than limit.
+   * @throws IOException
+   *           if an error occurs reading the body.
+   */
+  protected static byte[] readBody(
+                                   InputStream src,
+                                   long limit)
+    throws IOException {
+    ByteArrayOutputStream content = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    for (int count = src.read(buffer); count >= 0; count = src.read(buffer)) {
+      if (content.size() + count > limit) return null;
+      content.write(buffer, 0, count);
+    }
+    return content.toByteArray();
+  }
+
+  /**
+   * Parse a batch request.
+   */
+  protected static List<Item> parse(
+                                    HttpServletRequest servletRequest,
+                                    byte[] content,
+                                    String keyName,
+                                    String hashName)
+    throws IOException {
+    JsonReader reader = Json.createReader(new InputStreamReader(new ByteArrayInputStream(content), StandardCharsets.UTF_8));
+    JsonArray array;
+    try {
+      array = reader.readArray();
+    } finally {
+      reader.close();
+    }
+    List<Item> result = new ArrayList<Item>(array.size());
+    for (int i = 0; i < array.size(); i++) {
+      JsonObject next = array.getJsonObject(i);
+      JsonValue id = next.get("id");
+      String path = next.getString("path", null);
+      if (path == null) throw new IllegalArgumentException("item " + i + " has no path");
+      // Proxy key and hash may be given separately, or as part of the path
+      String query = null;
+      int question = path.indexOf('?');
+      if (question >= 0) {
+        query = path.substring(question + 1);
+        path = path.substring(0, question);
+      }
+      String invalid = checkPath(path);
+      if (invalid != null) throw new IllegalArgumentException("item " + i + " " + invalid);
+      if (next.containsKey("key") && next.containsKey("hash"))
+        query = withCredentials(query, keyName, asString(next.get("key")), hashName, asString(next.get("hash")));
+      Map<String, List<String>> headers = new TreeMap<String, List<String>>(String.CASE_INSENSITIVE_ORDER);
+      JsonObject requested = next.containsKey("headers") ? next.getJsonObject("headers") : null;
+      if (requested != null) {
+        for (Map.Entry<String, JsonValue> header : requested.entrySet()) {
+          List<String> values = new ArrayList<String>(1);
+          values.add(asString(header.getValue()));
+          headers.put(header.getKey(), values);
+        }
+      }
+      // Identify the client as the batch did, unless the item says otherwise
+      if (!headers.containsKey("User-Agent") && servletRequest.getHeader("User-Agent") != null)
+        headers.put("User-Agent", Collections.singletonList(servletRequest.getHeader("User-Agent")));
+      byte[] body = null;
+      if (next.containsKey("body")) {
+        body = asString(next.get("body")).getBytes(StandardCharsets.UTF_8);
+        headers.put("Content-Length", Collections.singletonList(String.valueOf(body.length)));
+        if (!headers.containsKey("Content-Type")) headers.put("Content-Type", Collections.singletonList("application/json"));
+      }
+      result.add(new Item(
+          id == null ? String.valueOf(i) : asString(id), next.getString("method", "GET").toUpperCase(), path, query, headers, body,
+          Collections.<String, Object> emptyMap()));
+    }
+    return result;
+  }
+
+  /**
+   * Check that an item path addresses an ESI server. Batches and fan-outs can't be items: an item waiting on a nested batch would hold a worker which the
+   * nested batch needs, so enough of them would deadlock the worker pool.
+   *
+   * @param path
+   *          item path, without query string.
+   * @return null if the path is acceptable, otherwise the reason it is not.
+   */
+  protected static String checkPath(
+                                    String path) {
+    int split = path.indexOf('/', 1);
+    String server = split < 0 ? path : path.substring(0, split);
+    if (server.equals(ESIProxyServlet.BATCH_PATH) || server.equals(ESIProxyServlet.FAN_OUT_PATH)) return "may not be a batch or fan-out";
+    if (!path.startsWith("/") || split < 0) return "requires a path of the form /server/endpoint";
+    if (!ITEM_SERVERS.contains(server.substring(1))) return "must address one of the ESI servers " + ITEM_SERVERS;
+    return null;
+  }
+
+  /**
+   * Append a proxy key and hash to a query string.
+   */
+  protected static String withCredentials(
+                                          String query,
+                                          String keyName,
+                                          String key,
+                                          String hashName,
+                                          String hash)
+    throws IOException {
+    String credentials = keyName + "=" + URLEncoder.encode(key, "UTF-8") + "&" + hashName + "=" + URLEncoder.encode(hash, "UTF-8");
+    return query == null || query.isEmpty() ? credentials : query + "&" + credentials;
+  }
+
+  private static String asString(
+                                 JsonValue value) {
+    return value instanceof JsonString ? ((JsonString) value).getString() : value.toString();
+  }
+
+  protected static void annotate(
+                                 JsonGenerator generator,
+                                 Item item) {
+    for (Map.Entry<String, Object> next : item.annotations.entrySet()) {
+      if (next.getValue() == null) generator.writeNull(next.getKey());
+      else if (next.getValue() instanceof Number) generator.write(next.getKey(), ((Number) next.getValue()).longValue());
+      else generator.write(next.getKey(), String.valueOf(next.getValue()));
+    }
+  }
+
+  /**
+   * Write the result of an item which produced no response.
+   */
+  protected static void writeError(
+                                   JsonGenerator generator,
+                                   Item item,
+                                   int status,
+                                   String message) {
+    generator.writeStartObject().write("id", item.id);
+    annotate(generator, item);
+    generator.write("status", status).writeStartObject("headers").writeEnd().write("body", message).writeEnd();
+  }
+
+  /**
+   * Write the result of an item.
+   */
+  protected static void write(
+                              JsonGenerator generator,
+                              ItemResult result)
+    throws IOException {
+    ItemResponse response = result.response;
+    generator.writeStartObject();
+    generator.write("id", result.item.id);
+    annotate(generator, result.item);
+    generator.write("status", response.status);
+    generator.writeStartObject("headers");
+    outer: for (Map.Entry<String, List<String>> next : response.headers.entrySet()) {
+      for (String skip : TRANSPORT_HEADERS) {
+        if (skip.equalsIgnoreCase(next.getKey())) continue outer;
+      }
+      generator.writeStartArray(next.getKey());
+      for (String value : next.getValue()) {
+        generator.write(value);
+      }
+      generator.writeEnd();
+    }
+    generator.writeEnd();
+    byte[] body = response.getBody();
+    if (body.length == 0) {
+      if (response.message != null) generator.write("body", response.message);
+      else generator.writeNull("body");
+    } else {
+      String text = new String(body, StandardCharsets.UTF_8);
+      JsonStructure json = null;
+      String type = response.getContentType();
+      if (type != null && type.contains("json")) {
+        try {
+          JsonReader reader = Json.createReader(new StringReader(text));
+          try {
+            json = reader.read();
+          } finally {
+            reader.close();
+          }
+        } catch (JsonException e) {
+          // Not a JSON object or array (e.g. a bare number), include as text
+        }
+      }
+      if (json != null) generator.write("body", json);
+      else generator.write("body", text);
+    }
+    generator.writeEnd();
+  }
+
+  public Map<String, Number> getStats() {
+    Map<String, Number> result = new HashMap<String, Number>();
+    result.put("batches", batches.get());
+    result.put("items", items.get());
+    result.put("failures", failures.get());
+    result.put("timeouts", timeouts.get());
+    return result;
+  }
+
+}
@@ -0,0 +1,141 @@
+package enterprises.orbital.esi.proxy;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import enterprises.orbital.base.OrbitalProperties;
+
+/**
+ * Reusable buffers for copying response bodies from the ESI to clients. Without the pool, every proxied response allocates fresh copy buffers, so
+ * allocation grows with the volume of data proxied. Buffers are returned to the pool after each copy, so steady state copying allocates nothing. The pool
+ * holds at most a fixed number of free buffers; buffers released beyond that are left for the garbage collector.
+ */
+public class BufferPool {
+  public static final String                  PROP_BUFFER_SIZE = "enterprises.orbital.esi.proxy.buffers.size";
+  public static final long                    DEF_BUFFER_SIZE  = 16 * 1024;
+  public static final String                  PROP_MAX_BUFFERS = "enterprises.orbital.esi.proxy.buffers.max";
+  public static final long                    DEF_MAX_BUFFERS  = 256;
+
+  // Singleton instance, created on first use
+  private static BufferPool                   instance;
+
+  private final int                           bufferSize;
+  private final int                           maxBuffers;
+  private final ConcurrentLinkedQueue<byte[]> free             = new ConcurrentLinkedQueue<byte[]>();
+  // Size of the free queue, which the queue itself can't report cheaply
+  private final AtomicInteger                 freeCount        = new AtomicInteger(0);
+  private final AtomicLong                    acquired         = new AtomicLong(0);
+  private final AtomicLong                    allocated        = new AtomicLong(0);
+  private final AtomicLong                    copied           = new AtomicLong(0);
+
+  /**
+   * Create a pool.
+   *
+   * @param bufferSize
+   *          size (bytes) of each buffer.
+   * @param maxBuffers
+   *          maximum number of free buffers kept in the pool.
+   */
+  public BufferPool(int bufferSize, int maxBuffers) {
+    this.bufferSize = bufferSize;
+    this.maxBuffers = maxBuffers;
+  }
+
+  /**
+   * Retrieve the global buffer pool, creating it if necessary.
+   *
+   * @return the global buffer pool.
+   */
+  public static synchronized BufferPool getPool() {
+    if (instance == null) {
+      instance = new BufferPool(
+          (int) OrbitalProperties.getLongGlobalProperty(PROP_BUFFER_SIZE, DEF_BUFFER_SIZE),
+          (int) OrbitalProperties.getLongGlobalProperty(PROP_MAX_BUFFERS, DEF_MAX_BUFFERS));
+      final BufferPool stats = instance;
+      ProxyStats.register("buffers", new ProxyStats.StatsSource() {
+        @Override
+        public Map<String, Number> getStats() {
+          return stats.getStats();
+        }
+      });
+    }
+    return instance;
+  }
+
+  /**
+   * Take a buffer from the pool, allocating a new buffer if the pool is empty.
+   *
+   * @return a buffer, which should be returned with {@link #release(byte[])}.
+   */
+  public byte[] acquire() {
+    acquired.incrementAndGet();
+    byte[] buffer = free.poll();
+    if (buffer != null) {
+      freeCount.decrementAndGet();
+      return buffer;
+    }
+    allocated.incrementAndGet();
+    return new byte[bufferSize];
+  }
+
+  /**
+   * Return a buffer to the pool.
+   *
+   * @param buffer
+   *          a buffer previously obtained from {@link #acquire()}.
+   */
+  public void release(
+                      byte[] buffer) {
+    if (buffer == null || buffer.length != bufferSize) return;
+    if (freeCount.incrementAndGet() > maxBuffers) {
+      freeCount.decrementAndGet();
+      return;
+    }
+    free.offer(buffer);
+  }
+
+  /**
+   * Copy a stream using a pooled buffer. Neither stream is closed.
+   *
+   * @param src
+   *          stream to copy from.
+   * @param dest
+   *          stream to copy to.
+   * @return number of bytes copied.
+   * @throws IOException
+   *           if an error occurs reading or writing.
+   */
+  public long copy(
+                   InputStream src,
+                   OutputStream dest)
+    throws IOException {
+    byte[] buffer = acquire();
+    long total = 0;
+    try {
+      for (int count = src.read(buffer); count >= 0; count = src.read(buffer)) {
+        dest.write(buffer, 0, count);
+        total += count;
+      }
+    } finally {
+      release(buffer);
+      copied.addAndGet(total);
+    }
+    return total;
+  }
+
+  public Map<String, Number> getStats() {
+    Map<String, Number> result = new HashMap<String, Number>();
+    result.put("free", freeCount.get());
+    result.put("acquired", acquired.get());
+    result.put("allocated", allocated.get());
+    result.put("bytesCopied", copied.get());
+    return result;
+  }
+
+}
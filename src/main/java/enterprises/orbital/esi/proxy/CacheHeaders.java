@@ -0,0 +1,172 @@
+package enterprises.orbital.esi.proxy;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Date;
+import java.util.zip.GZIPInputStream;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.utils.DateUtils;
+
+import enterprises.orbital.base.OrbitalProperties;
+
+/**
+ * Helpers for working with HTTP caching and content encoding headers.
+ */
+public class CacheHeaders {
+
+  private CacheHeaders() {}
+
+  /**
+   * Determine whether an If-None-Match header value matches an entity tag. Weak comparison is used, as required for If-None-Match.
+   *
+   * @param ifNoneMatch
+   *          value of the If-None-Match header, may be null.
+   * @param etag
+   *          entity tag to compare against, may be null.
+   * @return true if the header matches the tag.
+   */
+  public static boolean etagMatches(
+                                    String ifNoneMatch,
+                                    String etag) {
+    if (ifNoneMatch == null || etag == null) return false;
+    String target = stripWeak(etag.trim());
+    for (String next : ifNoneMatch.split(",")) {
+      next = next.trim();
+      if (next.equals("*") || stripWeak(next).equals(target)) return true;
+    }
+    return false;
+  }
+
+  protected static String stripWeak(
+                                    String etag) {
+    return etag.startsWith("W/") ? etag.substring(2) : etag;
+  }
+
+  /**
+   * Determine whether a client accepts gzip encoded responses.
+   *
+   * @param request
+   *          the client request.
+   * @return true if the client accepts gzip.
+   */
+  public static boolean acceptsGzip(
+                                    HttpServletRequest request) {
+    String accept = request.getHeader("Accept-Encoding");
+    if (accept == null) return false;
+    for (String next : accept.split(",")) {
+      String[] parts = next.trim().split(";");
+      if (!parts[0].trim().equalsIgnoreCase("gzip")) continue;
+      // Honor an explicit "q=0" which means gzip is not acceptable
+      for (int i = 1; i < parts.length; i++) {
+        String param = parts[i].trim();
+        if (param.startsWith("q=")) {
+          try {
+            return Double.parseDouble(param.substring(2)) > 0;
+          } catch (NumberFormatException e) {
+            return false;
+          }
+        }
+      }
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Determine whether an upstream response body is gzip encoded.
+   *
+   * @param response
+   *          the upstream response.
+   * @return true if the body is gzip encoded.
+   */
+  public static boolean isGzip(
+                               HttpResponse response) {
+    Header encoding = response.getFirstHeader("Content-Encoding");
+    return encoding != null && encoding.getValue().trim().equalsIgnoreCase("gzip");
+  }
+
+  /**
+   * Open the decoded content of an upstream response.
+   *
+   * @param response
+   *          the upstream response.
+   * @return a stream over the decoded content of the response.
+   * @throws IOException
+   *           if an error occurs opening the content.
+   */
+  public static InputStream openContent(
+                                        HttpResponse response)
+    throws IOException {
+    HttpEntity entity = response.getEntity();
+    if (entity == null) return null;
+    return isGzip(response) ? new GZIPInputStream(entity.getContent()) : entity.getContent();
+  }
+
+  /**
+   * Determine when an upstream response expires. The Expires header is used if present and valid, otherwise the given default lifetime applies.
+   *
+   * @param response
+   *          the upstream response.
+   * @param defaultLifetime
+   *          lifetime (milliseconds) to use if the response does not carry a valid Expires header.
+   * @return expiry time (milliseconds UTC) of the response.
+   */
+  public static long getExpiry(
+                               HttpResponse response,
+                               long defaultLifetime) {
+    long now = OrbitalProperties.getCurrentTime();
+    Header expires = response.getFirstHeader("Expires");
+    if (expires != null) {
+      Date when = DateUtils.parseDate(expires.getValue());
+      if (when != null) return when.getTime();
+    }
+    return now + defaultLifetime;
+  }
+
+  /**
+   * Retrieve the value of a header from an upstream response.
+   *
+   * @param response
+   *          the upstream response.
+   * @param name
+   *          name of the header to retrieve.
+   * @return the value of the first header with the given name, or null if no such header exists.
+   */
+  public static String getHeader(
+                                 HttpResponse response,
+                                 String name) {
+    Header header = response.getFirstHeader(name);
+    return header == null ? null : header.getValue();
+  }
+
+  /**
+   * Compute a strong entity tag for the given content.
+   *
+   * @param content
+   *          content for which the tag should be computed.
+   * @return a quoted entity tag.
+   */
+  public static String computeETag(
+                                   byte[] content) {
+    try {
+      byte[] digest = MessageDigest.getInstance("MD5").digest(content);
+      StringBuilder tag = new StringBuilder(digest.length * 2 + 2);
+      tag.append('"');
+      for (byte next : digest) {
+        tag.append(Character.forDigit((next >> 4) & 0xF, 16)).append(Character.forDigit(next & 0xF, 16));
+      }
+      return tag.append('"').toString();
+    } catch (NoSuchAlgorithmException e) {
+      // MD5 is required to be present on every Java platform
+      throw new IllegalStateException(e);
+    }
+  }
+
+}
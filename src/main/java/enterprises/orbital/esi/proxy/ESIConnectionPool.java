@@ -0,0 +1,187 @@
+package enterprises.orbital.esi.proxy;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLContext;
+
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpResponse;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ConnectionRequest;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HttpContext;
+
+import enterprises.orbital.base.OrbitalProperties;
+
+/**
+ * Pooled connections to the ESI. All proxied requests share this pool, so the pool size bounds the number of concurrent ESI exchanges. Idle connections are
+ * kept alive (and TLS sessions cached) so that most requests avoid a new TCP and TLS handshake. Besides the usual pool gauges, we track how long requests
+ * wait to lease a connection, which distinguishes pool starvation from a slow ESI.
+ */
+public class ESIConnectionPool extends PoolingHttpClientConnectionManager {
+  public static final String                PROP_MAX_TOTAL           = "enterprises.orbital.esi.proxy.pool.maxTotal";
+  public static final long                  DEF_MAX_TOTAL            = 200;
+  public static final String                PROP_MAX_PER_ROUTE       = "enterprises.orbital.esi.proxy.pool.maxPerRoute";
+  public static final long                  DEF_MAX_PER_ROUTE        = 100;
+  public static final String                PROP_KEEP_ALIVE          = "enterprises.orbital.esi.proxy.pool.keepAlive";
+  public static final long                  DEF_KEEP_ALIVE           = TimeUnit.MILLISECONDS.convert(30, TimeUnit.SECONDS);
+  public static final String                PROP_IDLE_TIMEOUT        = "enterprises.orbital.esi.proxy.pool.idleTimeout";
+  public static final long                  DEF_IDLE_TIMEOUT         = TimeUnit.MILLISECONDS.convert(60, TimeUnit.SECONDS);
+  public static final String                PROP_VALIDATE_INACTIVE   = "enterprises.orbital.esi.proxy.pool.validateAfterInactivity";
+  public static final long                  DEF_VALIDATE_INACTIVE    = TimeUnit.MILLISECONDS.convert(2, TimeUnit.SECONDS);
+  public static final String                PROP_TLS_SESSION_CACHE   = "enterprises.orbital.esi.proxy.pool.tlsSessionCacheSize";
+  public static final long                  DEF_TLS_SESSION_CACHE    = 1000;
+  public static final String                PROP_TLS_SESSION_TIMEOUT = "enterprises.orbital.esi.proxy.pool.tlsSessionTimeout";
+  public static final long                  DEF_TLS_SESSION_TIMEOUT  = TimeUnit.MILLISECONDS.convert(1, TimeUnit.HOURS);
+
+  private final long                        keepAlive;
+  private final long                        idleTimeout;
+  private final ConnectionKeepAliveStrategy keepAliveStrategy;
+  private final AtomicLong                  waits                    = new AtomicLong(0);
+  private final AtomicLong                  waitNanos                = new AtomicLong(0);
+  private final AtomicLong                  maxWaitNanos             = new AtomicLong(0);
+  // Lease requests which gave up because no connection became available in time
+  private final AtomicLong                  waitTimeouts             = new AtomicLong(0);
+
+  /**
+   * Create a pool.
+   *
+   * @param sslContext
+   *          context used for TLS connections. Sessions are cached in this context and reused by later connections.
+   * @param maxTotal
+   *          maximum number of connections.
+   * @param maxPerRoute
+   *          maximum number of connections to a single host.
+   * @param keepAlive
+   *          time (milliseconds) an idle connection is kept if the ESI doesn't say otherwise.
+   * @param idleTimeout
+   *          time (milliseconds) after which idle connections are evicted regardless of keep alive.
+   * @param validateAfterInactivity
+   *          idle time (milliseconds) after which a connection is checked for staleness before it is leased.
+   */
+  public ESIConnectionPool(SSLContext sslContext, int maxTotal, int maxPerRoute, long keepAlive, long idleTimeout, int validateAfterInactivity) {
+    super(RegistryBuilder.<ConnectionSocketFactory> create().register("http", PlainConnectionSocketFactory.INSTANCE)
+        .register("https", new SSLConnectionSocketFactory(sslContext)).build());
+    setMaxTotal(maxTotal);
+    setDefaultMaxPerRoute(maxPerRoute);
+    setValidateAfterInactivity(validateAfterInactivity);
+    this.keepAlive = keepAlive;
+    this.idleTimeout = idleTimeout;
+    keepAliveStrategy = new ConnectionKeepAliveStrategy() {
+      @Override
+      public long getKeepAliveDuration(
+                                       HttpResponse response,
+                                       HttpContext context) {
+        // Honor an explicit Keep-Alive timeout from the ESI, otherwise use our default
+        long duration = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+        return duration > 0 ? duration : ESIConnectionPool.this.keepAlive;
+      }
+    };
+  }
+
+  /**
+   * Create a pool from configured properties and register its statistics.
+   *
+   * @param sslContext
+   *          context used for TLS connections.
+   * @return a new pool.
+   */
+  public static ESIConnectionPool create(
+                                         SSLContext sslContext) {
+    sslContext.getClientSessionContext().setSessionCacheSize((int) OrbitalProperties.getLongGlobalProperty(PROP_TLS_SESSION_CACHE, DEF_TLS_SESSION_CACHE));
+    sslContext.getClientSessionContext().setSessionTimeout(
+        (int) TimeUnit.SECONDS.convert(OrbitalProperties.getLongGlobalProperty(PROP_TLS_SESSION_TIMEOUT, DEF_TLS_SESSION_TIMEOUT), TimeUnit.MILLISECONDS));
+    final ESIConnectionPool pool = new ESIConnectionPool(
+        sslContext, (int) OrbitalProperties.getLongGlobalProperty(PROP_MAX_TOTAL, DEF_MAX_TOTAL),
+        (int) OrbitalProperties.getLongGlobalProperty(PROP_MAX_PER_ROUTE, DEF_MAX_PER_ROUTE),
+        OrbitalProperties.getLongGlobalProperty(PROP_KEEP_ALIVE, DEF_KEEP_ALIVE), OrbitalProperties.getLongGlobalProperty(PROP_IDLE_TIMEOUT, DEF_IDLE_TIMEOUT),
+        (int) OrbitalProperties.getLongGlobalProperty(PROP_VALIDATE_INACTIVE, DEF_VALIDATE_INACTIVE));
+    ProxyStats.register("esiConnectionPool", new ProxyStats.StatsSource() {
+      @Override
+      public Map<String, Number> getStats() {
+        return pool.getStats();
+      }
+    });
+    return pool;
+  }
+
+  public ConnectionKeepAliveStrategy getKeepAliveStrategy() {
+    return keepAliveStrategy;
+  }
+
+  public long getIdleTimeout() {
+    return idleTimeout;
+  }
+
+  /**
+   * Time each lease so we can report how long requests wait for a connection.
+   */
+  @Override
+  public ConnectionRequest requestConnection(
+                                             HttpRoute route,
+                                             Object state) {
+    final ConnectionRequest request = super.requestConnection(route, state);
+    return new ConnectionRequest() {
+      @Override
+      public HttpClientConnection get(
+                                      long timeout,
+                                      TimeUnit tunit)
+        throws InterruptedException, ExecutionException, ConnectionPoolTimeoutException {
+        long start = System.nanoTime();
+        try {
+          return request.get(timeout, tunit);
+        } catch (ConnectionPoolTimeoutException e) {
+          waitTimeouts.incrementAndGet();
+          throw e;
+        } finally {
+          recordWait(System.nanoTime() - start);
+        }
+      }
+
+      @Override
+      public boolean cancel() {
+        return request.cancel();
+      }
+    };
+  }
+
+  protected void recordWait(
+                            long elapsed) {
+    waits.incrementAndGet();
+    waitNanos.addAndGet(elapsed);
+    long max = maxWaitNanos.get();
+    while (elapsed > max && !maxWaitNanos.compareAndSet(max, elapsed))
+      max = maxWaitNanos.get();
+  }
+
+  public Map<String, Number> getStats() {
+    Map<String, Number> result = new HashMap<String, Number>();
+    PoolStats total = getTotalStats();
+    long count = waits.get();
+    result.put("leased", total.getLeased());
+    result.put("pending", total.getPending());
+    result.put("available", total.getAvailable());
+    result.put("max", total.getMax());
+    result.put("routes", getRoutes().size());
+    result.put("leases", count);
+    result.put("waitTimeouts", waitTimeouts.get());
+    // Wait times are reported in milliseconds
+    result.put("totalWaitTime", TimeUnit.MILLISECONDS.convert(waitNanos.get(), TimeUnit.NANOSECONDS));
+    result.put("averageWaitTime", count == 0 ? 0.0 : (double) waitNanos.get() / count / 1000000.0);
+    result.put("maxWaitTime", TimeUnit.MILLISECONDS.convert(maxWaitNanos.get(), TimeUnit.NANOSECONDS));
+    return result;
+  }
+
+}
@@ -1,21 +1,12 @@
 package enterprises.orbital.esi.proxy;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.net.URI;
-import java.net.URISyntaxException;
 import java.util.LinkedHashMap;
-import java.util.List;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
@@ -29,21 +20,14 @@ import org.apache.http.HttpEntity;
 import org.apache.http.HttpHost;
 import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
-import org.apache.http.NameValuePair;
-import org.apache.http.client.utils.URLEncodedUtils;
-import org.apache.http.config.RegistryBuilder;
-import org.apache.http.conn.socket.ConnectionSocketFactory;
-import org.apache.http.conn.socket.PlainConnectionSocketFactory;
-import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
-import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.impl.client.HttpClientBuilder;
 import org.apache.http.ssl.SSLContexts;
 import org.mitre.dsmiley.httpproxy.ProxyServlet;
 import org.mitre.dsmiley.httpproxy.URITemplateProxyServlet;
 
-import com.github.scribejava.core.model.OAuth2AccessToken;
-
 import enterprises.orbital.base.OrbitalProperties;
-import enterprises.orbital.oauth.EVEAuthHandler;
 
 /**
  * Proxy for requests to CCP ESI endpoints. The proxy handles three types of request:
@@ -62,38 +46,68 @@ import enterprises.orbital.oauth.EVEAuthHandler;
  * 
  */
 public class ESIProxyServlet extends ProxyServlet {
-  private static final long   serialVersionUID      = 8393680443086268080L;
-
-  private static final String PROP_PROXY_HOST       = "enterprises.orbital.proxyHost";
-  private static final String PROP_PROXY_PORT       = "enterprises.orbital.proxyPort";
-  private static final String PROP_PROXY_KEY_NAME   = "enterprises.orbital.esi.proxy.keyName";
-  private static final String PROP_PROXY_HASH_NAME  = "enterprises.orbital.esi.proxy.hashName";
-  private static final String PROP_TRUST_STORE      = "enterprises.orbital.esi.trustStore";
-  private static final String PROP_TRUST_STORE_PASS = "enterprises.orbital.esi.trustPass";
-  private static final String PROP_APP_NAME         = "enterprises.orbital.appname";
-  private static final String PROP_EXPIRY_WINDOW    = "enterprises.orbital.expiryWindow";
-  private static final String PROP_ESI_HOME         = "enterprises.orbital.esi.home";
+  private static final long       serialVersionUID       = 8393680443086268080L;
+
+  private static final String     PROP_PROXY_HOST        = "enterprises.orbital.proxyHost";
+  private static final String     PROP_PROXY_PORT        = "enterprises.orbital.proxyPort";
+  private static final String     PROP_PROXY_KEY_NAME    = "enterprises.orbital.esi.proxy.keyName";
+  private static final String     PROP_PROXY_HASH_NAME   = "enterprises.orbital.esi.proxy.hashName";
+  private static final String     PROP_ALL_PAGES_NAME    = "enterprises.orbital.esi.proxy.allPagesName";
+  private static final String     PROP_TRUST_STORE       = "enterprises.orbital.esi.trustStore";
+  private static final String     PROP_TRUST_STORE_PASS  = "enterprises.orbital.esi.trustPass";
+  private static final String     PROP_APP_NAME          = "enterprises.orbital.appname";
+  private static final String     PROP_EXPIRY_WINDOW     = "enterprises.orbital.expiryWindow";
+  private static final String     PROP_ESI_HOME          = "enterprises.orbital.esi.home";
+  private static final String     PROP_ESI_SCHEME        = "enterprises.orbital.esi.scheme";
+  private static final String     PROP_PROACTIVE_REFRESH = "enterprises.orbital.esi.proxy.refresh.enabled";
     
-  private static final String DEF_PROXY_HOST        = "localhost";
-  private static final int    DEF_PROXY_PORT        = 8080;
-  private static final String DEF_PROXY_KEY_NAME    = "esiProxyKey";
-  private static final String DEF_PROXY_HASH_NAME   = "esiProxyHash";
-  private static final String DEF_APP_NAME          = "";
-  private static final long   DEF_EXPIRY_WINDOW     = TimeUnit.MILLISECONDS.convert(3, TimeUnit.MINUTES);
-  private static final String DEF_ESI_HOME          = "esi.evetech.net";
-  private static final String ATTR_QUERY_STRING     = URITemplateProxyServlet.class.getSimpleName() + ".queryString";
-  private static final String ATTR_SWAGGER_CONFIG   = ESIProxyServlet.class.getSimpleName() + ".swaggerConfig";
-  private static final String ATTR_AUTH_HEADER      = ESIProxyServlet.class.getSimpleName() + ".authHeader";
-
-  protected String            proxyHost;
-  protected int               proxyPort;
-  protected String            proxyKeyName;
-  protected String            proxyHashName;
-  protected String            proxySecurityDefinition;
-  protected String            proxySecurity;
-  protected String            servletPath;
-  protected long              expiryWindow;
-  protected String            esiHome;
+  private static final String     DEF_PROXY_HOST         = "localhost";
+  private static final int        DEF_PROXY_PORT         = 8080;
+  private static final String     DEF_PROXY_KEY_NAME     = "esiProxyKey";
+  private static final String     DEF_PROXY_HASH_NAME    = "esiProxyHash";
+  private static final String     DEF_ALL_PAGES_NAME     = "esiProxyAllPages";
+  private static final String     DEF_APP_NAME           = "";
+  private static final long       DEF_EXPIRY_WINDOW      = TimeUnit.MILLISECONDS.convert(3, TimeUnit.MINUTES);
+  private static final String     DEF_ESI_HOME           = "esi.evetech.net";
+  private static final String     DEF_ESI_SCHEME         = "https";
+  private static final boolean    DEF_PROACTIVE_REFRESH  = true;
+  private static final String     ATTR_QUERY_STRING      = URITemplateProxyServlet.class.getSimpleName() + ".queryString";
+  private static final String     ATTR_SWAGGER_CONFIG    = ESIProxyServlet.class.getSimpleName() + ".swaggerConfig";
+  private static final String     ATTR_AUTH_HEADER       = ESIProxyServlet.class.getSimpleName() + ".authHeader";
+  private static final String     ATTR_CACHE_KEY         = ESIProxyServlet.class.getSimpleName() + ".cacheKey";
+  protected static final String   ATTR_CACHE             = ESIProxyServlet.class.getSimpleName() + ".cache";
+  // Servlet paths of batch and fan-out requests (see web.xml)
+  public static final String      BATCH_PATH             = "/batch";
+  public static final String      FAN_OUT_PATH           = "/fanout";
+  private static final String     ATTR_CACHE_PARTITION   = ESIProxyServlet.class.getSimpleName() + ".cachePartition";
+  private static final String     ATTR_STALE_ENTRY       = ESIProxyServlet.class.getSimpleName() + ".staleEntry";
+  private static final String     ATTR_FLIGHT            = ESIProxyServlet.class.getSimpleName() + ".flight";
+  private static final String     ATTR_ERROR_SOURCE      = ESIProxyServlet.class.getSimpleName() + ".errorSource";
+  protected static final String   ATTR_UPSTREAM_START    = ESIProxyServlet.class.getSimpleName() + ".upstreamStart";
+
+  protected String                proxyHost;
+  protected int                   proxyPort;
+  protected String                proxyKeyName;
+  protected String                proxyHashName;
+  protected String                allPagesName;
+  protected SwaggerRewriter       swaggerRewriter;
+  protected String                servletPath;
+  protected long                  expiryWindow;
+  protected String                esiHome;
+  protected HttpHost              esiTarget;
+  protected TokenRefreshScheduler refreshScheduler;
+  protected SwaggerCache          swaggerCache;
+  // Null if the corresponding cache is disabled
+  protected ResponseCache         responseCache;
+  protected ResponseCache         privateCache;
+  protected RequestCoalescer      coalescer;
+  protected ErrorLimitGovernor    errorGovernor;
+  protected RateLimiter           rateLimiter;
+  // Client, configuration and connections used for requests to the ESI
+  protected HttpClient            esiClient;
+  protected RequestConfig         esiRequestConfig;
+  protected SSLContext            esiSSLContext;
+  protected ESIConnectionPool     esiPool;
 
   /**
    * Setup.
@@ -102,16 +116,16 @@ public class ESIProxyServlet extends ProxyServlet {
   protected void initTarget() throws ServletException {
     // Configure location of ESI
     esiHome = OrbitalProperties.getGlobalProperty(PROP_ESI_HOME, DEF_ESI_HOME);
+    // The ESI is normally reached over https on the default port, a stub ESI may use a different scheme and port (e.g. localhost:8091)
+    esiTarget = HttpHost.create(OrbitalProperties.getGlobalProperty(PROP_ESI_SCHEME, DEF_ESI_SCHEME) + "://" + esiHome);
     // Host and port represent the local host and port for the proxy
     proxyHost = OrbitalProperties.getGlobalProperty(PROP_PROXY_HOST, DEF_PROXY_HOST);
     proxyPort = (int) OrbitalProperties.getLongGlobalProperty(PROP_PROXY_PORT, DEF_PROXY_PORT);
     // Names of key and hash query parameters we expect
     proxyKeyName = OrbitalProperties.getGlobalProperty(PROP_PROXY_KEY_NAME, DEF_PROXY_KEY_NAME);
     proxyHashName = OrbitalProperties.getGlobalProperty(PROP_PROXY_HASH_NAME, DEF_PROXY_HASH_NAME);
-    // Security definition used to replace OAuth security definition on ESI swagger.json
-    proxySecurityDefinition = "\"securityDefinitions\":{ \"" + proxyKeyName + "\" : { \"type\" : \"apiKey\", \"name\" : \"" + proxyKeyName
-        + "\", \"in\" : \"query\"}, \"" + proxyHashName + "\" : { \"type\" : \"apiKey\", \"name\" : \"" + proxyHashName + "\", \"in\" : \"query\"}}";
-    proxySecurity = "\"security\":[{\"" + proxyKeyName + "\":\\[\\], \"" + proxyHashName + "\":\\[\\]\\}\\]";
+    // Name of the query parameter which requests all pages of a paginated endpoint
+    allPagesName = OrbitalProperties.getGlobalProperty(PROP_ALL_PAGES_NAME, DEF_ALL_PAGES_NAME);
     // Local servlet path
     servletPath = OrbitalProperties.getGlobalProperty(PROP_APP_NAME, DEF_APP_NAME);
     // Maximum window (in milliseconds) between now and token expiry time. If we're within the window, then
@@ -122,10 +136,76 @@ public class ESIProxyServlet extends ProxyServlet {
       System.setProperty("javax.net.ssl.trustStore", OrbitalProperties.getGlobalProperty(PROP_TRUST_STORE));
       if (!OrbitalProperties.getGlobalProperty(PROP_TRUST_STORE_PASS, "").isEmpty())
         System.setProperty("javax.net.ssl.trustStorePassword", OrbitalProperties.getGlobalProperty(PROP_TRUST_STORE_PASS));
-      SSLContext sslcontext = SSLContexts.createSystemDefault();
-      RegistryBuilder.<ConnectionSocketFactory> create().register("http", PlainConnectionSocketFactory.INSTANCE)
-          .register("https", new SSLConnectionSocketFactory(sslcontext)).build();
     }
+    // All ESI connections share one context so TLS sessions can be resumed
+    esiSSLContext = SSLContexts.createSystemDefault();
+    // Rewriter used to translate ESI swagger.json into the proxy version
+    String swaggerHost = proxyHost;
+    if (proxyPort != 80 && proxyPort != 443) swaggerHost += ":" + proxyPort;
+    swaggerRewriter = new SwaggerRewriter(
+        swaggerHost, servletPath != null && servletPath.length() > 0 ? servletPath : null, proxyPort == 443 ? "https" : "http", proxyKeyName, proxyHashName);
+    // Translated swagger.json documents are cached per server type
+    swaggerCache = new SwaggerCache(new SwaggerCache.Transformer() {
+      @Override
+      public void transform(
+                            String serverType,
+                            InputStream src,
+                            OutputStream dest)
+        throws IOException {
+        transformSwagger(src, dest);
+      }
+    });
+    // Caches for public and authenticated ESI responses
+    responseCache = ResponseCache.getSharedCache();
+    privateCache = ResponseCache.getPrivateCache();
+    // Identical concurrent requests share a single exchange with the ESI
+    coalescer = RequestCoalescer.create();
+    // Keep all clients together within the ESI error limit
+    errorGovernor = ErrorLimitGovernor.create();
+    // Keep any one key or user from monopolizing the proxy
+    rateLimiter = RateLimiter.create();
+    // Build the filter of known keys now, rather than on the first keyed request
+    KeyFilter.getFilter();
+    // Refresh tokens for active keys in the background so requests rarely wait on the SSO
+    if (OrbitalProperties.getBooleanGlobalProperty(PROP_PROACTIVE_REFRESH, DEF_PROACTIVE_REFRESH)) {
+      refreshScheduler = new TokenRefreshScheduler(TokenRefresher.getRefresher(), expiryWindow);
+      refreshScheduler.start();
+    }
+  }
+
+  /**
+   * Create the client used for proxied requests, backed by a managed connection pool. We keep a reference so we can make our own requests to the ESI.
+   *
+   * @param requestConfig
+   *          default request configuration.
+   * @return client used for proxied requests.
+   */
+  @Override
+  protected HttpClient createHttpClient(
+                                        RequestConfig requestConfig) {
+    esiRequestConfig = requestConfig;
+    esiPool = ESIConnectionPool.create(esiSSLContext);
+    // Connection state is disabled so that pooled TLS connections are reused across requests. Content compression is disabled so that gzip bodies pass
+    // through to clients which accept them, rather than being decoded here (and re-encoded by the container). We only send Accept-Encoding when the client
+    // did, and our own requests decode bodies with CacheHeaders.openContent.
+    esiClient = HttpClientBuilder.create().setDefaultRequestConfig(requestConfig).setConnectionManager(esiPool)
+        .setKeepAliveStrategy(esiPool.getKeepAliveStrategy()).evictExpiredConnections().evictIdleConnections(esiPool.getIdleTimeout(), TimeUnit.MILLISECONDS)
+        .disableConnectionState().disableContentCompression().build();
+    return esiClient;
+  }
+
+  /**
+   * Cleanup.
+   */
+  @Override
+  public void destroy() {
+    if (refreshScheduler != null) refreshScheduler.stop();
+    if (rateLimiter != null) rateLimiter.shutdown();
+    PageAggregator.shutdown();
+    BatchHandler.shutdown();
+    KeyFilter.shutdown();
+    AccessLog.shutdown();
+    super.destroy();
   }
 
   /**
@@ -142,6 +222,37 @@ public class ESIProxyServlet extends ProxyServlet {
                          HttpServletResponse servletResponse)
     throws ServletException, IOException {
 
+    // A batch (or fan-out) is unpacked into individual requests, each of which comes back through here
+    if (BATCH_PATH.equals(servletRequest.getServletPath())) {
+      BatchHandler.getHandler().serve(this, servletRequest, servletResponse);
+      return;
+    }
+    if (FAN_OUT_PATH.equals(servletRequest.getServletPath())) {
+      FanOutHandler.serve(this, servletRequest, servletResponse);
+      return;
+    }
+
+    // Time the request until its response is complete. Asynchronous requests complete later (see AsyncESIProxyServlet).
+    ProxyMetrics.begin(servletRequest);
+    try {
+      proxy(servletRequest, servletResponse);
+    } finally {
+      if (!servletRequest.isAsyncStarted()) ProxyMetrics.complete(servletRequest, servletResponse.getStatus());
+    }
+  }
+
+  /**
+   * Handle a single proxy request.
+   * 
+   * @param servletRequest
+   *          request from client
+   * @param servletResponse
+   *          response we'll send back to the client
+   */
+  protected void proxy(
+                       HttpServletRequest servletRequest,
+                       HttpServletResponse servletResponse)
+    throws ServletException, IOException {
     // Extract the last part of the servlet path as this contains the target ESI server (e.g. latest, legacy, dev)
     // This isn't part of path info because of the way the mappings are configured in web.xml
     String contextPath = servletRequest.getServletPath();
@@ -153,51 +264,70 @@ public class ESIProxyServlet extends ProxyServlet {
     //
     String pathPart = servletRequest.getPathInfo();
     if (pathPart.endsWith("swagger.json")) {
+      // Serve from the cache when possible
+      SwaggerCache.Entry cached = null;
+      try {
+        cached = swaggerCache.get(esiClient, esiTarget.toURI(), contextPath.substring(1), servletRequest.getQueryString());
+      } catch (IOException e) {
+        log("Failed to retrieve swagger.json for cache, passing through", e);
+      }
+      if (cached != null) {
+        swaggerCache.serve(cached, servletRequest, servletResponse);
+        return;
+      }
       log("Intercepting swagger.json");
       // Forward then translate the result
-      servletRequest.setAttribute(ATTR_TARGET_HOST, new HttpHost(esiHome, 443, "https"));
+      servletRequest.setAttribute(ATTR_TARGET_HOST, esiTarget);
       servletRequest.setAttribute(ATTR_TARGET_URI, contextPath);
       servletRequest.setAttribute(ATTR_SWAGGER_CONFIG, true);
-      super.service(servletRequest, servletResponse);
+      forward(servletRequest, servletResponse);
       return;
     }
 
     // Else, check whether there are key/hash params. See
     // https://github.com/mitre/HTTP-Proxy-Servlet/blob/master/src/main/java/org/mitre/dsmiley/httpproxy/URITemplateProxyServlet.java
-    // for an explanation of why we don't just use servletRequest.getParameter here.
-    String rawQueryString = servletRequest.getQueryString();
-    String queryString = "?" + (rawQueryString == null ? "" : rawQueryString);// no "?" but might have "#"
-    int hash = queryString.indexOf('#');
-    if (hash >= 0) queryString = queryString.substring(0, hash);
-    List<NameValuePair> pairs;
-    try {
-      pairs = URLEncodedUtils.parse(new URI(queryString), "UTF-8");
-    } catch (URISyntaxException e) {
-      servletResponse.sendError(HttpServletResponse.SC_BAD_REQUEST, "Unexpected URI parsing error on " + queryString);
-      return;
-    }
-    LinkedHashMap<String, String> params = new LinkedHashMap<String, String>();
-    for (NameValuePair pair : pairs) {
-      params.put(pair.getName(), pair.getValue());
-    }
+    // for an explanation of why we don't just use servletRequest.getParameter here. The scan removes our own parameters and leaves the rest of the query
+    // as the client encoded it.
+    ProxyQuery query = ProxyQuery.scan(servletRequest.getQueryString(), proxyKeyName, proxyHashName, allPagesName);
+    String queryString = query.getRemaining();
+
+    // Requests for all pages are answered with a merged array rather than the page requested
+    boolean allPages = query.isAllPages() && "GET".equals(servletRequest.getMethod());
+    if (allPages) queryString = ProxyQuery.remove(queryString, "page");
+
+    // Authenticated requests are cached and coalesced separately for each key
+    long partition = ResponseCache.SHARED_PARTITION;
+    ResponseCache cache = responseCache;
 
     // Look for the ESI proxy key/hash pair and process
-    if (params.containsKey(proxyKeyName) && params.containsKey(proxyHashName)) {
-      // Extract and remove params
+    if (query.getKey() != null && query.getHash() != null) {
       long pKey = -1;
       try {
-        pKey = Long.valueOf(params.get(proxyKeyName));
+        pKey = Long.valueOf(query.getKey());
       } catch (NumberFormatException e) {
-        servletResponse.sendError(HttpServletResponse.SC_BAD_REQUEST, "Bad proxy key: " + params.get(proxyKeyName));
+        servletResponse.sendError(HttpServletResponse.SC_BAD_REQUEST, "Bad proxy key: " + query.getKey());
         return;
       }
-      String pHash = params.get(proxyHashName);
-      params.remove(proxyKeyName);
-      params.remove(proxyHashName);
-      // Attempt to map to a ProxyAccessKey
-      ProxyAccessKey connKey = null;
+      String pHash = query.getHash();
+      // Signed credentials can be refused before we look for the key
+      boolean signed = SignedCredential.isSigned(pHash);
+      if (signed) {
+        int status = SignedCredential.check(pKey, pHash);
+        if (status == SignedCredential.EXPIRED) {
+          servletResponse.sendError(HttpServletResponse.SC_BAD_REQUEST, "Proxy key expired");
+          return;
+        }
+        if (status != SignedCredential.VALID) {
+          servletResponse.sendError(HttpServletResponse.SC_BAD_REQUEST, "Incorrect hash for key pair (" + pKey + ", " + pHash + ")");
+          return;
+        }
+      }
+      // Attempt to map to a ProxyAccessKey. The key cache usually satisfies this without a database round trip.
+      AccessKeyCache.CachedKey connKey = null;
+      long lookupStart = System.nanoTime();
       try {
-        connKey = ProxyAccessKey.checkHash(pKey, pHash);
+        // A signed credential which gets this far has been verified
+        connKey = ProxyAccessKey.checkCachedHash(pKey, pHash, signed);
         if (connKey == null) {
           servletResponse.sendError(HttpServletResponse.SC_BAD_REQUEST, "Incorrect hash for key pair (" + pKey + ", " + pHash + ")");
           return;
@@ -205,55 +335,301 @@ public class ESIProxyServlet extends ProxyServlet {
       } catch (NoSuchKeyException e) {
         servletResponse.sendError(HttpServletResponse.SC_BAD_REQUEST, "No connection found with proxy key: " + pKey);
         return;
+      } finally {
+        ProxyMetrics.time(servletRequest, ProxyMetrics.STAGE_KEY_LOOKUP, lookupStart);
       }
       // Verify this access key has not expired
       if (connKey.getExpiry() > 0 && connKey.getExpiry() < OrbitalProperties.getCurrentTime()) {
         servletResponse.sendError(HttpServletResponse.SC_BAD_REQUEST, "Proxy key expired");
         return;
       }
-      // Ensure the access token is valid, if not attempt to renew it
-      if (connKey.getAccessTokenExpiry() - OrbitalProperties.getCurrentTime() < expiryWindow) {
-        // TODO: we'll need to be more careful here if we deploy this to a cluster behind a load balancer
-        String refreshToken = connKey.getRefreshToken();
-        if (refreshToken == null) {
-          servletResponse.sendError(HttpServletResponse.SC_FORBIDDEN, "Connection does not have a valid refresh token.  Please delete and re-create.");
+      ProxyMetrics.identify(servletRequest, connKey.getKid());
+      // Enforce per-key and per-user rate limits
+      if (rateLimiter != null) {
+        long retryAfter = rateLimiter.acquire(pKey, connKey.getUid());
+        if (retryAfter > 0) {
+          servletResponse.setHeader("Retry-After", String.valueOf((retryAfter + 999) / 1000));
+          servletResponse.sendError(RateLimiter.SC_TOO_MANY_REQUESTS, "Rate limit exceeded for proxy key: " + pKey);
           return;
         }
-        String eveClientID = OrbitalProperties.getGlobalProperty("enterprises.orbital.auth.eve_client_id");
-        String eveSecretKey = OrbitalProperties.getGlobalProperty("enterprises.orbital.auth.eve_secret_key");
-        OAuth2AccessToken newToken = EVEAuthHandler.doRefresh(eveClientID, eveSecretKey, refreshToken);
-        if (newToken == null) {
-          servletResponse.sendError(HttpServletResponse.SC_FORBIDDEN, "Failed to refresh token.  You'll need to delete connection and re-create.");
+      }
+      // Ensure the access token is valid, if not attempt to renew it
+      if (connKey.getAccessTokenExpiry() - OrbitalProperties.getCurrentTime() < expiryWindow) {
+        // Concurrent requests for the same key share a single refresh. Refresh leases in the database ensure only one proxy instance refreshes a
+        // given key when several instances share a database.
+        long refreshStart = System.nanoTime();
+        try {
+          connKey = TokenRefresher.getRefresher().refresh(pKey, expiryWindow);
+        } catch (NoSuchKeyException e) {
+          servletResponse.sendError(HttpServletResponse.SC_BAD_REQUEST, "No connection found with proxy key: " + pKey);
           return;
-        }
-        connKey.setAccessToken(newToken.getAccessToken());
-        connKey.setAccessTokenExpiry(OrbitalProperties.getCurrentTime() + TimeUnit.MILLISECONDS.convert(newToken.getExpiresIn(), TimeUnit.SECONDS));
-        connKey.setRefreshToken(newToken.getRefreshToken());
-        connKey = ProxyAccessKey.update(connKey);
-        if (connKey == null) {
-          servletResponse.sendError(HttpServletResponse.SC_FORBIDDEN, "Failed to refresh token.  You'll need to delete connection and re-create.");
+        } catch (TokenRefreshException e) {
+          servletResponse.sendError(HttpServletResponse.SC_FORBIDDEN, e.getMessage());
           return;
+        } finally {
+          ProxyMetrics.time(servletRequest, ProxyMetrics.STAGE_TOKEN_REFRESH, refreshStart);
         }
       }
+      if (refreshScheduler != null) refreshScheduler.recordActivity(connKey);
       // Attach the access token to the authorization header
       String header = "Bearer " + connKey.getAccessToken();
       servletRequest.setAttribute(ATTR_AUTH_HEADER, header);
+      partition = pKey;
+      cache = privateCache;
     }
 
+    // GET requests may be answered from a cache, or share an exchange with identical concurrent requests. We can't tell who is making requests which carry
+    // their own credentials, so those are always sent to the ESI.
+    String requestKey = null;
+    if ("GET".equals(servletRequest.getMethod()) && !allPages && !query.hasToken()
+        && (partition != ResponseCache.SHARED_PARTITION || servletRequest.getHeader("Authorization") == null)) {
+      requestKey = ResponseCache.buildKey(
+          contextPath.substring(1), pathPart, queryString, servletRequest.getHeader("Accept-Encoding"), servletRequest.getHeader("Accept-Language"));
+      if (cache != null && checkResponseCache(cache, partition, requestKey, servletRequest, servletResponse)) return;
+    }
+
+    // Requests which will reach the ESI count against the error limit shared by all clients. Errors are attributed to the key (or client address) and
+    // endpoint which caused them.
+    String errorSource = (partition != ResponseCache.SHARED_PARTITION ? "key:" + partition : servletRequest.getRemoteAddr()) + " "
+        + servletRequest.getMethod() + " " + contextPath + pathPart;
+    servletRequest.setAttribute(ATTR_ERROR_SOURCE, errorSource);
+    if (errorGovernor != null && !errorGovernor.admit(errorSource, servletResponse)) return;
+
+    // Conditional requests may receive a different response, so only unconditional requests are coalesced
+    RequestCoalescer.Flight flight = null;
+    if (requestKey != null && coalescer != null && servletRequest.getHeader("If-None-Match") == null && servletRequest.getHeader("If-Modified-Since") == null)
+      flight = coalescer.join(esiHome + "\n" + partition + "\n" + requestKey);
+
     // Re-attach query string and forward request
-    servletRequest.setAttribute(ATTR_TARGET_HOST, new HttpHost(esiHome, 443, "https"));
+    servletRequest.setAttribute(ATTR_TARGET_HOST, esiTarget);
     servletRequest.setAttribute(ATTR_TARGET_URI, contextPath);
 
-    // Determine the new query string based on removing the used names
-    StringBuilder newQueryBuf = new StringBuilder(queryString.length());
-    for (Map.Entry<String, String> nameVal : params.entrySet()) {
-      if (newQueryBuf.length() > 0) newQueryBuf.append('&');
-      newQueryBuf.append(nameVal.getKey()).append('=');
-      if (nameVal.getValue() != null) newQueryBuf.append(nameVal.getValue());
+    servletRequest.setAttribute(ATTR_QUERY_STRING, queryString);
+
+    if (allPages) {
+      aggregatePages(contextPath + pathPart, queryString, servletRequest, servletResponse);
+      return;
+    }
+
+    // Wait for an identical request in progress, or make our own exchange with the ESI
+    if (flight != null && !flight.isLeader()) {
+      follow(flight, servletRequest, servletResponse);
+      return;
+    }
+    if (flight != null) servletRequest.setAttribute(ATTR_FLIGHT, flight);
+    forward(servletRequest, servletResponse);
+  }
+
+  /**
+   * Retrieve all pages of a paginated endpoint and send them to the client as a single array (see {@link PageAggregator}).
+   * 
+   * @param path
+   *          path of the request at the ESI
+   * @param queryString
+   *          rewritten query string, without any page parameter
+   * @param servletRequest
+   *          request from client
+   * @param servletResponse
+   *          response we'll send back to the client
+   */
+  protected void aggregatePages(
+                                String path,
+                                String queryString,
+                                HttpServletRequest servletRequest,
+                                HttpServletResponse servletResponse)
+    throws IOException {
+    Map<String, String> headers = new LinkedHashMap<String, String>();
+    if (servletRequest.getAttribute(ATTR_AUTH_HEADER) != null) headers.put("Authorization", String.valueOf(servletRequest.getAttribute(ATTR_AUTH_HEADER)));
+    for (String name : new String[] {
+        "Accept-Language", "User-Agent", "X-User-Agent"
+    }) {
+      if (servletRequest.getHeader(name) != null) headers.put(name, servletRequest.getHeader(name));
+    }
+    String url = esiTarget.toURI() + path + (queryString.isEmpty() ? "" : "?" + queryString);
+    try {
+      PageAggregator.getAggregator().serve(
+          esiClient, url, headers, errorGovernor, (String) servletRequest.getAttribute(ATTR_ERROR_SOURCE), servletRequest, servletResponse);
+    } catch (IOException e) {
+      log("Failed to retrieve all pages of " + path, e);
+      if (!servletResponse.isCommitted()) {
+        // Drop any status and headers already set for the merged response, sendError only clears the body
+        servletResponse.reset();
+        servletResponse.sendError(HttpServletResponse.SC_BAD_GATEWAY, "Failed to retrieve pages from the ESI");
+      }
     }
-    servletRequest.setAttribute(ATTR_QUERY_STRING, newQueryBuf.toString());
+  }
 
-    super.service(servletRequest, servletResponse);
+  /**
+   * Send a prepared request to the ESI and relay the response to the client.
+   * 
+   * @param servletRequest
+   *          request from client
+   * @param servletResponse
+   *          response we'll send back to the client
+   */
+  protected void forward(
+                         HttpServletRequest servletRequest,
+                         HttpServletResponse servletResponse)
+    throws ServletException, IOException {
+    servletRequest.setAttribute(ATTR_UPSTREAM_START, System.nanoTime());
+    try {
+      super.service(servletRequest, servletResponse);
+    } finally {
+      releaseFlight(servletRequest);
+    }
+  }
+
+  /**
+   * Wait for the leader of an identical request to share its response. If the leader can't share its response, the request is forwarded instead.
+   * 
+   * @param flight
+   *          this request's view of the identical request in progress
+   * @param servletRequest
+   *          request from client
+   * @param servletResponse
+   *          response we'll send back to the client
+   */
+  protected void follow(
+                        RequestCoalescer.Flight flight,
+                        HttpServletRequest servletRequest,
+                        HttpServletResponse servletResponse)
+    throws ServletException, IOException {
+    ResponseCache.Entry shared = coalescer.await(flight);
+    if (shared != null) {
+      ResponseCache.write(shared, servletRequest, servletResponse);
+      return;
+    }
+    // A follower interrupted while waiting (e.g. an abandoned batch item) gives up rather than starting its own exchange
+    if (Thread.currentThread().isInterrupted()) throw new InterruptedIOException("Interrupted while waiting for an identical request");
+    // Leader couldn't share its response, perform our own exchange
+    forward(servletRequest, servletResponse);
+  }
+
+  /**
+   * Release any requests waiting on this request if we weren't able to share our response. Has no effect if the response was already shared.
+   * 
+   * @param servletRequest
+   *          request from client
+   */
+  protected void releaseFlight(
+                               HttpServletRequest servletRequest) {
+    RequestCoalescer.Flight flight = (RequestCoalescer.Flight) servletRequest.getAttribute(ATTR_FLIGHT);
+    if (flight != null) coalescer.finish(flight, null);
+  }
+
+  /**
+   * Determine whether the body of an ESI response should be kept for caching or sharing with identical requests.
+   * 
+   * @param servletRequest
+   *          request from client
+   * @param proxyResponse
+   *          response returned from the ESI
+   * @return the largest body (in bytes) we would keep, or 0 if the body should not be kept
+   */
+  protected long keepLimit(
+                           HttpServletRequest servletRequest,
+                           HttpResponse proxyResponse) {
+    ResponseCache cache = (ResponseCache) servletRequest.getAttribute(ATTR_CACHE);
+    boolean cacheable = cache != null && cache.cacheableUntil(proxyResponse) > 0;
+    boolean shared = servletRequest.getAttribute(ATTR_FLIGHT) != null;
+    return Math.max(cacheable ? cache.getMaxEntryBytes() : 0, shared ? coalescer.getMaxBytes() : 0);
+  }
+
+  /**
+   * Store an ESI response in the appropriate cache, and share it with any identical requests waiting on this one.
+   * 
+   * @param servletRequest
+   *          request from client
+   * @param proxyResponse
+   *          response returned from the ESI
+   * @param body
+   *          body of the response as received from the ESI, or null if the body was too large to keep
+   */
+  protected void keepResponse(
+                              HttpServletRequest servletRequest,
+                              HttpResponse proxyResponse,
+                              byte[] body) {
+    if (body == null) return;
+    ResponseCache cache = (ResponseCache) servletRequest.getAttribute(ATTR_CACHE);
+    if (cache != null)
+      cache.put((Long) servletRequest.getAttribute(ATTR_CACHE_PARTITION), (String) servletRequest.getAttribute(ATTR_CACHE_KEY), proxyResponse, body);
+    RequestCoalescer.Flight flight = (RequestCoalescer.Flight) servletRequest.getAttribute(ATTR_FLIGHT);
+    if (flight != null && body.length <= coalescer.getMaxBytes())
+      coalescer.finish(flight, ResponseCache.createEntry(ResponseCache.SHARED_PARTITION, "", proxyResponse, body, 0));
+  }
+
+  /**
+   * Examine a response from the ESI before it is relayed to the client. The error budget reported by the ESI is recorded. If the ESI confirmed that an
+   * expired cache entry is still current, the entry is renewed and shared with any identical requests waiting on this one.
+   * 
+   * @param servletRequest
+   *          request from client
+   * @param proxyResponse
+   *          response returned from the ESI
+   * @return the renewed entry, or null if this response is not a revalidation of a cache entry
+   */
+  protected ResponseCache.Entry inspectResponse(
+                                                HttpServletRequest servletRequest,
+                                                HttpResponse proxyResponse) {
+    if (errorGovernor != null) errorGovernor.observe((String) servletRequest.getAttribute(ATTR_ERROR_SOURCE), proxyResponse);
+    ResponseCache.Entry stale = (ResponseCache.Entry) servletRequest.getAttribute(ATTR_STALE_ENTRY);
+    if (stale == null || proxyResponse.getStatusLine().getStatusCode() != HttpServletResponse.SC_NOT_MODIFIED) return null;
+    ResponseCache cache = (ResponseCache) servletRequest.getAttribute(ATTR_CACHE);
+    ResponseCache.Entry renewed = cache.renew(stale, proxyResponse);
+    RequestCoalescer.Flight flight = (RequestCoalescer.Flight) servletRequest.getAttribute(ATTR_FLIGHT);
+    if (flight != null) coalescer.finish(flight, renewed);
+    return renewed;
+  }
+
+  /**
+   * Determine whether a request is for swagger.json, in which case the response must be translated.
+   * 
+   * @param servletRequest
+   *          request from client
+   * @return true if the response to this request must be translated
+   */
+  protected boolean isSwaggerRequest(
+                                     HttpServletRequest servletRequest) {
+    return servletRequest.getAttribute(ATTR_SWAGGER_CONFIG) != null;
+  }
+
+  /**
+   * Answer a request from a response cache if possible. If the request can't be answered from the cache, the request is marked so that the ESI response
+   * will be captured and stored. If the cache holds an expired copy of the response, the request is also marked so that the copy will be revalidated
+   * instead of transferring the response again.
+   * 
+   * @param cache
+   *          the cache to check
+   * @param partition
+   *          cache partition for the request
+   * @param cacheKey
+   *          cache key for the request
+   * @param servletRequest
+   *          request from client
+   * @param servletResponse
+   *          response we'll send back to the client
+   * @return true if the request was answered from the cache
+   * @throws IOException
+   *           if an error occurs writing the response
+   */
+  protected boolean checkResponseCache(
+                                       ResponseCache cache,
+                                       long partition,
+                                       String cacheKey,
+                                       HttpServletRequest servletRequest,
+                                       HttpServletResponse servletResponse)
+    throws IOException {
+    ResponseCache.Entry cached = cache.get(partition, cacheKey);
+    if (cached != null) {
+      cache.serve(cached, servletRequest, servletResponse);
+      return true;
+    }
+    ResponseCache.Entry stale = cache.getStale(partition, cacheKey);
+    if (stale != null) servletRequest.setAttribute(ATTR_STALE_ENTRY, stale);
+    servletRequest.setAttribute(ATTR_CACHE, cache);
+    servletRequest.setAttribute(ATTR_CACHE_PARTITION, partition);
+    servletRequest.setAttribute(ATTR_CACHE_KEY, cacheKey);
+    return false;
   }
 
   /**
@@ -272,18 +648,59 @@ public class ESIProxyServlet extends ProxyServlet {
     return (String) servletRequest.getAttribute(ATTR_QUERY_STRING);
   }
 
-  // Pattern matchers for elements of swagger.json we need to replace
-  //
-  // "basePath":"/latest"
-  protected static final Pattern BASEPATH_PATTERN = Pattern.compile("\"basePath\"[ ]*:[ ]*\"([a-zA-Z/]+)\"");
-  // "host":"esi.tech.ccp.is"
-  protected static final Pattern HOSTNAME_PATTERN = Pattern.compile("\"host\"[ ]*:[ ]*\"([a-zA-Z0-9.]+)\"");
-  // "schemes":["https"]
-  protected static final Pattern SCHEMES_PATTERN  = Pattern.compile("\"schemes\"[ ]*:[ ]*\\[\"https\"\\]");
-  // "securityDefinitions":{ "evesso":{ ... "type":"oauth2" }}
-  protected static final Pattern SECDEF_PATTERN   = Pattern.compile("\"securityDefinitions\"[ ]*:.*\"type\"[ ]*:[ ]*\"oauth2\"[ ]*\\}\\}");
-  // "security":[{"evesso":["esi-assets.read_assets.v1"]}]
-  protected static final Pattern SECURITY_PATTERN = Pattern.compile("\"security\"[ ]*:[ ]*\\[\\{\"evesso\".*?\\]\\}\\]");
+  /**
+   * Override response headers to intercept ESI confirmation that an expired cache entry is still current. In that case, we send the cached response (or a
+   * 304 if the client already holds it) and commit the response so that no further headers or content are sent. The ESI's Content-Length is dropped from
+   * swagger.json responses, since the translated document has a different length.
+   * 
+   * @param proxyResponse
+   *          response returned from proxied service
+   * @param servletRequest
+   *          request sent from client
+   * @param servletResponse
+   *          response to be sent to client
+   */
+  @Override
+  protected void copyResponseHeaders(
+                                     HttpResponse proxyResponse,
+                                     HttpServletRequest servletRequest,
+                                     HttpServletResponse servletResponse) {
+    upstreamResponded(servletRequest, proxyResponse);
+    ResponseCache.Entry renewed = inspectResponse(servletRequest, proxyResponse);
+    if (renewed != null) {
+      ResponseCache cache = (ResponseCache) servletRequest.getAttribute(ATTR_CACHE);
+      try {
+        cache.serve(renewed, servletRequest, servletResponse);
+        servletResponse.flushBuffer();
+      } catch (IOException e) {
+        // Client went away, nothing more we can do
+        log("Failed to send revalidated response to client", e);
+      }
+      return;
+    }
+    // The translation keeps the ESI's encoding (which copyRequestHeaders limits to gzip or none), so Content-Encoding still holds
+    if (isSwaggerRequest(servletRequest)) proxyResponse.removeHeaders("Content-Length");
+    super.copyResponseHeaders(proxyResponse, servletRequest, servletResponse);
+  }
+
+  /**
+   * Record the time spent waiting for the ESI to respond to a forwarded request, and the status it returned. Only the first call after the request is sent
+   * has any effect.
+   * 
+   * @param servletRequest
+   *          request sent from client
+   * @param proxyResponse
+   *          response returned from proxied service
+   */
+  protected void upstreamResponded(
+                                   HttpServletRequest servletRequest,
+                                   HttpResponse proxyResponse) {
+    ProxyMetrics.upstream(servletRequest, proxyResponse.getStatusLine().getStatusCode());
+    Long upstreamStart = (Long) servletRequest.getAttribute(ATTR_UPSTREAM_START);
+    if (upstreamStart == null) return;
+    servletRequest.removeAttribute(ATTR_UPSTREAM_START);
+    ProxyMetrics.time(servletRequest, ProxyMetrics.STAGE_UPSTREAM_WAIT, upstreamStart);
+  }
 
   /**
    * Override response entity to give us a chance to replace content.
@@ -304,94 +721,90 @@ public class ESIProxyServlet extends ProxyServlet {
                                     HttpRequest proxyRequest,
                                     HttpServletRequest servletRequest)
     throws IOException {
-    // Pass through if this isn't a swagger.json request
-    if (servletRequest.getAttribute(ATTR_SWAGGER_CONFIG) == null) {
-      super.copyResponseEntity(proxyResponse, servletResponse, proxyRequest, servletRequest);
+    HttpEntity entity = proxyResponse.getEntity();
+    if (entity == null) return;
+
+    long start = System.nanoTime();
+
+    // Keep a copy of cacheable or shared responses while sending them to the client
+    long limit = keepLimit(servletRequest, proxyResponse);
+    if (limit > 0) {
+      ResponseCache.Capture capture = new ResponseCache.Capture(servletResponse.getOutputStream(), limit);
+      ProxyMetrics.bytes(servletRequest, copyEntity(entity, capture));
+      ProxyMetrics.time(servletRequest, ProxyMetrics.STAGE_BODY_COPY, start);
+      keepResponse(servletRequest, proxyResponse, capture.getBody());
       return;
     }
 
-    // Extract config and make the following changes:
-    // - Change host to the proxy host
-    // - Change schemes to those supported by the proxy
-    // - Replace securityDefinitions with esiProxyKey and esiProxyHash schemes
-    HttpEntity entity = proxyResponse.getEntity();
-    if (entity != null) {
-      Header checkGzip = proxyResponse.getFirstHeader("Content-Encoding");
-      boolean useGzip = checkGzip != null && checkGzip.getValue().equals("gzip");
-      StringBuilder assembly = new StringBuilder();
-      BufferedReader extractor = new BufferedReader(new InputStreamReader(useGzip ? new GZIPInputStream(entity.getContent()) : entity.getContent()));
-      for (String next = extractor.readLine(); next != null; next = extractor.readLine())
-        assembly.append(next);
-      // Fix hostname
-      StringBuffer transformed = new StringBuffer();
-      String src = assembly.toString();
-      Matcher matcher = HOSTNAME_PATTERN.matcher(src);
-      if (matcher.find()) {
-        String replacement = "\"host\": \"" + proxyHost;
-        if (proxyPort != 80 && proxyPort != 443) {
-          replacement += ":" + proxyPort;
-        }
-        replacement += "\"";
-        matcher.appendReplacement(transformed, replacement);
-      }
-      matcher.appendTail(transformed);
-      // Fix basepath
-      if (servletPath != null && servletPath.length() > 0) {
-        src = transformed.toString();
-        transformed = new StringBuffer();
-        matcher = BASEPATH_PATTERN.matcher(src);
-        if (matcher.find()) {
-          String replacement = "\"basePath\":\"/" + servletPath + matcher.group(1) + "\"";
-          matcher.appendReplacement(transformed, replacement);
-        }
-        matcher.appendTail(transformed);
-      }
-      // Fix scheme
-      src = transformed.toString();
-      transformed = new StringBuffer();
-      matcher = SCHEMES_PATTERN.matcher(src);
-      if (matcher.find()) {
-        String replacement = "\"schemes\": [";
-        switch (proxyPort) {
-        case 443:
-          replacement += "\"https\"";
-          break;
-        case 80:
-        default:
-          replacement += "\"http\"";
-          break;
-        }
-        replacement += "]";
-        matcher.appendReplacement(transformed, replacement);
-      }
-      matcher.appendTail(transformed);
-      // Fix securityDefinitions
-      src = transformed.toString();
-      transformed = new StringBuffer();
-      matcher = SECDEF_PATTERN.matcher(src);
-      if (matcher.find()) matcher.appendReplacement(transformed, proxySecurityDefinition);
-      matcher.appendTail(transformed);
-      // Fix security instances
-      src = transformed.toString();
-      transformed = new StringBuffer();
-      matcher = SECURITY_PATTERN.matcher(src);
-      while (matcher.find()) {
-        matcher.appendReplacement(transformed, proxySecurity);
+    // Pass through (in whatever encoding the ESI used) if this isn't a swagger.json request
+    if (!isSwaggerRequest(servletRequest)) {
+      ProxyMetrics.bytes(servletRequest, copyEntity(entity, servletResponse.getOutputStream()));
+      ProxyMetrics.time(servletRequest, ProxyMetrics.STAGE_BODY_COPY, start);
+      return;
+    }
+
+    // Translate the document directly to the client, preserving the upstream encoding
+    Header checkGzip = proxyResponse.getFirstHeader("Content-Encoding");
+    boolean useGzip = checkGzip != null && checkGzip.getValue().equals("gzip");
+    OutputStream servletOutputStream = servletResponse.getOutputStream();
+    InputStream src = useGzip ? new GZIPInputStream(entity.getContent()) : entity.getContent();
+    try {
+      if (useGzip) {
+        GZIPOutputStream generator = new GZIPOutputStream(servletOutputStream);
+        transformSwagger(src, generator);
+        generator.finish();
+      } else {
+        transformSwagger(src, servletOutputStream);
       }
-      matcher.appendTail(transformed);
-      // Write new output
-      ByteArrayOutputStream bytesOut = new ByteArrayOutputStream();
-      BufferedWriter generator = new BufferedWriter(new OutputStreamWriter(useGzip ? new GZIPOutputStream(bytesOut) : bytesOut));
-      generator.write(transformed.toString());
-      generator.close();
-      HttpEntity transformedEntity = new InputStreamEntity(new ByteArrayInputStream(bytesOut.toByteArray()));
-      OutputStream servletOutputStream = servletResponse.getOutputStream();
-      transformedEntity.writeTo(servletOutputStream);
+    } finally {
+      src.close();
+      ProxyMetrics.time(servletRequest, ProxyMetrics.STAGE_SWAGGER, start);
+    }
+  }
+
+  /**
+   * Copy an upstream response body using a pooled buffer, rather than the fresh buffer allocated by {@link HttpEntity#writeTo(OutputStream)}.
+   * 
+   * @param entity
+   *          upstream response body
+   * @param dest
+   *          destination for the body
+   * @return number of bytes copied
+   * @throws IOException
+   *           if an error occurs reading or writing the body
+   */
+  protected long copyEntity(
+                            HttpEntity entity,
+                            OutputStream dest)
+    throws IOException {
+    InputStream src = entity.getContent();
+    try {
+      return BufferPool.getPool().copy(src, dest);
+    } finally {
+      src.close();
     }
   }
 
   /**
-   * Override to place authorization header when needed.
+   * Translate an ESI swagger.json document into the proxy version (see {@link SwaggerRewriter}).
+   * 
+   * @param src
+   *          decoded ESI document
+   * @param dest
+   *          destination for translated document
+   * @throws IOException
+   *           if an error occurs reading or writing the document
+   */
+  protected void transformSwagger(
+                                  InputStream src,
+                                  OutputStream dest)
+    throws IOException {
+    swaggerRewriter.rewrite(src, dest);
+  }
+
+  /**
+   * Override to place authorization header when needed. If we hold an expired copy of the response, we also replace any conditional headers from the client
+   * with our own so the ESI can tell us whether our copy is still current. For swagger.json, we only accept an encoding the translation can decode.
    * 
    * @param servletRequest
    *          client request
@@ -406,6 +819,17 @@ public class ESIProxyServlet extends ProxyServlet {
     super.copyRequestHeaders(servletRequest, proxyRequest);
     if (servletRequest.getAttribute(ATTR_AUTH_HEADER) != null)
       proxyRequest.addHeader("Authorization", String.valueOf(servletRequest.getAttribute(ATTR_AUTH_HEADER)));
+    ResponseCache.Entry stale = (ResponseCache.Entry) servletRequest.getAttribute(ATTR_STALE_ENTRY);
+    if (stale != null) {
+      // Client conditionals are answered from the cache once we know the current version
+      proxyRequest.removeHeaders("If-None-Match");
+      proxyRequest.removeHeaders("If-Modified-Since");
+      proxyRequest.setHeader("If-None-Match", stale.getETag());
+    }
+    if (isSwaggerRequest(servletRequest)) {
+      proxyRequest.removeHeaders("Accept-Encoding");
+      if (CacheHeaders.acceptsGzip(servletRequest)) proxyRequest.setHeader("Accept-Encoding", "gzip");
+    }
   }
 
 }
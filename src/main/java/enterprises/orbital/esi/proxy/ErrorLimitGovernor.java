@@ -0,0 +1,285 @@
+package enterprises.orbital.esi.proxy;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+
+import enterprises.orbital.base.OrbitalProperties;
+
+/**
+ * Keeps the proxy within the ESI error limit. The ESI allows a fixed number of error responses per window for each source IP, reported in the
+ * X-ESI-Error-Limit-Remain and X-ESI-Error-Limit-Reset headers, and bans the source IP if the budget reaches zero. Every client of the proxy shares the
+ * proxy's IP, so one misbehaving client could get every client banned. We track the budget from every ESI response, along with the sources (client and
+ * endpoint) which produced errors in the current window. As the budget drains:
+ *
+ * <ul>
+ * <li>Below the slow threshold, error-prone sources are slowed down. Each may send one request per interval, with the interval growing as the budget
+ * approaches the fail threshold. Requests which arrive sooner are refused with a 503 and a Retry-After header giving the time until the next request is
+ * allowed. Request threads are never held up.
+ * <li>Below the fail threshold, requests from error-prone sources are refused with a 420 until the window resets.
+ * <li>Below the reserve, all requests are refused until the window resets.
+ * </ul>
+ */
+public class ErrorLimitGovernor {
+  public static final String                 PROP_ENABLED        = "enterprises.orbital.esi.proxy.errorLimit.enabled";
+  public static final boolean                DEF_ENABLED         = true;
+  public static final String                 PROP_SLOW_THRESHOLD = "enterprises.orbital.esi.proxy.errorLimit.slowThreshold";
+  public static final long                   DEF_SLOW_THRESHOLD  = 50;
+  public static final String                 PROP_FAIL_THRESHOLD = "enterprises.orbital.esi.proxy.errorLimit.failThreshold";
+  public static final long                   DEF_FAIL_THRESHOLD  = 10;
+  public static final String                 PROP_RESERVE        = "enterprises.orbital.esi.proxy.errorLimit.reserve";
+  public static final long                   DEF_RESERVE         = 2;
+  public static final String                 PROP_MAX_DELAY      = "enterprises.orbital.esi.proxy.errorLimit.maxDelay";
+  public static final long                   DEF_MAX_DELAY       = TimeUnit.MILLISECONDS.convert(2, TimeUnit.SECONDS);
+  public static final String                 PROP_ERROR_PRONE    = "enterprises.orbital.esi.proxy.errorLimit.errorProneCount";
+  public static final long                   DEF_ERROR_PRONE     = 1;
+
+  // Status the ESI uses when a source is error limited, which we reuse when refusing requests
+  public static final int                    SC_ERROR_LIMITED    = 420;
+  // Length of an ESI error window, used when a response doesn't report the reset time
+  private static final long                  DEFAULT_WINDOW      = TimeUnit.MILLISECONDS.convert(60, TimeUnit.SECONDS);
+  // Reset times within this many milliseconds of each other are considered the same window
+  private static final long                  WINDOW_TOLERANCE    = 1000;
+
+  private final int                          slowThreshold;
+  private final int                          failThreshold;
+  private final int                          reserve;
+  private final long                         maxDelay;
+  private final int                          errorProneCount;
+  // Most recently reported budget, or -1 if we haven't seen one, and the time (milliseconds UTC) the budget resets
+  private int                                remain              = -1;
+  private long                               resetAt             = 0;
+  // Errors per source in the current window. A new window replaces the old one as a whole, so errors are never lost to a concurrent reset.
+  private final AtomicReference<ErrorWindow> window              = new AtomicReference<ErrorWindow>(new ErrorWindow(0));
+  private final AtomicLong                   observedErrors      = new AtomicLong(0);
+  private final AtomicLong                   delayed             = new AtomicLong(0);
+  private final AtomicLong                   rejected            = new AtomicLong(0);
+
+  /**
+   * Error counts for a single window.
+   */
+  protected static class ErrorWindow {
+    final long                                    end;
+    final ConcurrentHashMap<String, SourceErrors> sources = new ConcurrentHashMap<String, SourceErrors>();
+
+    ErrorWindow(long end) {
+      this.end = end;
+    }
+  }
+
+  /**
+   * Errors produced by a source in the current window.
+   */
+  protected static class SourceErrors {
+    final AtomicInteger errors    = new AtomicInteger(0);
+    // Earliest time (milliseconds UTC) the next request from this source will be admitted while it is being slowed down
+    final AtomicLong    nextAdmit = new AtomicLong(0);
+  }
+
+  /**
+   * Create a governor.
+   *
+   * @param slowThreshold
+   *          budget at or below which error-prone sources are slowed down.
+   * @param failThreshold
+   *          budget at or below which requests from error-prone sources are refused.
+   * @param reserve
+   *          budget at or below which all requests are refused.
+   * @param maxDelay
+   *          longest interval (milliseconds) between requests from an error-prone source which is being slowed down.
+   * @param errorProneCount
+   *          number of errors in the current window which make a source error-prone.
+   */
+  public ErrorLimitGovernor(int slowThreshold, int failThreshold, int reserve, long maxDelay, int errorProneCount) {
+    this.slowThreshold = slowThreshold;
+    this.failThreshold = failThreshold;
+    this.reserve = reserve;
+    this.maxDelay = maxDelay;
+    this.errorProneCount = errorProneCount;
+  }
+
+  /**
+   * Create a governor from configured properties, or return null if error limiting is disabled.
+   *
+   * @return a new governor, or null if error limiting is disabled.
+   */
+  public static ErrorLimitGovernor create() {
+    if (!OrbitalProperties.getBooleanGlobalProperty(PROP_ENABLED, DEF_ENABLED)) return null;
+    final ErrorLimitGovernor governor = new ErrorLimitGovernor(
+        (int) OrbitalProperties.getLongGlobalProperty(PROP_SLOW_THRESHOLD, DEF_SLOW_THRESHOLD),
+        (int) OrbitalProperties.getLongGlobalProperty(PROP_FAIL_THRESHOLD, DEF_FAIL_THRESHOLD),
+        (int) OrbitalProperties.getLongGlobalProperty(PROP_RESERVE, DEF_RESERVE), OrbitalProperties.getLongGlobalProperty(PROP_MAX_DELAY, DEF_MAX_DELAY),
+        (int) OrbitalProperties.getLongGlobalProperty(PROP_ERROR_PRONE, DEF_ERROR_PRONE));
+    ProxyStats.register("errorLimit", new ProxyStats.StatsSource() {
+      @Override
+      public Map<String, Number> getStats() {
+        return governor.getStats();
+      }
+    });
+    return governor;
+  }
+
+  /**
+   * Record the error budget reported by an ESI response, and whether the response was an error.
+   *
+   * @param source
+   *          the client and endpoint which made the request, or null if unknown.
+   * @param response
+   *          response from the ESI.
+   */
+  public void observe(
+                      String source,
+                      HttpResponse response) {
+    long now = OrbitalProperties.getCurrentTime();
+    Header remainHeader = response.getFirstHeader("X-ESI-Error-Limit-Remain");
+    Header resetHeader = response.getFirstHeader("X-ESI-Error-Limit-Reset");
+    if (remainHeader != null) {
+      try {
+        int reportedRemain = Integer.parseInt(remainHeader.getValue().trim());
+        long reportedReset = now + (resetHeader != null ? TimeUnit.MILLISECONDS.convert(Long.parseLong(resetHeader.getValue().trim()), TimeUnit.SECONDS)
+            : DEFAULT_WINDOW);
+        update(reportedRemain, reportedReset);
+      } catch (NumberFormatException e) {
+        // Ignore malformed headers, the next response will likely have valid values
+      }
+    }
+    int status = response.getStatusLine().getStatusCode();
+    if (status >= 400) {
+      observedErrors.incrementAndGet();
+      if (source != null) {
+        ErrorWindow current = window.get();
+        if (now >= current.end) {
+          // New window, errors from the previous window no longer count against their source. If another thread started the window first, use theirs.
+          ErrorWindow started = new ErrorWindow(Math.max(getResetAt(), now + WINDOW_TOLERANCE));
+          current = window.compareAndSet(current, started) ? started : window.get();
+        }
+        SourceErrors count = current.sources.get(source);
+        if (count == null) {
+          SourceErrors created = new SourceErrors();
+          count = current.sources.putIfAbsent(source, created);
+          if (count == null) count = created;
+        }
+        count.errors.incrementAndGet();
+      }
+    }
+  }
+
+  /**
+   * Responses arrive out of order, so within a window we keep the lowest budget reported. A reset time later than the current window starts a new window.
+   */
+  protected synchronized void update(
+                                     int reportedRemain,
+                                     long reportedReset) {
+    if (remain < 0 || reportedReset > resetAt + WINDOW_TOLERANCE || OrbitalProperties.getCurrentTime() >= resetAt) {
+      remain = reportedRemain;
+      resetAt = reportedReset;
+    } else {
+      remain = Math.min(remain, reportedRemain);
+    }
+  }
+
+  protected synchronized long getResetAt() {
+    return resetAt;
+  }
+
+  /**
+   * Current error budget.
+   *
+   * @return the remaining budget, or -1 if the budget is unknown or the last reported window has ended.
+   */
+  public synchronized int getRemain() {
+    return remain < 0 || OrbitalProperties.getCurrentTime() >= resetAt ? -1 : remain;
+  }
+
+  /**
+   * Determine whether a source has produced enough errors in the current window to be considered error-prone.
+   *
+   * @param source
+   *          the client and endpoint making a request.
+   * @return true if the source is error-prone.
+   */
+  public boolean isErrorProne(
+                              String source) {
+    return getErrorProne(source) != null;
+  }
+
+  /**
+   * Retrieve the errors for a source if the source is error-prone.
+   *
+   * @param source
+   *          the client and endpoint making a request.
+   * @return errors for the source in the current window, or null if the source is not error-prone.
+   */
+  protected SourceErrors getErrorProne(
+                                       String source) {
+    ErrorWindow current = window.get();
+    if (OrbitalProperties.getCurrentTime() >= current.end) return null;
+    SourceErrors count = current.sources.get(source);
+    return count != null && count.errors.get() >= errorProneCount ? count : null;
+  }
+
+  /**
+   * Admit or refuse a request according to the current error budget. Requests refused until the budget resets are answered with a 420, requests from a source
+   * which is being slowed down are answered with a 503. Both carry a Retry-After header. This never blocks.
+   *
+   * @param source
+   *          the client and endpoint making the request.
+   * @param servletResponse
+   *          response to the client, used when the request is refused.
+   * @return true if the request may be sent to the ESI, false if it was refused.
+   * @throws IOException
+   *           if an error occurs sending the refusal.
+   */
+  public boolean admit(
+                       String source,
+                       HttpServletResponse servletResponse)
+    throws IOException {
+    int budget = getRemain();
+    if (budget < 0 || budget > slowThreshold) return true;
+    SourceErrors errorProne = getErrorProne(source);
+    long now = OrbitalProperties.getCurrentTime();
+    if (budget <= reserve || (errorProne != null && budget <= failThreshold)) {
+      rejected.incrementAndGet();
+      long wait = Math.max(getResetAt() - now, 0);
+      servletResponse.setHeader("Retry-After", String.valueOf((wait + 999) / 1000));
+      servletResponse.sendError(SC_ERROR_LIMITED, "ESI error limit nearly exhausted, retry after the error window resets");
+      return false;
+    }
+    if (errorProne != null) {
+      // Interval grows linearly from zero at the slow threshold to the maximum at the fail threshold
+      long interval = Math.min(maxDelay * (slowThreshold - budget) / Math.max(slowThreshold - failThreshold, 1), maxDelay);
+      long next = errorProne.nextAdmit.get();
+      if (now < next || !errorProne.nextAdmit.compareAndSet(next, now + interval)) {
+        // Too soon after the last request from this source (or another request just took the slot)
+        delayed.incrementAndGet();
+        long wait = Math.max(errorProne.nextAdmit.get() - now, 1);
+        servletResponse.setHeader("Retry-After", String.valueOf((wait + 999) / 1000));
+        servletResponse.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Too many errors from this client and endpoint, slow down");
+        return false;
+      }
+    }
+    return true;
+  }
+
+  public Map<String, Number> getStats() {
+    Map<String, Number> result = new HashMap<String, Number>();
+    result.put("remain", getRemain());
+    result.put("reset", Math.max(getResetAt() - OrbitalProperties.getCurrentTime(), 0) / 1000);
+    result.put("errors", observedErrors.get());
+    result.put("errorSources", window.get().sources.size());
+    result.put("delayed", delayed.get());
+    result.put("rejected", rejected.get());
+    return result;
+  }
+
+}
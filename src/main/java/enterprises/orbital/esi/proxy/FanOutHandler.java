@@ -0,0 +1,166 @@
+package enterprises.orbital.esi.proxy;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import enterprises.orbital.base.OrbitalProperties;
+import enterprises.orbital.oauth.AuthUtil;
+
+/**
+ * Issues the same request for several of a user's characters. The request names a path template and (optionally) the keys to use:
+ *
+ * <pre>
+ * /fanout?path=%2Flatest%2Fcharacters%2F%7Bcharacter_id%7D%2Fwallet%2F%3Fdatasource%3Dtranquility&amp;kids=100010,100020
+ * </pre>
+ *
+ * For each key, "{character_id}" in the template is replaced with the key's character ID and the request is made with the key's credentials. Without
+ * "kids", every key owned by the user is used. The user is either the user logged in to the proxy, or the owner of the key given by the usual proxy key
+ * and hash parameters. All keys are loaded with a single query. Requests are executed concurrently by the {@link BatchHandler}, and the result is a
+ * batch response with the key ID as the item ID, annotated with the character ID and name.
+ */
+public class FanOutHandler {
+  // Placeholder for the character ID in a path template
+  public static final String CHARACTER_ID      = "{character_id}";
+  // Query parameters
+  public static final String PARAM_PATH        = "path";
+  public static final String PARAM_KIDS        = "kids";
+
+  private FanOutHandler() {}
+
+  /**
+   * Resolve the keys for a fan-out request and execute the resulting requests.
+   *
+   * @param servlet
+   *          the proxy servlet which handles each request.
+   * @param servletRequest
+   *          the fan-out request.
+   * @param servletResponse
+   *          response to the client.
+   * @throws IOException
+   *           if an error occurs writing the response.
+   */
+  public static void serve(
+                           ESIProxyServlet servlet,
+                           HttpServletRequest servletRequest,
+                           HttpServletResponse servletResponse)
+    throws IOException {
+    String rawQuery = servletRequest.getQueryString();
+    ProxyQuery query = ProxyQuery.scan(rawQuery, servlet.proxyKeyName, servlet.proxyHashName, servlet.allPagesName);
+
+    String template = ProxyQuery.get(rawQuery, PARAM_PATH);
+    if (template == null || !template.contains(CHARACTER_ID)) {
+      servletResponse.sendError(HttpServletResponse.SC_BAD_REQUEST, "Path template containing " + CHARACTER_ID + " required");
+      return;
+    }
+
+    // Resolve the user
+    ProxyUserAccount user;
+    if (query.getKey() != null && query.getHash() != null) {
+      AccessKeyCache.CachedKey connKey;
+      try {
+        connKey = ProxyAccessKey.checkCachedHash(Long.valueOf(query.getKey()), query.getHash());
+      } catch (NumberFormatException e) {
+        servletResponse.sendError(HttpServletResponse.SC_BAD_REQUEST, "Bad proxy key: " + query.getKey());
+        return;
+      } catch (NoSuchKeyException e) {
+        servletResponse.sendError(HttpServletResponse.SC_BAD_REQUEST, "No connection found with proxy key: " + query.getKey());
+        return;
+      }
+      if (connKey == null) {
+        servletResponse.sendError(HttpServletResponse.SC_BAD_REQUEST, "Incorrect hash for proxy key: " + query.getKey());
+        return;
+      }
+      if (connKey.getExpiry() > 0 && connKey.getExpiry() < OrbitalProperties.getCurrentTime()) {
+        servletResponse.sendError(HttpServletResponse.SC_BAD_REQUEST, "Proxy key expired");
+        return;
+      }
+      user = ProxyUserAccount.getAccount(connKey.getUid());
+    } else {
+      user = (ProxyUserAccount) AuthUtil.getCurrentUser(servletRequest);
+    }
+    if (user == null) {
+      servletResponse.sendError(HttpServletResponse.SC_UNAUTHORIZED, "Log in, or provide a proxy key and hash, to use fan-out requests");
+      return;
+    }
+
+    // Load the requested keys (or all keys) with a single query
+    Set<Long> kids = null;
+    String kidList = ProxyQuery.get(rawQuery, PARAM_KIDS);
+    if (kidList != null) {
+      kids = new LinkedHashSet<Long>();
+      try {
+        for (String next : kidList.split(",")) {
+          if (!next.trim().isEmpty()) kids.add(Long.valueOf(next.trim()));
+        }
+      } catch (NumberFormatException e) {
+        servletResponse.sendError(HttpServletResponse.SC_BAD_REQUEST, "Bad key list: " + kidList);
+        return;
+      }
+    }
+    AccessKeyCache cache = AccessKeyCache.getCache();
+    long generation = cache.getGeneration();
+    List<ProxyAccessKey> keys = kids == null ? ProxyAccessKey.getAllKeys(user) : ProxyAccessKey.getKeysByID(user, kids);
+    if (keys == null) {
+      servletResponse.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Unable to retrieve keys");
+      return;
+    }
+    if (kids != null) {
+      // Every requested key must exist, belong to the user and know its character
+      for (ProxyAccessKey next : keys) {
+        if (next.getCharacterID() != 0) kids.remove(next.getKid());
+      }
+      if (!kids.isEmpty()) {
+        servletResponse.sendError(HttpServletResponse.SC_NOT_FOUND, "Keys not found, or with unknown character: " + kids);
+        return;
+      }
+    }
+
+    BatchHandler handler = BatchHandler.getHandler();
+    List<BatchHandler.Item> batch = new ArrayList<BatchHandler.Item>();
+    for (ProxyAccessKey next : keys) {
+      // Keys created before character IDs were recorded can't be used with a template
+      if (next.getCharacterID() == 0) continue;
+      String path = template.replace(CHARACTER_ID, String.valueOf(next.getCharacterID()));
+      String itemQuery = null;
+      int question = path.indexOf('?');
+      if (question >= 0) {
+        itemQuery = path.substring(question + 1);
+        path = path.substring(0, question);
+      }
+      String invalid = BatchHandler.checkPath(path);
+      if (invalid != null) {
+        servletResponse.sendError(HttpServletResponse.SC_BAD_REQUEST, "Path template " + invalid);
+        return;
+      }
+      // Each request checks its key against the key cache, so seed the cache with the key we already have rather than have every request load its own
+      AccessKeyCache.CachedKey cached = cache.put(next, generation);
+      itemQuery = BatchHandler.withCredentials(itemQuery, servlet.proxyKeyName, String.valueOf(next.getKid()), servlet.proxyHashName, cached.getCredential());
+      Map<String, List<String>> headers = new TreeMap<String, List<String>>(String.CASE_INSENSITIVE_ORDER);
+      for (String name : new String[] {
+          "User-Agent", "Accept-Language"
+      }) {
+        if (servletRequest.getHeader(name) != null) headers.put(name, Collections.singletonList(servletRequest.getHeader(name)));
+      }
+      Map<String, Object> annotations = new LinkedHashMap<String, Object>();
+      annotations.put("characterID", next.getCharacterID());
+      annotations.put("characterName", next.getCharacterName());
+      batch.add(new BatchHandler.Item(String.valueOf(next.getKid()), "GET", path, itemQuery, headers, null, annotations));
+    }
+    if (batch.size() > handler.getMaxItems()) {
+      servletResponse.sendError(HttpServletResponse.SC_BAD_REQUEST, "Fan-out to " + batch.size() + " keys, maximum is " + handler.getMaxItems());
+      return;
+    }
+    handler.run(servlet, servletRequest, servletResponse, batch);
+  }
+
+}
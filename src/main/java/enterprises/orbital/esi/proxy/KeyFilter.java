@@ -0,0 +1,316 @@
+package enterprises.orbital.esi.proxy;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import enterprises.orbital.base.OrbitalProperties;
+
+/**
+ * Bloom filter of the IDs of all proxy access keys. The proxy consults this filter when resolving a key which is not in the {@link AccessKeyCache}. A
+ * Bloom filter never reports a false negative for the keys it holds, and reports a false positive for roughly 1% of unknown keys when sized for the number
+ * of keys stored.
+ *
+ * <p>
+ * The filter is built from the database at startup, and keys created by this instance are added as they are created. Keys can't be removed from a Bloom
+ * filter, so deleting a key schedules a rebuild. Keys created by other instances sharing the database are only picked up by rebuilding the filter in the
+ * background once per refresh interval, so a key the filter reports absent may still exist. The filter is therefore a hint, not an authority: callers
+ * still confirm an absent key against the database (see {@link ProxyAccessKey#checkCachedHash(long, String)}) and report keys found that way with
+ * {@link #found(long)}. Rebuilds never run on a request thread. Until the first successful build, every key is reported as possibly present.
+ *
+ * <p>
+ * Bits are stored in an atomic array, so lookups never block and keys can be added concurrently with lookups. Keys added while a rebuild is in progress are
+ * recorded and added to the rebuilt filter before it replaces the current one.
+ */
+public class KeyFilter {
+  protected static final Logger log                   = Logger.getLogger(KeyFilter.class.getName());
+
+  public static final String    PROP_ENABLED          = "enterprises.orbital.esi.proxy.keyFilter.enabled";
+  public static final boolean   DEF_ENABLED           = true;
+  public static final String    PROP_EXPECTED_KEYS    = "enterprises.orbital.esi.proxy.keyFilter.expectedKeys";
+  public static final long      DEF_EXPECTED_KEYS     = 100000;
+  public static final String    PROP_REFRESH_INTERVAL = "enterprises.orbital.esi.proxy.keyFilter.refreshInterval";
+  public static final long      DEF_REFRESH_INTERVAL  = TimeUnit.MILLISECONDS.convert(30, TimeUnit.SECONDS);
+
+  // Bits per key and number of hash functions for a 1% false positive rate
+  private static final int      BITS_PER_KEY          = 10;
+  private static final int      HASHES                = 7;
+
+  // Singleton instance, created on first use
+  private static KeyFilter      instance;
+
+  /**
+   * A fixed size set of bits.
+   */
+  protected static class Bits {
+    final AtomicLongArray words;
+    final long            size;
+
+    Bits(long expected) {
+      int count = (int) Math.min((Math.max(expected, 1000) * BITS_PER_KEY + 63) / 64, Integer.MAX_VALUE);
+      words = new AtomicLongArray(count);
+      size = count * 64L;
+    }
+
+    void add(
+             long kid) {
+      long hash = mix(kid);
+      long h1 = hash >>> 32;
+      long h2 = hash & 0xFFFFFFFFL;
+      for (int i = 0; i < HASHES; i++) {
+        long bit = (h1 + i * h2) % size;
+        int word = (int) (bit >>> 6);
+        long mask = 1L << bit;
+        while (true) {
+          long current = words.get(word);
+          if ((current & mask) != 0 || words.compareAndSet(word, current, current | mask)) break;
+        }
+      }
+    }
+
+    boolean mightContain(
+                         long kid) {
+      long hash = mix(kid);
+      long h1 = hash >>> 32;
+      long h2 = hash & 0xFFFFFFFFL;
+      for (int i = 0; i < HASHES; i++) {
+        long bit = (h1 + i * h2) % size;
+        if ((words.get((int) (bit >>> 6)) & (1L << bit)) == 0) return false;
+      }
+      return true;
+    }
+
+    /**
+     * Spread the bits of a key ID. Key IDs come from a sequence, so they are far from random (MurmurHash3 finalizer).
+     */
+    static long mix(
+                    long kid) {
+      long hash = kid;
+      hash ^= hash >>> 33;
+      hash *= 0xff51afd7ed558ccdL;
+      hash ^= hash >>> 33;
+      hash *= 0xc4ceb9fe1a85ec53L;
+      hash ^= hash >>> 33;
+      return hash;
+    }
+  }
+
+  private final boolean            enabled;
+  private final long               expectedKeys;
+  private final long               refreshInterval;
+  // Null until the first successful build
+  private volatile Bits            bits;
+  // Keys added while a rebuild is in progress, guarded by this
+  private List<Long>               pending;
+  private final AtomicBoolean      rebuilding    = new AtomicBoolean(false);
+  // Runs all rebuilds after the first, null until started
+  private ScheduledExecutorService rebuilder;
+  private volatile int             keyCount;
+  private final AtomicLong         present       = new AtomicLong(0);
+  private final AtomicLong         absent        = new AtomicLong(0);
+  // Keys reported absent which turned out to exist
+  private final AtomicLong         stale         = new AtomicLong(0);
+  private final AtomicLong         rebuilds      = new AtomicLong(0);
+  private final AtomicLong         rebuildErrors = new AtomicLong(0);
+
+  public KeyFilter(boolean enabled, long expectedKeys, long refreshInterval) {
+    this.enabled = enabled;
+    this.expectedKeys = expectedKeys;
+    this.refreshInterval = refreshInterval;
+  }
+
+  /**
+   * Retrieve the global key filter, creating and building it if necessary. A new filter starts rebuilding itself in the background.
+   *
+   * @return the global key filter.
+   */
+  public static synchronized KeyFilter getFilter() {
+    if (instance == null) {
+      instance = new KeyFilter(OrbitalProperties.getBooleanGlobalProperty(PROP_ENABLED, DEF_ENABLED),
+                               OrbitalProperties.getLongGlobalProperty(PROP_EXPECTED_KEYS, DEF_EXPECTED_KEYS),
+                               OrbitalProperties.getLongGlobalProperty(PROP_REFRESH_INTERVAL, DEF_REFRESH_INTERVAL));
+      instance.rebuild();
+      instance.start();
+      final KeyFilter stats = instance;
+      ProxyStats.register("keyFilter", new ProxyStats.StatsSource() {
+        @Override
+        public Map<String, Number> getStats() {
+          return stats.getStats();
+        }
+      });
+    }
+    return instance;
+  }
+
+  /**
+   * Stop background rebuilds of the global key filter. The next call to {@link #getFilter()} creates a new filter.
+   */
+  public static synchronized void shutdown() {
+    if (instance != null) {
+      instance.stop();
+      ProxyStats.unregister("keyFilter");
+      instance = null;
+    }
+  }
+
+  /**
+   * Start rebuilding the filter once per refresh interval.
+   */
+  public synchronized void start() {
+    if (!enabled || rebuilder != null) return;
+    rebuilder = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("key-filter"));
+    if (refreshInterval > 0) rebuilder.scheduleWithFixedDelay(backgroundRebuild(), refreshInterval, refreshInterval, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Stop background rebuilds. A rebuild in progress is abandoned.
+   */
+  public synchronized void stop() {
+    if (rebuilder == null) return;
+    rebuilder.shutdownNow();
+    rebuilder = null;
+  }
+
+  /**
+   * Rebuild the filter in the background as soon as possible, e.g. because a key was deleted. Does nothing if the filter isn't started.
+   */
+  public synchronized void requestRebuild() {
+    if (rebuilder == null) return;
+    try {
+      rebuilder.execute(backgroundRebuild());
+    } catch (RejectedExecutionException e) {
+      // Shutting down, nothing left to rebuild for
+    }
+  }
+
+  /**
+   * A rebuild suitable for the background rebuilder, which logs rather than propagates failures.
+   *
+   * @return rebuild task.
+   */
+  private Runnable backgroundRebuild() {
+    return new Runnable() {
+      @Override
+      public void run() {
+        try {
+          rebuild();
+        } catch (Throwable e) {
+          // Catch everything but log it
+          log.log(Level.WARNING, "caught error rebuilding key filter (ignoring)", e);
+        }
+      }
+    };
+  }
+
+  /**
+   * Check whether a key may exist. This only reads the current filter, keys created by other instances are found once the next background rebuild
+   * completes.
+   *
+   * @param kid
+   *          the ID of the key to check.
+   * @return false if the key was not in the database at the last rebuild and hasn't been added since, true otherwise.
+   */
+  public boolean mightContain(
+                              long kid) {
+    if (!enabled) return true;
+    Bits current = bits;
+    if (current != null && !current.mightContain(kid)) {
+      absent.incrementAndGet();
+      return false;
+    }
+    present.incrementAndGet();
+    return true;
+  }
+
+  /**
+   * Add a key which was reported absent but exists, e.g. because another instance created it since the last rebuild.
+   *
+   * @param kid
+   *          the ID of the key which was found.
+   */
+  public void found(
+                    long kid) {
+    if (!enabled) return;
+    stale.incrementAndGet();
+    add(kid);
+  }
+
+  /**
+   * Add a newly created key to the filter.
+   *
+   * @param kid
+   *          the ID of the key to add.
+   */
+  public void add(
+                  long kid) {
+    if (!enabled) return;
+    synchronized (this) {
+      Bits current = bits;
+      if (current != null) current.add(kid);
+      if (pending != null) pending.add(kid);
+    }
+  }
+
+  /**
+   * Rebuild the filter from the database. Only one thread rebuilds at a time, other threads return immediately. Called at startup and by the background
+   * rebuilder, never while serving a request.
+   *
+   * @return true if this call rebuilt the filter, false otherwise.
+   */
+  public boolean rebuild() {
+    if (!enabled || !rebuilding.compareAndSet(false, true)) return false;
+    try {
+      synchronized (this) {
+        pending = new ArrayList<Long>();
+      }
+      List<Long> kids = ProxyAccessKey.getAllKeyIDs();
+      if (kids == null) {
+        // Leave the current filter in place. If we've never built one, all keys pass until the next attempt.
+        rebuildErrors.incrementAndGet();
+        log.warning("Unable to load key IDs, key filter not rebuilt");
+        return false;
+      }
+      // Leave room to grow so we don't need to rebuild just because keys were added
+      Bits next = new Bits(Math.max(expectedKeys, kids.size() * 2L));
+      for (Long kid : kids)
+        next.add(kid);
+      synchronized (this) {
+        for (Long kid : pending)
+          next.add(kid);
+        bits = next;
+      }
+      keyCount = kids.size();
+      rebuilds.incrementAndGet();
+      return true;
+    } finally {
+      synchronized (this) {
+        pending = null;
+      }
+      rebuilding.set(false);
+    }
+  }
+
+  public Map<String, Number> getStats() {
+    Bits current = bits;
+    Map<String, Number> result = new HashMap<String, Number>();
+    result.put("keys", keyCount);
+    result.put("bits", current == null ? 0 : current.size);
+    result.put("present", present.get());
+    result.put("absent", absent.get());
+    result.put("stale", stale.get());
+    result.put("rebuilds", rebuilds.get());
+    result.put("rebuildErrors", rebuildErrors.get());
+    return result;
+  }
+
+}
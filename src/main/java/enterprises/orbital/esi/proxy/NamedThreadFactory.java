@@ -0,0 +1,25 @@
+package enterprises.orbital.esi.proxy;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Thread factory producing named daemon threads for the proxy's background executors.
+ */
+public class NamedThreadFactory implements ThreadFactory {
+  private final String        prefix;
+  private final AtomicInteger count = new AtomicInteger(0);
+
+  public NamedThreadFactory(String prefix) {
+    this.prefix = prefix;
+  }
+
+  @Override
+  public Thread newThread(
+                          Runnable r) {
+    Thread result = new Thread(r, prefix + "-" + count.incrementAndGet());
+    result.setDaemon(true);
+    return result;
+  }
+
+}
@@ -0,0 +1,213 @@
+package enterprises.orbital.esi.proxy;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import enterprises.orbital.base.OrbitalProperties;
+
+/**
+ * Short lived cache of failed key lookups, so that clients which repeat a bad request don't cost a database round trip each time. Two kinds of failure are
+ * remembered:
+ *
+ * <ul>
+ * <li>Key IDs which were not found in the database.
+ * <li>Key ID and hash pairs where the key exists but the hash is wrong. A key's hash never changes, so these can only become valid if the key is replaced.
+ * </ul>
+ *
+ * Key IDs are never reused, so an unknown key can only become valid if it is created after the lookup failed (e.g. a lookup racing with key creation). To
+ * guard against this, creating a key invalidates any entry for the key, and a failed lookup is only remembered if no key was created while the lookup was
+ * in progress (see {@link #getGeneration()}).
+ */
+public class NegativeKeyCache {
+  public static final String                    PROP_SIZE   = "enterprises.orbital.esi.proxy.negativeKeyCache.size";
+  public static final long                      DEF_SIZE    = 10000;
+  public static final String                    PROP_TTL    = "enterprises.orbital.esi.proxy.negativeKeyCache.ttl";
+  public static final long                      DEF_TTL     = TimeUnit.MILLISECONDS.convert(30, TimeUnit.SECONDS);
+
+  // Singleton instance, created on first use
+  private static NegativeKeyCache               instance;
+
+  private final int                             maxSize;
+  private final long                            ttl;
+  // Expiry time of each entry, bad hashes are stored under "kid:hash"
+  private final ConcurrentHashMap<Long, Long>   unknownKeys = new ConcurrentHashMap<Long, Long>();
+  private final ConcurrentHashMap<String, Long> badHashes   = new ConcurrentHashMap<String, Long>();
+  // Incremented whenever a key is created
+  private final AtomicLong                      generation  = new AtomicLong(0);
+  private final AtomicBoolean                   evicting    = new AtomicBoolean(false);
+  private final AtomicLong                      unknownHits = new AtomicLong(0);
+  private final AtomicLong                      badHashHits = new AtomicLong(0);
+  private final AtomicLong                      evictions   = new AtomicLong(0);
+
+  public NegativeKeyCache(int maxSize, long ttl) {
+    this.maxSize = Math.max(1, maxSize);
+    this.ttl = ttl;
+  }
+
+  /**
+   * Retrieve the global negative key cache, creating it if necessary.
+   *
+   * @return the global negative key cache.
+   */
+  public static synchronized NegativeKeyCache getCache() {
+    if (instance == null) {
+      instance = new NegativeKeyCache((int) OrbitalProperties.getLongGlobalProperty(PROP_SIZE, DEF_SIZE),
+                                      OrbitalProperties.getLongGlobalProperty(PROP_TTL, DEF_TTL));
+      final NegativeKeyCache stats = instance;
+      ProxyStats.register("negativeKeyCache", new ProxyStats.StatsSource() {
+        @Override
+        public Map<String, Number> getStats() {
+          return stats.getStats();
+        }
+      });
+    }
+    return instance;
+  }
+
+  /**
+   * Return the current generation. Callers should capture the generation before looking up a key and pass it to {@link #putUnknown(long, long)}.
+   *
+   * @return the current generation.
+   */
+  public long getGeneration() {
+    return generation.get();
+  }
+
+  /**
+   * @param kid
+   *          the ID of the key to check.
+   * @return true if a recent lookup found no key with the given ID.
+   */
+  public boolean isUnknown(
+                           long kid) {
+    if (check(unknownKeys, kid)) {
+      unknownHits.incrementAndGet();
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * @param kid
+   *          the ID of the key to check.
+   * @param hash
+   *          the submitted hash.
+   * @return true if a recent lookup found the given hash was wrong for the given key.
+   */
+  public boolean isBadHash(
+                           long kid,
+                           String hash) {
+    if (check(badHashes, kid + ":" + hash)) {
+      badHashHits.incrementAndGet();
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Remember that no key exists with the given ID, unless a key was created since the given generation.
+   *
+   * @param kid
+   *          the ID of the key which was not found.
+   * @param lookupGeneration
+   *          the generation captured before the lookup.
+   */
+  public void putUnknown(
+                         long kid,
+                         long lookupGeneration) {
+    if (generation.get() != lookupGeneration) return;
+    unknownKeys.put(kid, OrbitalProperties.getCurrentTime() + ttl);
+    // A racing key creation may have slipped in after our check. If so, drop what we just added.
+    if (generation.get() != lookupGeneration) unknownKeys.remove(kid);
+    if (size() > maxSize) evict();
+  }
+
+  /**
+   * Remember that the given hash is wrong for the given key.
+   *
+   * @param kid
+   *          the ID of the key.
+   * @param hash
+   *          the submitted hash.
+   */
+  public void putBadHash(
+                         long kid,
+                         String hash) {
+    badHashes.put(kid + ":" + hash, OrbitalProperties.getCurrentTime() + ttl);
+    if (size() > maxSize) evict();
+  }
+
+  /**
+   * Forget any failed lookup of the given key. Called when a key is created.
+   *
+   * @param kid
+   *          the ID of the key which was created.
+   */
+  public void invalidate(
+                         long kid) {
+    generation.incrementAndGet();
+    unknownKeys.remove(kid);
+  }
+
+  protected static <K> boolean check(
+                                     ConcurrentHashMap<K, Long> entries,
+                                     K key) {
+    Long expiry = entries.get(key);
+    if (expiry == null) return false;
+    if (expiry < OrbitalProperties.getCurrentTime()) {
+      entries.remove(key, expiry);
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Shrink the cache back below its maximum size. Expired entries are removed first. If the cache is still too large, it is cleared: under a flood of bad
+   * requests, any entry is as likely as another to be repeated. Only one thread evicts at a time, other threads simply skip eviction.
+   */
+  protected void evict() {
+    if (!evicting.compareAndSet(false, true)) return;
+    try {
+      long now = OrbitalProperties.getCurrentTime();
+      purge(unknownKeys, now);
+      purge(badHashes, now);
+      if (size() > maxSize) {
+        evictions.addAndGet(size());
+        unknownKeys.clear();
+        badHashes.clear();
+      }
+    } finally {
+      evicting.set(false);
+    }
+  }
+
+  protected <K> void purge(
+                           ConcurrentHashMap<K, Long> entries,
+                           long now) {
+    for (Iterator<Map.Entry<K, Long>> i = entries.entrySet().iterator(); i.hasNext();) {
+      if (i.next().getValue() < now) {
+        i.remove();
+        evictions.incrementAndGet();
+      }
+    }
+  }
+
+  public int size() {
+    return unknownKeys.size() + badHashes.size();
+  }
+
+  public Map<String, Number> getStats() {
+    Map<String, Number> result = new HashMap<String, Number>();
+    result.put("size", size());
+    result.put("unknownHits", unknownHits.get());
+    result.put("badHashHits", badHashHits.get());
+    result.put("evictions", evictions.get());
+    return result;
+  }
+
+}
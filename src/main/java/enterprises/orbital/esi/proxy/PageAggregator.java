@@ -0,0 +1,449 @@
+package enterprises.orbital.esi.proxy;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
+
+import javax.json.Json;
+import javax.json.JsonException;
+import javax.json.stream.JsonGenerator;
+import javax.json.stream.JsonGeneratorFactory;
+import javax.json.stream.JsonParser;
+import javax.json.stream.JsonParserFactory;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.util.EntityUtils;
+
+import enterprises.orbital.base.OrbitalProperties;
+
+/**
+ * Retrieves every page of a paginated ESI endpoint and returns the pages to the client as a single JSON array. Page 1 is retrieved first to learn the number
+ * of pages (from the X-Pages header). The remaining pages are then retrieved in parallel, with a bounded number of requests in flight for any one client
+ * request. The merged array is streamed to the client in page order and expires when the earliest expiring page expires.
+ *
+ * <p>
+ * If page 1 is an error, or the endpoint has a single page, the response for page 1 is returned unchanged. If any later page fails, or any page is not a
+ * JSON array, the client receives a 502. Every page is checked before the response is started, so a bad page never leaves the client with a partial
+ * merged response.
+ */
+public class PageAggregator {
+  protected static final Logger              log               = Logger.getLogger(PageAggregator.class.getName());
+
+  public static final String                 PROP_THREADS      = "enterprises.orbital.esi.proxy.allPages.threads";
+  public static final long                   DEF_THREADS       = 16;
+  public static final String                 PROP_CONCURRENCY  = "enterprises.orbital.esi.proxy.allPages.concurrency";
+  public static final long                   DEF_CONCURRENCY   = 4;
+  public static final String                 PROP_MAX_PAGES    = "enterprises.orbital.esi.proxy.allPages.maxPages";
+  public static final long                   DEF_MAX_PAGES     = 100;
+  public static final String                 PROP_TIMEOUT      = "enterprises.orbital.esi.proxy.allPages.timeout";
+  public static final long                   DEF_TIMEOUT       = TimeUnit.MILLISECONDS.convert(60, TimeUnit.SECONDS);
+
+  private static final JsonParserFactory     PARSER_FACTORY    = Json.createParserFactory(Collections.<String, Object> emptyMap());
+  private static final JsonGeneratorFactory  GENERATOR_FACTORY = Json.createGeneratorFactory(Collections.<String, Object> emptyMap());
+  // Headers from the ESI which describe a single page, and so aren't passed along with the merged response
+  private static final String[]              PAGE_HEADERS      = {
+      "Content-Length", "Content-Encoding", "Transfer-Encoding", "Connection", "ETag", "Last-Modified", "Expires", "X-Pages"
+  };
+
+  // Singleton instance, created on first use
+  private static PageAggregator              instance;
+
+  /**
+   * A single retrieved page.
+   */
+  protected static class Page {
+    final int          number;
+    final HttpResponse response;
+    final byte[]       body;
+
+    Page(int number, HttpResponse response, byte[] body) {
+      this.number = number;
+      this.response = response;
+      this.body = body;
+    }
+
+    int getStatus() {
+      return response.getStatusLine().getStatusCode();
+    }
+  }
+
+  private final ExecutorService              workers;
+  private final int                          concurrency;
+  private final int                          maxPages;
+  private final long                         timeout;
+  private final AtomicLong                   requests          = new AtomicLong(0);
+  private final AtomicLong                   pages             = new AtomicLong(0);
+  private final AtomicLong                   failures          = new AtomicLong(0);
+
+  /**
+   * Create an aggregator.
+   *
+   * @param threads
+   *          number of threads shared by all requests for retrieving pages.
+   * @param concurrency
+   *          maximum number of pages in flight for a single request.
+   * @param maxPages
+   *          maximum number of pages which will be merged.
+   * @param timeout
+   *          maximum time (milliseconds) to wait for any one page.
+   */
+  public PageAggregator(int threads, int concurrency, int maxPages, long timeout) {
+    this.workers = Executors.newFixedThreadPool(Math.max(threads, 1), new NamedThreadFactory("esi-pages"));
+    this.concurrency = Math.max(concurrency, 1);
+    this.maxPages = maxPages;
+    this.timeout = timeout;
+  }
+
+  /**
+   * Retrieve the global aggregator, creating it if necessary.
+   *
+   * @return the global aggregator.
+   */
+  public static synchronized PageAggregator getAggregator() {
+    if (instance == null) {
+      instance = new PageAggregator(
+          (int) OrbitalProperties.getLongGlobalProperty(PROP_THREADS, DEF_THREADS),
+          (int) OrbitalProperties.getLongGlobalProperty(PROP_CONCURRENCY, DEF_CONCURRENCY),
+          (int) OrbitalProperties.getLongGlobalProperty(PROP_MAX_PAGES, DEF_MAX_PAGES), OrbitalProperties.getLongGlobalProperty(PROP_TIMEOUT, DEF_TIMEOUT));
+      final PageAggregator stats = instance;
+      ProxyStats.register("allPages", new ProxyStats.StatsSource() {
+        @Override
+        public Map<String, Number> getStats() {
+          return stats.getStats();
+        }
+      });
+    }
+    return instance;
+  }
+
+  /**
+   * Stop the worker threads. Subsequent requests will fail.
+   */
+  public static synchronized void shutdown() {
+    if (instance != null) {
+      instance.workers.shutdownNow();
+      instance = null;
+    }
+  }
+
+  /**
+   * Retrieve and merge all pages of a request, and send the result to the client.
+   *
+   * @param client
+   *          client used to contact the ESI.
+   * @param url
+   *          URL of the request at the ESI, without the page parameter.
+   * @param headers
+   *          headers to send with each page request (e.g. authorization).
+   * @param governor
+   *          error limit governor which should observe each page, or null.
+   * @param errorSource
+   *          source to which page errors are attributed.
+   * @param servletRequest
+   *          client request.
+   * @param servletResponse
+   *          response to the client.
+   * @throws IOException
+   *           if an error occurs retrieving page 1, page 1 is not a JSON array, or an error occurs writing the response. Nothing has been written to the
+   *           response when page 1 is at fault.
+   */
+  public void serve(
+                    final HttpClient client,
+                    final String url,
+                    final Map<String, String> headers,
+                    final ErrorLimitGovernor governor,
+                    final String errorSource,
+                    HttpServletRequest servletRequest,
+                    HttpServletResponse servletResponse)
+    throws IOException {
+    requests.incrementAndGet();
+    Page first = fetch(client, url, headers, governor, errorSource, 1);
+    int pageCount = 1;
+    try {
+      pageCount = Integer.parseInt(String.valueOf(CacheHeaders.getHeader(first.response, "X-Pages")).trim());
+    } catch (NumberFormatException e) {
+      // Not a paginated endpoint
+    }
+    if (first.getStatus() != HttpServletResponse.SC_OK || pageCount <= 1) {
+      relay(first, servletResponse);
+      return;
+    }
+    if (pageCount > maxPages) {
+      servletResponse.sendError(HttpServletResponse.SC_BAD_REQUEST, "Too many pages to merge: " + pageCount + " (maximum " + maxPages + ")");
+      return;
+    }
+    // Later pages are checked as they are retrieved
+    validate(first);
+
+    // Retrieve remaining pages in order, keeping at most "concurrency" requests in flight
+    List<Page> results = new ArrayList<Page>(pageCount);
+    results.add(first);
+    ArrayDeque<Future<Page>> inflight = new ArrayDeque<Future<Page>>();
+    int next = 2;
+    try {
+      while (next <= pageCount && inflight.size() < concurrency)
+        inflight.add(submit(client, url, headers, governor, errorSource, next++));
+      while (!inflight.isEmpty()) {
+        Page page = inflight.poll().get(timeout, TimeUnit.MILLISECONDS);
+        if (page.getStatus() != HttpServletResponse.SC_OK) {
+          failures.incrementAndGet();
+          servletResponse.sendError(HttpServletResponse.SC_BAD_GATEWAY, "ESI returned status " + page.getStatus() + " for page " + page.number);
+          return;
+        }
+        results.add(page);
+        if (next <= pageCount) inflight.add(submit(client, url, headers, governor, errorSource, next++));
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      failures.incrementAndGet();
+      servletResponse.sendError(HttpServletResponse.SC_BAD_GATEWAY, "Interrupted while retrieving pages");
+      return;
+    } catch (ExecutionException | TimeoutException e) {
+      failures.incrementAndGet();
+      log.log(Level.WARNING, "failed to retrieve pages for " + url, e);
+      servletResponse.sendError(HttpServletResponse.SC_BAD_GATEWAY, "Failed to retrieve all pages");
+      return;
+    } finally {
+      for (Future<Page> abandoned : inflight)
+        abandoned.cancel(true);
+    }
+
+    // The merged result is only as fresh as the earliest expiring page
+    long expiry = Long.MAX_VALUE;
+    for (Page page : results) {
+      expiry = Math.min(expiry, CacheHeaders.getExpiry(page.response, 0));
+    }
+    servletResponse.setStatus(HttpServletResponse.SC_OK);
+    copyHeaders(first.response, servletResponse);
+    servletResponse.setHeader("Expires", DateUtils.formatDate(new Date(expiry)));
+    servletResponse.setHeader("X-Pages", "1");
+    servletResponse.setContentType("application/json; charset=UTF-8");
+    boolean gzip = CacheHeaders.acceptsGzip(servletRequest);
+    if (gzip) servletResponse.setHeader("Content-Encoding", "gzip");
+    OutputStream out = servletResponse.getOutputStream();
+    GZIPOutputStream gzipper = gzip ? new GZIPOutputStream(out) : null;
+    merge(results, gzip ? gzipper : out);
+    if (gzipper != null) gzipper.finish();
+  }
+
+  protected Future<Page> submit(
+                                final HttpClient client,
+                                final String url,
+                                final Map<String, String> headers,
+                                final ErrorLimitGovernor governor,
+                                final String errorSource,
+                                final int number) {
+    return workers.submit(new Callable<Page>() {
+      @Override
+      public Page call() throws Exception {
+        Page page = fetch(client, url, headers, governor, errorSource, number);
+        // Check here, in parallel, so the merge can't fail part way through the response
+        if (page.getStatus() == HttpServletResponse.SC_OK) validate(page);
+        return page;
+      }
+    });
+  }
+
+  /**
+   * Retrieve a single page.
+   */
+  protected Page fetch(
+                       HttpClient client,
+                       String url,
+                       Map<String, String> headers,
+                       ErrorLimitGovernor governor,
+                       String errorSource,
+                       int number)
+    throws IOException {
+    HttpGet request = new HttpGet(url + (url.indexOf('?') >= 0 ? "&" : "?") + "page=" + number);
+    for (Map.Entry<String, String> next : headers.entrySet()) {
+      request.setHeader(next.getKey(), next.getValue());
+    }
+    request.setHeader("Accept-Encoding", "gzip");
+    HttpResponse response = client.execute(request);
+    try {
+      if (governor != null) governor.observe(errorSource, response);
+      InputStream src = CacheHeaders.openContent(response);
+      byte[] body = new byte[0];
+      if (src != null) {
+        try {
+          ByteArrayOutputStream content = new ByteArrayOutputStream();
+          byte[] buffer = new byte[8192];
+          for (int count = src.read(buffer); count >= 0; count = src.read(buffer))
+            content.write(buffer, 0, count);
+          body = content.toByteArray();
+        } finally {
+          src.close();
+        }
+      }
+      pages.incrementAndGet();
+      return new Page(number, response, body);
+    } finally {
+      EntityUtils.consumeQuietly(response.getEntity());
+    }
+  }
+
+  /**
+   * Send a single page to the client unchanged.
+   */
+  protected static void relay(
+                              Page page,
+                              HttpServletResponse servletResponse)
+    throws IOException {
+    servletResponse.setStatus(page.getStatus());
+    for (Header next : page.response.getAllHeaders()) {
+      String name = next.getName();
+      // Body has been decoded and is sent with its own length
+      if (name.equalsIgnoreCase("Content-Length") || name.equalsIgnoreCase("Content-Encoding") || name.equalsIgnoreCase("Transfer-Encoding")
+          || name.equalsIgnoreCase("Connection"))
+        continue;
+      servletResponse.addHeader(name, next.getValue());
+    }
+    servletResponse.setContentLength(page.body.length);
+    servletResponse.getOutputStream().write(page.body);
+  }
+
+  /**
+   * Copy headers which apply to the merged response.
+   */
+  protected static void copyHeaders(
+                                    HttpResponse response,
+                                    HttpServletResponse servletResponse) {
+    outer: for (Header next : response.getAllHeaders()) {
+      for (String skip : PAGE_HEADERS) {
+        if (skip.equalsIgnoreCase(next.getName())) continue outer;
+      }
+      servletResponse.addHeader(next.getName(), next.getValue());
+    }
+  }
+
+  /**
+   * Check that a page is a well formed JSON array, so that it can be merged.
+   *
+   * @param page
+   *          the page to check.
+   * @throws IOException
+   *           if the page is not a JSON array.
+   */
+  protected static void validate(
+                                 Page page)
+    throws IOException {
+    JsonParser parser = PARSER_FACTORY.createParser(new ByteArrayInputStream(page.body));
+    try {
+      if (!parser.hasNext() || parser.next() != JsonParser.Event.START_ARRAY) throw new IOException("Page " + page.number + " is not a JSON array");
+      int depth = 1;
+      while (depth > 0) {
+        switch (parser.next()) {
+        case START_OBJECT:
+        case START_ARRAY:
+          depth++;
+          break;
+        case END_OBJECT:
+        case END_ARRAY:
+          depth--;
+          break;
+        default:
+          break;
+        }
+      }
+    } catch (JsonException | NoSuchElementException e) {
+      throw new IOException("Page " + page.number + " is not a JSON array", e);
+    } finally {
+      parser.close();
+    }
+  }
+
+  /**
+   * Write the elements of each page, in order, as a single JSON array. Pages should already have been checked with {@link #validate(Page)}.
+   *
+   * @param results
+   *          pages to merge, each of which must be a JSON array.
+   * @param dest
+   *          destination for the merged array.
+   * @throws IOException
+   *           if a page is not a JSON array, or an error occurs writing the result.
+   */
+  protected static void merge(
+                              List<Page> results,
+                              OutputStream dest)
+    throws IOException {
+    JsonGenerator generator = GENERATOR_FACTORY.createGenerator(dest);
+    try {
+      generator.writeStartArray();
+      for (Page page : results) {
+        JsonParser parser = PARSER_FACTORY.createParser(new ByteArrayInputStream(page.body));
+        try {
+          if (!parser.hasNext() || parser.next() != JsonParser.Event.START_ARRAY) throw new IOException("Page " + page.number + " is not a JSON array");
+          // Copy everything inside the top level array
+          int depth = 1;
+          String name = null;
+          while (depth > 0) {
+            JsonParser.Event event = parser.next();
+            switch (event) {
+            case KEY_NAME:
+              name = parser.getString();
+              break;
+            case END_OBJECT:
+            case END_ARRAY:
+              depth--;
+              if (depth > 0) generator.writeEnd();
+              break;
+            case START_OBJECT:
+            case START_ARRAY:
+              depth++;
+              SwaggerRewriter.copyValue(parser, generator, event, name);
+              name = null;
+              break;
+            default:
+              SwaggerRewriter.copyValue(parser, generator, event, name);
+              name = null;
+              break;
+            }
+          }
+        } finally {
+          parser.close();
+        }
+      }
+      generator.writeEnd();
+      generator.flush();
+    } catch (JsonException e) {
+      throw new IOException("Failed to merge pages", e);
+    }
+  }
+
+  public Map<String, Number> getStats() {
+    Map<String, Number> result = new HashMap<String, Number>();
+    result.put("requests", requests.get());
+    result.put("pages", pages.get());
+    result.put("failures", failures.get());
+    return result;
+  }
+
+}
@@ -3,6 +3,8 @@ package enterprises.orbital.esi.proxy;
 import java.io.IOException;
 import java.math.BigInteger;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 import java.util.Random;
 import java.util.logging.Level;
@@ -10,6 +12,7 @@ import java.util.logging.Logger;
 
 import javax.persistence.Column;
 import javax.persistence.Entity;
+import javax.persistence.EntityManager;
 import javax.persistence.GeneratedValue;
 import javax.persistence.GenerationType;
 import javax.persistence.Id;
@@ -20,6 +23,7 @@ import javax.persistence.ManyToOne;
 import javax.persistence.NamedQueries;
 import javax.persistence.NamedQuery;
 import javax.persistence.NoResultException;
+import javax.persistence.Query;
 import javax.persistence.SequenceGenerator;
 import javax.persistence.Table;
 import javax.persistence.Transient;
@@ -50,6 +54,7 @@ import io.swagger.annotations.ApiModelProperty;
  * <li>The expiry date for this key.
  * <li>The unique ID of this key.
  * <li>The random seed used to generate the hash for this key.
+ * <li>The current token refresh lease, if any (see below).
  * </ul>
  * 
  * We use this object to translate a key/hash pair to an access token as follows:
@@ -63,6 +68,9 @@ import io.swagger.annotations.ApiModelProperty;
  * object.
  * </ol>
  * 
+ * When several proxy instances share a database, only one instance may refresh a key's access token at a time. Otherwise, concurrent refreshes consume the
+ * same refresh token and invalidate each other. An instance must hold the refresh lease on a key (see {@link #acquireRefreshLease(long, String, long)})
+ * before refreshing. Other instances wait for the lease holder to store the new token and then re-read it.
  */
 @Entity
 @Table(
@@ -81,14 +89,26 @@ import io.swagger.annotations.ApiModelProperty;
     @NamedQuery(
         name = "ProxyAccessKey.findByID",
         query = "SELECT c FROM ProxyAccessKey c where c.kid = :kid"),
+    @NamedQuery(
+        name = "ProxyAccessKey.findAllIDs",
+        query = "SELECT c.kid FROM ProxyAccessKey c"),
     @NamedQuery(
         name = "ProxyAccessKey.findAllByUser",
-        query = "SELECT c FROM ProxyAccessKey c where c.user = :user")
+        query = "SELECT c FROM ProxyAccessKey c where c.user = :user"),
+    @NamedQuery(
+        name = "ProxyAccessKey.findByIDs",
+        query = "SELECT c FROM ProxyAccessKey c where c.user = :user and c.kid in :kids"),
+    @NamedQuery(
+        name = "ProxyAccessKey.acquireRefreshLease",
+        query = "UPDATE ProxyAccessKey c SET c.refreshLeaseOwner = :owner, c.refreshLeaseExpiry = :until where c.kid = :kid and (c.refreshLeaseExpiry < :now or c.refreshLeaseOwner = :owner)"),
+    @NamedQuery(
+        name = "ProxyAccessKey.releaseRefreshLease",
+        query = "UPDATE ProxyAccessKey c SET c.refreshLeaseOwner = NULL, c.refreshLeaseExpiry = 0 where c.kid = :kid and c.refreshLeaseOwner = :owner")
 })
 @ApiModel(
     description = "Proxy access key")
 @JsonIgnoreProperties({
-    "randomSeed", "user", "accessToken", "refreshToken"
+    "randomSeed", "user", "accessToken", "refreshToken", "refreshLeaseOwner", "refreshLeaseExpiry"
 })
 public class ProxyAccessKey {
   protected static final Logger            log      = Logger.getLogger(ProxyAccessKey.class.getName());
@@ -154,6 +174,11 @@ public class ProxyAccessKey {
       value = "Name of character used for authentication when this key was created")
   @JsonProperty("characterName")
   private String           characterName;
+  // The character ID associated with this key, or 0 for keys created before we recorded character IDs.
+  @ApiModelProperty(
+      value = "ID of character used for authentication when this key was created, or 0 if unknown")
+  @JsonProperty("characterID")
+  private long             characterID;
   // Latest access token
   private String           accessToken;
   // Expiry date (millis UTC) of access token
@@ -169,6 +194,15 @@ public class ProxyAccessKey {
       value = "Access credential")
   @JsonProperty("credential")
   private String           credential;
+  // Proxy instance currently refreshing the access token for this key, or null if no refresh is in progress.
+  // Lease columns are only changed by the lease queries, so that merging a stale copy of a key can't clobber another instance's lease.
+  @Column(
+      updatable = false)
+  private String           refreshLeaseOwner;
+  // Expiry date (millis UTC) of the current refresh lease. The lease may be taken over by another instance after this time.
+  @Column(
+      updatable = false)
+  private long             refreshLeaseExpiry;
   // Server type authenticated against. Must be one of 'latest', 'legacy' or 'dev'
   @ApiModelProperty(
       value = "Server type (one of 'latest', 'legacy', or 'dev'")
@@ -184,6 +218,15 @@ public class ProxyAccessKey {
     this.characterName = characterName;
   }
 
+  public long getCharacterID() {
+    return characterID;
+  }
+
+  public void setCharacterID(
+                             long characterID) {
+    this.characterID = characterID;
+  }
+
   public long getKid() {
     return kid;
   }
@@ -250,6 +293,14 @@ public class ProxyAccessKey {
     this.refreshToken = refreshToken;
   }
 
+  public String getRefreshLeaseOwner() {
+    return refreshLeaseOwner;
+  }
+
+  public long getRefreshLeaseExpiry() {
+    return refreshLeaseExpiry;
+  }
+
   public String getServerType() {
     return serverType;
   }
@@ -299,8 +350,8 @@ public class ProxyAccessKey {
   @Override
   public String toString() {
     return "ProxyAccessKey [kid=" + kid + ", user=" + user + ", randomSeed=" + randomSeed + ", expiry=" + expiry + ", scopes=" + scopes + ", characterName="
-        + characterName + ", accessToken=" + accessToken + ", accessTokenExpiry=" + accessTokenExpiry + ", refreshToken=" + refreshToken + ", credential="
-        + credential + ", serverType=" + serverType + "]";
+        + characterName + ", characterID=" + characterID + ", accessToken=" + accessToken + ", accessTokenExpiry=" + accessTokenExpiry + ", refreshToken="
+        + refreshToken + ", credential=" + credential + ", serverType=" + serverType + "]";
   }
 
   public static ProxyAccessKey createKey(
@@ -308,7 +359,8 @@ public class ProxyAccessKey {
                                          final long expiry,
                                          final String serverType,
                                          final String scopes,
-                                         final String characterName) {
+                                         final String characterName,
+                                         final long characterID) {
     ProxyAccessKey newKey = null;
     try {
       newKey = ProxyUserAccountProvider.getFactory().runTransaction(new RunInTransaction<ProxyAccessKey>() {
@@ -321,6 +373,7 @@ public class ProxyAccessKey {
           result.expiry = expiry;
           result.scopes = scopes;
           result.characterName = characterName;
+          result.characterID = characterID;
           result.randomSeed = seed;
           return ProxyUserAccountProvider.getFactory().getEntityManager().merge(result);
         }
@@ -328,23 +381,62 @@ public class ProxyAccessKey {
     } catch (Exception e) {
       log.log(Level.SEVERE, "query error", e);
     }
+    if (newKey != null) {
+      // Make the new key visible to lookups which would otherwise reject it without checking the database
+      KeyFilter.getFilter().add(newKey.getKid());
+      NegativeKeyCache.getCache().invalidate(newKey.getKid());
+    }
     return newKey;
   }
 
   public static ProxyAccessKey getKeyByID(
                                           final long kid) {
     try {
-      return ProxyUserAccountProvider.getFactory().runTransaction(new RunInTransaction<ProxyAccessKey>() {
+      return findKeyByID(kid);
+    } catch (Exception e) {
+      log.log(Level.SEVERE, "query error", e);
+    }
+    return null;
+  }
+
+  /**
+   * Same as {@link #getKeyByID(long)} but reports errors to the caller, so that a missing key can be told apart from a failed query.
+   *
+   * @param kid
+   *          ID of the key to retrieve.
+   * @return the key, or null if no key exists with the given ID.
+   * @throws Exception
+   *           if the query fails.
+   */
+  protected static ProxyAccessKey findKeyByID(
+                                              final long kid)
+    throws Exception {
+    return ProxyUserAccountProvider.getFactory().runTransaction(new RunInTransaction<ProxyAccessKey>() {
+      @Override
+      public ProxyAccessKey run() throws Exception {
+        TypedQuery<ProxyAccessKey> getter = ProxyUserAccountProvider.getFactory().getEntityManager().createNamedQuery("ProxyAccessKey.findByID",
+                                                                                                                      ProxyAccessKey.class);
+        getter.setParameter("kid", kid);
+        try {
+          return getter.getSingleResult();
+        } catch (NoResultException e) {
+          return null;
+        }
+      }
+    });
+  }
+
+  /**
+   * Retrieve the IDs of all keys, used to build the {@link KeyFilter}.
+   *
+   * @return the IDs of all keys, or null on error.
+   */
+  public static List<Long> getAllKeyIDs() {
+    try {
+      return ProxyUserAccountProvider.getFactory().runTransaction(new RunInTransaction<List<Long>>() {
         @Override
-        public ProxyAccessKey run() throws Exception {
-          TypedQuery<ProxyAccessKey> getter = ProxyUserAccountProvider.getFactory().getEntityManager().createNamedQuery("ProxyAccessKey.findByID",
-                                                                                                                        ProxyAccessKey.class);
-          getter.setParameter("kid", kid);
-          try {
-            return getter.getSingleResult();
-          } catch (NoResultException e) {
-            return null;
-          }
+        public List<Long> run() throws Exception {
+          return ProxyUserAccountProvider.getFactory().getEntityManager().createNamedQuery("ProxyAccessKey.findAllIDs", Long.class).getResultList();
         }
       });
     } catch (Exception e) {
@@ -371,6 +463,36 @@ public class ProxyAccessKey {
     return null;
   }
 
+  /**
+   * Retrieve several keys owned by a user with a single query. Keys which don't exist, or which belong to another user, are omitted from the result.
+   *
+   * @param owner
+   *          the user which owns the keys.
+   * @param kids
+   *          IDs of the keys to retrieve.
+   * @return the keys which were found, or null on error.
+   */
+  public static List<ProxyAccessKey> getKeysByID(
+                                                 final ProxyUserAccount owner,
+                                                 final Collection<Long> kids) {
+    if (kids.isEmpty()) return new ArrayList<ProxyAccessKey>();
+    try {
+      return ProxyUserAccountProvider.getFactory().runTransaction(new RunInTransaction<List<ProxyAccessKey>>() {
+        @Override
+        public List<ProxyAccessKey> run() throws Exception {
+          TypedQuery<ProxyAccessKey> getter = ProxyUserAccountProvider.getFactory().getEntityManager().createNamedQuery("ProxyAccessKey.findByIDs",
+                                                                                                                        ProxyAccessKey.class);
+          getter.setParameter("user", owner);
+          getter.setParameter("kids", kids);
+          return getter.getResultList();
+        }
+      });
+    } catch (Exception e) {
+      log.log(Level.SEVERE, "query error", e);
+    }
+    return null;
+  }
+
   public static boolean deleteKey(
                                   final ProxyUserAccount owner,
                                   final long kid) {
@@ -382,6 +504,11 @@ public class ProxyAccessKey {
           if (key != null && key.getUser().equals(owner)) ProxyUserAccountProvider.getFactory().getEntityManager().remove(key);
         }
       });
+      AccessKeyCache.getCache().invalidate(kid);
+      // Cached responses retrieved with this key must not outlive it
+      ResponseCache.invalidatePrivate(kid);
+      // Deleted keys can't be removed from the filter, rebuild it without them
+      KeyFilter.getFilter().requestRebuild();
       return true;
     } catch (Exception e) {
       log.log(Level.SEVERE, "query error", e);
@@ -405,6 +532,9 @@ public class ProxyAccessKey {
       });
     } catch (Exception e) {
       log.log(Level.SEVERE, "query error", e);
+    } finally {
+      // Invalidate regardless of outcome so a failed update can never leave a stale cache entry
+      AccessKeyCache.getCache().invalidate(kid);
     }
   }
 
@@ -420,11 +550,111 @@ public class ProxyAccessKey {
     } catch (Exception e) {
       log.log(Level.SEVERE, "query error", e);
       return null;
+    } finally {
+      AccessKeyCache.getCache().invalidate(key.getKid());
+    }
+  }
+
+  /**
+   * Retrieve a key, bypassing any state cached by the persistence layer. Use this when the key may have been changed by another proxy instance.
+   *
+   * @param kid
+   *          ID of the key to retrieve.
+   * @return the current state of the key, or null if no such key exists.
+   */
+  public static ProxyAccessKey reloadKeyByID(
+                                             final long kid) {
+    try {
+      return ProxyUserAccountProvider.getFactory().runTransaction(new RunInTransaction<ProxyAccessKey>() {
+        @Override
+        public ProxyAccessKey run() throws Exception {
+          EntityManager em = ProxyUserAccountProvider.getFactory().getEntityManager();
+          TypedQuery<ProxyAccessKey> getter = em.createNamedQuery("ProxyAccessKey.findByID", ProxyAccessKey.class);
+          getter.setParameter("kid", kid);
+          ProxyAccessKey key;
+          try {
+            key = getter.getSingleResult();
+          } catch (NoResultException e) {
+            return null;
+          }
+          // The query may return an instance already managed by this entity manager, so force a re-read of its state
+          em.refresh(key);
+          return key;
+        }
+      });
+    } catch (Exception e) {
+      log.log(Level.SEVERE, "query error", e);
     }
+    return null;
   }
 
+  /**
+   * Attempt to acquire the token refresh lease on a key. The lease is granted if no other instance holds an unexpired lease on the key. An instance which
+   * already holds the lease will have its lease extended.
+   *
+   * @param kid
+   *          ID of the key to lease.
+   * @param owner
+   *          unique ID of the proxy instance requesting the lease.
+   * @param leaseTime
+   *          length of the lease in milliseconds.
+   * @return true if the lease was granted, false otherwise.
+   */
+  public static boolean acquireRefreshLease(
+                                            final long kid,
+                                            final String owner,
+                                            final long leaseTime) {
+    try {
+      return ProxyUserAccountProvider.getFactory().runTransaction(new RunInTransaction<Boolean>() {
+        @Override
+        public Boolean run() throws Exception {
+          long now = OrbitalProperties.getCurrentTime();
+          Query setter = ProxyUserAccountProvider.getFactory().getEntityManager().createNamedQuery("ProxyAccessKey.acquireRefreshLease");
+          setter.setParameter("kid", kid);
+          setter.setParameter("owner", owner);
+          setter.setParameter("until", now + leaseTime);
+          setter.setParameter("now", now);
+          return setter.executeUpdate() == 1;
+        }
+      });
+    } catch (Exception e) {
+      log.log(Level.SEVERE, "query error", e);
+    }
+    return false;
+  }
+
+  /**
+   * Release a token refresh lease. Does nothing if the lease is no longer held by the given owner.
+   *
+   * @param kid
+   *          ID of the leased key.
+   * @param owner
+   *          unique ID of the proxy instance which holds the lease.
+   */
+  public static void releaseRefreshLease(
+                                         final long kid,
+                                         final String owner) {
+    try {
+      ProxyUserAccountProvider.getFactory().runTransaction(new RunInVoidTransaction() {
+        @Override
+        public void run() throws Exception {
+          Query setter = ProxyUserAccountProvider.getFactory().getEntityManager().createNamedQuery("ProxyAccessKey.releaseRefreshLease");
+          setter.setParameter("kid", kid);
+          setter.setParameter("owner", owner);
+          setter.executeUpdate();
+        }
+      });
+    } catch (Exception e) {
+      log.log(Level.SEVERE, "query error", e);
+    }
+  }
+
+  /**
+   * Set the credential handed to the owner of this key. A signed credential is issued if signed credentials are enabled (see {@link SignedCredential}).
+   */
   public void generateCredential() {
-    setCredential(generateHash(this));
+    SignedCredential signer = SignedCredential.getSigner();
+    setCredential(signer != null ? signer.sign(kid, expiry) : generateHash(this));
   }
 
   public static String generateHash(
@@ -461,4 +691,82 @@ public class ProxyAccessKey {
     return generateHash(accessKey).equals(submittedHash) ? accessKey : null;
   }
 
+  /**
+   * Same as {@link #checkHash(long, String)} but consults the key cache first. On a cache miss, recently failed lookups (see {@link NegativeKeyCache}) are
+   * rejected without a database round trip. Otherwise, the key is loaded from the database and added to the cache. Keys missing from the
+   * {@link KeyFilter} are still looked up, since they may have been created by another instance since the filter was last rebuilt. Signed credentials are
+   * verified before any lookup, and match any key with the embedded ID.
+   *
+   * @param keyID
+   *          ID of the key to check.
+   * @param submittedHash
+   *          hash submitted by the caller.
+   * @return a cached snapshot of the key if the hash matches, null otherwise.
+   * @throws NoSuchKeyException
+   *           if no key exists with the given ID.
+   */
+  public static AccessKeyCache.CachedKey checkCachedHash(
+                                                         long keyID,
+                                                         String submittedHash)
+    throws NoSuchKeyException {
+    return checkCachedHash(keyID, submittedHash, false);
+  }
+
+  /**
+   * Same as {@link #checkCachedHash(long, String)} for a caller which may already have verified a signed credential, so the signature is not computed
+   * twice.
+   *
+   * @param keyID
+   *          ID of the key to check.
+   * @param submittedHash
+   *          hash submitted by the caller.
+   * @param verified
+   *          true if submittedHash is a signed credential which the caller has already found valid with {@link SignedCredential#check(long, String)}.
+   * @return a cached snapshot of the key if the hash matches, null otherwise.
+   * @throws NoSuchKeyException
+   *           if no key exists with the given ID.
+   */
+  public static AccessKeyCache.CachedKey checkCachedHash(
+                                                         long keyID,
+                                                         String submittedHash,
+                                                         boolean verified)
+    throws NoSuchKeyException {
+    boolean signed = SignedCredential.isSigned(submittedHash);
+    if (signed && !verified && SignedCredential.check(keyID, submittedHash) != SignedCredential.VALID) return null;
+    AccessKeyCache cache = AccessKeyCache.getCache();
+    AccessKeyCache.CachedKey cached = cache.get(keyID);
+
+    if (cached == null) {
+      NegativeKeyCache negative = NegativeKeyCache.getCache();
+      if (negative.isUnknown(keyID)) throw new NoSuchKeyException("No access key found with ID: " + String.valueOf(keyID));
+      // A filter miss is only a hint, the key may have been created by another instance since the last rebuild. We look it up once, and if it isn't
+      // there the negative cache keeps further requests for it away from the database.
+      boolean expected = KeyFilter.getFilter().mightContain(keyID);
+      if (!signed && negative.isBadHash(keyID, submittedHash)) return null;
+      long generation = cache.getGeneration();
+      long negativeGeneration = negative.getGeneration();
+      ProxyAccessKey accessKey;
+      try {
+        accessKey = findKeyByID(keyID);
+      } catch (Exception e) {
+        // Not remembered, the key may well exist
+        log.log(Level.SEVERE, "query error", e);
+        throw new NoSuchKeyException("No access key found with ID: " + String.valueOf(keyID));
+      }
+      if (accessKey == null) {
+        negative.putUnknown(keyID, negativeGeneration);
+        throw new NoSuchKeyException("No access key found with ID: " + String.valueOf(keyID));
+      }
+      if (!expected) KeyFilter.getFilter().found(keyID);
+      cached = cache.put(accessKey, generation);
+      if (!signed && !cached.getCredential().equals(submittedHash)) {
+        negative.putBadHash(keyID, submittedHash);
+        return null;
+      }
+      return cached;
+    }
+
+    return signed || cached.getCredential().equals(submittedHash) ? cached : null;
+  }
+
 }
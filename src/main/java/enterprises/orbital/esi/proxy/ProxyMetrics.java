@@ -0,0 +1,384 @@
+package enterprises.orbital.esi.proxy;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.servlet.http.HttpServletRequest;
+
+import enterprises.orbital.base.OrbitalProperties;
+
+/**
+ * Latency distributions for each stage of handling a proxy request. A request is timed from the moment the servlet receives it until its response is
+ * complete (which, for asynchronous requests, is after the servlet returns). Stage times are held with the request until it completes, then added to a
+ * histogram for the stage, server type (latest, legacy or dev), ESI route and status class (2xx, 4xx, etc.) of the request. Routes are the request path
+ * with numeric segments replaced by "{id}", so that e.g. every character's wallet request shares a route.
+ *
+ * <p>
+ * Histograms use fixed bucket boundaries, from half a millisecond to ten seconds, so they can be exported directly in Prometheus format along with every
+ * statistic registered with {@link ProxyStats}. The number of distinct histograms is bounded; once the bound is reached, new routes are recorded as
+ * "other".
+ */
+public class ProxyMetrics {
+  public static final String    PROP_ENABLED        = "enterprises.orbital.esi.proxy.metrics.enabled";
+  public static final boolean   DEF_ENABLED         = true;
+  public static final String    PROP_MAX_SERIES     = "enterprises.orbital.esi.proxy.metrics.maxSeries";
+  public static final long      DEF_MAX_SERIES      = 5000;
+
+  // Stages of handling a request
+  public static final String    STAGE_TOTAL         = "total";
+  public static final String    STAGE_KEY_LOOKUP    = "key_lookup";
+  public static final String    STAGE_TOKEN_REFRESH = "token_refresh";
+  public static final String    STAGE_UPSTREAM_WAIT = "upstream_wait";
+  public static final String    STAGE_BODY_COPY     = "body_copy";
+  public static final String    STAGE_SWAGGER       = "swagger_transform";
+  private static final String[] STAGES              = {
+      STAGE_TOTAL, STAGE_KEY_LOOKUP, STAGE_TOKEN_REFRESH, STAGE_UPSTREAM_WAIT, STAGE_BODY_COPY, STAGE_SWAGGER
+  };
+
+  // Upper bounds (seconds) of histogram buckets, an implicit final bucket holds everything larger
+  private static final double[] BUCKETS             = {
+      0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10
+  };
+  private static final long[]   BUCKET_NANOS        = new long[BUCKETS.length];
+  static {
+    for (int i = 0; i < BUCKETS.length; i++)
+      BUCKET_NANOS[i] = (long) (BUCKETS[i] * TimeUnit.SECONDS.toNanos(1));
+  }
+
+  private static final String   ATTR_TIMING         = ProxyMetrics.class.getSimpleName() + ".timing";
+  private static final String   OTHER_ROUTE         = "other";
+
+  // Singleton instance, created on first use
+  private static ProxyMetrics   instance;
+
+  /**
+   * A lock-free latency histogram.
+   */
+  protected static class Histogram {
+    final String          stage;
+    final String          server;
+    final String          route;
+    final String          status;
+    // Non-cumulative count for each bucket, with one extra bucket for values above the last bound
+    final AtomicLongArray counts = new AtomicLongArray(BUCKETS.length + 1);
+    final AtomicLong      sum    = new AtomicLong(0);
+
+    Histogram(String stage, String server, String route, String status) {
+      this.stage = stage;
+      this.server = server;
+      this.route = route;
+      this.status = status;
+    }
+
+    void observe(
+                 long nanos) {
+      int bucket = 0;
+      while (bucket < BUCKET_NANOS.length && nanos > BUCKET_NANOS[bucket])
+        bucket++;
+      counts.incrementAndGet(bucket);
+      sum.addAndGet(nanos);
+    }
+  }
+
+  /**
+   * Stage times and access log details for a single request.
+   */
+  protected static class Timing {
+    final long            start          = System.nanoTime();
+    final String          method;
+    final String          server;
+    final String          route;
+    // Elapsed nanoseconds for each stage in STAGES order, stages may be timed more than once (e.g. a retried refresh)
+    final AtomicLongArray stages         = new AtomicLongArray(STAGES.length);
+    final AtomicBoolean   done           = new AtomicBoolean(false);
+    final AtomicLong      bytes          = new AtomicLong(0);
+    volatile long         kid            = -1;
+    volatile int          upstreamStatus;
+
+    Timing(String method, String server, String route) {
+      this.method = method;
+      this.server = server;
+      this.route = route;
+    }
+  }
+
+  private final int                                  maxSeries;
+  private final ConcurrentHashMap<String, Histogram> histograms = new ConcurrentHashMap<String, Histogram>();
+  private final AtomicLong                           overflow   = new AtomicLong(0);
+
+  /**
+   * Create a metrics registry.
+   *
+   * @param maxSeries
+   *          maximum number of distinct histograms.
+   */
+  public ProxyMetrics(int maxSeries) {
+    this.maxSeries = maxSeries;
+  }
+
+  /**
+   * Retrieve the global metrics registry, or null if metrics are disabled.
+   *
+   * @return the global metrics registry, or null if metrics are disabled.
+   */
+  public static synchronized ProxyMetrics getMetrics() {
+    if (instance == null && OrbitalProperties.getBooleanGlobalProperty(PROP_ENABLED, DEF_ENABLED)) {
+      instance = new ProxyMetrics((int) OrbitalProperties.getLongGlobalProperty(PROP_MAX_SERIES, DEF_MAX_SERIES));
+      final ProxyMetrics stats = instance;
+      ProxyStats.register("metrics", new ProxyStats.StatsSource() {
+        @Override
+        public Map<String, Number> getStats() {
+          return stats.getStats();
+        }
+      });
+    }
+    return instance;
+  }
+
+  /**
+   * @return the number of request stages.
+   */
+  public static int stageCount() {
+    return STAGES.length;
+  }
+
+  /**
+   * @param index
+   *          index of a stage, less than {@link #stageCount()}.
+   * @return the name of the stage.
+   */
+  public static String stageName(
+                                 int index) {
+    return STAGES[index];
+  }
+
+  /**
+   * Start timing a proxy request. Requests are timed if either metrics or the access log are enabled.
+   *
+   * @param servletRequest
+   *          the request to time.
+   */
+  public static void begin(
+                           HttpServletRequest servletRequest) {
+    if (getMetrics() == null && AccessLog.getLog() == null) return;
+    String server = servletRequest.getServletPath();
+    server = server.substring(server.lastIndexOf('/') + 1);
+    servletRequest.setAttribute(ATTR_TIMING, new Timing(servletRequest.getMethod(), server, routeOf(servletRequest.getPathInfo())));
+  }
+
+  /**
+   * Record the proxy key used by a request.
+   *
+   * @param servletRequest
+   *          the request being timed.
+   * @param kid
+   *          ID of the proxy key.
+   */
+  public static void identify(
+                              HttpServletRequest servletRequest,
+                              long kid) {
+    Timing timing = (Timing) servletRequest.getAttribute(ATTR_TIMING);
+    if (timing != null) timing.kid = kid;
+  }
+
+  /**
+   * Record the status returned by the ESI for a request.
+   *
+   * @param servletRequest
+   *          the request being timed.
+   * @param status
+   *          status returned by the ESI.
+   */
+  public static void upstream(
+                              HttpServletRequest servletRequest,
+                              int status) {
+    Timing timing = (Timing) servletRequest.getAttribute(ATTR_TIMING);
+    if (timing != null) timing.upstreamStatus = status;
+  }
+
+  /**
+   * Record body bytes relayed from the ESI for a request.
+   *
+   * @param servletRequest
+   *          the request being timed.
+   * @param count
+   *          number of bytes relayed.
+   */
+  public static void bytes(
+                           HttpServletRequest servletRequest,
+                           long count) {
+    Timing timing = (Timing) servletRequest.getAttribute(ATTR_TIMING);
+    if (timing != null) timing.bytes.addAndGet(count);
+  }
+
+  /**
+   * Record the time spent in a stage of a request.
+   *
+   * @param servletRequest
+   *          the request being timed.
+   * @param stage
+   *          the stage (one of the STAGE constants).
+   * @param startNanos
+   *          value of {@link System#nanoTime()} when the stage started.
+   */
+  public static void time(
+                          HttpServletRequest servletRequest,
+                          String stage,
+                          long startNanos) {
+    Timing timing = (Timing) servletRequest.getAttribute(ATTR_TIMING);
+    if (timing == null) return;
+    for (int i = 0; i < STAGES.length; i++) {
+      if (STAGES[i].equals(stage)) {
+        timing.stages.addAndGet(i, Math.max(System.nanoTime() - startNanos, 0));
+        return;
+      }
+    }
+  }
+
+  /**
+   * Finish timing a request, adding its stage times to the histograms and appending it to the access log. Only the first call for a request has any
+   * effect.
+   *
+   * @param servletRequest
+   *          the request being timed.
+   * @param status
+   *          status of the response sent to the client.
+   */
+  public static void complete(
+                              HttpServletRequest servletRequest,
+                              int status) {
+    Timing timing = (Timing) servletRequest.getAttribute(ATTR_TIMING);
+    if (timing == null || !timing.done.compareAndSet(false, true)) return;
+    long total = System.nanoTime() - timing.start;
+    ProxyMetrics metrics = getMetrics();
+    if (metrics != null) {
+      String statusClass = (status / 100) + "xx";
+      metrics.histogram(STAGE_TOTAL, timing.server, timing.route, statusClass).observe(total);
+      for (int i = 1; i < STAGES.length; i++) {
+        long elapsed = timing.stages.get(i);
+        if (elapsed > 0) metrics.histogram(STAGES[i], timing.server, timing.route, statusClass).observe(elapsed);
+      }
+    }
+    AccessLog accessLog = AccessLog.getLog();
+    if (accessLog != null) accessLog.append(timing, status, total);
+  }
+
+  /**
+   * Reduce a request path to its route by replacing numeric segments with "{id}".
+   */
+  protected static String routeOf(
+                                  String path) {
+    if (path == null) return "/";
+    StringBuilder route = null;
+    int start = 0;
+    while (start < path.length()) {
+      int end = path.indexOf('/', start);
+      if (end < 0) end = path.length();
+      boolean numeric = end > start;
+      for (int i = start; i < end && numeric; i++)
+        numeric = Character.isDigit(path.charAt(i));
+      if (numeric && route == null) route = new StringBuilder(path.length()).append(path, 0, start);
+      if (route != null) {
+        if (numeric) route.append("{id}");
+        else route.append(path, start, end);
+        if (end < path.length()) route.append('/');
+      }
+      start = end + 1;
+    }
+    return route == null ? path : route.toString();
+  }
+
+  protected Histogram histogram(
+                                String stage,
+                                String server,
+                                String route,
+                                String status) {
+    String key = stage + ' ' + server + ' ' + route + ' ' + status;
+    Histogram found = histograms.get(key);
+    if (found != null) return found;
+    if (histograms.size() >= maxSeries && !OTHER_ROUTE.equals(route)) {
+      overflow.incrementAndGet();
+      return histogram(stage, server, OTHER_ROUTE, status);
+    }
+    Histogram created = new Histogram(stage, server, route, status);
+    found = histograms.putIfAbsent(key, created);
+    return found != null ? found : created;
+  }
+
+  /**
+   * Write all histograms, and every statistic registered with {@link ProxyStats}, in the Prometheus text exposition format.
+   *
+   * @param out
+   *          destination for the metrics.
+   * @throws IOException
+   *           if an error occurs writing the metrics.
+   */
+  public void writePrometheus(
+                              Writer out)
+    throws IOException {
+    out.write("# HELP esi_proxy_stage_seconds Time spent in each stage of handling a proxy request.\n");
+    out.write("# TYPE esi_proxy_stage_seconds histogram\n");
+    for (Histogram next : new TreeMap<String, Histogram>(histograms).values()) {
+      String labels = "stage=\"" + escape(next.stage) + "\",server=\"" + escape(next.server) + "\",route=\"" + escape(next.route) + "\",status=\""
+          + escape(next.status) + "\"";
+      long cumulative = 0;
+      for (int i = 0; i < BUCKETS.length; i++) {
+        cumulative += next.counts.get(i);
+        out.write("esi_proxy_stage_seconds_bucket{" + labels + ",le=\"" + BUCKETS[i] + "\"} " + cumulative + "\n");
+      }
+      cumulative += next.counts.get(BUCKETS.length);
+      out.write("esi_proxy_stage_seconds_bucket{" + labels + ",le=\"+Inf\"} " + cumulative + "\n");
+      out.write("esi_proxy_stage_seconds_sum{" + labels + "} " + ((double) next.sum.get() / TimeUnit.SECONDS.toNanos(1)) + "\n");
+      out.write("esi_proxy_stage_seconds_count{" + labels + "} " + cumulative + "\n");
+    }
+    // Subsystem statistics are a mix of counters and gauges, so they are exported untyped
+    for (Map.Entry<String, Map<String, Number>> source : ProxyStats.snapshot().entrySet()) {
+      for (Map.Entry<String, Number> stat : source.getValue().entrySet()) {
+        String name = "esi_proxy_" + metricName(source.getKey()) + "_" + metricName(stat.getKey());
+        out.write("# TYPE " + name + " untyped\n");
+        out.write(name + " " + stat.getValue() + "\n");
+      }
+    }
+  }
+
+  /**
+   * Convert a camel case statistic name to a Prometheus metric name (e.g. "averageWaitTime" becomes "average_wait_time").
+   */
+  protected static String metricName(
+                                     String name) {
+    StringBuilder result = new StringBuilder(name.length() + 8);
+    for (int i = 0; i < name.length(); i++) {
+      char next = name.charAt(i);
+      if (Character.isUpperCase(next)) {
+        if (i > 0) result.append('_');
+        result.append(Character.toLowerCase(next));
+      } else if (Character.isLetterOrDigit(next)) {
+        result.append(next);
+      } else {
+        result.append('_');
+      }
+    }
+    return result.toString();
+  }
+
+  protected static String escape(
+                                 String value) {
+    return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+  }
+
+  public Map<String, Number> getStats() {
+    Map<String, Number> result = new HashMap<String, Number>();
+    result.put("series", histograms.size());
+    result.put("overflow", overflow.get());
+    return result;
+  }
+
+}
@@ -0,0 +1,256 @@
+package enterprises.orbital.esi.proxy;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.Arrays;
+
+/**
+ * A client query string with the proxy's own parameters removed. The raw query is scanned once: the proxy key, hash and all pages parameters are
+ * extracted, and every other parameter is copied to the remaining query exactly as the client encoded it (including order and repeated parameters). Only
+ * the extracted values are decoded.
+ *
+ * <p>
+ * All pages are requested with the all pages parameter set to "true" (in any case), or with the bare parameter name. Any other value, e.g. "false",
+ * leaves aggregation off. As with the key and hash, only the first occurrence counts. The parameter is removed whatever its value.
+ */
+public class ProxyQuery {
+  private String  key;
+  private String  hash;
+  private boolean allPages;
+  private boolean token;
+  private String  remaining;
+
+  private ProxyQuery() {}
+
+  /**
+   * Scan a raw query string.
+   *
+   * @param rawQuery
+   *          query string as sent by the client (without the leading "?"), may be null or include a fragment.
+   * @param keyName
+   *          name of the proxy key parameter.
+   * @param hashName
+   *          name of the proxy hash parameter.
+   * @param allPagesName
+   *          name of the all pages parameter.
+   * @return the scanned query.
+   */
+  public static ProxyQuery scan(
+                                String rawQuery,
+                                String keyName,
+                                String hashName,
+                                String allPagesName) {
+    ProxyQuery result = new ProxyQuery();
+    if (rawQuery == null) {
+      result.remaining = "";
+      return result;
+    }
+    int end = rawQuery.indexOf('#');
+    if (end < 0) end = rawQuery.length();
+    // Most queries carry no proxy parameters after the first few, so we only copy once something has been removed
+    StringBuilder kept = null;
+    int keptEnd = 0;
+    int start = 0;
+    boolean allPagesSeen = false;
+    while (start < end) {
+      int amp = rawQuery.indexOf('&', start);
+      if (amp < 0 || amp > end) amp = end;
+      int eq = rawQuery.indexOf('=', start);
+      int nameEnd = eq < 0 || eq > amp ? amp : eq;
+      boolean drop = true;
+      if (start == amp) {
+        // Empty parameter, drop it
+      } else if (matches(rawQuery, start, nameEnd, keyName)) {
+        if (result.key == null) result.key = decode(rawQuery, nameEnd, amp);
+      } else if (matches(rawQuery, start, nameEnd, hashName)) {
+        if (result.hash == null) result.hash = decode(rawQuery, nameEnd, amp);
+      } else if (matches(rawQuery, start, nameEnd, allPagesName)) {
+        if (!allPagesSeen) result.allPages = isEnabled(decode(rawQuery, nameEnd, amp));
+        allPagesSeen = true;
+      } else {
+        drop = false;
+        if (matches(rawQuery, start, nameEnd, "token")) result.token = true;
+      }
+      if (drop) {
+        if (kept == null) kept = new StringBuilder(end).append(rawQuery, 0, keptEnd);
+      } else if (kept != null) {
+        if (kept.length() > 0) kept.append('&');
+        kept.append(rawQuery, start, amp);
+      } else {
+        keptEnd = amp;
+      }
+      start = amp + 1;
+    }
+    result.remaining = kept == null ? rawQuery.substring(0, keptEnd) : kept.toString();
+    return result;
+  }
+
+  /**
+   * Remove every occurrence of a parameter from a raw query string, preserving the encoding of the other parameters.
+   *
+   * @param rawQuery
+   *          query string without the leading "?".
+   * @param name
+   *          name of the parameter to remove.
+   * @return the query without the named parameter.
+   */
+  public static String remove(
+                              String rawQuery,
+                              String name) {
+    StringBuilder kept = new StringBuilder(rawQuery.length());
+    int start = 0;
+    while (start < rawQuery.length()) {
+      int amp = rawQuery.indexOf('&', start);
+      if (amp < 0) amp = rawQuery.length();
+      int eq = rawQuery.indexOf('=', start);
+      int nameEnd = eq < 0 || eq > amp ? amp : eq;
+      if (start < amp && !matches(rawQuery, start, nameEnd, name)) {
+        if (kept.length() > 0) kept.append('&');
+        kept.append(rawQuery, start, amp);
+      }
+      start = amp + 1;
+    }
+    return kept.toString();
+  }
+
+  /**
+   * Find the value of a parameter in a raw query string.
+   *
+   * @param rawQuery
+   *          query string without the leading "?", may be null.
+   * @param name
+   *          name of the parameter to find.
+   * @return the decoded value of the first occurrence of the parameter, or null if not present.
+   */
+  public static String get(
+                           String rawQuery,
+                           String name) {
+    if (rawQuery == null) return null;
+    int start = 0;
+    while (start < rawQuery.length()) {
+      int amp = rawQuery.indexOf('&', start);
+      if (amp < 0) amp = rawQuery.length();
+      int eq = rawQuery.indexOf('=', start);
+      int nameEnd = eq < 0 || eq > amp ? amp : eq;
+      if (matches(rawQuery, start, nameEnd, name)) return decode(rawQuery, nameEnd, amp);
+      start = amp + 1;
+    }
+    return null;
+  }
+
+  /**
+   * Put the parameters of a raw query string in a canonical (sorted) order, so that equivalent queries compare equal. The query is returned unchanged if it
+   * is already in order, which is the usual case.
+   *
+   * @param rawQuery
+   *          query string without the leading "?".
+   * @return the query with parameters in sorted order.
+   */
+  public static String canonical(
+                                 String rawQuery) {
+    int previous = 0;
+    int start = rawQuery.indexOf('&');
+    while (start >= 0) {
+      int next = rawQuery.indexOf('&', start + 1);
+      if (next < 0) next = rawQuery.length();
+      if (compare(rawQuery, previous, start, start + 1, next) > 0) {
+        String[] parts = rawQuery.split("&");
+        Arrays.sort(parts);
+        StringBuilder sorted = new StringBuilder(rawQuery.length());
+        for (String part : parts) {
+          if (sorted.length() > 0) sorted.append('&');
+          sorted.append(part);
+        }
+        return sorted.toString();
+      }
+      previous = start + 1;
+      start = next < rawQuery.length() ? next : -1;
+    }
+    return rawQuery;
+  }
+
+  private static int compare(
+                             String s,
+                             int aStart,
+                             int aEnd,
+                             int bStart,
+                             int bEnd) {
+    int length = Math.min(aEnd - aStart, bEnd - bStart);
+    for (int i = 0; i < length; i++) {
+      int diff = s.charAt(aStart + i) - s.charAt(bStart + i);
+      if (diff != 0) return diff;
+    }
+    return (aEnd - aStart) - (bEnd - bStart);
+  }
+
+  private static boolean matches(
+                                 String query,
+                                 int start,
+                                 int end,
+                                 String name) {
+    return name != null && end - start == name.length() && query.regionMatches(start, name, 0, name.length());
+  }
+
+  /**
+   * Interpret the value of a flag parameter. A bare flag (no value) counts as set.
+   *
+   * @param value
+   *          decoded value, empty if the parameter had no value.
+   * @return true if the flag is set.
+   */
+  static boolean isEnabled(
+                           String value) {
+    return value.isEmpty() || value.equalsIgnoreCase("true");
+  }
+
+  private static String decode(
+                               String query,
+                               int nameEnd,
+                               int end) {
+    if (nameEnd >= end) return "";
+    String value = query.substring(nameEnd + 1, end);
+    if (value.indexOf('%') < 0 && value.indexOf('+') < 0) return value;
+    try {
+      return URLDecoder.decode(value, "UTF-8");
+    } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+      // Malformed encoding, use the value as sent
+      return value;
+    }
+  }
+
+  /**
+   * @return the decoded proxy key, or null if not present.
+   */
+  public String getKey() {
+    return key;
+  }
+
+  /**
+   * @return the decoded proxy hash, or null if not present.
+   */
+  public String getHash() {
+    return hash;
+  }
+
+  /**
+   * @return true if the client requested all pages.
+   */
+  public boolean isAllPages() {
+    return allPages;
+  }
+
+  /**
+   * @return true if the query carries the client's own access token.
+   */
+  public boolean hasToken() {
+    return token;
+  }
+
+  /**
+   * @return the query with the proxy parameters removed, in its original encoding.
+   */
+  public String getRemaining() {
+    return remaining;
+  }
+
+}
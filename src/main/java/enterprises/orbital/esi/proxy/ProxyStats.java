@@ -0,0 +1,67 @@
+package enterprises.orbital.esi.proxy;
+
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registry of runtime statistics for the proxy. Subsystems (caches, refreshers, etc.) register a named source when they are created. The services API
+ * collects the current value of every registered source on demand.
+ */
+public class ProxyStats {
+
+  /**
+   * A source of named counters or gauges.
+   */
+  public interface StatsSource {
+    /**
+     * Retrieve the current value of all statistics maintained by this source.
+     *
+     * @return map from statistic name to current value.
+     */
+    public Map<String, Number> getStats();
+  }
+
+  // Registered sources, keyed by source name
+  protected static final Map<String, StatsSource> sources = new ConcurrentHashMap<String, StatsSource>();
+
+  /**
+   * Register a statistics source. Registering a source with the same name as an existing source replaces the existing source.
+   *
+   * @param name
+   *          the name of the source.
+   * @param source
+   *          the source to register.
+   */
+  public static void register(
+                              String name,
+                              StatsSource source) {
+    sources.put(name, source);
+  }
+
+  /**
+   * Remove a statistics source.
+   *
+   * @param name
+   *          the name of the source to remove.
+   */
+  public static void unregister(
+                                String name) {
+    sources.remove(name);
+  }
+
+  /**
+   * Collect the current value of all registered statistics.
+   *
+   * @return map from source name to the statistics for that source, sorted by source name.
+   */
+  public static Map<String, Map<String, Number>> snapshot() {
+    Map<String, Map<String, Number>> result = new TreeMap<String, Map<String, Number>>();
+    for (Entry<String, StatsSource> next : sources.entrySet()) {
+      result.put(next.getKey(), new TreeMap<String, Number>(next.getValue().getStats()));
+    }
+    return result;
+  }
+
+}
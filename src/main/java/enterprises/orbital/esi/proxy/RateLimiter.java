@@ -0,0 +1,330 @@
+package enterprises.orbital.esi.proxy;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import enterprises.orbital.base.OrbitalProperties;
+import enterprises.orbital.base.PersistentProperty;
+
+/**
+ * Token bucket rate limiting of authenticated requests, so that no single access key or user can monopolize the proxy's capacity to the ESI. Each key and
+ * each user has its own bucket which refills at a steady rate up to a maximum burst. A request consumes one token from its key's bucket and one from its
+ * user's bucket.
+ *
+ * <p>
+ * Each bucket is a single atomic "theoretical arrival time" (the generic cell rate algorithm, which is equivalent to a token bucket). Acquiring a token is a
+ * compare-and-set on that value, so the limiter never blocks. Default limits come from global properties. Per-user limits can be set with persistent
+ * properties on the user account (e.g. ProxyUserAccount.&lt;uid&gt;.rateLimit.keyRate), which are re-read periodically. Per-user limits are loaded in the
+ * background so requests never wait for the database. Until a user's limits have been loaded the defaults apply, and once loaded, out of date limits stay
+ * in force until they have been re-read. A rate of zero or less disables the corresponding limit.
+ */
+public class RateLimiter {
+  protected static final Logger log                  = Logger.getLogger(RateLimiter.class.getName());
+
+  public static final String    PROP_ENABLED         = "enterprises.orbital.esi.proxy.rateLimit.enabled";
+  public static final boolean   DEF_ENABLED          = false;
+  public static final String    PROP_KEY_RATE        = "enterprises.orbital.esi.proxy.rateLimit.keyRate";
+  public static final long      DEF_KEY_RATE         = 20;
+  public static final String    PROP_KEY_BURST       = "enterprises.orbital.esi.proxy.rateLimit.keyBurst";
+  public static final long      DEF_KEY_BURST        = 40;
+  public static final String    PROP_USER_RATE       = "enterprises.orbital.esi.proxy.rateLimit.userRate";
+  public static final long      DEF_USER_RATE        = 50;
+  public static final String    PROP_USER_BURST      = "enterprises.orbital.esi.proxy.rateLimit.userBurst";
+  public static final long      DEF_USER_BURST       = 100;
+  public static final String    PROP_OVERRIDE_TTL    = "enterprises.orbital.esi.proxy.rateLimit.overrideTTL";
+  public static final long      DEF_OVERRIDE_TTL     = TimeUnit.MILLISECONDS.convert(5, TimeUnit.MINUTES);
+  public static final String    PROP_MAX_BUCKETS     = "enterprises.orbital.esi.proxy.rateLimit.maxBuckets";
+  public static final long      DEF_MAX_BUCKETS      = 100000;
+
+  // Persistent properties on a user account which override the default limits for that user
+  public static final String    USER_KEY_RATE        = "rateLimit.keyRate";
+  public static final String    USER_KEY_BURST       = "rateLimit.keyBurst";
+  public static final String    USER_USER_RATE       = "rateLimit.userRate";
+  public static final String    USER_USER_BURST      = "rateLimit.userBurst";
+
+  // Not defined by the servlet API
+  public static final int       SC_TOO_MANY_REQUESTS = 429;
+
+  /**
+   * Limits (requests per second and burst size) which apply to a user and the user's keys.
+   */
+  protected static class Limits {
+    final long keyRate;
+    final long keyBurst;
+    final long userRate;
+    final long userBurst;
+    final long loadTime;
+
+    Limits(long keyRate, long keyBurst, long userRate, long userBurst, long loadTime) {
+      this.keyRate = keyRate;
+      this.keyBurst = keyBurst;
+      this.userRate = userRate;
+      this.userBurst = userBurst;
+      this.loadTime = loadTime;
+    }
+  }
+
+  /**
+   * A single bucket. The bucket is full when the theoretical arrival time is at or before the current time.
+   */
+  protected static class Bucket {
+    // Rate and burst this bucket was created with
+    final long       rate;
+    final long       burst;
+    // Nanoseconds to refill one token, or 0 if unlimited
+    final long       interval;
+    // How far (nanoseconds) the theoretical arrival time may run ahead of the current time, which determines the burst size
+    final long       tolerance;
+    final AtomicLong tat;
+
+    Bucket(long rate, long burst, long tat) {
+      this.rate = rate;
+      this.burst = burst;
+      this.interval = rate > 0 ? TimeUnit.SECONDS.toNanos(1) / rate : 0;
+      this.tolerance = interval * (Math.max(burst, 1) - 1);
+      this.tat = new AtomicLong(tat);
+    }
+
+    boolean matches(
+                    long rate,
+                    long burst) {
+      return this.rate == rate && this.burst == burst;
+    }
+
+    /**
+     * Attempt to take a token.
+     *
+     * @param now
+     *          current time (nanoseconds).
+     * @return 0 if a token was taken, otherwise the time (nanoseconds) until a token will be available.
+     */
+    long acquire(
+                 long now) {
+      if (interval == 0) return 0;
+      while (true) {
+        long current = tat.get();
+        long base = Math.max(current, now);
+        long wait = base - now - tolerance;
+        if (wait > 0) return wait;
+        if (tat.compareAndSet(current, base + interval)) return 0;
+      }
+    }
+  }
+
+  private final long                            keyRate;
+  private final long                            keyBurst;
+  private final long                            userRate;
+  private final long                            userBurst;
+  private final long                            overrideTTL;
+  private final int                             maxBuckets;
+  private final ConcurrentHashMap<Long, Bucket> keyBuckets    = new ConcurrentHashMap<Long, Bucket>();
+  private final ConcurrentHashMap<Long, Bucket> userBuckets   = new ConcurrentHashMap<Long, Bucket>();
+  private final ConcurrentHashMap<Long, Limits> userLimits    = new ConcurrentHashMap<Long, Limits>();
+  // Users whose limits are being loaded
+  private final ConcurrentHashMap<Long, Long>   loading       = new ConcurrentHashMap<Long, Long>();
+  private final ThreadPoolExecutor              loader;
+  private final Limits                          defaults;
+  private final AtomicBoolean                   pruning       = new AtomicBoolean(false);
+  private final AtomicLong                      allowed       = new AtomicLong(0);
+  private final AtomicLong                      limitedByKey  = new AtomicLong(0);
+  private final AtomicLong                      limitedByUser = new AtomicLong(0);
+
+  /**
+   * Create a limiter.
+   *
+   * @param keyRate
+   *          default requests per second for each key.
+   * @param keyBurst
+   *          default burst size for each key.
+   * @param userRate
+   *          default requests per second for each user, across all of the user's keys.
+   * @param userBurst
+   *          default burst size for each user.
+   * @param overrideTTL
+   *          time (milliseconds) after which per-user limits are re-read.
+   * @param maxBuckets
+   *          number of buckets of each kind above which idle buckets are discarded.
+   */
+  public RateLimiter(long keyRate, long keyBurst, long userRate, long userBurst, long overrideTTL, int maxBuckets) {
+    this.keyRate = keyRate;
+    this.keyBurst = keyBurst;
+    this.userRate = userRate;
+    this.userBurst = userBurst;
+    this.overrideTTL = overrideTTL;
+    this.maxBuckets = maxBuckets;
+    this.defaults = new Limits(keyRate, keyBurst, userRate, userBurst, 0);
+    // Loads which don't fit in the queue are simply retried by a later request
+    this.loader = new ThreadPoolExecutor(
+        1, 1, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(Math.max(maxBuckets, 1)), new NamedThreadFactory("rate-limit-loader"));
+  }
+
+  /**
+   * Create a limiter from configured properties, or return null if rate limiting is disabled.
+   *
+   * @return a new limiter, or null if rate limiting is disabled.
+   */
+  public static RateLimiter create() {
+    if (!OrbitalProperties.getBooleanGlobalProperty(PROP_ENABLED, DEF_ENABLED)) return null;
+    final RateLimiter limiter = new RateLimiter(
+        OrbitalProperties.getLongGlobalProperty(PROP_KEY_RATE, DEF_KEY_RATE), OrbitalProperties.getLongGlobalProperty(PROP_KEY_BURST, DEF_KEY_BURST),
+        OrbitalProperties.getLongGlobalProperty(PROP_USER_RATE, DEF_USER_RATE), OrbitalProperties.getLongGlobalProperty(PROP_USER_BURST, DEF_USER_BURST),
+        OrbitalProperties.getLongGlobalProperty(PROP_OVERRIDE_TTL, DEF_OVERRIDE_TTL),
+        (int) OrbitalProperties.getLongGlobalProperty(PROP_MAX_BUCKETS, DEF_MAX_BUCKETS));
+    ProxyStats.register("rateLimit", new ProxyStats.StatsSource() {
+      @Override
+      public Map<String, Number> getStats() {
+        return limiter.getStats();
+      }
+    });
+    return limiter;
+  }
+
+  /**
+   * Take a token for a request made with the given key.
+   *
+   * @param kid
+   *          ID of the key making the request.
+   * @param uid
+   *          ID of the user which owns the key.
+   * @return 0 if the request may proceed, otherwise the time (milliseconds) until the request could be retried.
+   */
+  public long acquire(
+                      long kid,
+                      long uid) {
+    long now = System.nanoTime();
+    Limits limits = getLimits(uid);
+    long wait = bucket(keyBuckets, kid, limits.keyRate, limits.keyBurst, now).acquire(now);
+    if (wait > 0) {
+      limitedByKey.incrementAndGet();
+      return TimeUnit.NANOSECONDS.toMillis(wait) + 1;
+    }
+    // A token taken from the key's bucket is not returned if the user's bucket is empty. The key was going to be refused anyway while its user is limited.
+    wait = bucket(userBuckets, uid, limits.userRate, limits.userBurst, now).acquire(now);
+    if (wait > 0) {
+      limitedByUser.incrementAndGet();
+      return TimeUnit.NANOSECONDS.toMillis(wait) + 1;
+    }
+    allowed.incrementAndGet();
+    return 0;
+  }
+
+  /**
+   * Find the bucket for an ID, creating it if necessary. A bucket created with different limits is replaced, preserving its current level.
+   */
+  protected Bucket bucket(
+                          ConcurrentHashMap<Long, Bucket> buckets,
+                          long id,
+                          final long rate,
+                          final long burst,
+                          final long now) {
+    Bucket current = buckets.get(id);
+    if (current != null && current.matches(rate, burst)) return current;
+    Bucket result = buckets.compute(id, new BiFunction<Long, Bucket, Bucket>() {
+      @Override
+      public Bucket apply(
+                          Long key,
+                          Bucket existing) {
+        if (existing != null && existing.matches(rate, burst)) return existing;
+        return new Bucket(rate, burst, existing != null ? existing.tat.get() : now);
+      }
+    });
+    if (current == null && buckets.size() > maxBuckets) prune(buckets, now);
+    return result;
+  }
+
+  /**
+   * Retrieve the limits for a user. Never blocks: if the user's limits are missing or out of date, they are re-read in the background and the limits we
+   * have (or the defaults) apply in the meantime.
+   */
+  protected Limits getLimits(
+                             long uid) {
+    Limits limits = userLimits.get(uid);
+    if (limits != null && OrbitalProperties.getCurrentTime() - limits.loadTime < overrideTTL) return limits;
+    scheduleLoad(uid);
+    return limits != null ? limits : defaults;
+  }
+
+  /**
+   * Load the limits for a user in the background, unless a load is already in progress.
+   */
+  protected void scheduleLoad(
+                              final long uid) {
+    if (loading.putIfAbsent(uid, uid) != null) return;
+    try {
+      loader.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            userLimits.put(uid, loadLimits(uid, OrbitalProperties.getCurrentTime()));
+          } catch (RuntimeException e) {
+            log.log(Level.WARNING, "failed to load rate limits for user " + uid, e);
+          } finally {
+            loading.remove(uid);
+          }
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      loading.remove(uid);
+    }
+  }
+
+  protected Limits loadLimits(
+                              long uid,
+                              long now) {
+    ProxyUserAccount account = ProxyUserAccount.getAccount(uid);
+    if (account == null) return new Limits(keyRate, keyBurst, userRate, userBurst, now);
+    return new Limits(
+        PersistentProperty.getLongPropertyWithFallback(account, USER_KEY_RATE, keyRate),
+        PersistentProperty.getLongPropertyWithFallback(account, USER_KEY_BURST, keyBurst),
+        PersistentProperty.getLongPropertyWithFallback(account, USER_USER_RATE, userRate),
+        PersistentProperty.getLongPropertyWithFallback(account, USER_USER_BURST, userBurst), now);
+  }
+
+  /**
+   * Discard full buckets, which are indistinguishable from new buckets. Only one thread prunes at a time, other threads simply skip pruning.
+   */
+  protected void prune(
+                       ConcurrentHashMap<Long, Bucket> buckets,
+                       long now) {
+    if (!pruning.compareAndSet(false, true)) return;
+    try {
+      for (Iterator<Bucket> i = buckets.values().iterator(); i.hasNext();) {
+        if (i.next().tat.get() <= now) i.remove();
+      }
+      for (Iterator<Limits> i = userLimits.values().iterator(); i.hasNext();) {
+        if (OrbitalProperties.getCurrentTime() - i.next().loadTime >= overrideTTL) i.remove();
+      }
+    } finally {
+      pruning.set(false);
+    }
+  }
+
+  /**
+   * Stop loading per-user limits.
+   */
+  public void shutdown() {
+    loader.shutdownNow();
+  }
+
+  public Map<String, Number> getStats() {
+    Map<String, Number> result = new HashMap<String, Number>();
+    result.put("keyBuckets", keyBuckets.size());
+    result.put("userBuckets", userBuckets.size());
+    result.put("allowed", allowed.get());
+    result.put("limitedByKey", limitedByKey.get());
+    result.put("limitedByUser", limitedByUser.get());
+    return result;
+  }
+
+}
@@ -0,0 +1,234 @@
+package enterprises.orbital.esi.proxy;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+import enterprises.orbital.base.OrbitalProperties;
+
+/**
+ * Single-flight coalescing of identical concurrent ESI requests. The first request for a given identity (target host, path, query, representation and
+ * authorization) becomes the leader and is sent to the ESI. Identical requests which arrive while the leader is in flight wait for the leader's response
+ * and are answered with a copy of it. If the leader fails, or its response is too large to buffer, waiting requests are sent to the ESI individually.
+ */
+public class RequestCoalescer {
+  public static final String  PROP_ENABLED   = "enterprises.orbital.esi.proxy.coalesce.enabled";
+  public static final boolean DEF_ENABLED    = true;
+  public static final String  PROP_MAX_BYTES = "enterprises.orbital.esi.proxy.coalesce.maxBytes";
+  public static final long    DEF_MAX_BYTES  = 8L * 1024L * 1024L;
+  public static final String  PROP_TIMEOUT   = "enterprises.orbital.esi.proxy.coalesce.timeout";
+  public static final long    DEF_TIMEOUT    = TimeUnit.MILLISECONDS.convert(30, TimeUnit.SECONDS);
+
+  /**
+   * A request's view of an in-flight exchange.
+   */
+  public static class Flight {
+    private final String                                 key;
+    private final CompletableFuture<ResponseCache.Entry> result;
+    private final boolean                                leader;
+
+    protected Flight(String key, CompletableFuture<ResponseCache.Entry> result, boolean leader) {
+      this.key = key;
+      this.result = result;
+      this.leader = leader;
+    }
+
+    /**
+     * @return true if this request should perform the exchange with the ESI.
+     */
+    public boolean isLeader() {
+      return leader;
+    }
+  }
+
+  private final long                                                          maxBytes;
+  private final long                                                          timeout;
+  private final ConcurrentMap<String, CompletableFuture<ResponseCache.Entry>> inflight  = new ConcurrentHashMap<String, CompletableFuture<ResponseCache.Entry>>();
+  private final AtomicLong                                                    leaders   = new AtomicLong(0);
+  private final AtomicLong                                                    followers = new AtomicLong(0);
+  // Followers which had to go to the ESI themselves because the leader could not share its response
+  private final AtomicLong                                                    fallbacks = new AtomicLong(0);
+
+  /**
+   * Create a coalescer.
+   *
+   * @param maxBytes
+   *          largest response body (bytes) which will be buffered for sharing.
+   * @param timeout
+   *          maximum time (milliseconds) a follower waits for the leader.
+   */
+  public RequestCoalescer(long maxBytes, long timeout) {
+    this.maxBytes = maxBytes;
+    this.timeout = timeout;
+  }
+
+  /**
+   * Create a coalescer from configured properties, or return null if coalescing is disabled.
+   *
+   * @return a new coalescer, or null if coalescing is disabled.
+   */
+  public static RequestCoalescer create() {
+    if (!OrbitalProperties.getBooleanGlobalProperty(PROP_ENABLED, DEF_ENABLED)) return null;
+    final RequestCoalescer coalescer = new RequestCoalescer(
+        OrbitalProperties.getLongGlobalProperty(PROP_MAX_BYTES, DEF_MAX_BYTES), OrbitalProperties.getLongGlobalProperty(PROP_TIMEOUT, DEF_TIMEOUT));
+    ProxyStats.register("requestCoalescing", new ProxyStats.StatsSource() {
+      @Override
+      public Map<String, Number> getStats() {
+        return coalescer.getStats();
+      }
+    });
+    return coalescer;
+  }
+
+  public long getMaxBytes() {
+    return maxBytes;
+  }
+
+  /**
+   * Join the exchange for the given request identity, becoming the leader if there is no exchange in flight.
+   *
+   * @param key
+   *          request identity.
+   * @return this request's view of the exchange.
+   */
+  public Flight join(
+                     String key) {
+    CompletableFuture<ResponseCache.Entry> mine = new CompletableFuture<ResponseCache.Entry>();
+    CompletableFuture<ResponseCache.Entry> existing = inflight.putIfAbsent(key, mine);
+    if (existing != null) {
+      followers.incrementAndGet();
+      return new Flight(key, existing, false);
+    }
+    leaders.incrementAndGet();
+    return new Flight(key, mine, true);
+  }
+
+  /**
+   * Wait for the leader of an exchange to share its response.
+   *
+   * @param flight
+   *          a follower's view of the exchange.
+   * @return the leader's response, or null if the leader could not share its response. In the latter case, the follower should perform its own exchange.
+   */
+  public ResponseCache.Entry await(
+                                   Flight flight) {
+    ResponseCache.Entry result = null;
+    try {
+      result = flight.result.get(timeout, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException | TimeoutException e) {
+      // Fall through and perform our own exchange
+    }
+    if (result == null) fallbacks.incrementAndGet();
+    return result;
+  }
+
+  /**
+   * Receives the outcome of an exchange without blocking.
+   */
+  public interface Follower {
+    /**
+     * Called with the leader's response.
+     *
+     * @param response
+     *          the shared response.
+     */
+    public void shared(
+                       ResponseCache.Entry response);
+
+    /**
+     * Called if the leader could not share its response. The follower should perform its own exchange.
+     */
+    public void notShared();
+  }
+
+  /**
+   * A follower's registration with an exchange, see {@link #follow(Flight, Follower)}.
+   */
+  public static class Following {
+    // Set by whichever comes first, the outcome or a cancellation
+    private final AtomicBoolean claimed = new AtomicBoolean(false);
+
+    /**
+     * Stop the follower from receiving the outcome of the exchange, e.g. because the follower timed out.
+     *
+     * @return true if the follower will not be called, false if it has already been called.
+     */
+    public boolean cancel() {
+      return claimed.compareAndSet(false, true);
+    }
+  }
+
+  /**
+   * Arrange for a follower to receive the leader's response when it is available, without blocking the calling thread. The follower is called on the thread
+   * which completes the exchange, or on the calling thread if the exchange has already completed. Callers are responsible for their own timeouts, and
+   * should cancel the returned registration when they give up waiting.
+   *
+   * @param flight
+   *          a follower's view of the exchange.
+   * @param follower
+   *          receives the outcome of the exchange.
+   * @return the follower's registration.
+   */
+  public Following follow(
+                          Flight flight,
+                          final Follower follower) {
+    final Following following = new Following();
+    flight.result.whenComplete(new BiConsumer<ResponseCache.Entry, Throwable>() {
+      @Override
+      public void accept(
+                         ResponseCache.Entry result,
+                         Throwable error) {
+        if (!following.claimed.compareAndSet(false, true)) return;
+        if (result != null) {
+          follower.shared(result);
+        } else {
+          fallbacks.incrementAndGet();
+          follower.notShared();
+        }
+      }
+    });
+    return following;
+  }
+
+  /**
+   * Complete an exchange. Only the leader's call has any effect. Subsequent calls for the same flight are ignored so this method may safely be called both
+   * when the response is available and again during cleanup.
+   *
+   * @param flight
+   *          the leader's view of the exchange.
+   * @param response
+   *          the response to share, or null if the response can not be shared.
+   */
+  public void finish(
+                     Flight flight,
+                     ResponseCache.Entry response) {
+    if (!flight.leader) return;
+    // Remove first, so that requests arriving after the response was received start a new exchange
+    inflight.remove(flight.key, flight.result);
+    flight.result.complete(response);
+  }
+
+  public Map<String, Number> getStats() {
+    Map<String, Number> result = new HashMap<String, Number>();
+    long lead = leaders.get();
+    long follow = followers.get();
+    result.put("inflight", inflight.size());
+    result.put("leaders", lead);
+    result.put("followers", follow);
+    result.put("fallbacks", fallbacks.get());
+    // Fraction of requests which did not require their own exchange with the ESI
+    result.put("coalescingRatio", lead + follow == 0 ? 0.0 : (double) (follow - fallbacks.get()) / (lead + follow));
+    return result;
+  }
+
+}
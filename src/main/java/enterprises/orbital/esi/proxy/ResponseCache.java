@@ -0,0 +1,761 @@
+package enterprises.orbital.esi.proxy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+
+import enterprises.orbital.base.OrbitalProperties;
+
+/**
+ * Cache of ESI responses. Most ESI GET responses carry an Expires header and are identical for every caller until that time. This cache stores such
+ * responses (status, headers and body as received from the ESI) so that subsequent identical requests can be answered without contacting the ESI.
+ * <p>
+ * There are two caches. The shared cache holds responses to public requests and may serve them to any client. The private cache holds responses to
+ * authenticated requests. The private cache is partitioned by proxy access key, a response is only ever served to requests made with the key which
+ * retrieved it. Deleting a key discards its partition. A partition only exists while it holds entries, it is pruned along with its last entry.
+ * <p>
+ * Entries are keyed on server type, path, normalized query string and the request headers which select a representation (content encoding and language).
+ * Entries are only stored when the ESI marks them as cacheable and are dropped once they expire. The total size of stored bodies is bounded by a byte
+ * budget, the least recently used entries are evicted first when the budget is exceeded.
+ * <p>
+ * The cache is split into segments by key, each holding an equal share of the byte budget and evicting its own least recently used entries. Each segment
+ * has its own lock, so concurrent requests only contend when their keys fall in the same segment.
+ * <p>
+ * Expired entries which carry an ETag are kept (until evicted) so they can be revalidated with the ESI. If the ESI reports the entry has not changed, the
+ * entry is renewed and served without transferring the body again. Clients which already hold the current version of a cached response receive a 304.
+ */
+public class ResponseCache {
+  public static final String         PROP_ENABLED                 = "enterprises.orbital.esi.proxy.responseCache.enabled";
+  public static final boolean        DEF_ENABLED                  = true;
+  public static final String         PROP_MAX_BYTES               = "enterprises.orbital.esi.proxy.responseCache.maxBytes";
+  public static final long           DEF_MAX_BYTES                = 64L * 1024L * 1024L;
+  public static final String         PROP_MAX_ENTRY_BYTES         = "enterprises.orbital.esi.proxy.responseCache.maxEntryBytes";
+  public static final long           DEF_MAX_ENTRY_BYTES          = 4L * 1024L * 1024L;
+  public static final String         PROP_PRIVATE_ENABLED         = "enterprises.orbital.esi.proxy.privateCache.enabled";
+  public static final boolean        DEF_PRIVATE_ENABLED          = true;
+  public static final String         PROP_PRIVATE_MAX_BYTES       = "enterprises.orbital.esi.proxy.privateCache.maxBytes";
+  public static final long           DEF_PRIVATE_MAX_BYTES        = 64L * 1024L * 1024L;
+  public static final String         PROP_PRIVATE_MAX_ENTRY_BYTES = "enterprises.orbital.esi.proxy.privateCache.maxEntryBytes";
+  public static final long           DEF_PRIVATE_MAX_ENTRY_BYTES  = 1024L * 1024L;
+  // Partition used for all entries in the shared cache
+  public static final long           SHARED_PARTITION             = 0;
+  // Number of segments, must be a power of two
+  protected static final int         SEGMENTS                     = 16;
+  // Most partitions reported by getPartitionStats
+  protected static final int         PARTITION_STATS_LIMIT        = 100;
+
+  // Singleton instances, created on first use
+  private static ResponseCache       sharedInstance;
+  private static ResponseCache       privateInstance;
+
+  // Headers which are never stored with a cached response
+  protected static final Set<String> SKIP_HEADERS                 = new HashSet<String>(
+      Arrays.asList("connection", "keep-alive", "proxy-authenticate", "proxy-authorization", "te", "trailer", "trailers", "transfer-encoding", "upgrade",
+                    "content-length", "set-cookie", "age"));
+  // Request headers which may select a different representation from the ESI
+  protected static final Set<String> VARY_HEADERS                 = new HashSet<String>(Arrays.asList("accept-encoding", "accept-language"));
+
+  /**
+   * A cached response.
+   */
+  public static class Entry {
+    private final long       partition;
+    private final String     key;
+    private final int        status;
+    private final String[][] headers;
+    private final byte[]     body;
+    private final String     etag;
+    private final long       expiry;
+
+    public Entry(long partition, String key, int status, String[][] headers, byte[] body, String etag, long expiry) {
+      super();
+      this.partition = partition;
+      this.key = key;
+      this.status = status;
+      this.headers = headers;
+      this.body = body;
+      this.etag = etag;
+      this.expiry = expiry;
+    }
+
+    public int getStatus() {
+      return status;
+    }
+
+    public byte[] getBody() {
+      return body;
+    }
+
+    public String getETag() {
+      return etag;
+    }
+
+    public long getExpiry() {
+      return expiry;
+    }
+
+    public long getPartition() {
+      return partition;
+    }
+
+    public long size() {
+      // Rough accounting of header overhead
+      return body.length + headers.length * 64;
+    }
+  }
+
+  /**
+   * Output stream which passes data through to a client while keeping a copy for the cache. Copying stops (and the copy is discarded) if the response
+   * turns out to be larger than the maximum entry size.
+   */
+  public static class Capture extends OutputStream {
+    private final OutputStream    target;
+    private final long            limit;
+    private ByteArrayOutputStream copy = new ByteArrayOutputStream();
+
+    public Capture(OutputStream target, long limit) {
+      this.target = target;
+      this.limit = limit;
+    }
+
+    @Override
+    public void write(
+                      int b)
+      throws IOException {
+      target.write(b);
+      if (copy != null) {
+        copy.write(b);
+        if (copy.size() > limit) copy = null;
+      }
+    }
+
+    @Override
+    public void write(
+                      byte[] b,
+                      int off,
+                      int len)
+      throws IOException {
+      target.write(b, off, len);
+      if (copy != null) {
+        copy.write(b, off, len);
+        if (copy.size() > limit) copy = null;
+      }
+    }
+
+    @Override
+    public void flush() throws IOException {
+      target.flush();
+    }
+
+    /**
+     * Retrieve the captured body.
+     *
+     * @return the captured body, or null if the body was too large to capture.
+     */
+    public byte[] getBody() {
+      return copy == null ? null : copy.toByteArray();
+    }
+  }
+
+  /**
+   * Bookkeeping for a single partition of a private cache.
+   */
+  protected static class Partition {
+    // Keys of the entries in this partition. Guarded by this partition.
+    final Set<String> keys   = new HashSet<String>();
+    // Set once the partition has been removed, a discarded partition is never reused. Guarded by this partition.
+    boolean           discarded;
+    final AtomicLong  hits   = new AtomicLong(0);
+    final AtomicLong  misses = new AtomicLong(0);
+  }
+
+  /**
+   * A segment of the cache, holding the entries whose keys hash to it.
+   */
+  protected static class Segment {
+    // Access ordered, so iteration starts with the least recently used entry. Guarded by this segment.
+    final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(64, 0.75f, true);
+    // Guarded by this segment.
+    long                               bytes;
+  }
+
+  private final String                         name;
+  // True if entries may be served to any client
+  private final boolean                        shared;
+  // Byte budget of each segment
+  private final long                           segmentBytes;
+  private final long                           maxEntryBytes;
+  private final Segment[]                      segments      = new Segment[SEGMENTS];
+  // Only maintained for private caches
+  private final ConcurrentMap<Long, Partition> partitions    = new ConcurrentHashMap<Long, Partition>();
+  private final AtomicLong                     hits          = new AtomicLong(0);
+  private final AtomicLong                     misses        = new AtomicLong(0);
+  private final AtomicLong                     stores        = new AtomicLong(0);
+  private final AtomicLong                     evictions     = new AtomicLong(0);
+  // ESI responses which confirmed an expired entry was still current
+  private final AtomicLong                     revalidations = new AtomicLong(0);
+  // Responses answered with a 304 because the client already held the cached version
+  private final AtomicLong                     notModified   = new AtomicLong(0);
+
+  public ResponseCache(String name, boolean shared, long maxBytes, long maxEntryBytes) {
+    this.name = name;
+    this.shared = shared;
+    this.segmentBytes = maxBytes / SEGMENTS;
+    // An entry must fit in its segment
+    this.maxEntryBytes = Math.min(segmentBytes, maxEntryBytes);
+    for (int i = 0; i < SEGMENTS; i++)
+      segments[i] = new Segment();
+  }
+
+  protected Segment segmentFor(
+                               String fullKey) {
+    int hash = fullKey.hashCode();
+    return segments[(hash ^ (hash >>> 16)) & (SEGMENTS - 1)];
+  }
+
+  /**
+   * Record an entry in its partition, creating the partition if necessary. Caller must hold the lock on the entry's segment.
+   */
+  protected void track(
+                       Entry entry) {
+    while (true) {
+      Partition owner = partitions.get(entry.partition);
+      if (owner == null) {
+        Partition created = new Partition();
+        owner = partitions.putIfAbsent(entry.partition, created);
+        if (owner == null) owner = created;
+      }
+      synchronized (owner) {
+        if (!owner.discarded) {
+          owner.keys.add(entry.key);
+          return;
+        }
+      }
+      // Partition was pruned or invalidated while we were looking, retry with a new one
+    }
+  }
+
+  /**
+   * Forget an entry which has left the cache, pruning its partition if this was the partition's last entry. Caller must hold the lock on the entry's
+   * segment.
+   */
+  protected void untrack(
+                         Entry entry) {
+    Partition owner = partitions.get(entry.partition);
+    if (owner == null) return;
+    synchronized (owner) {
+      owner.keys.remove(entry.key);
+      if (owner.keys.isEmpty() && !owner.discarded) {
+        owner.discarded = true;
+        partitions.remove(entry.partition, owner);
+      }
+    }
+  }
+
+  /**
+   * Retrieve the global shared cache, creating it if necessary.
+   *
+   * @return the shared cache, or null if shared caching is disabled.
+   */
+  public static synchronized ResponseCache getSharedCache() {
+    if (sharedInstance == null && OrbitalProperties.getBooleanGlobalProperty(PROP_ENABLED, DEF_ENABLED)) {
+      sharedInstance = new ResponseCache(
+          "responseCache", true, OrbitalProperties.getLongGlobalProperty(PROP_MAX_BYTES, DEF_MAX_BYTES),
+          OrbitalProperties.getLongGlobalProperty(PROP_MAX_ENTRY_BYTES, DEF_MAX_ENTRY_BYTES));
+      sharedInstance.registerStats();
+    }
+    return sharedInstance;
+  }
+
+  /**
+   * Retrieve the global private cache, creating it if necessary.
+   *
+   * @return the private cache, or null if private caching is disabled.
+   */
+  public static synchronized ResponseCache getPrivateCache() {
+    if (privateInstance == null && OrbitalProperties.getBooleanGlobalProperty(PROP_PRIVATE_ENABLED, DEF_PRIVATE_ENABLED)) {
+      privateInstance = new ResponseCache(
+          "privateCache", false, OrbitalProperties.getLongGlobalProperty(PROP_PRIVATE_MAX_BYTES, DEF_PRIVATE_MAX_BYTES),
+          OrbitalProperties.getLongGlobalProperty(PROP_PRIVATE_MAX_ENTRY_BYTES, DEF_PRIVATE_MAX_ENTRY_BYTES));
+      privateInstance.registerStats();
+    }
+    return privateInstance;
+  }
+
+  /**
+   * Discard all private cache entries for the given key. Does nothing if the private cache has not been created.
+   *
+   * @param kid
+   *          the ID of the key whose entries should be discarded.
+   */
+  public static void invalidatePrivate(
+                                       long kid) {
+    ResponseCache cache;
+    synchronized (ResponseCache.class) {
+      cache = privateInstance;
+    }
+    if (cache != null) cache.invalidate(kid);
+  }
+
+  protected void registerStats() {
+    final ResponseCache stats = this;
+    ProxyStats.register(name, new ProxyStats.StatsSource() {
+      @Override
+      public Map<String, Number> getStats() {
+        return stats.getStats();
+      }
+    });
+    if (!shared) {
+      ProxyStats.register(name + "Keys", new ProxyStats.StatsSource() {
+        @Override
+        public Map<String, Number> getStats() {
+          return stats.getPartitionStats();
+        }
+      });
+    }
+  }
+
+  /**
+   * Build a cache key for a request.
+   *
+   * @param serverType
+   *          server type (e.g. latest, legacy, dev).
+   * @param path
+   *          request path below the server type.
+   * @param query
+   *          raw query string which will be sent to the ESI.
+   * @param acceptEncoding
+   *          value of the Accept-Encoding request header, may be null.
+   * @param acceptLanguage
+   *          value of the Accept-Language request header, may be null.
+   * @return the cache key.
+   */
+  public static String buildKey(
+                                String serverType,
+                                String path,
+                                String query,
+                                String acceptEncoding,
+                                String acceptLanguage) {
+    StringBuilder key = new StringBuilder(128);
+    // Parameter order doesn't matter to the ESI, so sort to improve our hit rate
+    key.append(serverType).append(path).append('?').append(ProxyQuery.canonical(query));
+    key.append('\n').append(acceptEncoding == null ? "" : acceptEncoding.trim());
+    key.append('\n').append(acceptLanguage == null ? "" : acceptLanguage.trim());
+    return key.toString();
+  }
+
+  /**
+   * Retrieve a live entry.
+   *
+   * @param partition
+   *          partition (key ID) to search, or {@link #SHARED_PARTITION} for the shared cache.
+   * @param key
+   *          cache key (see {@link #buildKey(String, String, String, String, String)}).
+   * @return the cached response, or null if there is no live entry for this key.
+   */
+  public Entry get(
+                   long partition,
+                   String key) {
+    String fullKey = partition + ":" + key;
+    Segment segment = segmentFor(fullKey);
+    Entry entry;
+    synchronized (segment) {
+      entry = segment.entries.get(fullKey);
+      if (entry != null && entry.expiry <= OrbitalProperties.getCurrentTime()) {
+        // Keep expired entries we can revalidate, see getStale
+        if (entry.etag == null) remove(segment, entry);
+        entry = null;
+      }
+    }
+    // Partitions without entries aren't tracked, lookups for those keys only count towards the totals
+    Partition stats = shared ? null : partitions.get(partition);
+    if (entry == null) {
+      misses.incrementAndGet();
+      if (stats != null) stats.misses.incrementAndGet();
+      return null;
+    }
+    hits.incrementAndGet();
+    if (stats != null) stats.hits.incrementAndGet();
+    return entry;
+  }
+
+  /**
+   * Retrieve an entry which may be revalidated with the ESI. Statistics are not updated as this call always follows a call to
+   * {@link #get(long, String)}.
+   *
+   * @param partition
+   *          partition (key ID) to search, or {@link #SHARED_PARTITION} for the shared cache.
+   * @param key
+   *          cache key (see {@link #buildKey(String, String, String, String, String)}).
+   * @return the cached response, expired or not, or null if there is no entry with an ETag for this key.
+   */
+  public Entry getStale(
+                        long partition,
+                        String key) {
+    String fullKey = partition + ":" + key;
+    Segment segment = segmentFor(fullKey);
+    Entry entry;
+    synchronized (segment) {
+      entry = segment.entries.get(fullKey);
+    }
+    return entry == null || entry.etag == null ? null : entry;
+  }
+
+  /**
+   * Renew an entry after the ESI reported it has not changed. Headers on the ESI response (e.g. Expires) replace those stored with the entry.
+   *
+   * @param stale
+   *          the entry which was revalidated.
+   * @param notModified
+   *          the 304 response from the ESI.
+   * @return the renewed entry. The renewed entry is returned even if it could not be stored (e.g. it was evicted while being revalidated).
+   */
+  public Entry renew(
+                     Entry stale,
+                     HttpResponse notModified) {
+    revalidations.incrementAndGet();
+    List<String[]> headers = new ArrayList<String[]>();
+    Set<String> replaced = new HashSet<String>();
+    for (Header next : notModified.getAllHeaders()) {
+      String name = next.getName().toLowerCase();
+      if (!SKIP_HEADERS.contains(name) && !name.startsWith("content-")) {
+        replaced.add(name);
+        headers.add(new String[] {
+            next.getName(), next.getValue()
+        });
+      }
+    }
+    for (String[] next : stale.headers) {
+      if (!replaced.contains(next[0].toLowerCase())) headers.add(next);
+    }
+    String etag = CacheHeaders.getHeader(notModified, "ETag");
+    Entry entry = new Entry(
+        stale.partition, stale.key, stale.status, headers.toArray(new String[headers.size()][]), stale.body, etag == null ? stale.etag : etag,
+        CacheHeaders.getExpiry(notModified, 0));
+    Segment segment = segmentFor(stale.key);
+    synchronized (segment) {
+      // Only replace the entry we revalidated. If it was removed or replaced in the meantime, leave the cache alone.
+      if (segment.entries.get(stale.key) == stale) {
+        segment.entries.put(stale.key, entry);
+        segment.bytes += entry.size() - stale.size();
+      }
+    }
+    return entry;
+  }
+
+  /**
+   * Remove an entry. Caller must hold the lock on the segment.
+   */
+  protected void remove(
+                        Segment segment,
+                        Entry entry) {
+    segment.entries.remove(entry.key);
+    segment.bytes -= entry.size();
+    if (!shared) untrack(entry);
+  }
+
+  /**
+   * Discard all entries in a partition, along with the statistics for the partition.
+   *
+   * @param partition
+   *          the partition to discard.
+   */
+  public void invalidate(
+                         long partition) {
+    Partition stats = partitions.remove(partition);
+    if (stats == null) return;
+    List<String> keys;
+    synchronized (stats) {
+      stats.discarded = true;
+      keys = new ArrayList<String>(stats.keys);
+    }
+    for (String next : keys) {
+      Segment segment = segmentFor(next);
+      synchronized (segment) {
+        Entry entry = segment.entries.get(next);
+        if (entry != null) remove(segment, entry);
+      }
+    }
+  }
+
+  /**
+   * Determine whether an ESI response may be stored in this cache, and if so when it expires.
+   *
+   * @param response
+   *          the ESI response.
+   * @return the expiry time (milliseconds UTC) of the response, or 0 if the response can not be cached.
+   */
+  public long cacheableUntil(
+                             HttpResponse response) {
+    if (response.getStatusLine().getStatusCode() != HttpServletResponse.SC_OK) return 0;
+    String cacheControl = CacheHeaders.getHeader(response, "Cache-Control");
+    if (cacheControl != null) {
+      String lower = cacheControl.toLowerCase();
+      if (lower.contains("no-store") || lower.contains("no-cache") || (shared && lower.contains("private"))) return 0;
+    }
+    // Don't cache representations which vary on request headers we don't include in the key. Private entries are only served to the key which
+    // retrieved them, so those may also vary on authorization.
+    for (Header vary : response.getHeaders("Vary")) {
+      for (String next : vary.getValue().split(",")) {
+        String name = next.trim().toLowerCase();
+        if (name.length() > 0 && !VARY_HEADERS.contains(name) && (shared || !name.equals("authorization"))) return 0;
+      }
+    }
+    // Only cache responses with an explicit future expiry
+    if (response.getFirstHeader("Expires") == null) return 0;
+    long expiry = CacheHeaders.getExpiry(response, 0);
+    return expiry > OrbitalProperties.getCurrentTime() ? expiry : 0;
+  }
+
+  public long getMaxEntryBytes() {
+    return maxEntryBytes;
+  }
+
+  /**
+   * Create an entry from an ESI response.
+   *
+   * @param partition
+   *          partition the entry belongs to.
+   * @param key
+   *          cache key of the entry.
+   * @param response
+   *          the ESI response.
+   * @param body
+   *          body of the response, exactly as received from the ESI.
+   * @param expiry
+   *          expiry time (milliseconds UTC) of the entry.
+   * @return the new entry.
+   */
+  public static Entry createEntry(
+                                  long partition,
+                                  String key,
+                                  HttpResponse response,
+                                  byte[] body,
+                                  long expiry) {
+    List<String[]> headers = new ArrayList<String[]>();
+    for (Header next : response.getAllHeaders()) {
+      if (!SKIP_HEADERS.contains(next.getName().toLowerCase())) headers.add(new String[] {
+          next.getName(), next.getValue()
+      });
+    }
+    return new Entry(
+        partition, partition + ":" + key, response.getStatusLine().getStatusCode(), headers.toArray(new String[headers.size()][]), body,
+        CacheHeaders.getHeader(response, "ETag"), expiry);
+  }
+
+  /**
+   * Store a response.
+   *
+   * @param partition
+   *          partition (key ID) to store into, or {@link #SHARED_PARTITION} for the shared cache.
+   * @param key
+   *          cache key (see {@link #buildKey(String, String, String, String, String)}).
+   * @param response
+   *          the ESI response.
+   * @param body
+   *          body of the response, exactly as received from the ESI.
+   * @return the stored entry, or null if the response could not be stored.
+   */
+  public Entry put(
+                   long partition,
+                   String key,
+                   HttpResponse response,
+                   byte[] body) {
+    long expiry = cacheableUntil(response);
+    if (expiry == 0 || body == null || body.length > maxEntryBytes) return null;
+    Entry entry = createEntry(partition, key, response, body, expiry);
+    Segment segment = segmentFor(entry.key);
+    synchronized (segment) {
+      Entry old = segment.entries.put(entry.key, entry);
+      if (old != null) segment.bytes -= old.size();
+      segment.bytes += entry.size();
+      // A response stored just as its key is deleted is left to be evicted. It is never served, requests with a deleted key are rejected.
+      if (!shared) track(entry);
+      // Evict least recently used entries until the segment is back within budget
+      for (Iterator<Entry> i = segment.entries.values().iterator(); segment.bytes > segmentBytes && i.hasNext();) {
+        Entry next = i.next();
+        if (next == entry) continue;
+        i.remove();
+        segment.bytes -= next.size();
+        if (!shared) untrack(next);
+        evictions.incrementAndGet();
+      }
+    }
+    stores.incrementAndGet();
+    return entry;
+  }
+
+  /**
+   * Send a cached response to a client. If the client already holds this version of the response (i.e. sent a matching If-None-Match), a 304 is sent
+   * instead.
+   *
+   * @param entry
+   *          the response to send.
+   * @param servletRequest
+   *          client request.
+   * @param servletResponse
+   *          response to the client.
+   * @throws IOException
+   *           if an error occurs writing the response.
+   */
+  public void serve(
+                    Entry entry,
+                    HttpServletRequest servletRequest,
+                    HttpServletResponse servletResponse)
+    throws IOException {
+    byte[] body = prepareServe(entry, servletRequest, servletResponse);
+    if (body != null) servletResponse.getOutputStream().write(body);
+  }
+
+  /**
+   * Set the status and headers for sending a cached response to a client, as in {@link #serve(Entry, HttpServletRequest, HttpServletResponse)}. The caller is
+   * responsible for writing the returned body.
+   *
+   * @param entry
+   *          the response to send.
+   * @param servletRequest
+   *          client request.
+   * @param servletResponse
+   *          response to the client.
+   * @return the body to write to the client, or null if a 304 was prepared.
+   */
+  public byte[] prepareServe(
+                             Entry entry,
+                             HttpServletRequest servletRequest,
+                             HttpServletResponse servletResponse) {
+    byte[] body = prepare(entry, servletRequest, servletResponse);
+    if (body == null) notModified.incrementAndGet();
+    return body;
+  }
+
+  /**
+   * Send a buffered response to a client, or a 304 if the client already holds this version of the response.
+   *
+   * @param entry
+   *          the response to send.
+   * @param servletRequest
+   *          client request.
+   * @param servletResponse
+   *          response to the client.
+   * @return true if the full response was sent, false if a 304 was sent.
+   * @throws IOException
+   *           if an error occurs writing the response.
+   */
+  public static boolean write(
+                              Entry entry,
+                              HttpServletRequest servletRequest,
+                              HttpServletResponse servletResponse)
+    throws IOException {
+    byte[] body = prepare(entry, servletRequest, servletResponse);
+    if (body == null) return false;
+    servletResponse.getOutputStream().write(body);
+    return true;
+  }
+
+  /**
+   * Set the status and headers for sending a buffered response to a client, or a 304 if the client already holds this version of the response. The caller is
+   * responsible for writing the returned body, which allows the body to be written with non-blocking I/O.
+   *
+   * @param entry
+   *          the response to send.
+   * @param servletRequest
+   *          client request.
+   * @param servletResponse
+   *          response to the client.
+   * @return the body to write to the client, or null if a 304 was prepared.
+   */
+  public static byte[] prepare(
+                               Entry entry,
+                               HttpServletRequest servletRequest,
+                               HttpServletResponse servletResponse) {
+    if (CacheHeaders.etagMatches(servletRequest.getHeader("If-None-Match"), entry.etag)) {
+      servletResponse.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+      for (String[] next : entry.headers) {
+        if (!next[0].toLowerCase().startsWith("content-")) servletResponse.addHeader(next[0], next[1]);
+      }
+      return null;
+    }
+    servletResponse.setStatus(entry.status);
+    for (String[] next : entry.headers) {
+      servletResponse.addHeader(next[0], next[1]);
+    }
+    servletResponse.setContentLength(entry.body.length);
+    return entry.body;
+  }
+
+  public Map<String, Number> getStats() {
+    long count = 0;
+    long bytes = 0;
+    for (Segment next : segments) {
+      synchronized (next) {
+        count += next.entries.size();
+        bytes += next.bytes;
+      }
+    }
+    Map<String, Number> result = new HashMap<String, Number>();
+    result.put("entries", count);
+    result.put("bytes", bytes);
+    result.put("hits", hits.get());
+    result.put("misses", misses.get());
+    result.put("stores", stores.get());
+    result.put("evictions", evictions.get());
+    result.put("revalidations", revalidations.get());
+    result.put("notModified", notModified.get());
+    if (!shared) result.put("partitions", partitions.size());
+    return result;
+  }
+
+  /**
+   * Per-key statistics for a private cache. For each key we report hits, misses and the hit ratio. Statistics are kept for keys with cached entries, and only
+   * the {@value #PARTITION_STATS_LIMIT} keys with the most lookups are reported.
+   *
+   * @return per-key statistics.
+   */
+  public Map<String, Number> getPartitionStats() {
+    List<Map.Entry<Long, Partition>> busiest = new ArrayList<Map.Entry<Long, Partition>>(partitions.entrySet());
+    // Counters may change while sorting, so sort on a snapshot
+    final Map<Partition, Long> lookups = new HashMap<Partition, Long>();
+    for (Map.Entry<Long, Partition> next : busiest)
+      lookups.put(next.getValue(), next.getValue().hits.get() + next.getValue().misses.get());
+    Collections.sort(busiest, new Comparator<Map.Entry<Long, Partition>>() {
+      @Override
+      public int compare(
+                         Map.Entry<Long, Partition> a,
+                         Map.Entry<Long, Partition> b) {
+        return Long.compare(lookups.get(b.getValue()), lookups.get(a.getValue()));
+      }
+    });
+    Map<String, Number> result = new HashMap<String, Number>();
+    for (Map.Entry<Long, Partition> next : busiest.subList(0, Math.min(busiest.size(), PARTITION_STATS_LIMIT))) {
+      Partition stats = next.getValue();
+      long hitCount = stats.hits.get();
+      long missCount = stats.misses.get();
+      long total = hitCount + missCount;
+      result.put(next.getKey() + ".hits", hitCount);
+      result.put(next.getKey() + ".misses", missCount);
+      result.put(next.getKey() + ".hitRatio", total == 0 ? 0.0 : (double) hitCount / total);
+    }
+    return result;
+  }
+
+}
@@ -2,11 +2,14 @@ package enterprises.orbital.esi.proxy;
 
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.StringWriter;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -82,6 +85,9 @@ public class ServicesWS {
   public static final boolean DEF_RESTRICT_LOGIN       = false;
   public static final String  PROP_ESI_HOME            = "enterprises.orbital.esi.home";
   public static final String  DEF_ESI_HOME             = "esi.evetech.net";
+  public static final String  PROP_ESI_SCHEME          = "enterprises.orbital.esi.scheme";
+  public static final String  DEF_ESI_SCHEME           = "https";
+  public static final String  PROP_METRICS_TOKEN       = "enterprises.orbital.esi.proxy.metrics.token";
 
   // An in-memory object holding new access key state while the user authenticates with the
   // SSO. This data is purged periodically if for some reason the server fails to retrieve
@@ -118,8 +124,8 @@ public class ServicesWS {
   }
 
   static {
-    // Start a thread to periodically clean up the tempStateMap
-    (new Thread(new Runnable() {
+    // Start a thread to periodically clean up the tempStateMap. The thread is a daemon so it never holds the JVM open (e.g. when benchmarking).
+    Thread cleanup = new Thread(new Runnable() {
 
       @Override
       public void run() {
@@ -144,7 +150,9 @@ public class ServicesWS {
         }
       }
 
-    })).start();
+    });
+    cleanup.setDaemon(true);
+    cleanup.start();
   }
 
   protected static URIBuilder makeStandardBuilder(
@@ -418,6 +426,84 @@ public class ServicesWS {
     return Response.ok().entity(src).build();
   }
 
+  @Path("/stats")
+  @GET
+  @ApiOperation(
+      value = "Get proxy runtime statistics",
+      notes = "Current values of all runtime statistics maintained by the proxy, grouped by subsystem.  Only available to administrators.")
+  @ApiResponses(
+      value = {
+          @ApiResponse(
+              code = 200,
+              message = "map of statistics by subsystem"),
+          @ApiResponse(
+              code = 401,
+              message = "requestor not logged in or not an admin",
+              response = ServiceError.class),
+      })
+  public Response getStats(
+                           @Context HttpServletRequest request) {
+    // Retrieve user and verify as needed
+    ProxyUserAccount user = (ProxyUserAccount) AuthUtil.getCurrentUser(request);
+    if (user == null || !user.isAdmin()) {
+      ServiceError errMsg = new ServiceError(Status.UNAUTHORIZED.getStatusCode(), "Requestor not logged in or not admin");
+      return Response.status(Status.UNAUTHORIZED).entity(errMsg).build();
+    }
+    return Response.ok().entity(ProxyStats.snapshot()).build();
+  }
+
+  @Path("/metrics")
+  @GET
+  @Produces({
+      "text/plain; version=0.0.4"
+  })
+  @ApiOperation(
+      value = "Get proxy metrics in Prometheus format",
+      notes = "Request latency histograms and all runtime statistics in the Prometheus text format.  Available to administrators, or to callers presenting "
+          + "the configured metrics token as a bearer token.")
+  @ApiResponses(
+      value = {
+          @ApiResponse(
+              code = 200,
+              message = "metrics in Prometheus text format"),
+          @ApiResponse(
+              code = 401,
+              message = "requestor not logged in or not an admin, and no valid metrics token presented",
+              response = ServiceError.class),
+          @ApiResponse(
+              code = 404,
+              message = "metrics are disabled",
+              response = ServiceError.class),
+      })
+  public Response getMetrics(
+                             @Context HttpServletRequest request) {
+    // Scrapers can't log in, so they may present a configured token instead. Compared in constant time so the token can't be guessed from response times.
+    String token = OrbitalProperties.getGlobalProperty(PROP_METRICS_TOKEN, "");
+    String presented = request.getHeader("Authorization");
+    boolean tokenValid = !token.isEmpty() && presented != null
+        && MessageDigest.isEqual(("Bearer " + token).getBytes(StandardCharsets.UTF_8), presented.getBytes(StandardCharsets.UTF_8));
+    if (!tokenValid) {
+      ProxyUserAccount user = (ProxyUserAccount) AuthUtil.getCurrentUser(request);
+      if (user == null || !user.isAdmin()) {
+        ServiceError errMsg = new ServiceError(Status.UNAUTHORIZED.getStatusCode(), "Requestor not logged in or not admin");
+        return Response.status(Status.UNAUTHORIZED).type("application/json").entity(errMsg).build();
+      }
+    }
+    ProxyMetrics metrics = ProxyMetrics.getMetrics();
+    if (metrics == null) {
+      ServiceError errMsg = new ServiceError(Status.NOT_FOUND.getStatusCode(), "Metrics are disabled");
+      return Response.status(Status.NOT_FOUND).type("application/json").entity(errMsg).build();
+    }
+    StringWriter out = new StringWriter();
+    try {
+      metrics.writePrometheus(out);
+    } catch (IOException e) {
+      // Not possible with a StringWriter
+      throw new IllegalStateException(e);
+    }
+    return Response.ok().entity(out.toString()).build();
+  }
+
   @Path("/user")
   @GET
   @ApiOperation(
@@ -690,10 +776,12 @@ public class ServicesWS {
       service.signRequest(accessToken, request);
       com.github.scribejava.core.model.Response response = request.send();
       if (!response.isSuccessful()) throw new IOException("credential request was not successful!");
-      String charName = (new Gson()).fromJson((new JsonParser()).parse(response.getBody()).getAsJsonObject().get("CharacterName"), String.class);
+      com.google.gson.JsonObject verified = (new JsonParser()).parse(response.getBody()).getAsJsonObject();
+      String charName = (new Gson()).fromJson(verified.get("CharacterName"), String.class);
+      long charID = verified.has("CharacterID") ? verified.get("CharacterID").getAsLong() : 0;
 
       // Create the new access key.
-      ProxyAccessKey newKey = ProxyAccessKey.createKey(user, cachedState.expiry, cachedState.serverType, cachedState.scopes, charName);
+      ProxyAccessKey newKey = ProxyAccessKey.createKey(user, cachedState.expiry, cachedState.serverType, cachedState.scopes, charName, charID);
       newKey.setAccessToken(accessToken.getAccessToken());
       newKey.setAccessTokenExpiry(OrbitalProperties.getCurrentTime() + TimeUnit.MILLISECONDS.convert(accessToken.getExpiresIn(), TimeUnit.SECONDS));
       newKey.setRefreshToken(accessToken.getRefreshToken());
@@ -751,7 +839,8 @@ public class ServicesWS {
     JsonObject data = null;
     try {
       String esiHome = OrbitalProperties.getGlobalProperty(PROP_ESI_HOME, DEF_ESI_HOME);
-      URL target = new URL("https://" + esiHome + "/" + server + "/swagger.json");
+      String esiScheme = OrbitalProperties.getGlobalProperty(PROP_ESI_SCHEME, DEF_ESI_SCHEME);
+      URL target = new URL(esiScheme + "://" + esiHome + "/" + server + "/swagger.json");
       HttpURLConnection conn;
       conn = (HttpURLConnection) target.openConnection();
       conn.setUseCaches(true);
@@ -763,14 +852,25 @@ public class ServicesWS {
       ServiceError errMsg = new ServiceError(Status.INTERNAL_SERVER_ERROR.getStatusCode(), "failed to retrieve and parse swagger.json");
       return Response.status(Status.INTERNAL_SERVER_ERROR).entity(errMsg).build();
     }
-    // Extract security object and scopes
+    // Return result
+    return Response.ok().entity(extractScopes(data)).build();
+  }
+
+  /**
+   * Extract the map from scope name to description from an ESI swagger.json document.
+   *
+   * @param data
+   *          parsed ESI swagger.json document.
+   * @return map from scope name to description.
+   */
+  public static Map<String, String> extractScopes(
+                                                  JsonObject data) {
     Map<String, String> scopeMap = new HashMap<String, String>();
     JsonObject rawMap = data.getJsonObject("securityDefinitions").getJsonObject("evesso").getJsonObject("scopes");
     for (Entry<String, JsonValue> next : rawMap.entrySet()) {
       scopeMap.put(next.getKey(), next.getValue().toString());
     }
-    // Return result
-    return Response.ok().entity(scopeMap).build();
+    return scopeMap;
   }
 
 }
@@ -0,0 +1,167 @@
+package enterprises.orbital.esi.proxy;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Base64;
+import java.util.logging.Logger;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import enterprises.orbital.base.OrbitalProperties;
+
+/**
+ * Self-validating proxy credentials. Unlike the original credential (see {@link ProxyAccessKey#generateHash(ProxyAccessKey)}), which can only be checked
+ * against a key loaded from the database, a signed credential carries the key ID and key expiry along with a MAC computed with a server secret:
+ *
+ * <pre>
+ * v2.&lt;kid&gt;.&lt;expiry&gt;.&lt;mac&gt;
+ * </pre>
+ *
+ * where expiry is the key expiry (milliseconds UTC, or 0 if the key never expires) and mac is the unpadded base64url HmacSHA256 of everything before it.
+ * Forged, malformed and expired credentials can therefore be refused with CPU work alone. A valid signed credential still requires the key to exist, so the
+ * key is loaded as usual once the credential has been verified.
+ *
+ * <p>
+ * Signed credentials are only issued and accepted when a secret is configured. All proxy instances sharing a database must use the same secret. Original
+ * credentials are always accepted, so existing clients keep working. Changing a key's expiry does not change credentials already issued for the key, so
+ * clients must fetch a new credential after a key's expiry is extended.
+ */
+public class SignedCredential {
+  protected static final Logger   log         = Logger.getLogger(SignedCredential.class.getName());
+
+  public static final String      PROP_SECRET = "enterprises.orbital.esi.proxy.credentialSecret";
+  public static final String      PREFIX      = "v2.";
+  private static final String     ALGORITHM   = "HmacSHA256";
+
+  // Results of verify
+  public static final int         VALID       = 0;
+  public static final int         INVALID     = 1;
+  public static final int         EXPIRED     = 2;
+
+  // Singleton instance, created on first use. Null if no secret is configured.
+  private static SignedCredential instance;
+  private static boolean          initialized;
+
+  private final SecretKeySpec    secret;
+  // Mac instances are not thread safe, and are relatively expensive to create
+  private final ThreadLocal<Mac> macs = new ThreadLocal<Mac>() {
+                                        @Override
+                                        protected Mac initialValue() {
+                                          try {
+                                            Mac mac = Mac.getInstance(ALGORITHM);
+                                            mac.init(secret);
+                                            return mac;
+                                          } catch (GeneralSecurityException e) {
+                                            // Every JRE supports HmacSHA256
+                                            throw new IllegalStateException(e);
+                                          }
+                                        }
+                                      };
+
+  public SignedCredential(String secret) {
+    this.secret = new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), ALGORITHM);
+  }
+
+  /**
+   * Retrieve the global credential signer, creating it if necessary.
+   *
+   * @return the global credential signer, or null if no secret is configured.
+   */
+  public static synchronized SignedCredential getSigner() {
+    if (!initialized) {
+      initialized = true;
+      String secret = OrbitalProperties.getGlobalProperty(PROP_SECRET, "");
+      if (secret.isEmpty()) {
+        log.info("No credential secret configured, signed credentials disabled");
+      } else {
+        if (secret.length() < 32) log.warning("Credential secret is shorter than 32 characters, consider a longer secret");
+        instance = new SignedCredential(secret);
+      }
+    }
+    return instance;
+  }
+
+  /**
+   * @param credential
+   *          a submitted credential.
+   * @return true if the credential is in the signed format (whether or not it is valid).
+   */
+  public static boolean isSigned(
+                                 String credential) {
+    return credential != null && credential.startsWith(PREFIX);
+  }
+
+  /**
+   * Verify a signed credential with the global signer.
+   *
+   * @param kid
+   *          the ID of the key the credential was submitted with.
+   * @param credential
+   *          the submitted credential.
+   * @return {@link #VALID}, {@link #EXPIRED} if the credential is genuine but the key has expired, or {@link #INVALID} otherwise (including when signed
+   *         credentials are disabled).
+   */
+  public static int check(
+                          long kid,
+                          String credential) {
+    SignedCredential signer = getSigner();
+    return signer == null ? INVALID : signer.verify(kid, credential, OrbitalProperties.getCurrentTime());
+  }
+
+  /**
+   * Create a signed credential for a key.
+   *
+   * @param kid
+   *          the ID of the key.
+   * @param expiry
+   *          the expiry date of the key (milliseconds UTC), or a value less than or equal to zero if the key never expires.
+   * @return the signed credential.
+   */
+  public String sign(
+                     long kid,
+                     long expiry) {
+    String payload = PREFIX + kid + "." + Math.max(expiry, 0);
+    return payload + "." + mac(payload);
+  }
+
+  /**
+   * Verify a signed credential.
+   *
+   * @param kid
+   *          the ID of the key the credential was submitted with.
+   * @param credential
+   *          the submitted credential.
+   * @param now
+   *          the current time (milliseconds UTC).
+   * @return {@link #VALID}, {@link #EXPIRED} if the credential is genuine but the key has expired, or {@link #INVALID} otherwise.
+   */
+  public int verify(
+                    long kid,
+                    String credential,
+                    long now) {
+    if (!isSigned(credential)) return INVALID;
+    int kidEnd = credential.indexOf('.', PREFIX.length());
+    int expiryEnd = kidEnd < 0 ? -1 : credential.indexOf('.', kidEnd + 1);
+    if (expiryEnd < 0) return INVALID;
+    long expiry;
+    try {
+      if (Long.parseLong(credential.substring(PREFIX.length(), kidEnd)) != kid) return INVALID;
+      expiry = Long.parseLong(credential.substring(kidEnd + 1, expiryEnd));
+    } catch (NumberFormatException e) {
+      return INVALID;
+    }
+    byte[] expected = mac(credential.substring(0, expiryEnd)).getBytes(StandardCharsets.US_ASCII);
+    byte[] submitted = credential.substring(expiryEnd + 1).getBytes(StandardCharsets.US_ASCII);
+    if (!MessageDigest.isEqual(expected, submitted)) return INVALID;
+    return expiry > 0 && expiry < now ? EXPIRED : VALID;
+  }
+
+  protected String mac(
+                       String payload) {
+    byte[] digest = macs.get().doFinal(payload.getBytes(StandardCharsets.US_ASCII));
+    return Base64.getUrlEncoder().withoutPadding().encodeToString(digest);
+  }
+
+}
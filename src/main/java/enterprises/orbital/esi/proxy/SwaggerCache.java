@@ -0,0 +1,346 @@
+package enterprises.orbital.esi.proxy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
+
+import enterprises.orbital.base.OrbitalProperties;
+
+/**
+ * Cache of translated ESI swagger.json documents. Generating the proxy version of swagger.json requires downloading the (large) ESI document and rewriting
+ * it. This cache keeps the rewritten document for each server type and datasource ready in both identity and gzip encoding, so that serving a cached copy
+ * is a single buffer write. Other query parameters don't change the document and are ignored. When the cache is full the least recently used document is
+ * evicted. Cached copies are revalidated against the ESI using the upstream ETag and Last-Modified values once the upstream Expires
+ * time passes. Clients receive our own ETag and may revalidate with If-None-Match.
+ */
+public class SwaggerCache {
+  protected static final Logger  log               = Logger.getLogger(SwaggerCache.class.getName());
+
+  public static final String     PROP_DEF_LIFETIME = "enterprises.orbital.esi.proxy.swagger.defaultLifetime";
+  public static final long       DEF_DEF_LIFETIME  = TimeUnit.MILLISECONDS.convert(5, TimeUnit.MINUTES);
+  public static final String     PROP_MAX_ENTRIES  = "enterprises.orbital.esi.proxy.swagger.maxEntries";
+  public static final long       DEF_MAX_ENTRIES   = 16;
+  protected static final long    RETRY_DELAY       = TimeUnit.MILLISECONDS.convert(30, TimeUnit.SECONDS);
+  // ESI serves tranquility when no datasource is given
+  protected static final String  DEF_DATASOURCE    = "tranquility";
+  protected static final Pattern DATASOURCE        = Pattern.compile("[A-Za-z0-9_-]{1,32}");
+
+  /**
+   * Rewrites an ESI swagger.json document into the proxy version.
+   */
+  public interface Transformer {
+    /**
+     * Transform an ESI swagger document.
+     *
+     * @param serverType
+     *          server type (e.g. latest, legacy, dev) the document was retrieved from.
+     * @param src
+     *          decoded ESI document.
+     * @param dest
+     *          destination for the translated document.
+     * @throws IOException
+     *           if an error occurs reading or writing the document.
+     */
+    public void transform(
+                          String serverType,
+                          InputStream src,
+                          OutputStream dest)
+      throws IOException;
+  }
+
+  /**
+   * A translated document.
+   */
+  public static class Entry {
+    private final byte[]  identity;
+    private final byte[]  gzip;
+    private final String  etag;
+    private final String  upstreamETag;
+    private final String  upstreamLastModified;
+    private volatile long expiry;
+    private volatile long lastUsed;
+
+    public Entry(byte[] identity, byte[] gzip, String etag, String upstreamETag, String upstreamLastModified, long expiry) {
+      super();
+      this.identity = identity;
+      this.gzip = gzip;
+      this.etag = etag;
+      this.upstreamETag = upstreamETag;
+      this.upstreamLastModified = upstreamLastModified;
+      this.expiry = expiry;
+      this.lastUsed = OrbitalProperties.getCurrentTime();
+    }
+
+    public byte[] getIdentity() {
+      return identity;
+    }
+
+    public byte[] getGzip() {
+      return gzip;
+    }
+
+    public String getETag() {
+      return etag;
+    }
+
+    public long getExpiry() {
+      return expiry;
+    }
+  }
+
+  private final Transformer                              transformer;
+  private final long                                     defaultLifetime;
+  private final int                                      maxEntries;
+  private final ConcurrentHashMap<String, Entry>         entries     = new ConcurrentHashMap<String, Entry>();
+  // One lock per document so only one thread revalidates a given document at a time
+  private final ConcurrentHashMap<String, ReentrantLock> locks       = new ConcurrentHashMap<String, ReentrantLock>();
+  private final AtomicLong                               hits        = new AtomicLong(0);
+  private final AtomicLong                               notModified = new AtomicLong(0);
+  private final AtomicLong                               fetches     = new AtomicLong(0);
+  private final AtomicLong                               revalidated = new AtomicLong(0);
+  private final AtomicLong                               errors      = new AtomicLong(0);
+  private final AtomicLong                               evictions   = new AtomicLong(0);
+
+  public SwaggerCache(Transformer transformer) {
+    this.transformer = transformer;
+    this.defaultLifetime = OrbitalProperties.getLongGlobalProperty(PROP_DEF_LIFETIME, DEF_DEF_LIFETIME);
+    this.maxEntries = (int) OrbitalProperties.getLongGlobalProperty(PROP_MAX_ENTRIES, DEF_MAX_ENTRIES);
+    final SwaggerCache stats = this;
+    ProxyStats.register("swaggerCache", new ProxyStats.StatsSource() {
+      @Override
+      public Map<String, Number> getStats() {
+        return stats.getStats();
+      }
+    });
+  }
+
+  /**
+   * Retrieve a current translated document, fetching or revalidating as necessary. If the document is being revalidated by another thread, the stale copy
+   * is returned rather than waiting.
+   *
+   * @param client
+   *          client used to contact the ESI.
+   * @param esiBase
+   *          scheme and host (including port if required) of the ESI, e.g. https://esi.evetech.net.
+   * @param serverType
+   *          server type (e.g. latest, legacy, dev).
+   * @param queryString
+   *          raw query string sent by the client, may be null.
+   * @return the translated document, or null if the document can't be cached.
+   * @throws IOException
+   *           if the ESI could not be reached or returned an error, and no stale copy is available.
+   */
+  public Entry get(
+                   HttpClient client,
+                   String esiBase,
+                   String serverType,
+                   String queryString)
+    throws IOException {
+    String datasource = ProxyQuery.get(queryString, "datasource");
+    if (datasource == null || datasource.isEmpty()) datasource = DEF_DATASOURCE;
+    // Malformed datasources are left for the ESI to reject
+    if (!DATASOURCE.matcher(datasource).matches()) return null;
+    String key = serverType + "?datasource=" + datasource;
+    long now = OrbitalProperties.getCurrentTime();
+    Entry current = entries.get(key);
+    if (current != null && current.expiry > now) {
+      hits.incrementAndGet();
+      current.lastUsed = now;
+      return current;
+    }
+    ReentrantLock lock = locks.get(key);
+    if (lock == null) {
+      ReentrantLock created = new ReentrantLock();
+      lock = locks.putIfAbsent(key, created);
+      if (lock == null) lock = created;
+    }
+    if (current != null && !lock.tryLock()) {
+      // Someone else is revalidating, serve the stale copy
+      hits.incrementAndGet();
+      current.lastUsed = now;
+      return current;
+    }
+    if (current == null) lock.lock();
+    try {
+      // Re-check, another thread may have just finished fetching
+      current = entries.get(key);
+      if (current != null && current.expiry > OrbitalProperties.getCurrentTime()) {
+        hits.incrementAndGet();
+        return current;
+      }
+      try {
+        Entry updated = fetch(client, esiBase, serverType, datasource, current);
+        if (entries.put(key, updated) == null) evict(key);
+        return updated;
+      } catch (IOException e) {
+        errors.incrementAndGet();
+        if (current == null) {
+          // Don't keep locks for documents which don't exist
+          locks.remove(key, lock);
+          throw e;
+        }
+        log.log(Level.WARNING, "failed to revalidate swagger.json, serving stale copy", e);
+        // Don't retry on every request while the ESI is unavailable
+        current.expiry = OrbitalProperties.getCurrentTime() + Math.min(defaultLifetime, RETRY_DELAY);
+        return current;
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Evict least recently used documents until the cache is back within its size limit.
+   *
+   * @param added
+   *          key of the document just added, which is never evicted.
+   */
+  protected void evict(
+                       String added) {
+    while (entries.size() > maxEntries) {
+      String oldest = null;
+      long oldestUse = Long.MAX_VALUE;
+      // Only a handful of documents are ever cached so a scan is cheap
+      for (Map.Entry<String, Entry> next : entries.entrySet()) {
+        if (!next.getKey().equals(added) && next.getValue().lastUsed < oldestUse) {
+          oldest = next.getKey();
+          oldestUse = next.getValue().lastUsed;
+        }
+      }
+      if (oldest == null) return;
+      if (entries.remove(oldest) != null) evictions.incrementAndGet();
+      locks.remove(oldest);
+    }
+  }
+
+  /**
+   * Fetch or revalidate a document from the ESI.
+   *
+   * @param client
+   *          client used to contact the ESI.
+   * @param esiBase
+   *          scheme and host (including port if required) of the ESI, e.g. https://esi.evetech.net.
+   * @param serverType
+   *          server type (e.g. latest, legacy, dev).
+   * @param datasource
+   *          datasource (e.g. tranquility) to retrieve the document for.
+   * @param current
+   *          current (stale) copy of the document, or null if none.
+   * @return the current translated document.
+   * @throws IOException
+   *           if the ESI could not be reached or returned an error.
+   */
+  protected Entry fetch(
+                        HttpClient client,
+                        String esiBase,
+                        String serverType,
+                        String datasource,
+                        Entry current)
+    throws IOException {
+    HttpGet request = new HttpGet(esiBase + "/" + serverType + "/swagger.json?datasource=" + datasource);
+    request.setHeader("Accept-Encoding", "gzip");
+    if (current != null) {
+      if (current.upstreamETag != null) request.setHeader("If-None-Match", current.upstreamETag);
+      if (current.upstreamLastModified != null) request.setHeader("If-Modified-Since", current.upstreamLastModified);
+    }
+    HttpResponse response = client.execute(request);
+    try {
+      int status = response.getStatusLine().getStatusCode();
+      if (status == HttpServletResponse.SC_NOT_MODIFIED && current != null) {
+        // Unchanged, just extend the lifetime of our copy
+        revalidated.incrementAndGet();
+        current.expiry = CacheHeaders.getExpiry(response, defaultLifetime);
+        return current;
+      }
+      if (status != HttpServletResponse.SC_OK) throw new IOException("ESI returned status " + status + " for swagger.json");
+      fetches.incrementAndGet();
+      // Translate, then prepare both encodings
+      ByteArrayOutputStream identity = new ByteArrayOutputStream();
+      InputStream src = CacheHeaders.openContent(response);
+      try {
+        transformer.transform(serverType, src, identity);
+      } finally {
+        src.close();
+      }
+      byte[] identityBytes = identity.toByteArray();
+      ByteArrayOutputStream gzip = new ByteArrayOutputStream(identityBytes.length / 4);
+      GZIPOutputStream gzipper = new GZIPOutputStream(gzip);
+      gzipper.write(identityBytes);
+      gzipper.close();
+      return new Entry(
+          identityBytes, gzip.toByteArray(), CacheHeaders.computeETag(identityBytes), CacheHeaders.getHeader(response, "ETag"),
+          CacheHeaders.getHeader(response, "Last-Modified"), CacheHeaders.getExpiry(response, defaultLifetime));
+    } finally {
+      EntityUtils.consumeQuietly(response.getEntity());
+    }
+  }
+
+  /**
+   * Send a cached document to a client.
+   *
+   * @param entry
+   *          the document to send.
+   * @param servletRequest
+   *          client request.
+   * @param servletResponse
+   *          response to the client.
+   * @throws IOException
+   *           if an error occurs writing the response.
+   */
+  public void serve(
+                    Entry entry,
+                    HttpServletRequest servletRequest,
+                    HttpServletResponse servletResponse)
+    throws IOException {
+    long maxAge = Math.max(0, (entry.expiry - OrbitalProperties.getCurrentTime()) / 1000);
+    servletResponse.setHeader("ETag", entry.etag);
+    servletResponse.setHeader("Cache-Control", "public, max-age=" + maxAge);
+    servletResponse.setHeader("Vary", "Accept-Encoding");
+    if (CacheHeaders.etagMatches(servletRequest.getHeader("If-None-Match"), entry.etag)) {
+      notModified.incrementAndGet();
+      servletResponse.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+      return;
+    }
+    byte[] body = entry.identity;
+    if (CacheHeaders.acceptsGzip(servletRequest)) {
+      body = entry.gzip;
+      servletResponse.setHeader("Content-Encoding", "gzip");
+    }
+    servletResponse.setStatus(HttpServletResponse.SC_OK);
+    servletResponse.setContentType("application/json; charset=UTF-8");
+    servletResponse.setContentLength(body.length);
+    servletResponse.getOutputStream().write(body);
+  }
+
+  public Map<String, Number> getStats() {
+    Map<String, Number> result = new HashMap<String, Number>();
+    result.put("documents", entries.size());
+    result.put("hits", hits.get());
+    result.put("notModified", notModified.get());
+    result.put("fetches", fetches.get());
+    result.put("revalidated", revalidated.get());
+    result.put("errors", errors.get());
+    result.put("evictions", evictions.get());
+    return result;
+  }
+
+}
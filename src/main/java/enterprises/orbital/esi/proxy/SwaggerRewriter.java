@@ -0,0 +1,237 @@
+package enterprises.orbital.esi.proxy;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+
+import javax.json.Json;
+import javax.json.JsonException;
+import javax.json.stream.JsonGenerator;
+import javax.json.stream.JsonGeneratorFactory;
+import javax.json.stream.JsonParser;
+import javax.json.stream.JsonParserFactory;
+
+/**
+ * Single pass, streaming translation of an ESI swagger.json document into the proxy version. The document is read token by token and written directly to
+ * the destination, so memory use does not depend on the size of the document. We make the following changes:
+ *
+ * <ul>
+ * <li>Change host to the proxy host
+ * <li>Change base path to include the proxy servlet path
+ * <li>Change schemes to those supported by the proxy
+ * <li>Replace securityDefinitions with the proxy key and hash schemes
+ * <li>Replace each security requirement with the proxy key and hash schemes
+ * </ul>
+ *
+ * Instances are immutable and may be shared between threads.
+ */
+public class SwaggerRewriter {
+  private static final JsonParserFactory    PARSER_FACTORY    = Json.createParserFactory(Collections.<String, Object> emptyMap());
+  private static final JsonGeneratorFactory GENERATOR_FACTORY = Json.createGeneratorFactory(Collections.<String, Object> emptyMap());
+
+  private final String                      host;
+  private final String                      basePathPrefix;
+  private final String                      scheme;
+  private final String                      keyName;
+  private final String                      hashName;
+
+  /**
+   * Create a rewriter.
+   *
+   * @param host
+   *          replacement host (including port if required).
+   * @param basePathPrefix
+   *          path to prepend to the ESI base path, or null to leave the base path unchanged.
+   * @param scheme
+   *          the single scheme supported by the proxy.
+   * @param keyName
+   *          name of the proxy key query parameter.
+   * @param hashName
+   *          name of the proxy hash query parameter.
+   */
+  public SwaggerRewriter(String host, String basePathPrefix, String scheme, String keyName, String hashName) {
+    super();
+    this.host = host;
+    this.basePathPrefix = basePathPrefix;
+    this.scheme = scheme;
+    this.keyName = keyName;
+    this.hashName = hashName;
+  }
+
+  /**
+   * Translate a document.
+   *
+   * @param src
+   *          decoded ESI document (UTF-8).
+   * @param dest
+   *          destination for the translated document (UTF-8). The destination is flushed but not closed.
+   * @throws IOException
+   *           if an error occurs reading or writing, or if the source is not valid JSON.
+   */
+  public void rewrite(
+                      InputStream src,
+                      OutputStream dest)
+    throws IOException {
+    JsonParser parser = PARSER_FACTORY.createParser(src);
+    JsonGenerator generator = GENERATOR_FACTORY.createGenerator(dest);
+    try {
+      // Depth of the current container, the top level object is depth 1
+      int depth = 0;
+      // Name of the next value when inside an object, null inside an array
+      String name = null;
+      while (parser.hasNext()) {
+        JsonParser.Event event = parser.next();
+        switch (event) {
+        case KEY_NAME:
+          name = parser.getString();
+          if (depth == 1 && (name.equals("host") || name.equals("schemes") || name.equals("securityDefinitions")
+              || (name.equals("basePath") && basePathPrefix != null))) {
+            // Top level values we replace
+            event = parser.next();
+            if (name.equals("basePath") && event == JsonParser.Event.VALUE_STRING) {
+              generator.write(name, "/" + basePathPrefix + parser.getString());
+            } else {
+              skipValue(parser, event);
+              writeReplacement(generator, name);
+            }
+            name = null;
+          } else if (name.equals("security")) {
+            // Security requirements are always arrays, which distinguishes them from model properties named "security"
+            event = parser.next();
+            if (event == JsonParser.Event.START_ARRAY) {
+              skipValue(parser, event);
+              writeSecurity(generator);
+              name = null;
+            } else {
+              copyValue(parser, generator, event, name);
+              if (event == JsonParser.Event.START_OBJECT) depth++;
+              name = null;
+            }
+          }
+          break;
+        case START_OBJECT:
+        case START_ARRAY:
+          copyValue(parser, generator, event, name);
+          depth++;
+          name = null;
+          break;
+        case END_OBJECT:
+        case END_ARRAY:
+          generator.writeEnd();
+          depth--;
+          break;
+        default:
+          copyValue(parser, generator, event, name);
+          name = null;
+          break;
+        }
+      }
+      generator.flush();
+    } catch (JsonException e) {
+      // Covers parsing and generation errors, including wrapped I/O errors
+      throw new IOException("Failed to translate swagger.json", e);
+    } finally {
+      parser.close();
+    }
+  }
+
+  /**
+   * Copy a single parser event to the generator. Container start events only open the container.
+   */
+  protected static void copyValue(
+                                  JsonParser parser,
+                                  JsonGenerator generator,
+                                  JsonParser.Event event,
+                                  String name) {
+    switch (event) {
+    case START_OBJECT:
+      if (name == null) generator.writeStartObject();
+      else generator.writeStartObject(name);
+      break;
+    case START_ARRAY:
+      if (name == null) generator.writeStartArray();
+      else generator.writeStartArray(name);
+      break;
+    case VALUE_STRING:
+      if (name == null) generator.write(parser.getString());
+      else generator.write(name, parser.getString());
+      break;
+    case VALUE_NUMBER:
+      if (name == null) generator.write(parser.getBigDecimal());
+      else generator.write(name, parser.getBigDecimal());
+      break;
+    case VALUE_TRUE:
+      if (name == null) generator.write(true);
+      else generator.write(name, true);
+      break;
+    case VALUE_FALSE:
+      if (name == null) generator.write(false);
+      else generator.write(name, false);
+      break;
+    case VALUE_NULL:
+      if (name == null) generator.writeNull();
+      else generator.writeNull(name);
+      break;
+    default:
+      throw new JsonException("Unexpected event " + event);
+    }
+  }
+
+  /**
+   * Skip the value which starts with the given event, including any nested content.
+   */
+  protected static void skipValue(
+                                  JsonParser parser,
+                                  JsonParser.Event event) {
+    if (event != JsonParser.Event.START_OBJECT && event != JsonParser.Event.START_ARRAY) return;
+    int depth = 1;
+    while (depth > 0) {
+      switch (parser.next()) {
+      case START_OBJECT:
+      case START_ARRAY:
+        depth++;
+        break;
+      case END_OBJECT:
+      case END_ARRAY:
+        depth--;
+        break;
+      default:
+        break;
+      }
+    }
+  }
+
+  protected void writeReplacement(
+                                  JsonGenerator generator,
+                                  String name) {
+    switch (name) {
+    case "host":
+      generator.write(name, host);
+      break;
+    case "schemes":
+      generator.writeStartArray(name).write(scheme).writeEnd();
+      break;
+    case "securityDefinitions":
+      generator.writeStartObject(name);
+      writeApiKey(generator, keyName);
+      writeApiKey(generator, hashName);
+      generator.writeEnd();
+      break;
+    default:
+      break;
+    }
+  }
+
+  protected static void writeApiKey(
+                                    JsonGenerator generator,
+                                    String name) {
+    generator.writeStartObject(name).write("type", "apiKey").write("name", name).write("in", "query").writeEnd();
+  }
+
+  protected void writeSecurity(
+                               JsonGenerator generator) {
+    generator.writeStartArray("security").writeStartObject().writeStartArray(keyName).writeEnd().writeStartArray(hashName).writeEnd().writeEnd().writeEnd();
+  }
+
+}
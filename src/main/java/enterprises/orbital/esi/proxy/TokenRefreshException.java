@@ -0,0 +1,26 @@
+package enterprises.orbital.esi.proxy;
+
+/**
+ * Indicates the access token for a key could not be refreshed.
+ */
+public class TokenRefreshException extends RuntimeException {
+
+  private static final long serialVersionUID = 4470960431557130212L;
+
+  public TokenRefreshException() {
+    super();
+  }
+
+  public TokenRefreshException(String arg0) {
+    super(arg0);
+  }
+
+  public TokenRefreshException(Throwable arg0) {
+    super(arg0);
+  }
+
+  public TokenRefreshException(String arg0, Throwable arg1) {
+    super(arg0, arg1);
+  }
+
+}
@@ -0,0 +1,251 @@
+package enterprises.orbital.esi.proxy;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import enterprises.orbital.base.OrbitalProperties;
+
+/**
+ * Refreshes access tokens for recently active keys before they expire, so that requests on the proxy path almost never have to wait for the EVE SSO. The
+ * proxy records activity for each key it serves. A scanner thread periodically looks for active keys whose tokens will expire within the configured lead
+ * time and hands them to a small, bounded pool of refresh workers. Each key is assigned a random jitter so that keys created at the same time don't all
+ * refresh at the same time. Failed refreshes are retried with exponential backoff. Keys which have not been used recently are dropped from tracking.
+ */
+public class TokenRefreshScheduler {
+  protected static final Logger log                  = Logger.getLogger(TokenRefreshScheduler.class.getName());
+
+  public static final String    PROP_SCAN_INTERVAL   = "enterprises.orbital.esi.proxy.refresh.scanInterval";
+  public static final long      DEF_SCAN_INTERVAL    = TimeUnit.MILLISECONDS.convert(10, TimeUnit.SECONDS);
+  public static final String    PROP_LEAD_TIME       = "enterprises.orbital.esi.proxy.refresh.leadTime";
+  public static final long      DEF_LEAD_TIME        = TimeUnit.MILLISECONDS.convert(2, TimeUnit.MINUTES);
+  public static final String    PROP_JITTER          = "enterprises.orbital.esi.proxy.refresh.jitter";
+  public static final long      DEF_JITTER           = TimeUnit.MILLISECONDS.convert(1, TimeUnit.MINUTES);
+  public static final String    PROP_ACTIVITY_WINDOW = "enterprises.orbital.esi.proxy.refresh.activityWindow";
+  public static final long      DEF_ACTIVITY_WINDOW  = TimeUnit.MILLISECONDS.convert(1, TimeUnit.HOURS);
+  public static final String    PROP_WORKERS         = "enterprises.orbital.esi.proxy.refresh.workers";
+  public static final long      DEF_WORKERS          = 4;
+  public static final String    PROP_QUEUE_SIZE      = "enterprises.orbital.esi.proxy.refresh.queueSize";
+  public static final long      DEF_QUEUE_SIZE       = 1000;
+  public static final String    PROP_MIN_BACKOFF     = "enterprises.orbital.esi.proxy.refresh.minBackoff";
+  public static final long      DEF_MIN_BACKOFF      = TimeUnit.MILLISECONDS.convert(5, TimeUnit.SECONDS);
+  public static final String    PROP_MAX_BACKOFF     = "enterprises.orbital.esi.proxy.refresh.maxBackoff";
+  public static final long      DEF_MAX_BACKOFF      = TimeUnit.MILLISECONDS.convert(10, TimeUnit.MINUTES);
+
+  /**
+   * Refresh state for a single tracked key.
+   */
+  protected static class TrackedKey {
+    final long          kid;
+    // Random offset added to the lead time for this key
+    final long          jitter;
+    volatile long       keyExpiry;
+    volatile long       tokenExpiry;
+    volatile long       lastActive;
+    volatile long       nextAttempt;
+    volatile int        failures;
+    // True while this key is queued or being refreshed
+    final AtomicBoolean pending = new AtomicBoolean(false);
+
+    TrackedKey(long kid, long jitter) {
+      this.kid = kid;
+      this.jitter = jitter;
+    }
+  }
+
+  private final TokenRefresher                      refresher;
+  // Tokens are refreshed once they are within leadTime (plus per-key jitter) of expiring
+  private final long                                leadTime;
+  private final long                                jitter;
+  private final long                                scanInterval;
+  private final long                                activityWindow;
+  private final long                                minBackoff;
+  private final long                                maxBackoff;
+  private final int                                 workerCount;
+  private final int                                 queueSize;
+  private final ConcurrentHashMap<Long, TrackedKey> tracked   = new ConcurrentHashMap<Long, TrackedKey>();
+  private ScheduledExecutorService                  scanner;
+  private ThreadPoolExecutor                        workers;
+  private final AtomicLong                          scheduled = new AtomicLong(0);
+  private final AtomicLong                          succeeded = new AtomicLong(0);
+  private final AtomicLong                          failed    = new AtomicLong(0);
+  private final AtomicLong                          rejected  = new AtomicLong(0);
+  private final AtomicLong                          lastLag   = new AtomicLong(0);
+  private final AtomicLong                          maxLag    = new AtomicLong(0);
+  private final AtomicLong                          totalLag  = new AtomicLong(0);
+
+  /**
+   * Create a scheduler.
+   *
+   * @param refresher
+   *          refresher used to perform refreshes.
+   * @param expiryWindow
+   *          the window used by the proxy to decide a token must be refreshed before use. The scheduler refreshes tokens leadTime before they enter this
+   *          window.
+   */
+  public TokenRefreshScheduler(TokenRefresher refresher, long expiryWindow) {
+    this.refresher = refresher;
+    this.leadTime = expiryWindow + OrbitalProperties.getLongGlobalProperty(PROP_LEAD_TIME, DEF_LEAD_TIME);
+    this.jitter = Math.max(0, OrbitalProperties.getLongGlobalProperty(PROP_JITTER, DEF_JITTER));
+    this.scanInterval = OrbitalProperties.getLongGlobalProperty(PROP_SCAN_INTERVAL, DEF_SCAN_INTERVAL);
+    this.activityWindow = OrbitalProperties.getLongGlobalProperty(PROP_ACTIVITY_WINDOW, DEF_ACTIVITY_WINDOW);
+    this.minBackoff = OrbitalProperties.getLongGlobalProperty(PROP_MIN_BACKOFF, DEF_MIN_BACKOFF);
+    this.maxBackoff = OrbitalProperties.getLongGlobalProperty(PROP_MAX_BACKOFF, DEF_MAX_BACKOFF);
+    this.workerCount = (int) Math.max(1, OrbitalProperties.getLongGlobalProperty(PROP_WORKERS, DEF_WORKERS));
+    this.queueSize = (int) Math.max(1, OrbitalProperties.getLongGlobalProperty(PROP_QUEUE_SIZE, DEF_QUEUE_SIZE));
+  }
+
+  /**
+   * Start the scanner and worker threads.
+   */
+  public synchronized void start() {
+    if (scanner != null) return;
+    workers = new ThreadPoolExecutor(
+        workerCount, workerCount, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(queueSize), new NamedThreadFactory("token-refresh-worker"));
+    scanner = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("token-refresh-scanner"));
+    scanner.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          scan();
+        } catch (Throwable e) {
+          // Catch everything but log it
+          log.log(Level.WARNING, "caught error in token refresh scan (ignoring)", e);
+        }
+      }
+    }, scanInterval, scanInterval, TimeUnit.MILLISECONDS);
+    final TokenRefreshScheduler stats = this;
+    ProxyStats.register("tokenRefreshScheduler", new ProxyStats.StatsSource() {
+      @Override
+      public Map<String, Number> getStats() {
+        return stats.getStats();
+      }
+    });
+  }
+
+  /**
+   * Stop the scanner and worker threads. Refreshes in progress are allowed to complete.
+   */
+  public synchronized void stop() {
+    if (scanner == null) return;
+    scanner.shutdownNow();
+    workers.shutdown();
+    scanner = null;
+    workers = null;
+    ProxyStats.unregister("tokenRefreshScheduler");
+  }
+
+  /**
+   * Record that a key was just used. This is called on the proxy request path, so it only updates in-memory state.
+   *
+   * @param key
+   *          the key which was used.
+   */
+  public void recordActivity(
+                             AccessKeyCache.CachedKey key) {
+    TrackedKey entry = tracked.get(key.getKid());
+    if (entry == null) {
+      TrackedKey created = new TrackedKey(key.getKid(), jitter > 0 ? ThreadLocalRandom.current().nextLong(jitter) : 0);
+      entry = tracked.putIfAbsent(key.getKid(), created);
+      if (entry == null) entry = created;
+    }
+    entry.keyExpiry = key.getExpiry();
+    if (!entry.pending.get()) entry.tokenExpiry = key.getAccessTokenExpiry();
+    entry.lastActive = OrbitalProperties.getCurrentTime();
+  }
+
+  /**
+   * Scan tracked keys, dropping inactive keys and scheduling refreshes as needed.
+   */
+  protected void scan() {
+    long now = OrbitalProperties.getCurrentTime();
+    for (Iterator<TrackedKey> i = tracked.values().iterator(); i.hasNext();) {
+      final TrackedKey next = i.next();
+      if (now - next.lastActive > activityWindow || (next.keyExpiry > 0 && next.keyExpiry < now)) {
+        // Inactive or expired, stop tracking
+        i.remove();
+        continue;
+      }
+      if (next.tokenExpiry - now > leadTime + next.jitter || now < next.nextAttempt) continue;
+      if (!next.pending.compareAndSet(false, true)) continue;
+      try {
+        workers.execute(new Runnable() {
+          @Override
+          public void run() {
+            refresh(next);
+          }
+        });
+        scheduled.incrementAndGet();
+      } catch (RejectedExecutionException e) {
+        // Queue is full, we'll try again on the next scan
+        rejected.incrementAndGet();
+        next.pending.set(false);
+      }
+    }
+  }
+
+  /**
+   * Refresh a single tracked key and update its state.
+   *
+   * @param entry
+   *          the key to refresh.
+   */
+  protected void refresh(
+                         TrackedKey entry) {
+    try {
+      // Lag is how far past the point we intended to refresh this key we actually completed the refresh
+      long target = entry.tokenExpiry - leadTime - entry.jitter;
+      AccessKeyCache.CachedKey result = refresher.refresh(entry.kid, leadTime + entry.jitter);
+      long lag = Math.max(0, OrbitalProperties.getCurrentTime() - target);
+      lastLag.set(lag);
+      totalLag.addAndGet(lag);
+      long max = maxLag.get();
+      while (lag > max && !maxLag.compareAndSet(max, lag))
+        max = maxLag.get();
+      entry.tokenExpiry = result.getAccessTokenExpiry();
+      entry.keyExpiry = result.getExpiry();
+      entry.failures = 0;
+      entry.nextAttempt = 0;
+      succeeded.incrementAndGet();
+    } catch (NoSuchKeyException e) {
+      // Key was deleted
+      tracked.remove(entry.kid, entry);
+    } catch (RuntimeException e) {
+      failed.incrementAndGet();
+      int failures = ++entry.failures;
+      long backoff = Math.min(maxBackoff, minBackoff << Math.min(failures - 1, 20));
+      entry.nextAttempt = OrbitalProperties.getCurrentTime() + backoff + ThreadLocalRandom.current().nextLong(Math.max(1, backoff / 2));
+      log.log(Level.FINE, "background refresh failed for key " + entry.kid + ", retrying in " + backoff + " ms", e);
+    } finally {
+      entry.pending.set(false);
+    }
+  }
+
+  public Map<String, Number> getStats() {
+    Map<String, Number> result = new HashMap<String, Number>();
+    long done = succeeded.get();
+    result.put("tracked", tracked.size());
+    result.put("queued", workers == null ? 0 : workers.getQueue().size());
+    result.put("scheduled", scheduled.get());
+    result.put("succeeded", done);
+    result.put("failed", failed.get());
+    result.put("rejected", rejected.get());
+    result.put("lastLagMillis", lastLag.get());
+    result.put("maxLagMillis", maxLag.get());
+    result.put("meanLagMillis", done == 0 ? 0 : totalLag.get() / done);
+    return result;
+  }
+
+}
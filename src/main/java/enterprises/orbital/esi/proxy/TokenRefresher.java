@@ -0,0 +1,353 @@
+package enterprises.orbital.esi.proxy;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.entity.UrlEncodedFormEntity;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.util.EntityUtils;
+
+import com.github.scribejava.core.model.OAuth2AccessToken;
+
+import enterprises.orbital.base.OrbitalProperties;
+import enterprises.orbital.oauth.EVEAuthHandler;
+
+/**
+ * Refreshes ESI access tokens for proxy access keys. Refreshes are coalesced per key: if several threads need a fresh token for the same key at the same
+ * time, exactly one of them calls the EVE SSO and saves the result, and the others wait for and re-use the new token. Without coalescing, each thread would
+ * consume the same refresh token and all but one of the resulting refresh tokens would be invalidated.
+ * <p>
+ * The same problem exists across proxy instances which share a database. Before calling the SSO, the refreshing thread acquires the refresh lease on the
+ * key's database row. If another instance holds the lease, the thread instead polls the database until the lease holder stores a fresh token (or the lease
+ * expires, in which case the thread tries to take over the lease).
+ * <p>
+ * Refresh tokens are normally exchanged through the Orbital OAuth module. If a token URL is configured, the exchange is instead posted directly to that URL
+ * (e.g. a stub SSO used for load testing).
+ */
+public class TokenRefresher {
+  public static final String                                                     PROP_NODE_ID    = "enterprises.orbital.esi.proxy.nodeId";
+  public static final String                                                     PROP_LEASE_TIME = "enterprises.orbital.esi.proxy.refresh.leaseTime";
+  public static final long                                                       DEF_LEASE_TIME  = TimeUnit.MILLISECONDS.convert(30, TimeUnit.SECONDS);
+  public static final String                                                     PROP_LEASE_POLL = "enterprises.orbital.esi.proxy.refresh.leasePoll";
+  public static final long                                                       DEF_LEASE_POLL  = 250;
+  public static final String                                                     PROP_MAX_WAIT   = "enterprises.orbital.esi.proxy.refresh.maxWait";
+  public static final long                                                       DEF_MAX_WAIT    = TimeUnit.MILLISECONDS.convert(10, TimeUnit.SECONDS);
+  public static final String                                                     PROP_TOKEN_URL  = "enterprises.orbital.esi.proxy.sso.tokenUrl";
+
+  // Singleton instance, created on first use
+  private static TokenRefresher                                                  instance;
+
+  // Refreshes currently in progress, keyed by kid
+  private final ConcurrentMap<Long, CompletableFuture<AccessKeyCache.CachedKey>> inflight        = new ConcurrentHashMap<Long, CompletableFuture<AccessKeyCache.CachedKey>>();
+  private final AtomicLong                                                       refreshes       = new AtomicLong(0);
+  private final AtomicLong                                                       coalesced       = new AtomicLong(0);
+  private final AtomicLong                                                       skipped         = new AtomicLong(0);
+  private final AtomicLong                                                       failures        = new AtomicLong(0);
+  private final AtomicLong                                                       leaseWaits      = new AtomicLong(0);
+  // Unique ID of this proxy instance, used as the owner of refresh leases
+  private final String                                                           nodeID;
+  private final long                                                             leaseTime;
+  private final long                                                             leasePoll;
+  // Longest time (milliseconds) a request waits for a refresh by another thread or instance
+  private final long                                                             maxWait;
+  // Null unless refresh tokens are exchanged directly with a configured token URL
+  private final String                                                           tokenURL;
+  private final HttpClient                                                       ssoClient;
+
+  /**
+   * Create a refresher.
+   *
+   * @param nodeID
+   *          unique ID of this proxy instance. Every instance sharing a database must have a distinct ID.
+   * @param leaseTime
+   *          length (milliseconds) of refresh leases. This should comfortably exceed the time needed to complete a refresh.
+   * @param leasePoll
+   *          interval (milliseconds) at which to re-read a key while another instance holds its refresh lease.
+   * @param maxWait
+   *          longest time (milliseconds) to wait for a refresh by another thread or instance. This should be well below client timeouts.
+   * @param tokenURL
+   *          SSO token endpoint to post refresh requests to, or null to refresh through the Orbital OAuth module.
+   */
+  public TokenRefresher(String nodeID, long leaseTime, long leasePoll, long maxWait, String tokenURL) {
+    this.nodeID = nodeID;
+    this.leaseTime = leaseTime;
+    this.leasePoll = leasePoll;
+    this.maxWait = maxWait;
+    this.tokenURL = tokenURL;
+    this.ssoClient = tokenURL != null ? HttpClients.createSystem() : null;
+  }
+
+  /**
+   * Retrieve the global token refresher, creating it if necessary.
+   *
+   * @return the global token refresher.
+   */
+  public static synchronized TokenRefresher getRefresher() {
+    if (instance == null) {
+      String tokenURL = OrbitalProperties.getGlobalProperty(PROP_TOKEN_URL, "");
+      instance = new TokenRefresher(
+          OrbitalProperties.getGlobalProperty(PROP_NODE_ID, UUID.randomUUID().toString()), OrbitalProperties.getLongGlobalProperty(PROP_LEASE_TIME, DEF_LEASE_TIME),
+          OrbitalProperties.getLongGlobalProperty(PROP_LEASE_POLL, DEF_LEASE_POLL), OrbitalProperties.getLongGlobalProperty(PROP_MAX_WAIT, DEF_MAX_WAIT),
+          tokenURL.isEmpty() ? null : tokenURL);
+      final TokenRefresher stats = instance;
+      ProxyStats.register("tokenRefresh", new ProxyStats.StatsSource() {
+        @Override
+        public Map<String, Number> getStats() {
+          return stats.getStats();
+        }
+      });
+    }
+    return instance;
+  }
+
+  /**
+   * Ensure the given key has an access token which will not expire within the given window. If another thread is already refreshing the key, wait for that
+   * refresh to complete and return its result.
+   *
+   * @param kid
+   *          ID of the key to refresh.
+   * @param expiryWindow
+   *          minimum remaining lifetime (milliseconds) of a token which is considered fresh.
+   * @return a cached snapshot of the key holding a fresh access token.
+   * @throws NoSuchKeyException
+   *           if the key no longer exists.
+   * @throws TokenRefreshException
+   *           if the token could not be refreshed.
+   */
+  public AccessKeyCache.CachedKey refresh(
+                                          long kid,
+                                          long expiryWindow)
+    throws NoSuchKeyException, TokenRefreshException {
+    CompletableFuture<AccessKeyCache.CachedKey> mine = new CompletableFuture<AccessKeyCache.CachedKey>();
+    CompletableFuture<AccessKeyCache.CachedKey> existing = inflight.putIfAbsent(kid, mine);
+    if (existing != null) {
+      // Someone else is refreshing, wait for them
+      coalesced.incrementAndGet();
+      return await(existing);
+    }
+    try {
+      AccessKeyCache.CachedKey result = performRefresh(kid, expiryWindow);
+      mine.complete(result);
+      return result;
+    } catch (RuntimeException e) {
+      failures.incrementAndGet();
+      mine.completeExceptionally(e);
+      throw e;
+    } finally {
+      inflight.remove(kid, mine);
+    }
+  }
+
+  /**
+   * Wait for a refresh started by another thread, for at most the maximum wait.
+   *
+   * @param pending
+   *          the pending refresh.
+   * @return the result of the refresh.
+   */
+  protected AccessKeyCache.CachedKey await(
+                                           CompletableFuture<AccessKeyCache.CachedKey> pending) {
+    try {
+      return pending.get(maxWait, TimeUnit.MILLISECONDS);
+    } catch (TimeoutException e) {
+      throw new TokenRefreshException("Timed out waiting for token refresh.  Please retry.");
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new TokenRefreshException("Interrupted while waiting for token refresh", e);
+    } catch (ExecutionException e) {
+      // Re-throw the original failure so callers see the same error as the refreshing thread
+      if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+      throw new TokenRefreshException(e.getCause());
+    }
+  }
+
+  /**
+   * Refresh the given key. The key is re-read from the database first. If a previous refresh (possibly by another proxy instance) already stored a fresh
+   * token, that token is used as is. Otherwise, this instance acquires the refresh lease for the key and performs the refresh. If another instance holds the
+   * lease, wait for that instance to store a fresh token instead. The wait is bounded by the maximum wait, if the other instance stalls its lease expires
+   * and a later request takes over.
+   *
+   * @param kid
+   *          ID of the key to refresh.
+   * @param expiryWindow
+   *          minimum remaining lifetime (milliseconds) of a token which is considered fresh.
+   * @return a cached snapshot of the refreshed key.
+   */
+  protected AccessKeyCache.CachedKey performRefresh(
+                                                    long kid,
+                                                    long expiryWindow) {
+    AccessKeyCache cache = AccessKeyCache.getCache();
+    // Request threads must not wait anywhere near as long as a stalled lease could last
+    long deadline = OrbitalProperties.getCurrentTime() + maxWait;
+    while (true) {
+      long generation = cache.getGeneration();
+      // Refresh requires the full key (including the refresh token) which is never cached
+      ProxyAccessKey fullKey = ProxyAccessKey.reloadKeyByID(kid);
+      if (fullKey == null) throw new NoSuchKeyException("No connection found with proxy key: " + kid);
+      if (isFresh(fullKey, expiryWindow)) {
+        // Token was refreshed since the caller last looked, no need to go to the SSO
+        skipped.incrementAndGet();
+        return cache.put(fullKey, generation);
+      }
+      if (ProxyAccessKey.acquireRefreshLease(kid, nodeID, leaseTime)) {
+        try {
+          return refreshUnderLease(kid, expiryWindow);
+        } finally {
+          ProxyAccessKey.releaseRefreshLease(kid, nodeID);
+        }
+      }
+      // Another instance is refreshing this key, give it a chance to finish then check again
+      leaseWaits.incrementAndGet();
+      long remaining = deadline - OrbitalProperties.getCurrentTime();
+      if (remaining <= 0) throw new TokenRefreshException("Timed out waiting for token refresh.  Please retry.");
+      try {
+        Thread.sleep(Math.min(leasePoll, remaining));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new TokenRefreshException("Interrupted while waiting for token refresh", e);
+      }
+    }
+  }
+
+  /**
+   * Refresh a key while holding its refresh lease.
+   *
+   * @param kid
+   *          ID of the key to refresh.
+   * @param expiryWindow
+   *          minimum remaining lifetime (milliseconds) of a token which is considered fresh.
+   * @return a cached snapshot of the refreshed key.
+   */
+  protected AccessKeyCache.CachedKey refreshUnderLease(
+                                                       long kid,
+                                                       long expiryWindow) {
+    AccessKeyCache cache = AccessKeyCache.getCache();
+    long generation = cache.getGeneration();
+    // Re-read now that we hold the lease. The previous lease holder may have finished just before we acquired the lease.
+    ProxyAccessKey fullKey = ProxyAccessKey.reloadKeyByID(kid);
+    if (fullKey == null) throw new NoSuchKeyException("No connection found with proxy key: " + kid);
+    if (isFresh(fullKey, expiryWindow)) {
+      skipped.incrementAndGet();
+      return cache.put(fullKey, generation);
+    }
+    String refreshToken = fullKey.getRefreshToken();
+    if (refreshToken == null) throw new TokenRefreshException("Connection does not have a valid refresh token.  Please delete and re-create.");
+    OAuth2AccessToken newToken;
+    try {
+      newToken = doRefresh(refreshToken);
+    } catch (IOException e) {
+      throw new TokenRefreshException("Failed to refresh token.  You'll need to delete connection and re-create.", e);
+    }
+    if (newToken == null) throw new TokenRefreshException("Failed to refresh token.  You'll need to delete connection and re-create.");
+    refreshes.incrementAndGet();
+    fullKey.setAccessToken(newToken.getAccessToken());
+    fullKey.setAccessTokenExpiry(OrbitalProperties.getCurrentTime() + TimeUnit.MILLISECONDS.convert(newToken.getExpiresIn(), TimeUnit.SECONDS));
+    fullKey.setRefreshToken(newToken.getRefreshToken());
+    fullKey = ProxyAccessKey.update(fullKey);
+    if (fullKey == null) throw new TokenRefreshException("Failed to refresh token.  You'll need to delete connection and re-create.");
+    // Update invalidates the cache entry for this key, so re-cache the refreshed key
+    return cache.put(fullKey, cache.getGeneration());
+  }
+
+  protected static boolean isFresh(
+                                   ProxyAccessKey key,
+                                   long expiryWindow) {
+    return key.getAccessTokenExpiry() - OrbitalProperties.getCurrentTime() >= expiryWindow;
+  }
+
+  /**
+   * Exchange a refresh token for a new access token with the EVE SSO.
+   *
+   * @param refreshToken
+   *          the refresh token to exchange.
+   * @return the new access token, or null if the exchange failed.
+   * @throws IOException
+   *           if an error occurs communicating with the SSO.
+   */
+  protected OAuth2AccessToken doRefresh(
+                                        String refreshToken)
+    throws IOException {
+    String eveClientID = OrbitalProperties.getGlobalProperty("enterprises.orbital.auth.eve_client_id");
+    String eveSecretKey = OrbitalProperties.getGlobalProperty("enterprises.orbital.auth.eve_secret_key");
+    if (tokenURL != null) return postRefresh(eveClientID, eveSecretKey, refreshToken);
+    return EVEAuthHandler.doRefresh(eveClientID, eveSecretKey, refreshToken);
+  }
+
+  /**
+   * Exchange a refresh token with the configured token URL using a standard OAuth2 refresh token grant.
+   *
+   * @param clientID
+   *          SSO application client ID.
+   * @param secretKey
+   *          SSO application secret.
+   * @param refreshToken
+   *          the refresh token to exchange.
+   * @return the new access token, or null if the exchange failed.
+   * @throws IOException
+   *           if an error occurs communicating with the SSO.
+   */
+  protected OAuth2AccessToken postRefresh(
+                                          String clientID,
+                                          String secretKey,
+                                          String refreshToken)
+    throws IOException {
+    HttpPost request = new HttpPost(tokenURL);
+    String credentials = clientID + ":" + secretKey;
+    request.setHeader("Authorization", "Basic " + Base64.getEncoder().encodeToString(credentials.getBytes(StandardCharsets.UTF_8)));
+    request.setEntity(
+        new UrlEncodedFormEntity(
+            Arrays.asList(new BasicNameValuePair("grant_type", "refresh_token"), new BasicNameValuePair("refresh_token", refreshToken)),
+            StandardCharsets.UTF_8));
+    HttpResponse response = ssoClient.execute(request);
+    HttpEntity entity = response.getEntity();
+    try {
+      if (response.getStatusLine().getStatusCode() != HttpStatus.SC_OK || entity == null) return null;
+      JsonReader reader = Json.createReader(new InputStreamReader(entity.getContent(), StandardCharsets.UTF_8));
+      JsonObject body = reader.readObject();
+      reader.close();
+      return new OAuth2AccessToken(
+          body.getString("access_token"), body.getString("token_type", null), body.getInt("expires_in"), body.getString("refresh_token", refreshToken), null,
+          body.toString());
+    } catch (RuntimeException e) {
+      // Covers malformed or incomplete responses
+      throw new IOException("Invalid response from SSO token URL", e);
+    } finally {
+      EntityUtils.consume(entity);
+    }
+  }
+
+  public Map<String, Number> getStats() {
+    Map<String, Number> result = new HashMap<String, Number>();
+    result.put("inflight", inflight.size());
+    result.put("refreshes", refreshes.get());
+    result.put("coalesced", coalesced.get());
+    result.put("skipped", skipped.get());
+    result.put("failures", failures.get());
+    result.put("leaseWaits", leaseWaits.get());
+    return result;
+  }
+
+}
@@ -0,0 +1,84 @@
+package enterprises.orbital.esi.proxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.message.BasicHttpResponse;
+import org.junit.Test;
+
+public class ErrorLimitGovernorTest {
+
+  static HttpResponse response(
+                               int status,
+                               int remain) {
+    HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, status, "");
+    response.addHeader("X-ESI-Error-Limit-Remain", String.valueOf(remain));
+    response.addHeader("X-ESI-Error-Limit-Reset", "60");
+    return response;
+  }
+
+  @Test
+  public void testTracksLowestBudget() {
+    ErrorLimitGovernor governor = new ErrorLimitGovernor(50, 10, 2, 2000, 1);
+
+    assertEquals(-1, governor.getRemain());
+    governor.observe("a", response(200, 80));
+    governor.observe("a", response(200, 60));
+    // Responses arrive out of order, a higher budget from the same window is ignored
+    governor.observe("a", response(200, 70));
+    assertEquals(60, governor.getRemain());
+  }
+
+  @Test
+  public void testErrorProneSources() {
+    ErrorLimitGovernor governor = new ErrorLimitGovernor(50, 10, 2, 2000, 2);
+
+    governor.observe("a", response(404, 90));
+    assertFalse(governor.isErrorProne("a"));
+    governor.observe("a", response(404, 89));
+    assertTrue(governor.isErrorProne("a"));
+    assertFalse(governor.isErrorProne("b"));
+  }
+
+  @Test
+  public void testConcurrentErrorsAtWindowStart() throws Exception {
+    final int threads = 64;
+    // Source only becomes error-prone if no error is lost while the window starts
+    final ErrorLimitGovernor governor = new ErrorLimitGovernor(50, 10, 2, 2000, threads);
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    try {
+      final CountDownLatch start = new CountDownLatch(1);
+      List<Future<Void>> pending = new ArrayList<Future<Void>>();
+      for (int i = 0; i < threads; i++) {
+        pending.add(pool.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws Exception {
+            start.await();
+            governor.observe("a", response(500, 90));
+            return null;
+          }
+        }));
+      }
+      start.countDown();
+      for (Future<Void> next : pending)
+        next.get(10, TimeUnit.SECONDS);
+    } finally {
+      pool.shutdownNow();
+    }
+    assertTrue(governor.isErrorProne("a"));
+    assertEquals(threads, governor.getStats().get("errors").intValue());
+  }
+
+}
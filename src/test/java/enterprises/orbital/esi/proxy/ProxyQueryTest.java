@@ -0,0 +1,183 @@
+package enterprises.orbital.esi.proxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.http.NameValuePair;
+import org.apache.http.client.utils.URLEncodedUtils;
+import org.junit.Test;
+
+/**
+ * Checks {@link ProxyQuery} against the URLEncodedUtils parsing it replaced, over randomly generated query strings. Each property runs with a fixed seed
+ * so that a failure can be reproduced, and reports the query which failed.
+ */
+public class ProxyQueryTest {
+  private static final String   KEY_NAME       = "esiProxyKey";
+  private static final String   HASH_NAME      = "esiProxyHash";
+  private static final String   ALL_PAGES_NAME = "esiProxyAllPages";
+  private static final int      RUNS           = 10000;
+
+  // Parameter names, including every name the proxy treats specially
+  private static final String[] NAMES          = {
+      KEY_NAME, HASH_NAME, ALL_PAGES_NAME, "token", "page", "datasource", "language", "filter", "type_id", "order_type"
+  };
+  // Value fragments, as a client would encode them
+  private static final String[] FRAGMENTS      = {
+      "a", "Z", "0", "9", "-", ".", "_", "~", "+", "=", "%20", "%26", "%3D", "%2B", "%23", "%C3%A9", "tranquility", "1234567", "true", "TRUE", "false"
+  };
+
+  /**
+   * The parsing used before ProxyQuery: the query (without fragment) is decoded by URLEncodedUtils into a map, so the last occurrence of a name wins.
+   */
+  static Map<String, String> legacyParse(
+                                         String rawQuery)
+    throws Exception {
+    String queryString = "?" + (rawQuery == null ? "" : rawQuery);
+    int hash = queryString.indexOf('#');
+    if (hash >= 0) queryString = queryString.substring(0, hash);
+    Map<String, String> params = new LinkedHashMap<String, String>();
+    for (NameValuePair pair : URLEncodedUtils.parse(new URI(queryString), "UTF-8")) {
+      params.put(pair.getName(), pair.getValue());
+    }
+    return params;
+  }
+
+  static String randomValue(
+                            Random random) {
+    StringBuilder value = new StringBuilder();
+    for (int i = random.nextInt(5); i > 0; i--)
+      value.append(FRAGMENTS[random.nextInt(FRAGMENTS.length)]);
+    return value.toString();
+  }
+
+  static String randomParameter(
+                                Random random,
+                                String name) {
+    // A name on its own is legal, and is how clients usually ask for all pages
+    return random.nextInt(10) == 0 ? name : name + "=" + randomValue(random);
+  }
+
+  /**
+   * Build a query from the given names in order, occasionally followed by a fragment.
+   */
+  static String randomQuery(
+                            Random random,
+                            List<String> names) {
+    StringBuilder query = new StringBuilder();
+    for (String name : names) {
+      if (query.length() > 0) query.append('&');
+      query.append(randomParameter(random, name));
+    }
+    if (random.nextInt(10) == 0) query.append('#').append(randomValue(random));
+    return query.toString();
+  }
+
+  static String orEmpty(
+                        String value) {
+    return value == null ? "" : value;
+  }
+
+  @Test
+  public void testMatchesLegacyParsing() throws Exception {
+    Random random = new Random(20171018L);
+    List<String> names = new ArrayList<String>();
+    Collections.addAll(names, NAMES);
+
+    for (int run = 0; run < RUNS; run++) {
+      // Distinct names, since the legacy parsing kept only one value per name
+      Collections.shuffle(names, random);
+      String rawQuery = randomQuery(random, names.subList(0, random.nextInt(names.size() + 1)));
+      Map<String, String> legacy = legacyParse(rawQuery);
+      ProxyQuery scanned = ProxyQuery.scan(rawQuery, KEY_NAME, HASH_NAME, ALL_PAGES_NAME);
+
+      // A name without a value was null before, and is empty now. Either way the key is rejected.
+      assertEquals(rawQuery, legacy.containsKey(KEY_NAME) ? orEmpty(legacy.get(KEY_NAME)) : null, scanned.getKey());
+      assertEquals(rawQuery, legacy.containsKey(HASH_NAME) ? orEmpty(legacy.get(HASH_NAME)) : null, scanned.getHash());
+      // Only "true" or a bare name asks for all pages
+      String allPages = legacy.containsKey(ALL_PAGES_NAME) ? orEmpty(legacy.get(ALL_PAGES_NAME)) : null;
+      assertEquals(rawQuery, allPages != null && (allPages.isEmpty() || allPages.equalsIgnoreCase("true")), scanned.isAllPages());
+      assertEquals(rawQuery, legacy.containsKey("token"), scanned.hasToken());
+
+      // What is forwarded decodes to what the legacy parsing forwarded
+      legacy.remove(KEY_NAME);
+      legacy.remove(HASH_NAME);
+      legacy.remove(ALL_PAGES_NAME);
+      String remaining = scanned.getRemaining();
+      if (scanned.isAllPages()) {
+        legacy.remove("page");
+        remaining = ProxyQuery.remove(remaining, "page");
+      }
+      assertEquals(rawQuery, legacy, legacyParse(remaining));
+    }
+  }
+
+  @Test
+  public void testAllPagesValue() {
+    assertTrue(ProxyQuery.scan("page=2&esiProxyAllPages=true", KEY_NAME, HASH_NAME, ALL_PAGES_NAME).isAllPages());
+    assertTrue(ProxyQuery.scan("esiProxyAllPages=TRUE", KEY_NAME, HASH_NAME, ALL_PAGES_NAME).isAllPages());
+    assertTrue(ProxyQuery.scan("esiProxyAllPages&type_id=34", KEY_NAME, HASH_NAME, ALL_PAGES_NAME).isAllPages());
+    assertFalse(ProxyQuery.scan("esiProxyAllPages=false", KEY_NAME, HASH_NAME, ALL_PAGES_NAME).isAllPages());
+    assertFalse(ProxyQuery.scan("esiProxyAllPages=0", KEY_NAME, HASH_NAME, ALL_PAGES_NAME).isAllPages());
+    // First occurrence wins, and the parameter is never forwarded
+    ProxyQuery scanned = ProxyQuery.scan("esiProxyAllPages=false&esiProxyAllPages=true&page=2", KEY_NAME, HASH_NAME, ALL_PAGES_NAME);
+    assertFalse(scanned.isAllPages());
+    assertEquals("page=2", scanned.getRemaining());
+  }
+
+  @Test
+  public void testPreservesOtherParameters() throws Exception {
+    Random random = new Random(20171019L);
+
+    for (int run = 0; run < RUNS; run++) {
+      // Names may repeat, which the legacy parsing collapsed
+      List<String> names = new ArrayList<String>();
+      for (int i = random.nextInt(8); i > 0; i--)
+        names.add(NAMES[random.nextInt(NAMES.length)]);
+      String rawQuery = randomQuery(random, names);
+      ProxyQuery scanned = ProxyQuery.scan(rawQuery, KEY_NAME, HASH_NAME, ALL_PAGES_NAME);
+
+      // Every other parameter is forwarded exactly as sent, in order
+      StringBuilder expected = new StringBuilder();
+      int fragment = rawQuery.indexOf('#');
+      for (String next : (fragment < 0 ? rawQuery : rawQuery.substring(0, fragment)).split("&")) {
+        String name = next.indexOf('=') < 0 ? next : next.substring(0, next.indexOf('='));
+        if (next.isEmpty() || name.equals(KEY_NAME) || name.equals(HASH_NAME) || name.equals(ALL_PAGES_NAME)) continue;
+        if (expected.length() > 0) expected.append('&');
+        expected.append(next);
+      }
+      assertEquals(rawQuery, expected.toString(), scanned.getRemaining());
+    }
+  }
+
+  @Test
+  public void testCanonicalIgnoresOrder() throws Exception {
+    Random random = new Random(20171020L);
+    List<String> names = new ArrayList<String>();
+    Collections.addAll(names, NAMES);
+
+    for (int run = 0; run < RUNS; run++) {
+      Collections.shuffle(names, random);
+      List<String> parameters = new ArrayList<String>();
+      for (String name : names.subList(0, random.nextInt(names.size() + 1)))
+        parameters.add(randomParameter(random, name));
+      StringBuilder query = new StringBuilder();
+      for (String next : parameters)
+        query.append(query.length() > 0 ? "&" : "").append(next);
+      Collections.shuffle(parameters, random);
+      StringBuilder shuffled = new StringBuilder();
+      for (String next : parameters)
+        shuffled.append(shuffled.length() > 0 ? "&" : "").append(next);
+      assertEquals(query.toString(), ProxyQuery.canonical(query.toString()), ProxyQuery.canonical(shuffled.toString()));
+    }
+  }
+
+}
@@ -0,0 +1,126 @@
+package enterprises.orbital.esi.proxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+public class RateLimiterTest {
+
+  /**
+   * Limiter whose per-user limits come from the test rather than the database.
+   */
+  static class StubLimiter extends RateLimiter {
+    final AtomicInteger loads    = new AtomicInteger(0);
+    volatile long       keyBurst = 5;
+    volatile long       loadDelay;
+
+    StubLimiter(long overrideTTL) {
+      super(1, 2, 0, 0, overrideTTL, 1000);
+    }
+
+    @Override
+    protected Limits loadLimits(
+                                long uid,
+                                long now) {
+      loads.incrementAndGet();
+      try {
+        Thread.sleep(loadDelay);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      return new Limits(1, keyBurst, 0, 0, now);
+    }
+  }
+
+  static void awaitLoads(
+                         StubLimiter limiter,
+                         int count)
+    throws InterruptedException {
+    for (int i = 0; i < 100 && limiter.loads.get() < count; i++)
+      Thread.sleep(10);
+    // Give the loader a moment to store the result
+    Thread.sleep(50);
+  }
+
+  @Test
+  public void testDefaultsApplyUntilLoaded() throws Exception {
+    StubLimiter limiter = new StubLimiter(TimeUnit.MILLISECONDS.convert(1, TimeUnit.HOURS));
+    limiter.loadDelay = 200;
+    try {
+      long start = System.nanoTime();
+      // Default burst of 2
+      assertEquals(0, limiter.acquire(1, 100));
+      assertEquals(0, limiter.acquire(1, 100));
+      assertTrue(limiter.acquire(1, 100) > 0);
+      // Slow load didn't hold up the requests
+      assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(150));
+      awaitLoads(limiter, 1);
+      // Loaded burst of 5 replaces the default, keeping the tokens already taken
+      assertEquals(0, limiter.acquire(2, 100));
+      assertEquals(1, limiter.loads.get());
+    } finally {
+      limiter.shutdown();
+    }
+  }
+
+  @Test
+  public void testSingleLoadPerUser() throws Exception {
+    final StubLimiter limiter = new StubLimiter(TimeUnit.MILLISECONDS.convert(1, TimeUnit.HOURS));
+    limiter.loadDelay = 100;
+    try {
+      for (int i = 0; i < 1000; i++)
+        limiter.acquire(i, 100);
+      awaitLoads(limiter, 1);
+      assertEquals(1, limiter.loads.get());
+    } finally {
+      limiter.shutdown();
+    }
+  }
+
+  @Test
+  public void testConcurrentLimitChanges() throws Exception {
+    // Limits expire immediately, so buckets are replaced while other threads use them
+    final StubLimiter limiter = new StubLimiter(0);
+    final int threads = 32;
+    final AtomicLong allowed = new AtomicLong(0);
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    try {
+      final CountDownLatch start = new CountDownLatch(1);
+      List<Future<Void>> pending = new ArrayList<Future<Void>>();
+      for (int i = 0; i < threads; i++) {
+        pending.add(pool.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws Exception {
+            start.await();
+            for (int j = 0; j < 10000; j++) {
+              limiter.keyBurst = 3 + (j % 3);
+              if (limiter.acquire(j % 4, 100) == 0) allowed.incrementAndGet();
+            }
+            return null;
+          }
+        }));
+      }
+      start.countDown();
+      // Any failure (e.g. a bucket vanishing while being replaced) is re-thrown here
+      for (Future<Void> next : pending)
+        next.get(60, TimeUnit.SECONDS);
+    } finally {
+      pool.shutdownNow();
+      limiter.shutdown();
+    }
+    assertTrue(allowed.get() > 0);
+  }
+
+}
@@ -0,0 +1,87 @@
+package enterprises.orbital.esi.proxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import enterprises.orbital.esi.proxy.TokenRefresherTest.StubRefresher;
+
+/**
+ * Refresh leases shared by several proxy instances. Each instance is simulated by a separate refresher with its own node ID, all sharing the test database.
+ */
+public class RefreshLeaseTest {
+  private static final long EXPIRY_WINDOW = TimeUnit.MILLISECONDS.convert(1, TimeUnit.MINUTES);
+  private static final long MAX_WAIT      = TimeUnit.MILLISECONDS.convert(10, TimeUnit.SECONDS);
+
+  @BeforeClass
+  public static void setUp() throws IOException {
+    TestDatabase.setUp();
+  }
+
+  @Test
+  public void testInstancesRefreshOnce() throws Exception {
+    ProxyAccessKey key = TestDatabase.createExpiredKey("instances");
+    StubRefresher first = new StubRefresher("node-a", MAX_WAIT);
+    StubRefresher second = new StubRefresher("node-b", MAX_WAIT);
+    StubRefresher third = new StubRefresher("node-c", MAX_WAIT);
+
+    for (AccessKeyCache.CachedKey next : TokenRefresherTest.refreshConcurrently(key.getKid(), 90, first, second, third))
+      assertEquals(key.getKid(), next.getKid());
+    assertEquals(1, first.calls.get() + second.calls.get() + third.calls.get());
+    ProxyAccessKey stored = ProxyAccessKey.reloadKeyByID(key.getKid());
+    assertTrue(stored.getAccessTokenExpiry() > System.currentTimeMillis());
+    // Lease is released once the refresh completes
+    assertEquals(null, stored.getRefreshLeaseOwner());
+  }
+
+  @Test
+  public void testLeaseExcludesOtherInstances() throws Exception {
+    ProxyAccessKey key = TestDatabase.createExpiredKey("exclusive");
+    long lease = TimeUnit.MILLISECONDS.convert(1, TimeUnit.MINUTES);
+
+    assertTrue(ProxyAccessKey.acquireRefreshLease(key.getKid(), "node-a", lease));
+    assertFalse(ProxyAccessKey.acquireRefreshLease(key.getKid(), "node-b", lease));
+    // Holder may extend its own lease
+    assertTrue(ProxyAccessKey.acquireRefreshLease(key.getKid(), "node-a", lease));
+    // Only the holder can release
+    ProxyAccessKey.releaseRefreshLease(key.getKid(), "node-b");
+    assertFalse(ProxyAccessKey.acquireRefreshLease(key.getKid(), "node-b", lease));
+    ProxyAccessKey.releaseRefreshLease(key.getKid(), "node-a");
+    assertTrue(ProxyAccessKey.acquireRefreshLease(key.getKid(), "node-b", lease));
+  }
+
+  @Test
+  public void testExpiredLeaseIsTakenOver() throws Exception {
+    ProxyAccessKey key = TestDatabase.createExpiredKey("takeover");
+
+    // Lease which has already run out, as if its holder had stalled
+    assertTrue(ProxyAccessKey.acquireRefreshLease(key.getKid(), "node-a", -1));
+    StubRefresher refresher = new StubRefresher("node-b", MAX_WAIT);
+    assertEquals("access-1", refresher.refresh(key.getKid(), EXPIRY_WINDOW).getAccessToken());
+    assertEquals(1, refresher.calls.get());
+  }
+
+  @Test
+  public void testStaleUpdateKeepsLease() throws Exception {
+    ProxyAccessKey key = TestDatabase.createExpiredKey("stale");
+    // Copy read before another instance takes the lease
+    ProxyAccessKey stale = ProxyAccessKey.reloadKeyByID(key.getKid());
+    long lease = TimeUnit.MILLISECONDS.convert(1, TimeUnit.MINUTES);
+    assertTrue(ProxyAccessKey.acquireRefreshLease(key.getKid(), "node-a", lease));
+
+    stale.setAccessToken("updated");
+    ProxyAccessKey.update(stale);
+
+    ProxyAccessKey stored = ProxyAccessKey.reloadKeyByID(key.getKid());
+    assertEquals("updated", stored.getAccessToken());
+    assertEquals("node-a", stored.getRefreshLeaseOwner());
+    assertFalse(ProxyAccessKey.acquireRefreshLease(key.getKid(), "node-b", lease));
+  }
+
+}
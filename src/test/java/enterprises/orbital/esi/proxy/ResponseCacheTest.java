@@ -0,0 +1,140 @@
+package enterprises.orbital.esi.proxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.message.BasicHttpResponse;
+import org.junit.Test;
+
+public class ResponseCacheTest {
+
+  static HttpResponse cacheable() {
+    HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+    response.addHeader("Expires", DateUtils.formatDate(new Date(System.currentTimeMillis() + TimeUnit.MILLISECONDS.convert(1, TimeUnit.HOURS))));
+    response.addHeader("Content-Type", "application/json; charset=UTF-8");
+    return response;
+  }
+
+  static long bytes(
+                    ResponseCache cache) {
+    return cache.getStats().get("bytes").longValue();
+  }
+
+  @Test
+  public void testStoreAndRetrieve() {
+    ResponseCache cache = new ResponseCache("test", true, 1024 * 1024, 1024);
+    String key = ResponseCache.buildKey("latest", "/universe/types/34/", "datasource=tranquility", null, null);
+
+    assertNull(cache.get(ResponseCache.SHARED_PARTITION, key));
+    assertNotNull(cache.put(ResponseCache.SHARED_PARTITION, key, cacheable(), new byte[100]));
+    ResponseCache.Entry entry = cache.get(ResponseCache.SHARED_PARTITION, key);
+    assertNotNull(entry);
+    assertEquals(100, entry.getBody().length);
+    assertEquals(entry.size(), bytes(cache));
+  }
+
+  @Test
+  public void testStaysWithinBudget() {
+    long maxBytes = 64 * 1024;
+    ResponseCache cache = new ResponseCache("test", true, maxBytes, 1024);
+
+    for (int i = 0; i < 1000; i++)
+      cache.put(ResponseCache.SHARED_PARTITION, ResponseCache.buildKey("latest", "/types/" + i + "/", "", null, null), cacheable(), new byte[512]);
+    assertTrue(bytes(cache) <= maxBytes);
+    assertTrue(cache.getStats().get("evictions").longValue() > 0);
+    // Most recently stored entry survives
+    assertNotNull(cache.get(ResponseCache.SHARED_PARTITION, ResponseCache.buildKey("latest", "/types/999/", "", null, null)));
+  }
+
+  @Test
+  public void testInvalidateDiscardsPartition() {
+    ResponseCache cache = new ResponseCache("test", false, 1024 * 1024, 1024);
+    String key = ResponseCache.buildKey("latest", "/characters/1/wallet/", "", null, null);
+
+    assertNotNull(cache.put(42, key, cacheable(), new byte[100]));
+    assertNotNull(cache.get(42, key));
+    assertNull(cache.get(43, key));
+    cache.invalidate(42);
+    assertNull(cache.get(42, key));
+    assertEquals(0, bytes(cache));
+  }
+
+  @Test
+  public void testPartitionsPrunedWithEntries() {
+    ResponseCache cache = new ResponseCache("test", false, 64 * 1024, 1024);
+
+    // Far more keys than the budget has room for
+    for (long kid = 1; kid <= 5000; kid++) {
+      String key = ResponseCache.buildKey("latest", "/characters/" + kid + "/wallet/", "", null, null);
+      cache.get(kid, key);
+      cache.put(kid, key, cacheable(), new byte[512]);
+    }
+    long entries = cache.getStats().get("entries").longValue();
+    assertTrue(entries < 5000);
+    assertEquals(entries, cache.getStats().get("partitions").longValue());
+    // Three statistics per reported key
+    assertEquals(3 * Math.min(entries, ResponseCache.PARTITION_STATS_LIMIT), cache.getPartitionStats().size());
+    // Lookups with keys that have nothing cached don't create partitions
+    cache.get(999999, ResponseCache.buildKey("latest", "/characters/999999/wallet/", "", null, null));
+    assertEquals(entries, cache.getStats().get("partitions").longValue());
+  }
+
+  @Test
+  public void testConcurrentAccess() throws Exception {
+    final ResponseCache cache = new ResponseCache("test", false, 256 * 1024, 4096);
+    final int threads = 32;
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    try {
+      final CountDownLatch start = new CountDownLatch(1);
+      List<Future<Void>> pending = new ArrayList<Future<Void>>();
+      for (int i = 0; i < threads; i++) {
+        pending.add(pool.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws Exception {
+            start.await();
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            for (int j = 0; j < 5000; j++) {
+              long partition = 1 + random.nextInt(20);
+              String key = ResponseCache.buildKey("latest", "/route/" + random.nextInt(200) + "/", "", null, null);
+              if (random.nextInt(100) == 0) {
+                cache.invalidate(partition);
+              } else if (cache.get(partition, key) == null) {
+                cache.put(partition, key, cacheable(), new byte[random.nextInt(4096)]);
+              }
+            }
+            return null;
+          }
+        }));
+      }
+      start.countDown();
+      for (Future<Void> next : pending)
+        next.get(60, TimeUnit.SECONDS);
+    } finally {
+      pool.shutdownNow();
+    }
+    assertTrue(bytes(cache) <= 256 * 1024);
+    // Discarding every partition must leave the cache empty, i.e. no entry was lost track of
+    for (long partition = 1; partition <= 20; partition++)
+      cache.invalidate(partition);
+    assertEquals(0, cache.getStats().get("entries").longValue());
+    assertEquals(0, cache.getStats().get("partitions").longValue());
+    assertEquals(0, bytes(cache));
+  }
+
+}
@@ -0,0 +1,36 @@
+package enterprises.orbital.esi.proxy;
+
+import java.io.IOException;
+
+import enterprises.orbital.base.OrbitalProperties;
+
+/**
+ * Shared setup for tests which need a database. Tests use the esiproxy-test persistence unit, an in-memory H2 database whose schema is created by Hibernate.
+ */
+public class TestDatabase {
+  private static boolean initialized;
+
+  public static synchronized void setUp() throws IOException {
+    if (initialized) return;
+    OrbitalProperties.addPropertyFile("ESIProxyTest.properties");
+    initialized = true;
+  }
+
+  /**
+   * Create a user and a key for that user whose access token has already expired.
+   *
+   * @param characterName
+   *          name of the key's character, for telling keys apart when a test fails.
+   * @return the new key.
+   */
+  public static ProxyAccessKey createExpiredKey(
+                                                String characterName) {
+    ProxyUserAccount user = ProxyUserAccount.createNewUserAccount(false, true);
+    ProxyAccessKey key = ProxyAccessKey.createKey(user, -1, "latest", "esi-wallet.read_character_wallet.v1", characterName, 90000000L);
+    key.setAccessToken("expired");
+    key.setAccessTokenExpiry(0);
+    key.setRefreshToken("refresh-" + characterName);
+    return ProxyAccessKey.update(key);
+  }
+
+}
@@ -0,0 +1,116 @@
+package enterprises.orbital.esi.proxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.github.scribejava.core.model.OAuth2AccessToken;
+
+public class TokenRefresherTest {
+  private static final long EXPIRY_WINDOW = TimeUnit.MILLISECONDS.convert(1, TimeUnit.MINUTES);
+
+  /**
+   * Refresher with a stub SSO. The SSO is slow so that concurrent requests pile up behind the first refresh.
+   */
+  static class StubRefresher extends TokenRefresher {
+    final AtomicInteger calls = new AtomicInteger(0);
+
+    StubRefresher(String nodeID, long maxWait) {
+      super(nodeID, TimeUnit.MILLISECONDS.convert(30, TimeUnit.SECONDS), 50, maxWait, null);
+    }
+
+    @Override
+    protected OAuth2AccessToken doRefresh(
+                                          String refreshToken)
+      throws IOException {
+      int call = calls.incrementAndGet();
+      try {
+        Thread.sleep(200);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      return new OAuth2AccessToken("access-" + call, "Bearer", 1200, refreshToken + "-" + call, null, "{}");
+    }
+  }
+
+  @BeforeClass
+  public static void setUp() throws IOException {
+    TestDatabase.setUp();
+  }
+
+  /**
+   * Run the given number of concurrent refreshes of a key, split evenly across the given refreshers.
+   */
+  static List<AccessKeyCache.CachedKey> refreshConcurrently(
+                                                            final long kid,
+                                                            int requests,
+                                                            final TokenRefresher... refreshers)
+    throws Exception {
+    ExecutorService pool = Executors.newFixedThreadPool(requests);
+    try {
+      final CountDownLatch start = new CountDownLatch(1);
+      List<Future<AccessKeyCache.CachedKey>> pending = new ArrayList<Future<AccessKeyCache.CachedKey>>();
+      for (int i = 0; i < requests; i++) {
+        final TokenRefresher refresher = refreshers[i % refreshers.length];
+        pending.add(pool.submit(new Callable<AccessKeyCache.CachedKey>() {
+          @Override
+          public AccessKeyCache.CachedKey call() throws Exception {
+            start.await();
+            return refresher.refresh(kid, EXPIRY_WINDOW);
+          }
+        }));
+      }
+      start.countDown();
+      List<AccessKeyCache.CachedKey> results = new ArrayList<AccessKeyCache.CachedKey>();
+      for (Future<AccessKeyCache.CachedKey> next : pending)
+        results.add(next.get(30, TimeUnit.SECONDS));
+      return results;
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testConcurrentRequestsRefreshOnce() throws Exception {
+    ProxyAccessKey key = TestDatabase.createExpiredKey("concurrent");
+    StubRefresher refresher = new StubRefresher("node-a", TimeUnit.MILLISECONDS.convert(10, TimeUnit.SECONDS));
+
+    for (AccessKeyCache.CachedKey next : refreshConcurrently(key.getKid(), 300, refresher))
+      assertEquals("access-1", next.getAccessToken());
+    assertEquals(1, refresher.calls.get());
+    assertEquals("refresh-concurrent-1", ProxyAccessKey.reloadKeyByID(key.getKid()).getRefreshToken());
+  }
+
+  @Test
+  public void testWaitForLeaseIsBounded() throws Exception {
+    ProxyAccessKey key = TestDatabase.createExpiredKey("stalled");
+    // Another instance took the lease and never finished
+    assertTrue(ProxyAccessKey.acquireRefreshLease(key.getKid(), "stalled-node", TimeUnit.MILLISECONDS.convert(1, TimeUnit.MINUTES)));
+    StubRefresher refresher = new StubRefresher("node-a", 500);
+
+    long start = System.currentTimeMillis();
+    try {
+      refresher.refresh(key.getKid(), EXPIRY_WINDOW);
+      fail("Refresh should time out while another instance holds the lease");
+    } catch (TokenRefreshException e) {
+      // expected
+    }
+    assertTrue(System.currentTimeMillis() - start < TimeUnit.MILLISECONDS.convert(5, TimeUnit.SECONDS));
+    assertEquals(0, refresher.calls.get());
+  }
+
+}